@@ -0,0 +1,189 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.IPrefixOffsetsStorage;
+import oss.restore.file.position.storage.IViewportStorage;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.Viewports;
+
+/**
+ * An offsets storage that collects the offsets being set and writes them to
+ * another storage in one batch, e.g. when closing all editors at once. The
+ * first offset set after a flush schedules the next flush on an executor, so
+ * a burst of updates costs one flush.
+ *
+ * Offsets not yet flushed are still returned by {@link #getOffset(String)},
+ * and {@link #size()} and {@link #getMap()} flush first. Viewport snapshots are
+ * batched the same way and passed on if the storage keeps them. Prefix
+ * operations flush first and are passed on if the storage supports them.
+
+ * The plug-in used to store offsets this way and now queues them for the
+ * background writer of an AsyncOffsetsStorage. This storage is kept as the
+ * baseline of {@link CloseAllBenchmark}.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class BatchingOffsetsStorage implements IViewportStorage,
+		IPrefixOffsetsStorage {
+
+	private final IOffsetsStorage storage;
+	private final Executor executor;
+	private final Map<String, ViewportSnapshot> pendingViewports = new LinkedHashMap<String, ViewportSnapshot>();
+	private boolean flushScheduled;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructs a batching offsets storage.
+	 *
+	 * @param storage
+	 *            The storage to write the offsets to.
+	 * @param executor
+	 *            The executor to run the flushes on, e.g. the UI thread once
+	 *            it is done with the current event.
+	 */
+	public BatchingOffsetsStorage(IOffsetsStorage storage, Executor executor) {
+		this.storage = storage;
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the storage the offsets are written to.
+	 *
+	 * @return The storage.
+	 */
+	public IOffsetsStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Write the offsets set since the last flush to the storage, in the order
+	 * they were last set.
+	 */
+	public synchronized void flush() {
+		flushScheduled = false;
+		if (pendingViewports.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<String, ViewportSnapshot> entry : pendingViewports
+				.entrySet()) {
+			Viewports.set(storage, entry.getKey(), entry.getValue());
+		}
+		pendingViewports.clear();
+	}
+
+	/**
+	 * Get the count of offsets waiting to be flushed.
+	 *
+	 * @return The pending count.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingViewports.size();
+	}
+
+	@Override
+	public synchronized void setCapacity(int newCapacity) {
+		storage.setCapacity(newCapacity);
+	}
+
+	@Override
+	public synchronized int getCapacity() {
+		return storage.getCapacity();
+	}
+
+	@Override
+	public synchronized int getOffset(String filePathUri) {
+		ViewportSnapshot viewport = pendingViewports.get(filePathUri);
+		return viewport == null ? storage.getOffset(filePathUri) : viewport
+				.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public synchronized ViewportSnapshot getViewport(String filePathUri) {
+		ViewportSnapshot viewport = pendingViewports.get(filePathUri);
+		return viewport == null ? Viewports.get(storage, filePathUri)
+				: viewport;
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		synchronized (this) {
+			pendingViewports.remove(filePathUri);
+			pendingViewports.put(filePathUri, viewport);
+			if (flushScheduled) {
+				return;
+			}
+			flushScheduled = true;
+		}
+		executor.execute(flushTask);
+	}
+
+	@Override
+	public synchronized int size() {
+		flush();
+		return storage.size();
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getMap() {
+		flush();
+		return storage.getMap();
+	}
+
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports() {
+		flush();
+		return Viewports.getAll(storage);
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getOffsetsUnder(String prefix) {
+		flush();
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return Collections.emptyMap();
+		}
+		return ((IPrefixOffsetsStorage) storage).getOffsetsUnder(prefix);
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Flush and apply a batch of moved and removed paths and prefixes to the
+	 * storage. Does nothing if the storage does not support it.
+	 */
+	@Override
+	public synchronized int rekey(PathChanges changes) {
+		flush();
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return 0;
+		}
+		return ((IPrefixOffsetsStorage) storage).rekey(changes);
+	}
+}
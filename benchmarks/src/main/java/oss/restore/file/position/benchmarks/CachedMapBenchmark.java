@@ -0,0 +1,79 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.CachedMap;
+
+/**
+ * Putting and getting in a full CachedMap and CachedIntMap. The keys cycle
+ * over twice the capacity, so every put of a new key evicts the eldest one.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CachedMapBenchmark {
+
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int size;
+
+	private String[] keys;
+	private CachedMap<String, Integer> cachedMap;
+	private CachedIntMap cachedIntMap;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		keys = PathKeys.generate(2 * size, 42);
+		cachedMap = new CachedMap<String, Integer>(size);
+		cachedIntMap = new CachedIntMap(size);
+		for (int i = 0; i < keys.length; i++) {
+			cachedMap.put(keys[i], Integer.valueOf(i));
+			cachedIntMap.putInt(keys[i], i);
+		}
+	}
+
+	private String nextKey() {
+		if (++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public Integer cachedMapPut() {
+		return cachedMap.put(nextKey(), Integer.valueOf(next * 31));
+	}
+
+	@Benchmark
+	public Integer cachedMapGet() {
+		return cachedMap.get(nextKey());
+	}
+
+	@Benchmark
+	public boolean cachedIntMapPut() {
+		return cachedIntMap.putInt(nextKey(), next * 31);
+	}
+
+	@Benchmark
+	public int cachedIntMapGet() {
+		return cachedIntMap.getInt(nextKey(), 0);
+	}
+}
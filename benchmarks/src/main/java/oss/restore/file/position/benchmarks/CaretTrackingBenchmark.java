@@ -0,0 +1,110 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+import oss.restore.file.position.tracking.Debouncer;
+
+/**
+ * The per-keystroke overhead of tracking the caret of an open editor: marking
+ * the editor as changed in a Debouncer, compared to writing the position
+ * through to a storage on every keystroke. The write-through numbers do not
+ * even include reading the selection and anchor from the editor.
+ *
+ * The debouncer's timeout never fires here, as while typing.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaretTrackingBenchmark {
+
+	private static final int EDITORS = 8;
+
+	private String[] keys;
+	private Debouncer<String> debouncer;
+	private StandardOffsetsStorage standard;
+	private File journalDir;
+	private JournalOffsetsStorage journal;
+	private int next;
+	private int offset;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		keys = PathKeys.generate(EDITORS, 42);
+		debouncer = new Debouncer<String>(1000, new Debouncer.IScheduler() {
+			public void schedule(long delayMillis, Runnable task) {
+			}
+		}, new Debouncer.IFlusher<String>() {
+			public void flush(String key) {
+			}
+		});
+		standard = new StandardOffsetsStorage(100);
+		journalDir = File.createTempFile("caret", "");
+		journalDir.delete();
+		journalDir.mkdirs();
+		journal = new JournalOffsetsStorage(new File(journalDir,
+				"offsets.journal"), 100);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		journal.close();
+		File[] files = journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		journalDir.delete();
+	}
+
+	/**
+	 * Mostly keystrokes in one editor, now and then in another one.
+	 */
+	private String nextKey() {
+		offset++;
+		if ((offset & 63) == 0 && ++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public void debounced() {
+		debouncer.changed(nextKey());
+	}
+
+	@Benchmark
+	public void writeThroughStandard() {
+		String key = nextKey();
+		standard.setViewport(key, new ViewportSnapshot(offset, 0, offset >> 6));
+	}
+
+	@Benchmark
+	public void writeThroughJournal() {
+		String key = nextKey();
+		journal.setViewport(key, new ViewportSnapshot(offset, 0, offset >> 6));
+	}
+}
@@ -0,0 +1,107 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.AsyncOffsetsStorage;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+
+/**
+ * The time the UI thread spends when all editors are closed at once, storing
+ * the position of each into a journal: batched and flushed on the UI thread
+ * once it is done with the event, compared to queued for the background
+ * writer of an AsyncOffsetsStorage. The background writer is drained outside
+ * of the measurement.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloseAllBenchmark {
+
+	@Param( { "30", "300" })
+	public int editors;
+
+	private String[] keys;
+	private File journalDir;
+	private JournalOffsetsStorage batchingJournal;
+	private BatchingOffsetsStorage batching;
+	private JournalOffsetsStorage asyncJournal;
+	private AsyncOffsetsStorage async;
+	private int offset;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		keys = PathKeys.generate(editors, 42);
+		journalDir = File.createTempFile("closeall", "");
+		journalDir.delete();
+		journalDir.mkdirs();
+		batchingJournal = new JournalOffsetsStorage(new File(journalDir,
+				"batching.journal"), 1000);
+		// The flush is run by the benchmark, as the UI thread would.
+		batching = new BatchingOffsetsStorage(batchingJournal, new Executor() {
+			public void execute(Runnable task) {
+			}
+		});
+		asyncJournal = new JournalOffsetsStorage(new File(journalDir,
+				"async.journal"), 1000);
+		async = new AsyncOffsetsStorage(asyncJournal);
+	}
+
+	@TearDown(Level.Invocation)
+	public void drain() {
+		async.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		async.close();
+		batchingJournal.close();
+		asyncJournal.close();
+		File[] files = journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		journalDir.delete();
+	}
+
+	@Benchmark
+	public void batchedOnUIThread() {
+		offset++;
+		for (String key : keys) {
+			batching.setViewport(key, new ViewportSnapshot(offset, 0, 0));
+		}
+		batching.flush();
+	}
+
+	@Benchmark
+	public void asyncWriter() {
+		offset++;
+		for (String key : keys) {
+			async.setViewport(key, new ViewportSnapshot(offset, 0, 0));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.BinaryMapSerializer;
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * The time spent serializing and de-serializing viewport snapshots in the
+ * binary format, as is and compressed with Deflate and the path dictionary.
+ * Run {@link #main(String[])} for the payload sizes they trade against.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param( { "10000", "100000" })
+	public int size;
+
+	@Param( { "none", "deflate" })
+	public String codec;
+
+	private Map<String, ViewportSnapshot> map;
+	private byte[] serialized;
+
+	@Setup
+	public void setUp() throws IOException {
+		map = generateViewports(size);
+		serialized = serialize();
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return serialize(map, codecOf(codec));
+	}
+
+	@Benchmark
+	public Map<String, ViewportSnapshot> deserialize() throws IOException {
+		return BinaryMapSerializer.deserializeViewports(new ByteArrayInputStream(
+				serialized));
+	}
+
+	/**
+	 * Print the payload size of each codec for each map size.
+	 *
+	 * @param args
+	 *            Not used.
+	 * @throws IOException
+	 *             Never.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (int size : new int[] { 10000, 100000 }) {
+			Map<String, ViewportSnapshot> map = generateViewports(size);
+			int plain = serialize(map, BinaryMapSerializer.CODEC_NONE).length;
+			int deflated = serialize(map, BinaryMapSerializer.CODEC_DEFLATE).length;
+			System.out.printf("%7d entries: none %9d bytes, deflate %9d bytes"
+					+ " (%.0f%%)%n", size, plain, deflated, 100.0 * deflated
+					/ plain);
+		}
+	}
+
+	private static int codecOf(String codec) {
+		return "deflate".equals(codec) ? BinaryMapSerializer.CODEC_DEFLATE
+				: BinaryMapSerializer.CODEC_NONE;
+	}
+
+	private static byte[] serialize(Map<String, ViewportSnapshot> map,
+			int codec) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeViewports(map, out, codec);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Generate snapshots as stored when editors are closed, with a selection
+	 * now and then, a top line and the time they were stored.
+	 */
+	private static Map<String, ViewportSnapshot> generateViewports(int size) {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		long modified = 1287305400000L;
+		for (Map.Entry<String, Integer> entry : PathKeys.generateMap(size, 42)
+				.entrySet()) {
+			int offset = entry.getValue().intValue();
+			modified += offset % 600000;
+			viewports.put(entry.getKey(), new ViewportSnapshot(offset,
+					offset % 5 == 0 ? offset % 40 : 0, offset / 40,
+					offset * 31, offset / 40 + 3, offset % 40, modified));
+		}
+		return viewports;
+	}
+}
@@ -0,0 +1,74 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.BinaryMapSerializer;
+import oss.restore.file.position.collection.MapSerializer;
+
+/**
+ * Serializing and de-serializing the offsets map in the legacy querystring
+ * format and the binary format.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapSerializerBenchmark {
+
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int size;
+
+	private Map<String, Integer> map;
+	private String querystring;
+	private byte[] binary;
+
+	@Setup
+	public void setUp() throws IOException {
+		map = PathKeys.generateMap(size, 42);
+		querystring = MapSerializer.serializeMap(map);
+		binary = serializeBinary();
+	}
+
+	@Benchmark
+	public String serializeQuerystring() {
+		return MapSerializer.serializeMap(map);
+	}
+
+	@Benchmark
+	public Map<String, Integer> deserializeQuerystring() {
+		return MapSerializer.deserializeMap(querystring);
+	}
+
+	@Benchmark
+	public byte[] serializeBinary() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeMap(map, out);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public Map<String, Integer> deserializeBinary() throws IOException {
+		return BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+				binary));
+	}
+}
@@ -0,0 +1,87 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.OffHeapOffsetsStorage;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Setting and getting offsets in a full OffHeapOffsetsStorage, compared to a
+ * StandardOffsetsStorage on the heap. The file paths cycle over twice the
+ * capacity, so every new one evicts the eldest.
+ *
+ * fullGc is a full collection with only the storage alive, which is what a
+ * large heap storage adds to every full GC pause. Run with -prof gc to compare
+ * the allocations as well.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=2g")
+public class OffHeapOffsetsStorageBenchmark {
+
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int size;
+
+	@Param({ "heap", "offHeap" })
+	public String kind;
+
+	private String[] keys;
+	private IOffsetsStorage storage;
+	private int next;
+
+	@Setup
+	public void setUp(BenchmarkParams params) {
+		keys = PathKeys.generate(2 * size, 42);
+		storage = "offHeap".equals(kind) ? new OffHeapOffsetsStorage(size)
+				: new StandardOffsetsStorage(size);
+		for (int i = 0; i < keys.length; i++) {
+			storage.setOffset(keys[i], i);
+		}
+		if (params.getBenchmark().endsWith("fullGc")) {
+			// Only the storage should be left for the collector to trace.
+			keys = null;
+		}
+	}
+
+	private String nextKey() {
+		if (++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public void setOffset() {
+		storage.setOffset(nextKey(), next * 31);
+	}
+
+	@Benchmark
+	public int getOffset() {
+		return storage.getOffset(nextKey());
+	}
+
+	@Benchmark
+	public int fullGc() {
+		System.gc();
+		return storage.size();
+	}
+}
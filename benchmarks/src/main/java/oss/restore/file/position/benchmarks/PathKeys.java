@@ -0,0 +1,63 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates realistic file path keys, i.e. absolute paths sharing a workspace
+ * prefix and spread over a number of projects and packages.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PathKeys {
+
+	private static final String[] PROJECTS = { "core", "ui", "server",
+			"common", "tests", "tools", "plugin", "docs" };
+	private static final String[] FOLDERS = { "src/main/java", "src/test/java",
+			"src" };
+	private static final String[] EXTENSIONS = { ".java", ".xml",
+			".properties", ".js" };
+
+	/**
+	 * Generate distinct path keys.
+	 *
+	 * @param count
+	 *            The number of keys.
+	 * @param seed
+	 *            The random seed.
+	 * @return The keys.
+	 */
+	public static String[] generate(int count, long seed) {
+		Random random = new Random(seed);
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = "/home/developer/workspace/"
+					+ PROJECTS[random.nextInt(PROJECTS.length)] + "-"
+					+ random.nextInt(20) + "/"
+					+ FOLDERS[random.nextInt(FOLDERS.length)]
+					+ "/net/example/module" + random.nextInt(50) + "/package"
+					+ random.nextInt(40) + "/SomeClassName" + i
+					+ EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+		}
+		return keys;
+	}
+
+	/**
+	 * Generate a map of path keys to offsets.
+	 *
+	 * @param count
+	 *            The number of entries.
+	 * @param seed
+	 *            The random seed.
+	 * @return The map in insertion order.
+	 */
+	public static Map<String, Integer> generateMap(int count, long seed) {
+		Random random = new Random(seed);
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (String key : generate(count, seed)) {
+			map.put(key, Integer.valueOf(random.nextInt(200000)));
+		}
+		return map;
+	}
+}
@@ -0,0 +1,86 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+import oss.restore.file.position.storage.OffHeapOffsetsStorage;
+import oss.restore.file.position.storage.RadixTrieOffsetsStorage;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+import oss.restore.file.position.trace.TraceEvent;
+import oss.restore.file.position.trace.TraceGenerator;
+import oss.restore.file.position.trace.TraceReader;
+import oss.restore.file.position.trace.TraceReplayer;
+
+/**
+ * Replays a trace of editor events against each storage and prints a summary
+ * per storage. Not a JMH benchmark, run it with
+ * 
+ * <pre>
+ * java -cp benchmarks.jar oss.restore.file.position.benchmarks.ReplayTraces [trace file] [capacity]
+ * </pre>
+ * 
+ * A trace is recorded with the oss.restore.file.position/trace debug option.
+ * Without a trace file a trace of 200k events is generated. The capacity
+ * defaults to the plug-in's 100. Each storage replays the trace twice, the
+ * first time to warm up.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ReplayTraces {
+
+	private static final String[] KINDS = { "standard", "radix", "offHeap",
+			"journal" };
+
+	public static void main(String[] args) throws IOException {
+		List<TraceEvent> events;
+		if (args.length > 0 && !"-".equals(args[0])) {
+			TraceReader reader = new TraceReader(new BufferedInputStream(
+					new FileInputStream(args[0])));
+			try {
+				events = reader.readAll();
+			} finally {
+				reader.close();
+			}
+		} else {
+			events = new TraceGenerator(42).generate(200000);
+		}
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		for (String kind : KINDS) {
+			replay(kind, capacity, events);
+			System.out.println(kind + ": " + replay(kind, capacity, events));
+		}
+	}
+
+	private static String replay(String kind, int capacity,
+			List<TraceEvent> events) throws IOException {
+		File journalFile = null;
+		IOffsetsStorage storage;
+		if ("radix".equals(kind)) {
+			storage = new RadixTrieOffsetsStorage(capacity);
+		} else if ("offHeap".equals(kind)) {
+			storage = new OffHeapOffsetsStorage(capacity);
+		} else if ("journal".equals(kind)) {
+			journalFile = File.createTempFile("replay", ".journal");
+			JournalOffsetsStorage.delete(journalFile);
+			storage = new JournalOffsetsStorage(journalFile, capacity);
+		} else {
+			storage = new StandardOffsetsStorage(capacity);
+		}
+		try {
+			TraceReplayer replayer = new TraceReplayer(storage);
+			replayer.replay(events);
+			return replayer.getSummary();
+		} finally {
+			if (journalFile != null) {
+				((JournalOffsetsStorage) storage).close();
+				JournalOffsetsStorage.delete(journalFile);
+			}
+		}
+	}
+}
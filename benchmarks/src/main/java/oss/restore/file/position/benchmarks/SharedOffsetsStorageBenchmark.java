@@ -0,0 +1,93 @@
+package oss.restore.file.position.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.SharedOffsetsStorage;
+
+/**
+ * Looking up and setting offsets in a SharedOffsetsStorage, each taking the
+ * file lock, and polling its change count, as another instance would to tell
+ * whether anything changed. Setting the offsets of new files into the full
+ * file evicts one on every store.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedOffsetsStorageBenchmark {
+
+	@Param( { "1000", "4000" })
+	public int size;
+
+	private File file;
+	private String[] keys;
+	// Twice as many as fit, so each is evicted again before it comes back.
+	private String[] newKeys;
+	private SharedOffsetsStorage storage;
+	private int next;
+	private int nextNew;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = File.createTempFile("shared", ".positions");
+		file.delete();
+		keys = PathKeys.generate(size, 42);
+		storage = new SharedOffsetsStorage(file, size);
+		for (int i = 0; i < keys.length; i++) {
+			storage.setOffset(keys[i], i);
+		}
+		newKeys = PathKeys.generate(size * 2, 43);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		storage.close();
+		file.delete();
+	}
+
+	private String nextKey() {
+		if (++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public void setViewport() {
+		storage.setViewport(nextKey(), new ViewportSnapshot(next, 0, next >> 6));
+	}
+
+	@Benchmark
+	public void setNewViewport() {
+		if (++nextNew == newKeys.length) {
+			nextNew = 0;
+		}
+		storage.setViewport(newKeys[nextNew], new ViewportSnapshot(nextNew, 0,
+				nextNew >> 6));
+	}
+
+	@Benchmark
+	public ViewportSnapshot getViewport() {
+		return storage.getViewport(nextKey());
+	}
+}
@@ -0,0 +1,85 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.IViewportStorage;
+import oss.restore.file.position.storage.PersistentOffsetsStorage;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Taking a snapshot of every offset to serialize it, e.g. when compacting a
+ * journal, as the time spent holding the storage: copying a
+ * StandardOffsetsStorage, compared to the constant time snapshot of a
+ * PersistentOffsetsStorage. setViewport and getViewport show what the
+ * persistent map costs on every write and lookup instead.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param( { "10000", "100000" })
+	public int size;
+
+	@Param( { "standard", "persistent" })
+	public String kind;
+
+	private String[] keys;
+	private IViewportStorage storage;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		keys = PathKeys.generate(2 * size, 42);
+		storage = "persistent".equals(kind) ? new PersistentOffsetsStorage(
+				size) : new StandardOffsetsStorage(size);
+		for (int i = 0; i < keys.length; i++) {
+			storage.setOffset(keys[i], i);
+		}
+	}
+
+	private String nextKey() {
+		if (++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public Object snapshot() {
+		if (storage instanceof PersistentOffsetsStorage) {
+			return ((PersistentOffsetsStorage) storage).snapshot();
+		}
+		Map<String, ViewportSnapshot> copy = storage.getViewports();
+		return copy;
+	}
+
+	@Benchmark
+	public void setViewport() {
+		storage.setViewport(nextKey(), new ViewportSnapshot(next, 0, next >> 6));
+	}
+
+	@Benchmark
+	public ViewportSnapshot getViewport() {
+		return storage.getViewport(nextKey());
+	}
+}
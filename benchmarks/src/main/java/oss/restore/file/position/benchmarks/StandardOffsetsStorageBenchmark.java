@@ -0,0 +1,65 @@
+package oss.restore.file.position.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Setting and getting offsets in a full StandardOffsetsStorage. The file
+ * paths cycle over twice the capacity, so every new one evicts the eldest.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StandardOffsetsStorageBenchmark {
+
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int size;
+
+	private String[] keys;
+	private StandardOffsetsStorage storage;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		keys = PathKeys.generate(2 * size, 42);
+		storage = new StandardOffsetsStorage(size);
+		for (int i = 0; i < keys.length; i++) {
+			storage.setOffset(keys[i], i);
+		}
+	}
+
+	private String nextKey() {
+		if (++next == keys.length) {
+			next = 0;
+		}
+		return keys[next];
+	}
+
+	@Benchmark
+	public void setOffset() {
+		storage.setOffset(nextKey(), next * 31);
+	}
+
+	@Benchmark
+	public int getOffset() {
+		return storage.getOffset(nextKey());
+	}
+}
@@ -1,15 +1,50 @@
 package oss.restore.file.position;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.ui.IStartup;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import oss.restore.file.position.collection.BinaryMapSerializer;
+import oss.restore.file.position.collection.BloomFilter;
 import oss.restore.file.position.collection.MapSerializer;
+import oss.restore.file.position.collection.PositionHistory;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.metrics.IGauge;
+import oss.restore.file.position.metrics.PositionMetrics;
+import oss.restore.file.position.storage.AsyncOffsetsStorage;
+import oss.restore.file.position.storage.FilteredOffsetsStorage;
 import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+import oss.restore.file.position.storage.JournalShardStore;
+import oss.restore.file.position.storage.LazyOffsetsStorage;
+import oss.restore.file.position.storage.PositionExchange;
+import oss.restore.file.position.storage.ShardedOffsetsStorage;
+import oss.restore.file.position.storage.SharedOffsetsStorage;
 import oss.restore.file.position.storage.StandardOffsetsStorage;
+import oss.restore.file.position.storage.Viewports;
+import oss.restore.file.position.trace.TraceRecorder;
 
 /**
  * The plug-in entry point.
@@ -28,8 +63,53 @@ public class Activator extends AbstractUIPlugin implements IStartup {
 
 	private IOffsetsStorage storage;
 
+	private ShardedOffsetsStorage shards;
+
+	private FilteredOffsetsStorage filteredStorage;
+
+	private AsyncOffsetsStorage asyncStorage;
+
+	private SharedOffsetsStorage sharedStorage;
+
+	private ResourceDeltaListener resourceListener;
+
+	private Job loadJob;
+
+	private volatile Job exchangeJob;
+
+	private PositionMetrics metrics;
+
+	private volatile Job metricsJob;
+
+	private TraceRecorder traceRecorder;
+
+	private PositionHistory history;
+
 	private static int DEFAULT_STORAGE_CAPACITY = 100;
 	private static String STORE_KEY_SERIALIZED_OFFSETS_STORAGE = "serializedOffsetsStorage";
+	private static String OFFSETS_FILE_NAME = "offsets.bin";
+	private static String JOURNAL_FILE_NAME = "offsets.journal";
+	private static String SHARDS_DIR_NAME = "shards";
+	private static String FILTER_FILE_NAME = "keys.bloom";
+	private static String HISTORY_FILE_NAME = "history.bin";
+	private static String DEBUG_OPTION_METRICS = PLUGIN_ID + "/metrics";
+	private static String DEBUG_OPTION_TRACE = PLUGIN_ID + "/trace";
+	private static String TRACES_DIR_NAME = "traces";
+	private static long METRICS_DUMP_INTERVAL_MILLIS = 10 * 60 * 1000;
+	private static String PREFERENCE_TRACK_CARET = "trackCaret";
+	private static String PREFERENCE_CARET_QUIET_MILLIS = "caretQuietMillis";
+	private static int DEFAULT_CARET_QUIET_MILLIS = 1000;
+	private static String PREFERENCE_FILTER_EXPECTED_KEYS = "filterExpectedKeys";
+	private static String PREFERENCE_FILTER_FALSE_POSITIVE_RATE = "filterFalsePositiveRate";
+	private static int DEFAULT_FILTER_EXPECTED_KEYS = 10000;
+	private static double DEFAULT_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static String PREFERENCE_HISTORY_POSITIONS_PER_FILE = "historyPositionsPerFile";
+	private static String PREFERENCE_HISTORY_MAX_POSITIONS = "historyMaxPositions";
+	private static int DEFAULT_HISTORY_POSITIONS_PER_FILE = 8;
+	private static int DEFAULT_HISTORY_MAX_POSITIONS = 4096;
+	private static int HISTORY_DISTINCT_LINES = 10;
+	private static String PREFERENCE_SHARED_FILE = "sharedFile";
+	private static int SHARED_STORAGE_CAPACITY = 4096;
 
 	/**
 	 * Constructs the Activator.
@@ -47,44 +127,912 @@ public class Activator extends AbstractUIPlugin implements IStartup {
 		plugin = this;
 
 		if (partListenerHandler == null) {
-			// Deserialize a offsets storage map, if available.
-			IPreferenceStore preferenceStore = getPreferenceStore();
-			String serializedOffsetsStorageMap = preferenceStore
-					.getString(STORE_KEY_SERIALIZED_OFFSETS_STORAGE);
-			if (serializedOffsetsStorageMap.isEmpty()) {
-				storage = new StandardOffsetsStorage(DEFAULT_STORAGE_CAPACITY);
-			} else {
-				Map<String, Integer> offsetsStorageMap = MapSerializer
-						.deserializeMap(serializedOffsetsStorageMap);
-				storage = new StandardOffsetsStorage(DEFAULT_STORAGE_CAPACITY,
-						offsetsStorageMap);
-			}
-
-			partListenerHandler = new PartListenersHandler(storage);
+			// The stored offsets are loaded in the background so that
+			// activating the plug-in does not delay the workbench startup.
+			final LazyOffsetsStorage lazyStorage = new LazyOffsetsStorage(
+					DEFAULT_STORAGE_CAPACITY);
+			storage = lazyStorage;
+
+			startMetrics();
+			startTrace();
+			history = loadHistory();
+
+			partListenerHandler = new PartListenersHandler(storage, metrics,
+					getCaretQuietMillis(), traceRecorder, history);
 			partListenerHandler.addListeners();
+
+			// Offsets and histories follow their files when moved and go when
+			// deleted.
+			shards = openShards();
+			resourceListener = new ResourceDeltaListener(lazyStorage, shards,
+					history, ResourcesPlugin.getWorkspace().getRoot());
+			ResourcesPlugin.getWorkspace().addResourceChangeListener(
+					resourceListener,
+					IResourceChangeEvent.POST_CHANGE
+							| IResourceChangeEvent.PRE_DELETE);
+
+			loadJob = new Job("Loading file positions") {
+				@Override
+				protected IStatus run(IProgressMonitor monitor) {
+					IOffsetsStorage loadedStorage = null;
+					try {
+						loadedStorage = openStorage();
+					} finally {
+						if (loadedStorage == null) {
+							loadedStorage = new StandardOffsetsStorage(
+									DEFAULT_STORAGE_CAPACITY);
+						}
+						// Offsets are written by a background writer so that
+						// closing several editors at once never waits for the
+						// journal.
+						asyncStorage = new AsyncOffsetsStorage(loadedStorage);
+						watchWriteFailures(asyncStorage);
+						lazyStorage.setStorage(asyncStorage);
+					}
+					setStorageGauges(loadedStorage);
+					if (isDebugging()) {
+						getLog().log(
+								new Status(IStatus.INFO, PLUGIN_ID,
+										"Loaded " + loadedStorage.size()
+												+ " file positions in "
+												+ lazyStorage.getLoadTimeMillis()
+												+ " ms"));
+					}
+					return Status.OK_STATUS;
+				}
+			};
+			loadJob.setSystem(true);
+			loadJob.setPriority(Job.SHORT);
+			loadJob.schedule();
 		}
 	}
 
 	@Override
 	public void stop(BundleContext context) throws Exception {
-		// Serialize and store the offsets storage for next time Eclipse is
-		// started. Has to be done BEFORE super() is called for this to actually
-		// be stored.
-		Map<String, Integer> offsetsMap = storage.getMap();
-		String serializedOffsetsStorageMap = MapSerializer
-				.serializeMap(offsetsMap);
-		IPreferenceStore preferenceStore = getPreferenceStore();
-		preferenceStore.setValue(STORE_KEY_SERIALIZED_OFFSETS_STORAGE,
-				serializedOffsetsStorageMap);
-
-		super.stop(context);
+		// Stop listening first so no offset is set on a closed shard.
 		partListenerHandler.removeListeners();
 		partListenerHandler = null;
+		stopTrace();
+		saveHistory(history);
+		ResourcesPlugin.getWorkspace().removeResourceChangeListener(
+				resourceListener);
+		resourceListener = null;
+		loadJob.join();
+		loadJob = null;
+		Job job = exchangeJob;
+		if (job != null) {
+			job.join();
+		}
+		if (asyncStorage != null) {
+			asyncStorage.close();
+			asyncStorage = null;
+		}
+
+		// The shard journals, or the shared file, already hold every offset,
+		// they only have to be flushed. Without either the offsets storage is
+		// serialized for next time Eclipse is started. Has to be done BEFORE
+		// super() is called for this to actually be stored.
+		if (filteredStorage != null) {
+			saveFilter(filteredStorage);
+			filteredStorage = null;
+		}
+		if (shards != null) {
+			try {
+				shards.close();
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID,
+								"Could not close file position journal", e));
+			}
+			shards = null;
+		} else if (sharedStorage == null) {
+			saveOffsetsMap(Viewports.getAll(storage));
+		}
+		if (sharedStorage != null) {
+			try {
+				sharedStorage.close();
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID,
+								"Could not close shared file positions", e));
+			}
+			sharedStorage = null;
+		}
+
+		stopMetrics();
+
+		super.stop(context);
 
 		storage = null;
+		history = null;
 		plugin = null;
 	}
 
+	/**
+	 * Get the history of the last positions of each file. Must be used from
+	 * the UI thread.
+	 * 
+	 * @return The history, or null if the plug-in is stopped.
+	 */
+	public PositionHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * Export the stored positions, by workspace relative path, to a position
+	 * file in the background, merging them into the file if it exists.
+	 * 
+	 * @param file
+	 *            The position file.
+	 */
+	public void exportPositions(final File file) {
+		scheduleExchange(new Job("Exporting file positions") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				try {
+					loadJob.join();
+					asyncStorage.flush();
+					Map<String, ViewportSnapshot> viewports = shards != null
+							&& sharedStorage == null ? shards.readViewports()
+							: Viewports.getAll(storage);
+					long count = PositionExchange.export(viewports,
+							new WorkspaceKeyMapper(ResourcesPlugin
+									.getWorkspace().getRoot()), file);
+					getLog().log(
+							new Status(IStatus.INFO, PLUGIN_ID, "Exported "
+									+ viewports.size() + " file positions to "
+									+ file + ", which now holds " + count));
+					return Status.OK_STATUS;
+				} catch (IOException e) {
+					return new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not export file positions to " + file, e);
+				} catch (InterruptedException e) {
+					return Status.CANCEL_STATUS;
+				} finally {
+					exchangeJob = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Import the positions of a position file in the background. Positions
+	 * of files missing from the workspace, or modified before the stored
+	 * ones, are skipped.
+	 * 
+	 * @param file
+	 *            The position file.
+	 */
+	public void importPositions(final File file) {
+		scheduleExchange(new Job("Importing file positions") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				try {
+					loadJob.join();
+					// Each project shard holds as many positions as the
+					// storage.
+					int maxCount = storage.getCapacity();
+					if (shards != null && sharedStorage == null) {
+						maxCount *= ResourcesPlugin.getWorkspace().getRoot()
+								.getProjects().length + 1;
+					}
+					int count = PositionExchange.importInto(file,
+							new WorkspaceKeyMapper(ResourcesPlugin
+									.getWorkspace().getRoot()), storage,
+							maxCount);
+					getLog().log(
+							new Status(IStatus.INFO, PLUGIN_ID, "Imported "
+									+ count + " file positions from " + file));
+					return Status.OK_STATUS;
+				} catch (IOException e) {
+					return new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not import file positions from " + file, e);
+				} catch (InterruptedException e) {
+					return Status.CANCEL_STATUS;
+				} finally {
+					exchangeJob = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run an export or import job, unless one is already running.
+	 * 
+	 * @param job
+	 *            The job.
+	 */
+	private synchronized void scheduleExchange(Job job) {
+		if (exchangeJob != null || loadJob == null) {
+			return;
+		}
+		exchangeJob = job;
+		job.setUser(true);
+		job.schedule();
+	}
+
+	/**
+	 * Get how long the caret of an open editor must be quiet before its
+	 * position is written, from the preferences. Caret tracking can be turned
+	 * off, e.g. in plugin_customization.ini, with
+	 * oss.restore.file.position/trackCaret=false.
+	 * 
+	 * @return The quiet period, or 0 if the caret is not tracked.
+	 */
+	private long getCaretQuietMillis() {
+		IPreferenceStore preferenceStore = getPreferenceStore();
+		preferenceStore.setDefault(PREFERENCE_TRACK_CARET, true);
+		preferenceStore.setDefault(PREFERENCE_CARET_QUIET_MILLIS,
+				DEFAULT_CARET_QUIET_MILLIS);
+		if (!preferenceStore.getBoolean(PREFERENCE_TRACK_CARET)) {
+			return 0;
+		}
+		return Math.max(1, preferenceStore.getInt(PREFERENCE_CARET_QUIET_MILLIS));
+	}
+
+	/**
+	 * Create the metrics, enabled if the metrics debug option is set, and
+	 * register them with JMX so they can be enabled and read at runtime. A job
+	 * periodically writes them to the plug-in log, scheduled only while they
+	 * are enabled.
+	 */
+	private void startMetrics() {
+		metrics = new PositionMetrics("true".equalsIgnoreCase(Platform
+				.getDebugOption(DEBUG_OPTION_METRICS)));
+		try {
+			metrics.registerMBean();
+		} catch (Exception e) {
+			getLog().log(
+					new Status(IStatus.WARNING, PLUGIN_ID,
+							"Could not register file position metrics", e));
+		}
+
+		metricsJob = new Job("Logging file position metrics") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				logMetrics();
+				// Stopped once disabled, or once the plug-in no longer refers
+				// to this job.
+				if (metricsJob == this && metrics.isEnabled()) {
+					schedule(METRICS_DUMP_INTERVAL_MILLIS);
+				}
+				return Status.OK_STATUS;
+			}
+		};
+		metricsJob.setSystem(true);
+		metrics.setEnabledListener(new Runnable() {
+			public void run() {
+				Job job = metricsJob;
+				if (job != null) {
+					job.schedule(METRICS_DUMP_INTERVAL_MILLIS);
+				}
+			}
+		});
+		if (metrics.isEnabled()) {
+			metricsJob.schedule(METRICS_DUMP_INTERVAL_MILLIS);
+		}
+	}
+
+	/**
+	 * Start recording the editor events to a new trace file in the plug-in
+	 * state location, if the trace debug option is set.
+	 */
+	private void startTrace() {
+		if (!"true".equalsIgnoreCase(Platform
+				.getDebugOption(DEBUG_OPTION_TRACE))) {
+			return;
+		}
+		File dir = getStateLocation().append(TRACES_DIR_NAME).toFile();
+		File file = new File(dir, "trace-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ ".rfpt");
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Could not create " + dir);
+			}
+			traceRecorder = new TraceRecorder(file);
+			getLog().log(
+					new Status(IStatus.INFO, PLUGIN_ID,
+							"Recording editor events to " + file));
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.WARNING, PLUGIN_ID,
+							"Could not record editor events", e));
+		}
+	}
+
+	/**
+	 * Stop recording the editor events, if recording.
+	 */
+	private void stopTrace() {
+		if (traceRecorder == null) {
+			return;
+		}
+		try {
+			traceRecorder.close();
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.WARNING, PLUGIN_ID,
+							"Could not record editor events", e));
+		}
+		traceRecorder = null;
+	}
+
+	/**
+	 * Let the metrics read the size and eviction count of the loaded storage.
+	 * 
+	 * @param loadedStorage
+	 *            The storage loaded in the background.
+	 */
+	private void setStorageGauges(final IOffsetsStorage loadedStorage) {
+		IGauge evictions = null;
+		if (loadedStorage instanceof JournalOffsetsStorage) {
+			evictions = new IGauge() {
+				public long getValue() {
+					return ((JournalOffsetsStorage) loadedStorage)
+							.getEvictionCount();
+				}
+			};
+		} else if (loadedStorage instanceof SharedOffsetsStorage) {
+			evictions = new IGauge() {
+				public long getValue() {
+					return ((SharedOffsetsStorage) loadedStorage)
+							.getEvictionCount();
+				}
+			};
+		} else if (loadedStorage instanceof StandardOffsetsStorage) {
+			evictions = new IGauge() {
+				public long getValue() {
+					return ((StandardOffsetsStorage) loadedStorage)
+							.getEvictionCount();
+				}
+			};
+		}
+		metrics.setStorageGauges(new IGauge() {
+			public long getValue() {
+				return loadedStorage.size();
+			}
+		}, evictions);
+	}
+
+	/**
+	 * Log the first offset of each batch the background writer failed to
+	 * write, and let the metrics read the count of failed offsets.
+	 * 
+	 * @param async
+	 *            The background writer.
+	 */
+	private void watchWriteFailures(final AsyncOffsetsStorage async) {
+		async.setFailureListener(new AsyncOffsetsStorage.IFailureListener() {
+			public void writeFailed(String filePathUri, RuntimeException e,
+					long failures) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID, "Could not store "
+								+ failures + " file positions, e.g. of "
+								+ filePathUri, e));
+			}
+		});
+		metrics.setWriteFailureGauge(new IGauge() {
+			public long getValue() {
+				return async.getFailureCount();
+			}
+		});
+	}
+
+	/**
+	 * Let the metrics read the lookups answered by the filter and its size.
+	 * 
+	 * @param filtered
+	 *            The filtered storage.
+	 */
+	private void setFilterGauges(final FilteredOffsetsStorage filtered) {
+		final long memoryBytes;
+		synchronized (filtered) {
+			memoryBytes = filtered.getFilter().getMemoryBytes();
+		}
+		metrics.setFilterGauges(new IGauge() {
+			public long getValue() {
+				return filtered.getNegativeCount();
+			}
+		}, new IGauge() {
+			public long getValue() {
+				return filtered.getFalsePositiveCount();
+			}
+		}, new IGauge() {
+			public long getValue() {
+				return memoryBytes;
+			}
+		});
+	}
+
+	/**
+	 * Write the metrics to the plug-in log, if enabled.
+	 */
+	private void logMetrics() {
+		if (metrics.isEnabled()) {
+			getLog().log(
+					new Status(IStatus.INFO, PLUGIN_ID, metrics.getSummary()));
+		}
+	}
+
+	/**
+	 * Log the metrics a last time and unregister them.
+	 */
+	private void stopMetrics() {
+		metrics.setEnabledListener(null);
+		Job job = metricsJob;
+		metricsJob = null;
+		job.cancel();
+		logMetrics();
+		try {
+			metrics.unregisterMBean();
+		} catch (Exception e) {
+			getLog().log(
+					new Status(IStatus.WARNING, PLUGIN_ID,
+							"Could not unregister file position metrics", e));
+		}
+	}
+
+	/**
+	 * Create the storage of the offsets sharded by project, one journal per
+	 * project in the plug-in state location. No shard is opened until a file
+	 * of its project is.
+	 * 
+	 * @return The sharded storage or null if the shard directory could not be
+	 *         created.
+	 */
+	private ShardedOffsetsStorage openShards() {
+		try {
+			return new ShardedOffsetsStorage(new ProjectShardResolver(
+					ResourcesPlugin.getWorkspace().getRoot()),
+					new JournalShardStore(getStateLocation().append(
+							SHARDS_DIR_NAME).toFile()),
+					DEFAULT_STORAGE_CAPACITY);
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not open file position shards", e));
+			return null;
+		}
+	}
+
+	/**
+	 * Get the storage to use once loaded, migrating the offsets stored by
+	 * earlier versions into the project shards the first time. Without shards
+	 * the offsets are kept in memory and saved on stop instead. If a shared
+	 * file is set, it is used instead of both.
+	 * 
+	 * @return The offsets storage to use.
+	 */
+	private IOffsetsStorage openStorage() {
+		if (shards != null) {
+			try {
+				migrateToShards();
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID,
+								"Could not migrate file positions", e));
+			}
+		}
+		IOffsetsStorage shared = openShared();
+		if (shared != null) {
+			return shared;
+		}
+		if (shards != null) {
+			return openFilter();
+		}
+
+		// Deserialize a offsets storage map, if available.
+		StandardOffsetsStorage offsetsStorage = new StandardOffsetsStorage(
+				DEFAULT_STORAGE_CAPACITY);
+		Map<String, ViewportSnapshot> offsetsStorageMap = loadOffsetsMap();
+		if (offsetsStorageMap != null) {
+			for (Map.Entry<String, ViewportSnapshot> entry : offsetsStorageMap
+					.entrySet()) {
+				offsetsStorage.setViewport(entry.getKey(), entry.getValue());
+			}
+		}
+		return offsetsStorage;
+	}
+
+	/**
+	 * Open the file of positions shared with other Eclipse instances, if one
+	 * is set, e.g. in plugin_customization.ini, with
+	 * oss.restore.file.position/sharedFile. Every instance sees the positions
+	 * stored by the others right away, so there is no filter in front of it.
+	 * The positions of the project shards are copied into a new shared file.
+	 * 
+	 * @return The shared storage, or null if no shared file is set or it could
+	 *         not be opened.
+	 */
+	private IOffsetsStorage openShared() {
+		String path = getPreferenceStore().getString(PREFERENCE_SHARED_FILE);
+		if (path.trim().isEmpty()) {
+			return null;
+		}
+		File file = new File(path.trim());
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Could not create " + dir);
+			}
+			sharedStorage = new SharedOffsetsStorage(file,
+					SHARED_STORAGE_CAPACITY);
+			if (sharedStorage.size() == 0 && shards != null) {
+				sharedStorage.setViewports(shards.readViewports());
+			}
+			return sharedStorage;
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not open shared file positions " + file, e));
+			if (sharedStorage != null) {
+				try {
+					sharedStorage.close();
+				} catch (IOException closeException) {
+					// Already logged why it is not used.
+				}
+				sharedStorage = null;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Put a filter of the stored file paths in front of the shards, so editors
+	 * of files that were never stored do not open a shard. The filter saved on
+	 * the last clean stop is used if it still fits the preferences and is not
+	 * saturated, otherwise it is rebuilt from the shards. The saved filter is
+	 * deleted once read, so it is rebuilt after a crash.
+	 * 
+	 * The size of the filter can be set, e.g. in plugin_customization.ini,
+	 * with oss.restore.file.position/filterExpectedKeys and
+	 * oss.restore.file.position/filterFalsePositiveRate.
+	 * 
+	 * @return The filtered storage, or the shards if the filter could not be
+	 *         built.
+	 */
+	private IOffsetsStorage openFilter() {
+		IPreferenceStore preferenceStore = getPreferenceStore();
+		preferenceStore.setDefault(PREFERENCE_FILTER_EXPECTED_KEYS,
+				DEFAULT_FILTER_EXPECTED_KEYS);
+		preferenceStore.setDefault(PREFERENCE_FILTER_FALSE_POSITIVE_RATE,
+				DEFAULT_FILTER_FALSE_POSITIVE_RATE);
+		int expectedKeys = preferenceStore
+				.getInt(PREFERENCE_FILTER_EXPECTED_KEYS);
+		double falsePositiveRate = preferenceStore
+				.getDouble(PREFERENCE_FILTER_FALSE_POSITIVE_RATE);
+		if (expectedKeys <= 0
+				|| !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			expectedKeys = DEFAULT_FILTER_EXPECTED_KEYS;
+			falsePositiveRate = DEFAULT_FILTER_FALSE_POSITIVE_RATE;
+		}
+
+		BloomFilter filter = loadFilter();
+		if (filter != null
+				&& filter.getFalsePositiveRate() == falsePositiveRate
+				&& filter.getExpectedKeys() >= expectedKeys
+				&& !filter.isSaturated()) {
+			filteredStorage = new FilteredOffsetsStorage(shards, filter);
+		} else {
+			try {
+				List<String> filePathUris = shards.readFilePaths();
+				filteredStorage = new FilteredOffsetsStorage(shards,
+						new BloomFilter(Math.max(expectedKeys,
+								2 * filePathUris.size()), falsePositiveRate));
+				filteredStorage.rebuild(filePathUris);
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID,
+								"Could not read file positions for the filter",
+								e));
+				return shards;
+			}
+		}
+		setFilterGauges(filteredStorage);
+		return filteredStorage;
+	}
+
+	/**
+	 * Load the filter saved by {@link #saveFilter(FilteredOffsetsStorage)}
+	 * and delete its file.
+	 * 
+	 * @return The filter or null if none could be read.
+	 */
+	private BloomFilter loadFilter() {
+		File file = getFilterFile();
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				return BloomFilter.readFrom(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.WARNING, PLUGIN_ID,
+							"Could not read file position filter", e));
+			return null;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Save the filter to the plug-in state location, next to the old one and
+	 * then moved into place like the offsets map.
+	 * 
+	 * @param filtered
+	 *            The filtered storage.
+	 */
+	private void saveFilter(FilteredOffsetsStorage filtered) {
+		File file = getFilterFile();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					tempFile));
+			try {
+				synchronized (filtered) {
+					filtered.getFilter().writeTo(out);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)
+					&& !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			getLog().log(
+					new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not store file position filter", e));
+		}
+	}
+
+	/**
+	 * Create the history of the last positions of each file, with the
+	 * histories saved on the last stop. How many positions each file keeps,
+	 * and all files together, can be set, e.g. in plugin_customization.ini,
+	 * with oss.restore.file.position/historyPositionsPerFile and
+	 * oss.restore.file.position/historyMaxPositions.
+	 * 
+	 * @return The history.
+	 */
+	private PositionHistory loadHistory() {
+		IPreferenceStore preferenceStore = getPreferenceStore();
+		preferenceStore.setDefault(PREFERENCE_HISTORY_POSITIONS_PER_FILE,
+				DEFAULT_HISTORY_POSITIONS_PER_FILE);
+		preferenceStore.setDefault(PREFERENCE_HISTORY_MAX_POSITIONS,
+				DEFAULT_HISTORY_MAX_POSITIONS);
+		int positionsPerFile = preferenceStore
+				.getInt(PREFERENCE_HISTORY_POSITIONS_PER_FILE);
+		int maxPositions = preferenceStore
+				.getInt(PREFERENCE_HISTORY_MAX_POSITIONS);
+		if (positionsPerFile <= 0 || maxPositions < positionsPerFile) {
+			positionsPerFile = DEFAULT_HISTORY_POSITIONS_PER_FILE;
+			maxPositions = DEFAULT_HISTORY_MAX_POSITIONS;
+		}
+
+		PositionHistory loadedHistory = new PositionHistory(positionsPerFile,
+				maxPositions, HISTORY_DISTINCT_LINES);
+		File file = getHistoryFile();
+		if (file.isFile()) {
+			try {
+				InputStream in = new BufferedInputStream(new FileInputStream(
+						file));
+				try {
+					loadedHistory.readFrom(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.WARNING, PLUGIN_ID,
+								"Could not read file position history", e));
+			}
+		}
+		return loadedHistory;
+	}
+
+	/**
+	 * Save the history to the plug-in state location, next to the old one and
+	 * then moved into place like the offsets map.
+	 * 
+	 * @param savedHistory
+	 *            The history.
+	 */
+	private void saveHistory(PositionHistory savedHistory) {
+		File file = getHistoryFile();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					tempFile));
+			try {
+				savedHistory.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)
+					&& !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			getLog().log(
+					new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not store file position history", e));
+		}
+	}
+
+	/**
+	 * Get the file the history is saved in.
+	 * 
+	 * @return The history file.
+	 */
+	private File getHistoryFile() {
+		return getStateLocation().append(HISTORY_FILE_NAME).toFile();
+	}
+
+	/**
+	 * Get the file the filter is saved in.
+	 * 
+	 * @return The filter file.
+	 */
+	private File getFilterFile() {
+		return getStateLocation().append(FILTER_FILE_NAME).toFile();
+	}
+
+	/**
+	 * Move the offsets from the single journal, or the offsets map, written by
+	 * earlier versions into the project shards, and close the shards opened
+	 * for it so they are only opened again when used.
+	 * 
+	 * @throws IOException
+	 *             If the journal could not be read.
+	 */
+	private void migrateToShards() throws IOException {
+		Map<String, ViewportSnapshot> offsetsMap;
+		File journalFile = getStateLocation().append(JOURNAL_FILE_NAME)
+				.toFile();
+		if (JournalOffsetsStorage.exists(journalFile)) {
+			JournalOffsetsStorage journal = new JournalOffsetsStorage(
+					journalFile, DEFAULT_STORAGE_CAPACITY);
+			try {
+				offsetsMap = journal.getViewports();
+			} finally {
+				journal.close();
+			}
+		} else {
+			offsetsMap = loadOffsetsMap();
+		}
+		if (offsetsMap == null) {
+			return;
+		}
+
+		for (Map.Entry<String, ViewportSnapshot> entry : offsetsMap.entrySet()) {
+			shards.setViewport(entry.getKey(), entry.getValue());
+		}
+		shards.close();
+		JournalOffsetsStorage.delete(journalFile);
+		removeOffsetsMap();
+	}
+
+	/**
+	 * Load the offsets map from the binary offsets file in the plug-in state
+	 * location. If there is no such file yet the map is migrated from the
+	 * querystring formatted preference value used by earlier versions.
+	 * 
+	 * @return The stored map or null if nothing is stored.
+	 */
+	private Map<String, ViewportSnapshot> loadOffsetsMap() {
+		File file = getOffsetsFile();
+		if (file.isFile()) {
+			try {
+				long start = System.nanoTime();
+				InputStream in = new BufferedInputStream(new FileInputStream(
+						file));
+				try {
+					Map<String, ViewportSnapshot> map = BinaryMapSerializer
+							.deserializeViewports(in);
+					metrics.recordDeserialization(file.length(),
+							System.nanoTime() - start);
+					return map;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				getLog().log(
+						new Status(IStatus.ERROR, PLUGIN_ID,
+								"Could not read stored file positions", e));
+				return null;
+			}
+		}
+
+		String serializedOffsetsStorageMap = getPreferenceStore().getString(
+				STORE_KEY_SERIALIZED_OFFSETS_STORAGE);
+		if (serializedOffsetsStorageMap.isEmpty()) {
+			return null;
+		}
+		Map<String, ViewportSnapshot> map = new LinkedHashMap<String, ViewportSnapshot>();
+		for (Map.Entry<String, Integer> entry : MapSerializer.deserializeMap(
+				serializedOffsetsStorageMap).entrySet()) {
+			map.put(entry.getKey(), ViewportSnapshot.ofOffset(entry
+					.getValue().intValue()));
+		}
+		return map;
+	}
+
+	/**
+	 * Save the offsets map to the binary offsets file in the plug-in state
+	 * location. The file is written next to the old one and then moved into
+	 * place so a failed write never leaves a truncated file behind. Once
+	 * written, the legacy preference value is removed.
+	 * 
+	 * @param offsetsMap
+	 *            The map to save.
+	 */
+	private void saveOffsetsMap(Map<String, ViewportSnapshot> offsetsMap) {
+		File file = getOffsetsFile();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			long start = System.nanoTime();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					tempFile));
+			try {
+				BinaryMapSerializer.serializeViewports(offsetsMap, out,
+						BinaryMapSerializer.CODEC_DEFLATE);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)
+					&& !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Could not replace " + file);
+			}
+			metrics.recordSerialization(file.length(), System.nanoTime()
+					- start);
+		} catch (IOException e) {
+			getLog().log(
+					new Status(IStatus.ERROR, PLUGIN_ID,
+							"Could not store file positions", e));
+			return;
+		}
+
+		removeLegacyOffsetsMap();
+	}
+
+	/**
+	 * Remove the offsets map saved by {@link #saveOffsetsMap(Map)}, and any
+	 * legacy preference value, once it has been migrated into the shards.
+	 */
+	private void removeOffsetsMap() {
+		getOffsetsFile().delete();
+		removeLegacyOffsetsMap();
+	}
+
+	/**
+	 * Remove the querystring formatted preference value used by earlier
+	 * versions.
+	 */
+	private void removeLegacyOffsetsMap() {
+		IPreferenceStore preferenceStore = getPreferenceStore();
+		if (preferenceStore.contains(STORE_KEY_SERIALIZED_OFFSETS_STORAGE)) {
+			preferenceStore.setToDefault(STORE_KEY_SERIALIZED_OFFSETS_STORAGE);
+		}
+	}
+
+	/**
+	 * Get the file the offsets map is stored in.
+	 * 
+	 * @return The offsets file.
+	 */
+	private File getOffsetsFile() {
+		return getStateLocation().append(OFFSETS_FILE_NAME).toFile();
+	}
+
 	/**
 	 * Returns the shared instance
 	 * 
@@ -0,0 +1,73 @@
+package oss.restore.file.position;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITextSelection;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IFileEditorInput;
+import org.eclipse.ui.handlers.HandlerUtil;
+import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.ITextEditor;
+
+import oss.restore.file.position.collection.PositionHistory;
+
+/**
+ * Moves the caret of the active editor to the previous, or next, of the last
+ * positions of its file, see {@link PositionHistory#cycle(String, int, boolean)}.
+ * Handles both commands, told apart by their id.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class CyclePositionsHandler extends AbstractHandler {
+
+	/**
+	 * The id of the command cycling to older positions.
+	 */
+	public static final String OLDER_COMMAND_ID = Activator.PLUGIN_ID
+			+ ".olderPosition";
+
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+		Activator activator = Activator.getDefault();
+		PositionHistory history = activator == null ? null : activator
+				.getHistory();
+		IEditorPart part = HandlerUtil.getActiveEditor(event);
+		if (history == null || !(part instanceof ITextEditor)) {
+			return null;
+		}
+		ITextEditor editor = (ITextEditor) part;
+		IEditorInput input = editor.getEditorInput();
+		if (!(input instanceof IFileEditorInput)) {
+			return null;
+		}
+		IPath location = ((IFileEditorInput) input).getFile().getLocation();
+		IDocumentProvider provider = editor.getDocumentProvider();
+		IDocument document = provider == null ? null : provider
+				.getDocument(input);
+		ISelection selection = editor.getSelectionProvider().getSelection();
+		if (location == null || document == null
+				|| !(selection instanceof ITextSelection)) {
+			return null;
+		}
+
+		try {
+			int line = document.getLineOfOffset(((ITextSelection) selection)
+					.getOffset());
+			int offset = history.cycle(location.toOSString(), line,
+					OLDER_COMMAND_ID.equals(event.getCommand().getId()));
+			if (offset >= 0) {
+				// The file may have shrunk since.
+				editor.selectAndReveal(Math.min(offset, document.getLength()),
+						0);
+			}
+		} catch (BadLocationException e) {
+			// The selection is outside of the document, nothing to cycle from.
+		}
+		return null;
+	}
+}
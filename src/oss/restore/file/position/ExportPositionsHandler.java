@@ -0,0 +1,33 @@
+package oss.restore.file.position;
+
+import java.io.File;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.ui.handlers.HandlerUtil;
+
+/**
+ * Exports the stored positions to a position file chosen by the user. An
+ * existing file is merged with, so one file, e.g. in a synchronized folder,
+ * can collect the positions of several workstations.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ExportPositionsHandler extends AbstractHandler {
+
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+		FileDialog dialog = new FileDialog(HandlerUtil
+				.getActiveShellChecked(event), SWT.SAVE);
+		dialog.setText("Export File Positions");
+		dialog.setFilterExtensions(new String[] { "*.positions", "*.*" });
+		dialog.setFileName("file.positions");
+		String path = dialog.open();
+		if (path != null) {
+			Activator.getDefault().exportPositions(new File(path));
+		}
+		return null;
+	}
+}
@@ -0,0 +1,31 @@
+package oss.restore.file.position;
+
+import java.io.File;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.ui.handlers.HandlerUtil;
+
+/**
+ * Imports the positions of a position file chosen by the user, keeping the
+ * stored positions that were modified later.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ImportPositionsHandler extends AbstractHandler {
+
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+		FileDialog dialog = new FileDialog(HandlerUtil
+				.getActiveShellChecked(event), SWT.OPEN);
+		dialog.setText("Import File Positions");
+		dialog.setFilterExtensions(new String[] { "*.positions", "*.*" });
+		String path = dialog.open();
+		if (path != null) {
+			Activator.getDefault().importPositions(new File(path));
+		}
+		return null;
+	}
+}
@@ -1,23 +1,78 @@
 package oss.restore.file.position;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
 import org.eclipse.core.resources.IFile;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextOperationTarget;
+import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.TextSelection;
 import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.ISelectionProvider;
+import org.eclipse.jface.viewers.SelectionChangedEvent;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorReference;
 import org.eclipse.ui.IFileEditorInput;
 import org.eclipse.ui.IPartListener2;
+import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchPart;
 import org.eclipse.ui.IWorkbenchPartReference;
+import org.eclipse.ui.PartInitException;
+import org.eclipse.ui.texteditor.IDocumentProvider;
 import org.eclipse.ui.texteditor.ITextEditor;
 
+import oss.restore.file.position.collection.PositionHistory;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.metrics.PositionMetrics;
 import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.LazyOffsetsStorage;
+import oss.restore.file.position.storage.Viewports;
+import oss.restore.file.position.text.LineAnchor;
+import oss.restore.file.position.trace.TraceEvent;
+import oss.restore.file.position.trace.TraceRecorder;
+import oss.restore.file.position.tracking.Debouncer;
 
 /**
  * Responsible for listening to changes of the line position in an editor part
  * window.
  * 
  * Stores the line position when a window is closed and jumps to the same
- * position again if the same document is opened later on.
+ * position again if the same document is opened later on. The selection and
+ * the top visible line are restored too, in one viewer update, so the editor
+ * shows the same viewport without first revealing the caret on its own.
+ * 
+ * The position is anchored to the lines around the caret, see
+ * {@link LineAnchor}, so it follows its text if the file was edited outside of
+ * the editor in the meantime.
+ * 
+ * Optionally the caret of every open editor is tracked too, so positions
+ * survive editors that are never closed cleanly. Caret changes are coalesced
+ * per editor and only written once the caret has been quiet for a while, or
+ * when the editor is deactivated, so typing and scrolling never pay for a
+ * storage write. Must be used from the UI thread.
+ * 
+ * When the first editor of a page is opened, e.g. when the workbench restores
+ * a page of many editors, the viewports of every editor of the page are looked
+ * up in one call to the storage, and the editors opened next find their
+ * viewport in memory.
+ * 
+ * The opened, closed and activated editors can be recorded to a trace too, to
+ * replay them against other storages, see {@link TraceRecorder}.
+ * 
+ * Every stored position can also be recorded to the history of its file, see
+ * {@link PositionHistory}, so the last few places of the file can be cycled
+ * through once it is opened again.
  * 
  * @author Nicklas Gummesson <nicklas@tuenti.com>
  */
@@ -26,9 +81,54 @@ public class LinePositionPartListener implements IPartListener2 {
 	/**
 	 * @param storage
 	 *            Offsets storage to use for listener.
+	 * @param metrics
+	 *            Metrics to record the lookups and handling times in.
+	 * @param caretQuietMillis
+	 *            How long the caret of an open editor must be quiet before its
+	 *            position is written, or 0 to only write positions when
+	 *            editors are closed.
+	 * @param recorder
+	 *            Recorder of the editor events, or null to not record them.
+	 * @param history
+	 *            History to record the stored positions in, or null to not
+	 *            keep one.
 	 */
-	public LinePositionPartListener(IOffsetsStorage storage) {
+	public LinePositionPartListener(IOffsetsStorage storage,
+			final PositionMetrics metrics, long caretQuietMillis,
+			TraceRecorder recorder, PositionHistory history) {
 		this.storage = storage;
+		this.metrics = metrics;
+		this.recorder = recorder;
+		this.history = history;
+		if (caretQuietMillis > 0) {
+			caretTracker = new Debouncer<IWorkbenchPartReference>(
+					caretQuietMillis, UI_SCHEDULER,
+					new Debouncer.IFlusher<IWorkbenchPartReference>() {
+						public void flush(IWorkbenchPartReference partRef) {
+							if (storePosition(partRef) != null) {
+								metrics.recordCaretWrite();
+							}
+						}
+					});
+		}
+	}
+
+	/**
+	 * Write the positions of all tracked editors whose caret changed and stop
+	 * tracking them.
+	 */
+	public void stopTrackingCarets() {
+		if (caretTracker == null) {
+			return;
+		}
+		// The editors can only be read from the UI thread.
+		if (Display.getCurrent() != null) {
+			caretTracker.flushAll();
+		}
+		for (IWorkbenchPartReference partRef : new ArrayList<IWorkbenchPartReference>(
+				caretListeners.keySet())) {
+			untrackCaret(partRef);
+		}
 	}
 
 	/*
@@ -37,7 +137,19 @@ public class LinePositionPartListener implements IPartListener2 {
 	 * @see org.eclipse.ui.IPartListener2#partActivated(org.eclipse.ui.
 	 * IWorkbenchPartReference)
 	 */
-	public void partActivated(IWorkbenchPartReference iworkbenchpartreference) {
+	public void partActivated(IWorkbenchPartReference partRef) {
+		if (recorder == null) {
+			return;
+		}
+		ISelectionProvider selectionProvider = getSelectionProvided(partRef);
+		String filePathUri = getFilePathURI(partRef);
+		if (selectionProvider != null && filePathUri != null) {
+			ISelection selection = selectionProvider.getSelection();
+			recorder.record(TraceEvent.ACTIVATE, filePathUri,
+					selection instanceof TextSelection ? ((TextSelection) selection)
+							.getOffset()
+							: 0);
+		}
 	}
 
 	/*
@@ -56,15 +168,19 @@ public class LinePositionPartListener implements IPartListener2 {
 	 * IWorkbenchPartReference)
 	 */
 	public void partClosed(IWorkbenchPartReference partRef) {
-		ISelectionProvider selectionProvider = getSelectionProvided(partRef);
-		if (selectionProvider != null) {
-			ISelection selection = selectionProvider.getSelection();
-			if (selection instanceof TextSelection) {
-				String filePathUri = getFilePathURI(partRef);
-				int offset = ((TextSelection) selection).getOffset();
-				storage.setOffset(filePathUri, offset);
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
+		untrackCaret(partRef);
+		ViewportSnapshot viewport = storePosition(partRef);
+		if (viewport != null) {
+			metrics.recordStore();
+			if (recorder != null) {
+				recorder.record(TraceEvent.CLOSE, getFilePathURI(partRef),
+						viewport.getOffset());
 			}
 		}
+		if (start != 0) {
+			metrics.recordPartClosed(System.nanoTime() - start);
+		}
 	}
 
 	/*
@@ -73,7 +189,10 @@ public class LinePositionPartListener implements IPartListener2 {
 	 * @see org.eclipse.ui.IPartListener2#partDeactivated(org.eclipse.ui.
 	 * IWorkbenchPartReference)
 	 */
-	public void partDeactivated(IWorkbenchPartReference iworkbenchpartreference) {
+	public void partDeactivated(IWorkbenchPartReference partRef) {
+		if (caretTracker != null) {
+			caretTracker.flush(partRef);
+		}
 	}
 
 	/*
@@ -101,20 +220,374 @@ public class LinePositionPartListener implements IPartListener2 {
 	 * IWorkbenchPartReference)
 	 */
 	public void partOpened(IWorkbenchPartReference partRef) {
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
 		ISelectionProvider selectionProvider = getSelectionProvided(partRef);
 		if (selectionProvider != null) {
 			String filePathUri = getFilePathURI(partRef);
 			if (filePathUri != null) {
-				// Resores the offset if available.
-				int offset = storage.getOffset(filePathUri);
-				selectionProvider.setSelection(new TextSelection(offset, 0));
+				// Resores the viewport if available.
+				prefetch(partRef.getPage());
+				long lookupStart = start != 0 ? System.nanoTime() : 0;
+				ViewportSnapshot viewport = prefetched.remove(filePathUri);
+				if (viewport == null) {
+					viewport = Viewports.get(storage, filePathUri);
+				}
+				if (lookupStart != 0) {
+					metrics.recordLookup(viewport != null, System.nanoTime()
+							- lookupStart);
+				}
+				if (viewport == null) {
+					selectionProvider.setSelection(new TextSelection(0, 0));
+				} else {
+					restoreViewport(partRef, selectionProvider, viewport);
+				}
+				if (recorder != null) {
+					recorder.record(TraceEvent.OPEN, filePathUri,
+							viewport == null ? 0 : viewport.getOffset());
+				}
+
+				if (storage instanceof LazyOffsetsStorage
+						&& !((LazyOffsetsStorage) storage).isLoaded()) {
+					restoreWhenLoaded((LazyOffsetsStorage) storage, partRef,
+							filePathUri);
+				}
+				trackCaret(partRef, selectionProvider);
 			}
 		}
+		if (start != 0) {
+			metrics.recordPartOpened(System.nanoTime() - start);
+		}
 	}
 
 	public void partVisible(IWorkbenchPartReference iworkbenchpartreference) {
 	}
 
+	/**
+	 * Store the position of an editor.
+	 * 
+	 * @param partRef
+	 *            The path reference.
+	 * @return The stored viewport, or null if the editor had no text
+	 *         selection to store.
+	 */
+	private ViewportSnapshot storePosition(IWorkbenchPartReference partRef) {
+		ISelectionProvider selectionProvider = getSelectionProvided(partRef);
+		if (selectionProvider == null) {
+			return null;
+		}
+		ISelection selection = selectionProvider.getSelection();
+		String filePathUri = getFilePathURI(partRef);
+		if (!(selection instanceof TextSelection) || filePathUri == null) {
+			return null;
+		}
+		TextSelection textSelection = (TextSelection) selection;
+		ITextViewer viewer = getTextViewer(partRef);
+		int topLine = viewer == null ? ViewportSnapshot.UNKNOWN_TOP_LINE
+				: viewer.getTopIndex();
+		ViewportSnapshot viewport = new ViewportSnapshot(textSelection
+				.getOffset(), textSelection.getLength(), topLine, 0,
+				ViewportSnapshot.NO_ANCHOR, 0, System.currentTimeMillis());
+		prefetched.remove(filePathUri);
+		IDocument document = getDocument(partRef, viewer);
+		Viewports.set(storage, filePathUri, anchor(document, viewport));
+		if (history != null && document != null) {
+			try {
+				history.record(filePathUri, viewport.getOffset(), document
+						.getLineOfOffset(viewport.getOffset()));
+			} catch (BadLocationException e) {
+				// Outside of the document, so not worth going back to.
+			}
+		}
+		return viewport;
+	}
+
+	/**
+	 * Look up the viewports of every restored editor of a page in one call,
+	 * unless done before or the storage is still being loaded. Tabs not
+	 * restored yet are left alone, as resolving their input may open the
+	 * storage shards of projects not used otherwise. The stored viewports
+	 * are kept for the editors restored in the same burst, until the UI thread
+	 * is done with the current event, so they never go stale. Editors without
+	 * a stored viewport, or opened later, are looked up one at a time.
+	 * 
+	 * @param page
+	 *            The page of an opened editor, or null.
+	 */
+	private void prefetch(IWorkbenchPage page) {
+		if (page == null || prefetchedPages.contains(page)) {
+			return;
+		}
+		if (storage instanceof LazyOffsetsStorage
+				&& !((LazyOffsetsStorage) storage).isLoaded()) {
+			return;
+		}
+		Display display = Display.getCurrent();
+		if (display == null) {
+			return;
+		}
+		prefetchedPages.add(page);
+		List<String> filePathUris = new ArrayList<String>();
+		for (IEditorReference editorRef : page.getEditorReferences()) {
+			if (editorRef.getEditor(false) == null) {
+				continue;
+			}
+			try {
+				String filePathUri = getFilePathURI(editorRef.getEditorInput());
+				if (filePathUri != null) {
+					filePathUris.add(filePathUri);
+				}
+			} catch (PartInitException e) {
+				// Looked up when opened, if ever.
+			}
+		}
+		if (filePathUris.size() < 2) {
+			return;
+		}
+		prefetched.putAll(Viewports.getAll(storage, filePathUris));
+		display.asyncExec(new Runnable() {
+			public void run() {
+				prefetched.clear();
+			}
+		});
+	}
+
+	/**
+	 * Start tracking the caret of an opened editor, if enabled.
+	 * 
+	 * @param partRef
+	 *            The opened path reference.
+	 * @param selectionProvider
+	 *            The selection provider of the editor.
+	 */
+	private void trackCaret(final IWorkbenchPartReference partRef,
+			ISelectionProvider selectionProvider) {
+		if (caretTracker == null || caretListeners.containsKey(partRef)) {
+			return;
+		}
+		// Called for every keystroke, so it only marks the editor as changed.
+		ISelectionChangedListener listener = new ISelectionChangedListener() {
+			public void selectionChanged(SelectionChangedEvent event) {
+				long start = metrics.isEnabled() ? System.nanoTime() : 0;
+				caretTracker.changed(partRef);
+				if (start != 0) {
+					metrics.recordCaretChange(System.nanoTime() - start);
+				}
+			}
+		};
+		selectionProvider.addSelectionChangedListener(listener);
+		caretListeners.put(partRef, listener);
+	}
+
+	/**
+	 * Stop tracking the caret of an editor, dropping its pending change.
+	 * 
+	 * @param partRef
+	 *            The path reference.
+	 */
+	private void untrackCaret(IWorkbenchPartReference partRef) {
+		if (caretTracker == null) {
+			return;
+		}
+		caretTracker.forget(partRef);
+		ISelectionChangedListener listener = caretListeners.remove(partRef);
+		if (listener != null) {
+			ISelectionProvider selectionProvider = getSelectionProvided(partRef);
+			if (selectionProvider != null) {
+				selectionProvider.removeSelectionChangedListener(listener);
+			}
+		}
+	}
+
+	/**
+	 * Restore the offset of an editor once the storage has been loaded, unless
+	 * the editor has been closed or its caret moved in the meantime.
+	 * 
+	 * @param lazyStorage
+	 *            The storage that is being loaded.
+	 * @param partRef
+	 *            The opened path reference.
+	 * @param filePathUri
+	 *            The file path URI of the editor.
+	 */
+	private void restoreWhenLoaded(final LazyOffsetsStorage lazyStorage,
+			final IWorkbenchPartReference partRef, final String filePathUri) {
+		final Display display = Display.getCurrent();
+		if (display == null) {
+			return;
+		}
+
+		lazyStorage.whenLoaded(new Runnable() {
+			public void run() {
+				if (display.isDisposed()) {
+					return;
+				}
+				display.asyncExec(new Runnable() {
+					public void run() {
+						ISelectionProvider selectionProvider = getSelectionProvided(partRef);
+						if (selectionProvider != null) {
+							ISelection selection = selectionProvider
+									.getSelection();
+							if (selection instanceof TextSelection
+									&& ((TextSelection) selection).getOffset() == 0) {
+								ViewportSnapshot viewport = lazyStorage
+										.getViewport(filePathUri);
+								if (viewport != null) {
+									restoreViewport(partRef, selectionProvider,
+											viewport);
+								}
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Anchor a viewport to the lines around its caret in a document.
+	 * 
+	 * @param document
+	 *            The document of the editor, or null.
+	 * @param viewport
+	 *            The viewport.
+	 * @return The anchored viewport, or the viewport as is if there is no
+	 *         document or the caret is outside of it.
+	 */
+	private ViewportSnapshot anchor(IDocument document,
+			ViewportSnapshot viewport) {
+		if (document == null) {
+			return viewport;
+		}
+		try {
+			int offset = viewport.getOffset();
+			int line = document.getLineOfOffset(offset);
+			IRegion caretLine = document.getLineInformation(line);
+			return LineAnchor.anchor(viewport, line,
+					offset - caretLine.getOffset(), hashLine(document,
+							line - 1), hashLine(document, line), hashLine(
+							document, line + 1));
+		} catch (BadLocationException e) {
+			return viewport;
+		}
+	}
+
+	/**
+	 * Hash a line of a document as {@link LineAnchor} does.
+	 * 
+	 * @param document
+	 *            The document.
+	 * @param line
+	 *            The line, may be outside of the document.
+	 * @return The line hash, or {@link LineAnchor#MISSING_LINE}.
+	 */
+	private int hashLine(IDocument document, int line)
+			throws BadLocationException {
+		if (line < 0 || line >= document.getNumberOfLines()) {
+			return LineAnchor.MISSING_LINE;
+		}
+		IRegion region = document.getLineInformation(line);
+		String text = document.get(region.getOffset(), region.getLength());
+		return LineAnchor.hashLine(text, 0, text.length());
+	}
+
+	/**
+	 * Restore the selection and top visible line of an editor. The position
+	 * is first relocated to where its anchor is found in the document, which
+	 * is read once, or clamped to the document. When the text viewer is
+	 * available the selection and top line are set with redraw turned off, so
+	 * the editor is repainted once and does not reveal the caret by itself.
+	 * Otherwise only the selection is set, through the selection provider.
+	 * 
+	 * @param partRef
+	 *            The opened path reference.
+	 * @param selectionProvider
+	 *            The selection provider of the editor.
+	 * @param viewport
+	 *            The viewport to restore.
+	 */
+	private void restoreViewport(IWorkbenchPartReference partRef,
+			ISelectionProvider selectionProvider, ViewportSnapshot viewport) {
+		ITextViewer viewer = getTextViewer(partRef);
+		IDocument document = getDocument(partRef, viewer);
+		if (document == null) {
+			selectionProvider.setSelection(new TextSelection(viewport
+					.getOffset(), viewport.getSelectionLength()));
+			return;
+		}
+
+		// The document may have changed outside of the editor since.
+		if (viewport.hasAnchor()) {
+			viewport = LineAnchor.relocate(document.get(), viewport);
+		}
+		int offset = Math.min(viewport.getOffset(), document.getLength());
+		int length = Math.min(viewport.getSelectionLength(),
+				document.getLength() - offset);
+		if (viewer == null
+				|| viewport.getTopLine() == ViewportSnapshot.UNKNOWN_TOP_LINE) {
+			selectionProvider.setSelection(new TextSelection(offset, length));
+			return;
+		}
+		int topLine = Math.min(viewport.getTopLine(),
+				document.getNumberOfLines() - 1);
+
+		StyledText textWidget = viewer.getTextWidget();
+		boolean redraw = textWidget != null && !textWidget.isDisposed();
+		if (redraw) {
+			textWidget.setRedraw(false);
+		}
+		try {
+			viewer.setSelectedRange(offset, length);
+			viewer.setTopIndex(topLine);
+		} finally {
+			if (redraw) {
+				textWidget.setRedraw(true);
+			}
+		}
+	}
+
+	/**
+	 * Get the text viewer of the editor, if it exposes it.
+	 * 
+	 * @param partRef
+	 *            The current path reference.
+	 * @return Text viewer or null.
+	 */
+	private ITextViewer getTextViewer(IWorkbenchPartReference partRef) {
+		ITextEditor editor = getTextEditor(partRef);
+		if (editor != null) {
+			Object target = editor.getAdapter(ITextOperationTarget.class);
+			if (target instanceof ITextViewer) {
+				return (ITextViewer) target;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the document of the editor, from its text viewer or else from its
+	 * document provider.
+	 * 
+	 * @param partRef
+	 *            The current path reference.
+	 * @param viewer
+	 *            The text viewer of the editor, or null.
+	 * @return Document or null.
+	 */
+	private IDocument getDocument(IWorkbenchPartReference partRef,
+			ITextViewer viewer) {
+		if (viewer != null && viewer.getDocument() != null) {
+			return viewer.getDocument();
+		}
+		ITextEditor editor = getTextEditor(partRef);
+		if (editor != null) {
+			IDocumentProvider provider = editor.getDocumentProvider();
+			if (provider != null) {
+				return provider.getDocument(editor.getEditorInput());
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Get current text marker selection, if any is available.
 	 * 
@@ -146,16 +619,27 @@ public class LinePositionPartListener implements IPartListener2 {
 
 		ITextEditor editor = getTextEditor(partRef);
 		if (editor instanceof ITextEditor) {
-			org.eclipse.ui.IEditorInput input = editor.getEditorInput();
-			if (input instanceof IFileEditorInput) {
-				IFile file = ((IFileEditorInput) input).getFile();
-				filePathURI = file.getLocation().toOSString();
-			}
+			filePathURI = getFilePathURI(editor.getEditorInput());
 		}
 
 		return filePathURI;
 	}
 
+	/**
+	 * Get the file path URI of an editor input.
+	 * 
+	 * @param input
+	 *            The editor input, or null.
+	 * @return File path URI or null if the input is not a file.
+	 */
+	private String getFilePathURI(IEditorInput input) {
+		if (input instanceof IFileEditorInput) {
+			IFile file = ((IFileEditorInput) input).getFile();
+			return file.getLocation().toOSString();
+		}
+		return null;
+	}
+
 	/**
 	 * Get the active editor if it is a text editor.
 	 * 
@@ -176,4 +660,33 @@ public class LinePositionPartListener implements IPartListener2 {
 	}
 
 	private IOffsetsStorage storage;
+
+	private PositionMetrics metrics;
+
+	private TraceRecorder recorder;
+
+	private PositionHistory history;
+
+	private Debouncer<IWorkbenchPartReference> caretTracker;
+
+	private final Map<String, ViewportSnapshot> prefetched = new HashMap<String, ViewportSnapshot>();
+
+	private final Set<IWorkbenchPage> prefetchedPages = Collections
+			.newSetFromMap(new WeakHashMap<IWorkbenchPage, Boolean>());
+
+	private final Map<IWorkbenchPartReference, ISelectionChangedListener> caretListeners = new HashMap<IWorkbenchPartReference, ISelectionChangedListener>();
+
+	/**
+	 * Runs the caret timeouts on the UI thread, where the caret changes are
+	 * seen.
+	 */
+	private static final Debouncer.IScheduler UI_SCHEDULER = new Debouncer.IScheduler() {
+		public void schedule(long delayMillis, Runnable task) {
+			Display display = Display.getCurrent();
+			if (display != null && !display.isDisposed()) {
+				display.timerExec((int) Math.min(delayMillis, Integer.MAX_VALUE),
+						task);
+			}
+		}
+	};
 }
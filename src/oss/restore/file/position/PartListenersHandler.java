@@ -1,83 +1,215 @@
 package oss.restore.file.position;
 
-import org.eclipse.ui.IPartListener2;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.ui.IPageListener;
+import org.eclipse.ui.IWindowListener;
+import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PlatformUI;
 
+import oss.restore.file.position.collection.PositionHistory;
+import oss.restore.file.position.metrics.PositionMetrics;
 import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.trace.TraceRecorder;
 
 /**
  * Responsible for managing part listeners.
  * 
+ * One shared part listener is added to every page of every workbench window,
+ * including windows and pages opened later on, so the cost of an editor event
+ * does not depend on how many windows and pages are open. Must be used from
+ * the UI thread.
+ * 
  * @author Nicklas Gummesson <nicklas@tuenti.com>
  */
-public class PartListenersHandler {
-	
+public class PartListenersHandler implements IWindowListener, IPageListener {
+
 	private IOffsetsStorage storage;
 
+	private PositionMetrics metrics;
+
+	private long caretQuietMillis;
+
+	private TraceRecorder recorder;
+
+	private PositionHistory history;
+
+	private IWorkbench workbench;
+
+	private LinePositionPartListener partListener;
+
+	private final List<IWorkbenchWindow> windows = new ArrayList<IWorkbenchWindow>();
+
+	private final List<IWorkbenchPage> pages = new ArrayList<IWorkbenchPage>();
+
 	/**
 	 * Constructors this manager.
+	 * 
+	 * @param caretQuietMillis
+	 *            How long the caret of an open editor must be quiet before its
+	 *            position is written, or 0 to only write positions when
+	 *            editors are closed.
+	 * @param recorder
+	 *            Recorder of the editor events, or null to not record them.
+	 * @param history
+	 *            History to record the stored positions in, or null to not
+	 *            keep one.
 	 */
-	public PartListenersHandler(IOffsetsStorage storage) {
+	public PartListenersHandler(IOffsetsStorage storage,
+			PositionMetrics metrics, long caretQuietMillis,
+			TraceRecorder recorder, PositionHistory history) {
 		this.storage = storage;
+		this.metrics = metrics;
+		this.caretQuietMillis = caretQuietMillis;
+		this.recorder = recorder;
+		this.history = history;
 	}
 
 	/**
-	 * Add listeners.
+	 * Add listeners to every open window and page, and to the workbench so
+	 * windows opened later on are covered too.
 	 */
 	public void addListeners() {
-		IWorkbenchPage page = getPage();
-		if (page != null) {
-			partListener = new LinePositionPartListener(storage);
-			page.addPartListener(partListener);
+		if (workbench != null) {
+			return;
+		}
+		workbench = PlatformUI.getWorkbench();
+		partListener = new LinePositionPartListener(storage, metrics,
+				caretQuietMillis, recorder, history);
+		workbench.addWindowListener(this);
+		for (IWorkbenchWindow window : workbench.getWorkbenchWindows()) {
+			addWindow(window);
 		}
 	}
 
 	/**
-	 * Remove listeners.
+	 * Remove all listeners added by this handler, writing the tracked
+	 * positions not yet written first.
 	 */
 	public void removeListeners() {
-		IWorkbenchPage page = getPage();
-		if (page != null) {
-			page.removePartListener(partListener);
-			partListener = null;
+		if (workbench == null) {
+			return;
 		}
+		partListener.stopTrackingCarets();
+		workbench.removeWindowListener(this);
+		for (IWorkbenchWindow window : new ArrayList<IWorkbenchWindow>(
+				windows)) {
+			removeWindow(window);
+		}
+		workbench = null;
+		partListener = null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.eclipse.ui.IWindowListener#windowOpened(org.eclipse.ui.
+	 * IWorkbenchWindow)
+	 */
+	public void windowOpened(IWorkbenchWindow window) {
+		addWindow(window);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.eclipse.ui.IWindowListener#windowClosed(org.eclipse.ui.
+	 * IWorkbenchWindow)
+	 */
+	public void windowClosed(IWorkbenchWindow window) {
+		removeWindow(window);
+	}
+
+	public void windowActivated(IWorkbenchWindow window) {
+	}
+
+	public void windowDeactivated(IWorkbenchWindow window) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.eclipse.ui.IPageListener#pageOpened(org.eclipse.ui.IWorkbenchPage)
+	 */
+	public void pageOpened(IWorkbenchPage page) {
+		addPage(page);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.eclipse.ui.IPageListener#pageClosed(org.eclipse.ui.IWorkbenchPage)
+	 */
+	public void pageClosed(IWorkbenchPage page) {
+		removePage(page);
+	}
+
+	public void pageActivated(IWorkbenchPage page) {
 	}
 
 	/**
-	 * Get the current workbench page of the IDE
+	 * Listen to a window and add the part listener to its pages.
 	 * 
-	 * @return A IWorkbenchPage instance or null if none available.
+	 * @param window
+	 *            The window.
 	 */
-	private IWorkbenchPage getPage() {
-		IWorkbenchPage page = null;
-
-		// Get active page if available.
-		IWorkbenchWindow window = PlatformUI.getWorkbench()
-				.getActiveWorkbenchWindow();
-		if (window != null) {
-			page = window.getActivePage();
+	private void addWindow(IWorkbenchWindow window) {
+		if (partListener == null || windows.contains(window)) {
+			return;
 		}
+		windows.add(window);
+		window.addPageListener(this);
+		for (IWorkbenchPage page : window.getPages()) {
+			addPage(page);
+		}
+	}
 
-		// No active page? Iterate over the workbench's other windows until we
-		// found an open page.
-		if (page == null) {
-			IWorkbenchWindow windows[] = PlatformUI.getWorkbench()
-					.getWorkbenchWindows();
-			IWorkbenchWindow aiworkbenchwindow[];
-			int j = (aiworkbenchwindow = windows).length;
-			for (int i = 0; i < j; i++) {
-				IWorkbenchWindow win = aiworkbenchwindow[i];
-				page = win.getActivePage();
-				if (page != null)
-					break;
+	/**
+	 * Stop listening to a window and remove the part listener from its pages.
+	 * 
+	 * @param window
+	 *            The window.
+	 */
+	private void removeWindow(IWorkbenchWindow window) {
+		if (!windows.remove(window)) {
+			return;
+		}
+		window.removePageListener(this);
+		for (IWorkbenchPage page : new ArrayList<IWorkbenchPage>(pages)) {
+			if (page.getWorkbenchWindow() == window) {
+				removePage(page);
 			}
-
 		}
+	}
 
-		return page;
+	/**
+	 * Add the part listener to a page.
+	 * 
+	 * @param page
+	 *            The page.
+	 */
+	private void addPage(IWorkbenchPage page) {
+		if (partListener == null || pages.contains(page)) {
+			return;
+		}
+		pages.add(page);
+		page.addPartListener(partListener);
 	}
 
-	private IPartListener2 partListener;
+	/**
+	 * Remove the part listener from a page.
+	 * 
+	 * @param page
+	 *            The page.
+	 */
+	private void removePage(IWorkbenchPage page) {
+		if (pages.remove(page)) {
+			page.removePartListener(partListener);
+		}
+	}
 }
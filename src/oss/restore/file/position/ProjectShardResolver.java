@@ -0,0 +1,34 @@
+package oss.restore.file.position;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.Path;
+
+import oss.restore.file.position.storage.ShardedOffsetsStorage;
+
+/**
+ * Shards the stored offsets by the project of each file path. Paths outside
+ * every project, e.g. of deleted projects, belong to the default shard.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ProjectShardResolver implements
+		ShardedOffsetsStorage.IShardResolver {
+
+	private final IWorkspaceRoot root;
+
+	/**
+	 * Constructs a project shard resolver.
+	 *
+	 * @param root
+	 *            The workspace root.
+	 */
+	public ProjectShardResolver(IWorkspaceRoot root) {
+		this.root = root;
+	}
+
+	public String getShard(String filePathUri) {
+		IFile file = root.getFileForLocation(Path.fromOSString(filePathUri));
+		return file == null ? null : file.getProject().getName();
+	}
+}
@@ -0,0 +1,272 @@
+package oss.restore.file.position;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+import oss.restore.file.position.collection.PositionHistory;
+import oss.restore.file.position.storage.IPrefixOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.ShardedOffsetsStorage;
+
+/**
+ * Keeps the stored file paths in step with the workspace. When files, folders
+ * or projects are moved or renamed their offsets follow them to the new paths,
+ * and when they are deleted their offsets are removed so they do not take the
+ * place of live files.
+ *
+ * Each resource delta is walked once. A moved or deleted folder or project is
+ * a single prefix change and its members are not visited, and all changes of
+ * one event are applied to the storage as one batch, so moving a folder of
+ * any size is one pass over the stored offsets.
+ *
+ * The position histories of the files follow them the same way.
+ *
+ * If the offsets are sharded by project, the shard of a renamed project is
+ * renamed before its offsets are moved, the shard of a deleted project is
+ * deleted, and the shard of a closed project is closed.
+ *
+ * A removed project has no location any more, so the last known location of
+ * each project is kept, from the projects seen in earlier events and from the
+ * pre-delete event of the project, for the paths of projects outside the
+ * workspace folder. The listener is to be added for
+ * {@link IResourceChangeEvent#POST_CHANGE} and
+ * {@link IResourceChangeEvent#PRE_DELETE} events.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ResourceDeltaListener implements IResourceChangeListener {
+
+	private final IPrefixOffsetsStorage storage;
+	private final ShardedOffsetsStorage shards;
+	private final PositionHistory history;
+	// The last known location of each project by name.
+	private final Map<String, IPath> projectLocations = new ConcurrentHashMap<String, IPath>();
+
+	/**
+	 * Constructs a resource delta listener.
+	 *
+	 * @param storage
+	 *            The storage to move and remove offsets in.
+	 * @param shards
+	 *            The project shards of the storage, or null if it is not
+	 *            sharded.
+	 * @param history
+	 *            The position history to move and remove files in, or null if
+	 *            there is none.
+	 * @param root
+	 *            The workspace root, to learn the locations of its projects.
+	 */
+	public ResourceDeltaListener(IPrefixOffsetsStorage storage,
+			ShardedOffsetsStorage shards, PositionHistory history,
+			IWorkspaceRoot root) {
+		this.storage = storage;
+		this.shards = shards;
+		this.history = history;
+		rememberLocations(root);
+	}
+
+	public void resourceChanged(IResourceChangeEvent event) {
+		if (event.getType() == IResourceChangeEvent.PRE_DELETE) {
+			IResource project = event.getResource();
+			if (project != null) {
+				rememberLocation(project);
+			}
+			return;
+		}
+		IResourceDelta delta = event.getDelta();
+		if (delta == null) {
+			return;
+		}
+		final IWorkspaceRoot root = delta.getResource().getWorkspace()
+				.getRoot();
+		final PathChanges changes = new PathChanges();
+		// The old and new names of renamed projects, and the closed and
+		// deleted ones.
+		final Map<String, String> renamedProjects = new LinkedHashMap<String, String>();
+		final List<String> closedProjects = new ArrayList<String>();
+		final List<String> deletedProjects = new ArrayList<String>();
+		try {
+			delta.accept(new IResourceDeltaVisitor() {
+				public boolean visit(IResourceDelta child) {
+					IResource resource = child.getResource();
+					boolean project = resource.getType() == IResource.PROJECT;
+					switch (child.getKind()) {
+					case IResourceDelta.REMOVED:
+						addRemoved(root, child, changes);
+						if (project
+								&& (child.getFlags() & IResourceDelta.MOVED_TO) != 0) {
+							renamedProjects.put(resource.getName(), child
+									.getMovedToPath().lastSegment());
+						} else if (project) {
+							deletedProjects.add(resource.getName());
+						}
+						return false;
+					case IResourceDelta.CHANGED:
+						if (project
+								&& (child.getFlags() & IResourceDelta.OPEN) != 0
+								&& !((IProject) resource).isOpen()) {
+							closedProjects.add(resource.getName());
+							return false;
+						}
+						return true;
+					default:
+						// Added resources have no offsets yet, and their
+						// moved from side is handled when it is removed.
+						return false;
+					}
+				}
+			});
+		} catch (CoreException e) {
+			log("Could not read resource changes", e);
+			return;
+		}
+		for (String project : deletedProjects) {
+			projectLocations.remove(project);
+		}
+		for (String project : renamedProjects.keySet()) {
+			projectLocations.remove(project);
+		}
+		rememberLocations(root);
+
+		if (shards != null) {
+			for (Map.Entry<String, String> renamed : renamedProjects
+					.entrySet()) {
+				try {
+					shards.renameShard(renamed.getKey(), renamed.getValue());
+				} catch (IOException e) {
+					log("Could not rename file positions of project "
+							+ renamed.getKey(), e);
+				}
+			}
+		}
+		if (!changes.isEmpty()) {
+			try {
+				storage.rekey(changes);
+				if (history != null) {
+					history.rekey(changes);
+				}
+			} catch (RuntimeException e) {
+				log("Could not move file positions", e);
+			}
+		}
+		if (shards != null) {
+			try {
+				for (String project : deletedProjects) {
+					shards.deleteShard(project);
+				}
+				for (String project : closedProjects) {
+					shards.closeShard(project);
+				}
+			} catch (IOException e) {
+				log("Could not close file positions of project", e);
+			}
+		}
+	}
+
+	private static void log(String message, Exception e) {
+		Activator.getDefault().getLog().log(
+				new Status(IStatus.ERROR, Activator.PLUGIN_ID, message, e));
+	}
+
+	/**
+	 * Add a removed resource to the changes, as moved if it was moved and
+	 * otherwise as removed.
+	 */
+	private void addRemoved(IWorkspaceRoot root, IResourceDelta delta,
+			PathChanges changes) {
+		IResource resource = delta.getResource();
+		String fromPath = getFilePathURI(root, resource);
+		if (fromPath == null) {
+			return;
+		}
+		String toPath = null;
+		if ((delta.getFlags() & IResourceDelta.MOVED_TO) != 0) {
+			IResource moved = root.findMember(delta.getMovedToPath());
+			if (moved != null) {
+				toPath = getFilePathURI(root, moved);
+			}
+		}
+
+		boolean file = resource.getType() == IResource.FILE;
+		if (toPath == null) {
+			if (file) {
+				changes.remove(fromPath);
+			} else {
+				changes.removeUnder(asPrefix(fromPath));
+			}
+		} else if (!toPath.equals(fromPath)) {
+			if (file) {
+				changes.move(fromPath, toPath);
+			} else {
+				changes.moveUnder(asPrefix(fromPath), asPrefix(toPath));
+			}
+		}
+	}
+
+	/**
+	 * Remember the locations of the projects of the workspace.
+	 */
+	private void rememberLocations(IWorkspaceRoot root) {
+		for (IProject project : root.getProjects()) {
+			rememberLocation(project);
+		}
+	}
+
+	private void rememberLocation(IResource project) {
+		IPath location = project.getLocation();
+		if (location != null) {
+			projectLocations.put(project.getName(), location);
+		}
+	}
+
+	/**
+	 * Get the file path URI the offsets of a resource are stored with. A
+	 * removed project has no location any more, so its resources are taken to
+	 * be at the last known location of the project, or in the workspace
+	 * folder, where projects are by default, if it is not known.
+	 */
+	private String getFilePathURI(IWorkspaceRoot root, IResource resource) {
+		IPath location = resource.getLocation();
+		if (location == null) {
+			IPath projectLocation = projectLocations.get(resource.getProject()
+					.getName());
+			if (projectLocation != null) {
+				location = projectLocation.append(resource.getFullPath()
+						.removeFirstSegments(1));
+			} else {
+				IPath rootLocation = root.getLocation();
+				if (rootLocation == null) {
+					return null;
+				}
+				location = rootLocation.append(resource.getFullPath());
+			}
+		}
+		return location.toOSString();
+	}
+
+	/**
+	 * Get the prefix of the file paths in a folder, so a folder does not
+	 * match its siblings that start with its name.
+	 */
+	private static String asPrefix(String folderPath) {
+		return folderPath.endsWith(File.separator) ? folderPath : folderPath
+				+ File.separator;
+	}
+}
@@ -0,0 +1,49 @@
+package oss.restore.file.position;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+import oss.restore.file.position.storage.PositionExchange;
+
+/**
+ * Maps the file paths of the workspace to their workspace relative paths,
+ * e.g. /project/src/Foo.java, so exported positions can be imported into a
+ * workspace at another location or on another workstation. Files outside
+ * every project are not exported, and positions of projects missing from the
+ * workspace are not imported.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class WorkspaceKeyMapper implements PositionExchange.IKeyMapper {
+
+	private final IWorkspaceRoot root;
+
+	/**
+	 * Constructs a workspace key mapper.
+	 *
+	 * @param root
+	 *            The workspace root.
+	 */
+	public WorkspaceKeyMapper(IWorkspaceRoot root) {
+		this.root = root;
+	}
+
+	public String toPortable(String filePathUri) {
+		IFile file = root.getFileForLocation(Path.fromOSString(filePathUri));
+		return file == null ? null : file.getFullPath().toPortableString();
+	}
+
+	public String toLocal(String key) {
+		IPath location;
+		try {
+			location = root.getFile(Path.fromPortableString(key))
+					.getLocation();
+		} catch (IllegalArgumentException e) {
+			// Not a path of a file in a project.
+			return null;
+		}
+		return location == null ? null : location.toOSString();
+	}
+}
@@ -0,0 +1,510 @@
+package oss.restore.file.position.collection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Map serializer writing a compact, versioned binary format. Expects a map
+ * containing String keys (file paths) and Integer values (offsets).
+ *
+ * The layout is:
+ *
+ * <pre>
+ * magic      'R' 'F' 'P'
+ * version    1 byte
+ * codec      1 byte
+ * dictionary 4 bytes, if codec is {@link #CODEC_DEFLATE}
+ * dirCount   varint
+ * dirs       dirCount x (sharedPrefix varint, suffixLength varint, suffix bytes)
+ * entryCount varint
+ * entries    entryCount x (dirIndex varint, nameLength varint, name bytes, offset varint,
+ *                         selectionLength varint, topLine + 1 varint, anchorLine + 1 varint,
+ *                         [anchorHash 4 bytes, anchorColumn varint] if anchorLine + 1 &gt; 0,
+ *                         modifiedMillis varint)
+ * </pre>
+ *
+ * Every key is split into its directory and file name. The directories are
+ * written once each, sorted and prefix-compressed against the previous one,
+ * and the entries refer to them by index. Entries are written in the iteration
+ * order of the map so that the eviction order survives a round trip.
+ *
+ * Everything after the codec can be compressed with raw Deflate, primed with
+ * a preset dictionary of path segments common in workspaces, e.g.
+ * "/src/main/java/" and ".java", so even the first paths compress well. The
+ * dictionary field holds the Adler-32 checksum of that dictionary, so a
+ * payload written with another dictionary is rejected rather than misread.
+ *
+ * Offsets maps are written with an empty selection, an unknown top line, no
+ * anchor and an unknown modified time. Version 4, which lacked the codec and
+ * was never compressed, version 3, which also lacked the modified time,
+ * version 2, which also lacked the anchor, and version 1, which also lacked
+ * the selection length and top line, are still read.
+ *
+ * @author Nicklas Gummesson
+ */
+public class BinaryMapSerializer {
+
+	/**
+	 * The current format version.
+	 */
+	public static final int FORMAT_VERSION = 5;
+
+	/**
+	 * The codec writing the entries as they are.
+	 */
+	public static final int CODEC_NONE = 0;
+
+	/**
+	 * The codec compressing the entries with Deflate and the path dictionary.
+	 */
+	public static final int CODEC_DEFLATE = 1;
+
+	private static final byte[] MAGIC = { 'R', 'F', 'P' };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Path segments common in workspaces. Deflate finds matches closer to the
+	 * end of the dictionary with shorter codes, so the most common segments
+	 * come last.
+	 */
+	private static final String[] DICTIONARY_SEGMENTS = { "C:\\Users\\",
+			"/Users/", "/home/", "/workspace/", "/git/", "/target/",
+			"/bin/", "/build/", "/generated/", "/WEB-INF/", "/META-INF/",
+			"MANIFEST.MF", "plugin.xml", "build.properties", "pom.xml",
+			".classpath", ".project", ".txt", ".html", ".css", ".js",
+			".properties", ".xml", "/resources/", "/src/test/java/",
+			"/src/main/java/", "/src/", "/org/", "/net/", "/com/",
+			"Exception", "Abstract", "Factory", "Manager", "Service",
+			"Impl.java", "Test.java", ".java" };
+
+	private static final byte[] DICTIONARY = createDictionary();
+
+	private static final int DICTIONARY_ID = checksum(DICTIONARY);
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The longest directory or file name read, in bytes, so a corrupt length
+	 * is rejected rather than allocated.
+	 */
+	private static final int MAX_PATH_BYTES = 1 << 16;
+
+	/**
+	 * The most directories allocated up front. More are added as they are
+	 * read, so a corrupt count runs out of input rather than memory.
+	 */
+	private static final int MAX_INITIAL_DIRS = 1024;
+
+	/**
+	 * Serialize a map to a stream. Entries with a null key or value are
+	 * skipped.
+	 *
+	 * @param map
+	 *            The map to serialize.
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public static void serializeMap(Map<String, Integer> map, OutputStream out)
+			throws IOException {
+		write(map, out, CODEC_NONE);
+	}
+
+	/**
+	 * Serialize a map to a stream with a codec. Entries with a null key or
+	 * value are skipped.
+	 *
+	 * @param map
+	 *            The map to serialize.
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 * @param codec
+	 *            The codec, {@link #CODEC_NONE} or {@link #CODEC_DEFLATE}.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public static void serializeMap(Map<String, Integer> map,
+			OutputStream out, int codec) throws IOException {
+		write(map, out, codec);
+	}
+
+	/**
+	 * Serialize a map of viewport snapshots to a stream. Entries with a null
+	 * key or value are skipped.
+	 *
+	 * @param map
+	 *            The map to serialize.
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public static void serializeViewports(Map<String, ViewportSnapshot> map,
+			OutputStream out) throws IOException {
+		write(map, out, CODEC_NONE);
+	}
+
+	/**
+	 * Serialize a map of viewport snapshots to a stream with a codec. Entries
+	 * with a null key or value are skipped.
+	 *
+	 * @param map
+	 *            The map to serialize.
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 * @param codec
+	 *            The codec, {@link #CODEC_NONE} or {@link #CODEC_DEFLATE}.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public static void serializeViewports(Map<String, ViewportSnapshot> map,
+			OutputStream out, int codec) throws IOException {
+		write(map, out, codec);
+	}
+
+	/**
+	 * De-serialize a map from a stream. The returned map keeps the order the
+	 * entries were written in, and holds the caret offsets only.
+	 *
+	 * @param in
+	 *            The stream to read from, preferably buffered.
+	 * @return The de-serialized map.
+	 * @throws IOException
+	 *             If the stream could not be read, is not in the expected
+	 *             format or has an unsupported version.
+	 */
+	public static Map<String, Integer> deserializeMap(InputStream in)
+			throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		read(in, map, null);
+		return map;
+	}
+
+	/**
+	 * De-serialize a map of viewport snapshots from a stream. The returned map
+	 * keeps the order the entries were written in.
+	 *
+	 * @param in
+	 *            The stream to read from, preferably buffered.
+	 * @return The de-serialized map.
+	 * @throws IOException
+	 *             If the stream could not be read, is not in the expected
+	 *             format or has an unsupported version.
+	 */
+	public static Map<String, ViewportSnapshot> deserializeViewports(
+			InputStream in) throws IOException {
+		Map<String, ViewportSnapshot> map = new LinkedHashMap<String, ViewportSnapshot>();
+		read(in, null, map);
+		return map;
+	}
+
+	/**
+	 * Write the header and the entries of a map, compressed by a codec.
+	 */
+	private static void write(Map<String, ?> map, OutputStream out, int codec)
+			throws IOException {
+		if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+			throw new IllegalArgumentException("Unknown codec " + codec);
+		}
+		out.write(MAGIC);
+		out.write(FORMAT_VERSION);
+		out.write(codec);
+		if (codec == CODEC_NONE) {
+			writeEntries(map, out);
+			return;
+		}
+
+		out.write(DICTIONARY_ID >>> 24);
+		out.write(DICTIONARY_ID >>> 16);
+		out.write(DICTIONARY_ID >>> 8);
+		out.write(DICTIONARY_ID);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setDictionary(DICTIONARY);
+			DeflaterOutputStream deflated = new DeflaterOutputStream(out,
+					deflater, BUFFER_SIZE);
+			// The entries are written a few bytes at a time.
+			OutputStream buffered = new BufferedOutputStream(deflated,
+					BUFFER_SIZE);
+			writeEntries(map, buffered);
+			buffered.flush();
+			deflated.finish();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Write the entries of a map whose values are either Integer offsets or
+	 * viewport snapshots.
+	 */
+	private static void writeEntries(Map<String, ?> map, OutputStream out)
+			throws IOException {
+		// Collect the distinct directories in sorted order so that
+		// neighbouring directories share as long prefixes as possible.
+		TreeSet<String> dirs = new TreeSet<String>();
+		int count = 0;
+		for (Map.Entry<String, ?> entry : map.entrySet()) {
+			if (entry.getKey() != null && entry.getValue() != null) {
+				dirs.add(directoryOf(entry.getKey()));
+				count++;
+			}
+		}
+
+		VarInt.write(out, dirs.size());
+		Map<String, Integer> dirIndexes = new HashMap<String, Integer>();
+		byte[] previous = new byte[0];
+		for (String dir : dirs) {
+			byte[] bytes = dir.getBytes(UTF8);
+			int shared = sharedPrefixLength(previous, bytes);
+			VarInt.write(out, shared);
+			VarInt.write(out, bytes.length - shared);
+			out.write(bytes, shared, bytes.length - shared);
+			dirIndexes.put(dir, Integer.valueOf(dirIndexes.size()));
+			previous = bytes;
+		}
+
+		VarInt.write(out, count);
+		for (Map.Entry<String, ?> entry : map.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if (key != null && value != null) {
+				String dir = directoryOf(key);
+				byte[] name = key.substring(dir.length()).getBytes(UTF8);
+				VarInt.write(out, dirIndexes.get(dir).intValue());
+				VarInt.write(out, name.length);
+				out.write(name);
+				writeViewport(out,
+						value instanceof ViewportSnapshot ? (ViewportSnapshot) value
+								: ViewportSnapshot.ofOffset(((Integer) value)
+										.intValue()));
+			}
+		}
+	}
+
+	/**
+	 * Write a viewport snapshot in the current format version.
+	 */
+	static void writeViewport(OutputStream out, ViewportSnapshot snapshot)
+			throws IOException {
+		VarInt.write(out, snapshot.getOffset());
+		VarInt.write(out, snapshot.getSelectionLength());
+		VarInt.write(out, snapshot.getTopLine() + 1);
+		VarInt.write(out, snapshot.getAnchorLine() + 1);
+		if (snapshot.hasAnchor()) {
+			int hash = snapshot.getAnchorHash();
+			out.write(hash >>> 24);
+			out.write(hash >>> 16);
+			out.write(hash >>> 8);
+			out.write(hash);
+			VarInt.write(out, snapshot.getAnchorColumn());
+		}
+		VarInt.writeLong(out, snapshot.getModifiedMillis());
+	}
+
+	/**
+	 * Read a viewport snapshot written in a format version.
+	 */
+	static ViewportSnapshot readViewport(InputStream in, int version)
+			throws IOException {
+		int offset = VarInt.read(in);
+		int selectionLength = 0;
+		int topLine = ViewportSnapshot.UNKNOWN_TOP_LINE;
+		int anchorHash = 0;
+		int anchorLine = ViewportSnapshot.NO_ANCHOR;
+		int anchorColumn = 0;
+		long modifiedMillis = ViewportSnapshot.UNKNOWN_MODIFIED;
+		if (version > 1) {
+			selectionLength = VarInt.read(in);
+			topLine = VarInt.read(in) - 1;
+		}
+		if (version > 2) {
+			anchorLine = VarInt.read(in) - 1;
+			if (anchorLine >= 0) {
+				for (int i = 0; i < 4; i++) {
+					int b = in.read();
+					if (b < 0) {
+						throw new EOFException(
+								"Unexpected end of serialized map");
+					}
+					anchorHash = anchorHash << 8 | b;
+				}
+				anchorColumn = VarInt.read(in);
+			}
+		}
+		if (version > 3) {
+			modifiedMillis = VarInt.readLong(in);
+		}
+		return new ViewportSnapshot(offset, selectionLength, topLine,
+				anchorHash, anchorLine, anchorColumn, modifiedMillis);
+	}
+
+	/**
+	 * Read the header and decompress the entries into either an offsets map
+	 * or a viewports map.
+	 */
+	private static void read(InputStream in, Map<String, Integer> offsets,
+			Map<String, ViewportSnapshot> viewports) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.read() != MAGIC[i]) {
+				throw new IOException("Not a serialized offsets map");
+			}
+		}
+		int version = in.read();
+		if (version < 1 || version > FORMAT_VERSION) {
+			throw new IOException("Unsupported format version " + version);
+		}
+		int codec = version > 4 ? in.read() : CODEC_NONE;
+		if (codec == CODEC_NONE) {
+			readEntries(in, version, offsets, viewports);
+			return;
+		}
+		if (codec != CODEC_DEFLATE) {
+			throw new IOException("Unsupported codec " + codec);
+		}
+
+		int dictionaryId = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Unexpected end of serialized map");
+			}
+			dictionaryId = dictionaryId << 8 | b;
+		}
+		if (dictionaryId != DICTIONARY_ID) {
+			throw new IOException("Unknown dictionary "
+					+ Integer.toHexString(dictionaryId));
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(DICTIONARY);
+			InputStream inflated = new BufferedInputStream(
+					new InflaterInputStream(in, inflater, BUFFER_SIZE),
+					BUFFER_SIZE);
+			readEntries(inflated, version, offsets, viewports);
+			// Only ends cleanly if the whole stream is there.
+			if (inflated.read() >= 0) {
+				throw new IOException("Unexpected data after serialized map");
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Read the entries written in a format version into either an offsets map
+	 * or a viewports map.
+	 */
+	private static void readEntries(InputStream in, int version,
+			Map<String, Integer> offsets,
+			Map<String, ViewportSnapshot> viewports) throws IOException {
+		int dirCount = VarInt.read(in);
+		if (dirCount < 0) {
+			throw new IOException("Corrupt directory count " + dirCount);
+		}
+		List<String> dirs = new ArrayList<String>(Math.min(dirCount,
+				MAX_INITIAL_DIRS));
+		byte[] previous = new byte[0];
+		for (int i = 0; i < dirCount; i++) {
+			int shared = VarInt.read(in);
+			int length = VarInt.read(in);
+			if (shared < 0 || shared > previous.length || length < 0
+					|| length > MAX_PATH_BYTES) {
+				throw new IOException("Corrupt directory table");
+			}
+			byte[] bytes = new byte[shared + length];
+			System.arraycopy(previous, 0, bytes, 0, shared);
+			readFully(in, bytes, shared, length);
+			dirs.add(new String(bytes, UTF8));
+			previous = bytes;
+		}
+
+		int count = VarInt.read(in);
+		if (count < 0) {
+			throw new IOException("Corrupt entry count " + count);
+		}
+		for (int i = 0; i < count; i++) {
+			int dirIndex = VarInt.read(in);
+			int length = VarInt.read(in);
+			if (dirIndex < 0 || dirIndex >= dirCount || length < 0
+					|| length > MAX_PATH_BYTES) {
+				throw new IOException("Corrupt entry " + i);
+			}
+			byte[] name = new byte[length];
+			readFully(in, name, 0, length);
+			ViewportSnapshot viewport = readViewport(in, version);
+			String key = dirs.get(dirIndex).concat(new String(name, UTF8));
+			if (offsets != null) {
+				offsets.put(key, Integer.valueOf(viewport.getOffset()));
+			} else {
+				viewports.put(key, viewport);
+			}
+		}
+	}
+
+	/**
+	 * Get the directory part of a path including the trailing separator, or
+	 * an empty string if the path has no separator.
+	 *
+	 * @param path
+	 *            The path.
+	 * @return The directory part.
+	 */
+	static String directoryOf(String path) {
+		int index = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+		return path.substring(0, index + 1);
+	}
+
+	private static byte[] createDictionary() {
+		StringBuilder dictionary = new StringBuilder();
+		for (String segment : DICTIONARY_SEGMENTS) {
+			dictionary.append(segment);
+		}
+		return dictionary.toString().getBytes(UTF8);
+	}
+
+	private static int checksum(byte[] bytes) {
+		Adler32 adler = new Adler32();
+		adler.update(bytes, 0, bytes.length);
+		return (int) adler.getValue();
+	}
+
+	static int sharedPrefixLength(byte[] a, byte[] b) {
+		int max = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < max && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	static void readFully(InputStream in, byte[] bytes, int offset,
+			int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(bytes, offset, length);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of serialized map");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+}
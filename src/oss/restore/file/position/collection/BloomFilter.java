@@ -0,0 +1,263 @@
+package oss.restore.file.position.collection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of String keys, answering whether a key might have been
+ * added, or certainly has not, from memory. Sized from the expected number of
+ * keys and the wanted false positive rate; the false positive rate grows once
+ * more keys than expected are added.
+ *
+ * Keys can not be removed. A removed key only makes the filter answer that it
+ * might be there, so the filter can be rebuilt from the live keys now and
+ * then, e.g. when it is saturated.
+ *
+ * Each key is hashed once to 64 bits with FNV-1a, and the bit indexes are
+ * derived from its two halves by double hashing.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class BloomFilter {
+
+	private static final int MAGIC = 0x52465042; // "RFPB"
+	private static final int VERSION = 1;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int expectedKeys;
+	private final double falsePositiveRate;
+	private final int hashCount;
+	private final long bitCount;
+	private final long[] bits;
+	private int keyCount;
+
+	/**
+	 * Constructs an empty Bloom filter.
+	 *
+	 * @param expectedKeys
+	 *            The number of keys expected to be added.
+	 * @param falsePositiveRate
+	 *            The wanted false positive rate once that many keys have
+	 *            been added, above 0 and below 1.
+	 */
+	public BloomFilter(int expectedKeys, double falsePositiveRate) {
+		if (expectedKeys <= 0
+				|| !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.expectedKeys = expectedKeys;
+		this.falsePositiveRate = falsePositiveRate;
+		// m = -n ln p / (ln 2)^2 and k = m / n ln 2, rounded up to whole
+		// longs.
+		double optimalBits = -expectedKeys * Math.log(falsePositiveRate)
+				/ (Math.log(2) * Math.log(2));
+		int words = (int) Math.min(Integer.MAX_VALUE,
+				Math.max(1, (long) Math.ceil(optimalBits / 64)));
+		this.bits = new long[words];
+		this.bitCount = 64L * words;
+		this.hashCount = Math.max(1, (int) Math.round(optimalBits
+				/ expectedKeys * Math.log(2)));
+	}
+
+	private BloomFilter(int expectedKeys, double falsePositiveRate,
+			int hashCount, long[] bits, int keyCount) {
+		this.expectedKeys = expectedKeys;
+		this.falsePositiveRate = falsePositiveRate;
+		this.hashCount = hashCount;
+		this.bits = bits;
+		this.bitCount = 64L * bits.length;
+		this.keyCount = keyCount;
+	}
+
+	/**
+	 * Add a key.
+	 *
+	 * @param key
+	 *            The key.
+	 */
+	public void put(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		keyCount++;
+	}
+
+	/**
+	 * Check if a key might have been added.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return False if the key has certainly not been added, true if it might
+	 *         have been.
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove all keys.
+	 */
+	public void clear() {
+		Arrays.fill(bits, 0);
+		keyCount = 0;
+	}
+
+	/**
+	 * Get the number of keys the filter was sized for.
+	 *
+	 * @return The expected key count.
+	 */
+	public int getExpectedKeys() {
+		return expectedKeys;
+	}
+
+	/**
+	 * Get the false positive rate the filter was sized for.
+	 *
+	 * @return The wanted false positive rate.
+	 */
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * Get the number of keys added, counting keys added more than once each
+	 * time.
+	 *
+	 * @return The key count.
+	 */
+	public int getKeyCount() {
+		return keyCount;
+	}
+
+	/**
+	 * Check if more keys than expected have been added, so the false positive
+	 * rate is above the wanted one.
+	 *
+	 * @return True if saturated.
+	 */
+	public boolean isSaturated() {
+		return keyCount > expectedKeys;
+	}
+
+	/**
+	 * Estimate the current false positive rate from the share of bits set.
+	 *
+	 * @return The estimated false positive rate.
+	 */
+	public double getEstimatedFalsePositiveRate() {
+		long set = 0;
+		for (long word : bits) {
+			set += Long.bitCount(word);
+		}
+		return Math.pow((double) set / bitCount, hashCount);
+	}
+
+	/**
+	 * Get the number of hash functions, i.e. bits per key.
+	 *
+	 * @return The hash count.
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * Get the size of the bit array in bytes.
+	 *
+	 * @return The memory used by the bits.
+	 */
+	public long getMemoryBytes() {
+		return bitCount / 8;
+	}
+
+	/**
+	 * Write the filter to a stream.
+	 *
+	 * @param out
+	 *            The stream, not closed.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(expectedKeys);
+		data.writeDouble(falsePositiveRate);
+		data.writeInt(hashCount);
+		data.writeInt(keyCount);
+		data.writeInt(bits.length);
+		for (long word : bits) {
+			data.writeLong(word);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Read a filter written by {@link #writeTo(OutputStream)}.
+	 *
+	 * @param in
+	 *            The stream, not closed.
+	 * @return The filter.
+	 * @throws IOException
+	 *             If the stream could not be read or does not hold a filter.
+	 */
+	public static BloomFilter readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+			throw new IOException("Not a Bloom filter");
+		}
+		int expectedKeys = data.readInt();
+		double falsePositiveRate = data.readDouble();
+		int hashCount = data.readInt();
+		int keyCount = data.readInt();
+		int words = data.readInt();
+		if (expectedKeys <= 0
+				|| !(falsePositiveRate > 0 && falsePositiveRate < 1)
+				|| hashCount <= 0 || keyCount < 0 || words <= 0) {
+			throw new IOException("Corrupt Bloom filter");
+		}
+		long[] bits = new long[words];
+		for (int i = 0; i < words; i++) {
+			bits[i] = data.readLong();
+		}
+		return new BloomFilter(expectedKeys, falsePositiveRate, hashCount,
+				bits, keyCount);
+	}
+
+	private long index(int combinedHash) {
+		return (combinedHash & 0xFFFFFFFFL) % bitCount;
+	}
+
+	private static long hash(String key) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < key.length(); i++) {
+			hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+		}
+		// FNV-1a mixes the last characters poorly into the high bits.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
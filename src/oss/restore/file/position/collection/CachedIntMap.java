@@ -0,0 +1,785 @@
+package oss.restore.file.position.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Same behavior as a {@link CachedMap} with String keys and Integer values,
+ * but the values are kept as primitive ints and {@link #getInt(String, int)}
+ * and {@link #putInt(String, int)} do not allocate once the map has reached
+ * its capacity.
+ *
+ * The entries live in parallel arrays: the keys, values and key hashes, and
+ * the previous and next entry in insertion (or access) order. Each entry can
+ * also have an extra of a fixed number of ints, e.g. the rest of a
+ * {@link ViewportSnapshot}, which is not part of the map view. An open
+ * addressing index with linear probing maps a key to its entry. The map view
+ * boxes the values and is meant for serialization, not for the hot path.
+ *
+ * Which entries are evicted when the capacity is reached is decided by an
+ * {@link IEvictionPolicy}. The entries are kept in a main list and, if the
+ * policy asks for one, an admission window list, both linked through the same
+ * arrays.
+ *
+ * Null keys and values are not supported.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class CachedIntMap extends AbstractMap<String, Integer> {
+
+	/**
+	 * Maps the keys of a map to new keys, see {@link CachedIntMap#rekey}.
+	 */
+	public interface IKeyMapper {
+
+		/**
+		 * Map a key to its new key.
+		 *
+		 * @param key
+		 *            The key.
+		 * @return The new key, the same key to keep it, or null to remove it.
+		 */
+		String map(String key);
+	}
+
+	private static final int NONE = -1;
+
+	private static final byte MAIN = 0;
+	private static final byte WINDOW = 1;
+
+	// Larger capacities are allocated as the map fills up.
+	private static final int MAX_INITIAL_ENTRIES = 4096;
+
+	private final float loadFactor;
+	private final IEvictionPolicy policy;
+	private final boolean accessOrder;
+	private final int extraWidth;
+	private int capacity;
+
+	// Entries, indexed by entry number.
+	private String[] keys;
+	private int[] values;
+	// The extras, extraWidth ints per entry.
+	private int[] extras;
+	private int[] hashes;
+	private int[] before;
+	private int[] after;
+	private byte[] segments;
+
+	// Open addressing index, holding the entry number + 1 or 0 when empty.
+	private int[] index;
+	private int mask;
+
+	// The ends and sizes of the main and window lists.
+	private final int[] eldest = { NONE, NONE };
+	private final int[] newest = { NONE, NONE };
+	private final int[] segmentSize = new int[2];
+
+	private int freeList = NONE;
+	private int used;
+	private int size;
+	private int modCount;
+	private long evictionCount;
+
+	/**
+	 * Constructs an empty insertion-ordered map with a default capacity (16)
+	 * and load factor (0.75).
+	 */
+	public CachedIntMap() {
+		this(16);
+	}
+
+	/**
+	 * Constructs an empty insertion-ordered map with the specified capacity
+	 * and a default load factor (0.75).
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 */
+	public CachedIntMap(int capacity) {
+		this(capacity, 0.75f);
+	}
+
+	/**
+	 * Constructs an insertion-ordered map with the same mappings as the
+	 * specified map and a capacity of its size.
+	 *
+	 * @param map
+	 *            the map whose mappings are to be placed in this map.
+	 */
+	public CachedIntMap(Map<String, ? extends Integer> map) {
+		this(map.size());
+		putAll(map);
+	}
+
+	/**
+	 * Constructs an empty insertion-ordered map with the specified capacity
+	 * and load factor.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 * @param loadFactor
+	 *            the load factor of the index.
+	 */
+	public CachedIntMap(int capacity, float loadFactor) {
+		this(capacity, loadFactor, false);
+	}
+
+	/**
+	 * Constructs an empty map with the specified capacity, load factor and
+	 * ordering mode.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 * @param loadFactor
+	 *            the load factor of the index.
+	 * @param accessOrder
+	 *            the ordering mode - true for access-order, false for
+	 *            insertion-order.
+	 */
+	public CachedIntMap(int capacity, float loadFactor, boolean accessOrder) {
+		this(capacity, loadFactor, accessOrder ? new LruEvictionPolicy()
+				: new FifoEvictionPolicy());
+	}
+
+	/**
+	 * Constructs an empty map with the specified capacity, a default load
+	 * factor (0.75) and an eviction policy.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 * @param policy
+	 *            the eviction policy, not to be shared with other maps.
+	 */
+	public CachedIntMap(int capacity, IEvictionPolicy policy) {
+		this(capacity, 0.75f, policy);
+	}
+
+	/**
+	 * Constructs an empty map with the specified capacity, load factor and
+	 * eviction policy.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 * @param loadFactor
+	 *            the load factor of the index.
+	 * @param policy
+	 *            the eviction policy, not to be shared with other maps.
+	 */
+	public CachedIntMap(int capacity, float loadFactor, IEvictionPolicy policy) {
+		this(capacity, loadFactor, policy, 0);
+	}
+
+	/**
+	 * Constructs an empty map with the specified capacity, load factor,
+	 * eviction policy and extra width.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 * @param loadFactor
+	 *            the load factor of the index.
+	 * @param policy
+	 *            the eviction policy, not to be shared with other maps.
+	 * @param extraWidth
+	 *            the number of ints of the extra of each entry.
+	 */
+	public CachedIntMap(int capacity, float loadFactor,
+			IEvictionPolicy policy, int extraWidth) {
+		if (capacity < 0 || !(loadFactor > 0 && loadFactor < 1)
+				|| extraWidth < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.loadFactor = loadFactor;
+		this.policy = policy;
+		this.accessOrder = policy.isAccessOrder();
+		this.extraWidth = extraWidth;
+		allocate(Math.max(Math.min(capacity, MAX_INITIAL_ENTRIES), 1));
+	}
+
+	/**
+	 * Get the number of ints of the extra of each entry.
+	 *
+	 * @return The extra width.
+	 */
+	public int getExtraWidth() {
+		return extraWidth;
+	}
+
+	/**
+	 * Get the capacity of the cached map.
+	 *
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Change the capacity of this map. A smaller capacity is applied when the
+	 * next entry is added.
+	 *
+	 * @param newCapacity
+	 *            The new capacity of this map.
+	 */
+	public void setCapacity(int newCapacity) {
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Get the value of a key without boxing it.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param defaultValue
+	 *            The value to return if the key is not mapped.
+	 * @return The value or defaultValue.
+	 */
+	public int getInt(String key, int defaultValue) {
+		int hash = hash(key);
+		policy.recordAccess(hash);
+		int entry = find(key, hash);
+		if (entry == NONE) {
+			return defaultValue;
+		}
+		if (accessOrder) {
+			moveToNewest(entry);
+		}
+		return values[entry];
+	}
+
+	/**
+	 * Map a key to a value without boxing it. If the capacity is reached
+	 * entries are evicted first as decided by the eviction policy, which may
+	 * also refuse to add the key. The extra of the key is set to zeros.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 * @return True if the key was added, false if it was already mapped or
+	 *         not admitted.
+	 */
+	public boolean putInt(String key, int value) {
+		return putInt(key, value, null);
+	}
+
+	/**
+	 * Map a key to a value and an extra without boxing them. Otherwise the
+	 * same as {@link #putInt(String, int)}.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 * @param extra
+	 *            The extra, at least {@link #getExtraWidth()} ints, or null for
+	 *            zeros. It is copied.
+	 * @return True if the key was added, false if it was already mapped or
+	 *         not admitted.
+	 */
+	public boolean putInt(String key, int value, int[] extra) {
+		int hash = hash(key);
+		policy.recordAccess(hash);
+		int entry = find(key, hash);
+		if (entry != NONE) {
+			values[entry] = value;
+			setExtra(entry, extra);
+			if (accessOrder) {
+				moveToNewest(entry);
+			}
+			return false;
+		}
+
+		if (capacity <= 0) {
+			return false;
+		}
+		int window = Math.min(policy.getWindowSize(capacity), capacity - 1);
+		if (window > 0) {
+			makeRoomInWindow(window);
+			insert(key, hash, value, extra, WINDOW);
+			return true;
+		}
+		while (size >= capacity) {
+			int victim = eldest[MAIN] != NONE ? eldest[MAIN] : eldest[WINDOW];
+			if (size == capacity && !policy.admit(hash, hashes[victim])) {
+				evictionCount++;
+				return false;
+			}
+			evict(victim);
+		}
+		insert(key, hash, value, extra, MAIN);
+		return true;
+	}
+
+	/**
+	 * Copy the extra of a key. Unlike {@link #getInt(String, int)} this does
+	 * not count as an access, so it can be called right after it.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param extra
+	 *            The array to copy the extra to, at least
+	 *            {@link #getExtraWidth()} ints. Left as is if the key is not
+	 *            mapped.
+	 * @return True if the key is mapped.
+	 */
+	public boolean getExtra(String key, int[] extra) {
+		int entry = find(key, hash(key));
+		if (entry == NONE) {
+			return false;
+		}
+		System.arraycopy(extras, entry * extraWidth, extra, 0, extraWidth);
+		return true;
+	}
+
+	/**
+	 * Change the keys of all entries in one pass, e.g. when the files below a
+	 * folder have moved. The entries keep their values, extras and place in
+	 * the eviction order. An entry whose new key is already mapped replaces
+	 * that mapping, unless that key is changed too. All keys are mapped before
+	 * any is changed, so the mapper sees the keys as they were.
+	 *
+	 * @param mapper
+	 *            The mapper of the keys.
+	 * @return The count of entries whose key was changed or that were
+	 *         removed.
+	 */
+	public int rekey(IKeyMapper mapper) {
+		int[] changed = new int[16];
+		String[] newKeys = new String[16];
+		int count = 0;
+		for (int entry = first(); entry != NONE; entry = following(entry)) {
+			String newKey = mapper.map(keys[entry]);
+			if (newKey == keys[entry]
+					|| (newKey != null && newKey.equals(keys[entry]))) {
+				continue;
+			}
+			if (count == changed.length) {
+				changed = Arrays.copyOf(changed, count * 2);
+				newKeys = Arrays.copyOf(newKeys, count * 2);
+			}
+			changed[count] = entry;
+			newKeys[count] = newKey;
+			count++;
+		}
+
+		// Take the changed entries out of the index first, so they can not be
+		// mistaken for entries already mapped to their new keys.
+		for (int i = 0; i < count; i++) {
+			unindex(changed[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			int entry = changed[i];
+			if (newKeys[i] == null) {
+				unlink(entry);
+				free(entry);
+				continue;
+			}
+			int hash = hash(newKeys[i]);
+			int previous = find(newKeys[i], hash);
+			if (previous != NONE) {
+				removeEntry(previous);
+			}
+			keys[entry] = newKeys[i];
+			hashes[entry] = hash;
+			index(entry);
+		}
+		if (count > 0) {
+			modCount++;
+		}
+		return count;
+	}
+
+	/**
+	 * Make room for a count of entries at once, at most the capacity, so
+	 * adding them does not grow the map and rebuild its index step by step.
+	 *
+	 * @param entries
+	 *            The count of entries the map will hold.
+	 */
+	public void reserve(int entries) {
+		int reserved = Math.min(entries, capacity);
+		if (reserved > keys.length) {
+			resize(reserved);
+		}
+	}
+
+	/**
+	 * Get the count of entries evicted, or not admitted, because the capacity
+	 * was reached since this map was constructed.
+	 *
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Get the eldest key, i.e. the first one in iteration order.
+	 *
+	 * @return The eldest key or null if empty.
+	 */
+	public String eldestKey() {
+		int entry = first();
+		return entry == NONE ? null : keys[entry];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String
+				&& find((String) key, hash((String) key)) != NONE;
+	}
+
+	@Override
+	public Integer get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int hash = hash((String) key);
+		policy.recordAccess(hash);
+		int entry = find((String) key, hash);
+		if (entry == NONE) {
+			return null;
+		}
+		if (accessOrder) {
+			moveToNewest(entry);
+		}
+		return Integer.valueOf(values[entry]);
+	}
+
+	@Override
+	public Integer put(String key, Integer value) {
+		int hash = hash(key);
+		int entry = find(key, hash);
+		Integer previous = entry == NONE ? null : Integer.valueOf(values[entry]);
+		putInt(key, value.intValue());
+		return previous;
+	}
+
+	@Override
+	public Integer remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int entry = find((String) key, hash((String) key));
+		if (entry == NONE) {
+			return null;
+		}
+		int value = values[entry];
+		removeEntry(entry);
+		return Integer.valueOf(value);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(keys, null);
+		Arrays.fill(index, 0);
+		Arrays.fill(eldest, NONE);
+		Arrays.fill(newest, NONE);
+		Arrays.fill(segmentSize, 0);
+		freeList = NONE;
+		used = 0;
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Get the entries in insertion (or access) order, the main list before the
+	 * admission window. The entries are snapshots, setting their value does
+	 * not write through.
+	 */
+	@Override
+	public Set<Map.Entry<String, Integer>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Integer>>() {
+			@Override
+			public Iterator<Map.Entry<String, Integer>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Integer>> {
+		private int next = first();
+		private int last = NONE;
+		private int expectedModCount = modCount;
+
+		public boolean hasNext() {
+			return next != NONE;
+		}
+
+		public Map.Entry<String, Integer> next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (next == NONE) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = following(next);
+			return new AbstractMap.SimpleImmutableEntry<String, Integer>(
+					keys[last], Integer.valueOf(values[last]));
+		}
+
+		public void remove() {
+			if (last == NONE) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeEntry(last);
+			last = NONE;
+			expectedModCount = modCount;
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int find(String key, int hash) {
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = index[slot] - 1;
+			if (entry == NONE) {
+				return NONE;
+			}
+			if (hashes[entry] == hash && key.equals(keys[entry])) {
+				return entry;
+			}
+		}
+	}
+
+	/**
+	 * Move the eldest entries out of the admission window, and evict entries,
+	 * until there is room for one more entry in the window. An entry leaving
+	 * the window when the map is full either replaces the eldest entry of the
+	 * main list or is evicted itself, as the policy decides.
+	 */
+	private void makeRoomInWindow(int window) {
+		while (size >= capacity || segmentSize[WINDOW] >= window) {
+			int candidate = eldest[WINDOW];
+			int victim = eldest[MAIN];
+			if (segmentSize[WINDOW] >= window) {
+				if (size >= capacity && victim != NONE) {
+					if (policy.admit(hashes[candidate], hashes[victim])) {
+						evict(victim);
+						moveToSegment(candidate, MAIN);
+					} else {
+						evict(candidate);
+					}
+				} else {
+					moveToSegment(candidate, MAIN);
+				}
+			} else {
+				evict(victim != NONE ? victim : candidate);
+			}
+		}
+	}
+
+	private void evict(int entry) {
+		evictionCount++;
+		removeEntry(entry);
+	}
+
+	private void insert(String key, int hash, int value, int[] extra,
+			byte segment) {
+		int entry;
+		if (freeList != NONE) {
+			entry = freeList;
+			freeList = after[entry];
+		} else {
+			if (used == keys.length) {
+				grow();
+			}
+			entry = used++;
+		}
+
+		keys[entry] = key;
+		values[entry] = value;
+		setExtra(entry, extra);
+		hashes[entry] = hash;
+		segments[entry] = segment;
+		linkNewest(entry);
+		index(entry);
+		size++;
+		modCount++;
+	}
+
+	private void setExtra(int entry, int[] extra) {
+		if (extra == null) {
+			Arrays.fill(extras, entry * extraWidth, (entry + 1) * extraWidth, 0);
+		} else {
+			System.arraycopy(extra, 0, extras, entry * extraWidth, extraWidth);
+		}
+	}
+
+	private void removeEntry(int entry) {
+		unindex(entry);
+		unlink(entry);
+		free(entry);
+	}
+
+	/**
+	 * Add an entry to the index.
+	 */
+	private void index(int entry) {
+		int slot = hashes[entry] & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = entry + 1;
+	}
+
+	/**
+	 * Remove an entry from the index.
+	 */
+	private void unindex(int entry) {
+		// Find the index slot and close the gap by shifting back the
+		// following entries that probed past it.
+		int slot = hashes[entry] & mask;
+		while (index[slot] != entry + 1) {
+			slot = (slot + 1) & mask;
+		}
+		int gap = slot;
+		for (int i = (gap + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+			int home = hashes[index[i] - 1] & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				index[gap] = index[i];
+				gap = i;
+			}
+		}
+		index[gap] = 0;
+	}
+
+	/**
+	 * Put an unlinked entry on the free list.
+	 */
+	private void free(int entry) {
+		keys[entry] = null;
+		after[entry] = freeList;
+		freeList = entry;
+		size--;
+		modCount++;
+	}
+
+	private void linkNewest(int entry) {
+		byte segment = segments[entry];
+		before[entry] = newest[segment];
+		after[entry] = NONE;
+		if (newest[segment] == NONE) {
+			eldest[segment] = entry;
+		} else {
+			after[newest[segment]] = entry;
+		}
+		newest[segment] = entry;
+		segmentSize[segment]++;
+	}
+
+	private void unlink(int entry) {
+		byte segment = segments[entry];
+		if (before[entry] == NONE) {
+			eldest[segment] = after[entry];
+		} else {
+			after[before[entry]] = after[entry];
+		}
+		if (after[entry] == NONE) {
+			newest[segment] = before[entry];
+		} else {
+			before[after[entry]] = before[entry];
+		}
+		segmentSize[segment]--;
+	}
+
+	private void moveToNewest(int entry) {
+		if (entry != newest[segments[entry]]) {
+			unlink(entry);
+			linkNewest(entry);
+			modCount++;
+		}
+	}
+
+	private void moveToSegment(int entry, byte segment) {
+		unlink(entry);
+		segments[entry] = segment;
+		linkNewest(entry);
+		modCount++;
+	}
+
+	/**
+	 * Get the first entry in iteration order.
+	 */
+	private int first() {
+		return eldest[MAIN] != NONE ? eldest[MAIN] : eldest[WINDOW];
+	}
+
+	/**
+	 * Get the entry after another in iteration order.
+	 */
+	private int following(int entry) {
+		int next = after[entry];
+		if (next == NONE && segments[entry] == MAIN) {
+			next = eldest[WINDOW];
+		}
+		return next;
+	}
+
+	private void allocate(int entries) {
+		keys = new String[entries];
+		values = new int[entries];
+		extras = new int[entries * extraWidth];
+		hashes = new int[entries];
+		before = new int[entries];
+		after = new int[entries];
+		segments = new byte[entries];
+		int slots = Integer.highestOneBit(Math.max(2,
+				(int) Math.ceil(entries / loadFactor)) - 1) << 1;
+		index = new int[slots];
+		mask = slots - 1;
+	}
+
+	/**
+	 * Grow the entry arrays, at most to the capacity, and rebuild the index.
+	 */
+	private void grow() {
+		resize((int) Math.min(keys.length * 2L, capacity));
+	}
+
+	/**
+	 * Resize the entry arrays and rebuild the index.
+	 */
+	private void resize(int entries) {
+		keys = Arrays.copyOf(keys, entries);
+		values = Arrays.copyOf(values, entries);
+		extras = Arrays.copyOf(extras, entries * extraWidth);
+		hashes = Arrays.copyOf(hashes, entries);
+		before = Arrays.copyOf(before, entries);
+		after = Arrays.copyOf(after, entries);
+		segments = Arrays.copyOf(segments, entries);
+
+		int slots = Integer.highestOneBit(Math.max(2,
+				(int) Math.ceil(entries / loadFactor)) - 1) << 1;
+		index = new int[slots];
+		mask = slots - 1;
+		for (int entry = first(); entry != NONE; entry = following(entry)) {
+			index(entry);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package oss.restore.file.position.collection;
+
+/**
+ * Evicts the entry that was inserted first, regardless of how it has been used
+ * since. This is the behavior of a plain {@link CachedMap}.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class FifoEvictionPolicy implements IEvictionPolicy {
+
+	@Override
+	public boolean isAccessOrder() {
+		return false;
+	}
+
+	@Override
+	public int getWindowSize(int capacity) {
+		return 0;
+	}
+
+	@Override
+	public void recordAccess(int keyHash) {
+	}
+
+	@Override
+	public boolean admit(int candidateHash, int victimHash) {
+		return true;
+	}
+}
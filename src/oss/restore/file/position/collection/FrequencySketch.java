@@ -0,0 +1,81 @@
+package oss.restore.file.position.collection;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often a key has been
+ * used. Every counter is halved after a sample of accesses ten times the
+ * capacity, so old popularity fades.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	// Each long holds sixteen 4-bit counters.
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * Constructs a sketch.
+	 *
+	 * @param capacity
+	 *            The expected number of distinct keys in the map.
+	 */
+	FrequencySketch(int capacity) {
+		int size = Integer.highestOneBit(Math.max(8, capacity) - 1) << 1;
+		table = new long[size];
+		mask = size - 1;
+		sampleSize = (int) Math.min(10L * Math.max(capacity, 1),
+				Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get the estimated number of accesses of a key, at most 15.
+	 *
+	 * @param hash
+	 *            The hash of the key.
+	 * @return The estimated frequency.
+	 */
+	int frequency(int hash) {
+		int frequency = 15;
+		for (int row = 0; row < SEEDS.length; row++) {
+			long h = spread(hash, row);
+			int shift = ((int) h & 15) << 2;
+			int count = (int) ((table[(int) (h >>> 32) & mask] >>> shift) & 15);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Record an access of a key.
+	 *
+	 * @param hash
+	 *            The hash of the key.
+	 */
+	void increment(int hash) {
+		for (int row = 0; row < SEEDS.length; row++) {
+			long h = spread(hash, row);
+			int shift = ((int) h & 15) << 2;
+			int slot = (int) (h >>> 32) & mask;
+			if (((table[slot] >>> shift) & 15) < 15) {
+				table[slot] += 1L << shift;
+			}
+		}
+		if (++additions >= sampleSize) {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions /= 2;
+		}
+	}
+
+	private static long spread(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,53 @@
+package oss.restore.file.position.collection;
+
+/**
+ * Decides which entries a {@link CachedIntMap} keeps when its capacity is
+ * reached.
+ *
+ * The map keeps its entries in a main list and, if the policy asks for one, a
+ * small admission window in front of it. New entries enter the window, or the
+ * main list if there is no window, and the eldest entry of the main list is
+ * the eviction victim. Whenever an entry has to be evicted to make room for a
+ * candidate, the policy may refuse to admit the candidate, in which case the
+ * candidate is evicted instead of the victim.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface IEvictionPolicy {
+
+	/**
+	 * Check if an access moves an entry to the newest position of its list,
+	 * rather than keeping the insertion order.
+	 *
+	 * @return True for access-order, false for insertion-order.
+	 */
+	public abstract boolean isAccessOrder();
+
+	/**
+	 * Get the size of the admission window for a capacity.
+	 *
+	 * @param capacity
+	 *            The capacity of the map.
+	 * @return The window size, 0 for no window.
+	 */
+	public abstract int getWindowSize(int capacity);
+
+	/**
+	 * Record that a key was looked up or set.
+	 *
+	 * @param keyHash
+	 *            The hash of the key.
+	 */
+	public abstract void recordAccess(int keyHash);
+
+	/**
+	 * Decide whether a candidate should be kept at the expense of the victim.
+	 *
+	 * @param candidateHash
+	 *            The hash of the candidate key.
+	 * @param victimHash
+	 *            The hash of the victim key.
+	 * @return True to evict the victim, false to evict the candidate.
+	 */
+	public abstract boolean admit(int candidateHash, int victimHash);
+}
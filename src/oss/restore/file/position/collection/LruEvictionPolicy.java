@@ -0,0 +1,28 @@
+package oss.restore.file.position.collection;
+
+/**
+ * Evicts the entry that was least recently looked up or set.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class LruEvictionPolicy implements IEvictionPolicy {
+
+	@Override
+	public boolean isAccessOrder() {
+		return true;
+	}
+
+	@Override
+	public int getWindowSize(int capacity) {
+		return 0;
+	}
+
+	@Override
+	public void recordAccess(int keyHash) {
+	}
+
+	@Override
+	public boolean admit(int candidateHash, int victimHash) {
+		return true;
+	}
+}
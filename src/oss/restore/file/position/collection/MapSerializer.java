@@ -10,6 +10,9 @@ import java.util.Map;
  * Map serializer which expects to get a map containing String keys and values
  * as Integers.
  * 
+ * This querystring format is only read to migrate positions stored by earlier
+ * versions, see {@link BinaryMapSerializer} for the format in use.
+ * 
  * @author Nicklas Gummesson
  */
 public class MapSerializer {
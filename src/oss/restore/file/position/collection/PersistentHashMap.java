@@ -0,0 +1,466 @@
+package oss.restore.file.position.collection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash map where adding or removing a key returns a new map that
+ * shares all but the changed path with the old one, a hash array mapped trie.
+ * Each level of the trie takes 5 bits of the hash and only holds the slots in
+ * use, so a change copies a handful of small arrays, and any map can be kept
+ * as a snapshot at no cost and read by any thread while newer maps are made.
+ *
+ * Keys with equal hashes share a collision node. Iteration order is the hash
+ * order of the keys.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class PersistentHashMap<K, V> implements
+		Iterable<Map.Entry<K, V>> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final PersistentHashMap<Object, Object> EMPTY = new PersistentHashMap<Object, Object>(
+			new BitmapNode(0, new Object[0]), 0);
+
+	private final BitmapNode root;
+	private final int size;
+
+	private PersistentHashMap(BitmapNode root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Get the empty map.
+	 *
+	 * @return The empty map.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return (PersistentHashMap<K, V>) EMPTY;
+	}
+
+	/**
+	 * Get the count of keys.
+	 *
+	 * @return The size.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check if the map has no keys.
+	 *
+	 * @return True if empty.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the value of a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value or null if the key is not mapped.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Leaf leaf = root.find(key, key.hashCode(), 0);
+		return leaf == null ? null : (V) leaf.value;
+	}
+
+	/**
+	 * Check if a key is mapped.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return True if mapped.
+	 */
+	public boolean containsKey(Object key) {
+		return root.find(key, key.hashCode(), 0) != null;
+	}
+
+	/**
+	 * Get a map where a key is mapped to a value.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 * @return The new map, or this map if the key is already mapped to the
+	 *         value.
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		boolean[] added = new boolean[1];
+		BitmapNode newRoot = (BitmapNode) root.plus(new Leaf(key, value, key
+				.hashCode()), 0, added);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * Get a map without a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The new map, or this map if the key is not mapped.
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		Object newRoot = root.minus(key, key.hashCode(), 0);
+		if (newRoot == root) {
+			return this;
+		}
+		if (newRoot == null) {
+			return empty();
+		}
+		if (newRoot instanceof Leaf) {
+			Leaf leaf = (Leaf) newRoot;
+			newRoot = new BitmapNode(bit(leaf.hash, 0), new Object[] { leaf });
+		}
+		return new PersistentHashMap<K, V>((BitmapNode) newRoot, size - 1);
+	}
+
+	/**
+	 * Iterate over the entries. The entries can not be changed.
+	 */
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(root);
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	/**
+	 * A key and its value.
+	 */
+	private static final class Leaf implements Map.Entry<Object, Object> {
+		final Object key;
+		final Object value;
+		final int hash;
+
+		Leaf(Object key, Object value, int hash) {
+			this.key = key;
+			this.value = value;
+			this.hash = hash;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * A node of the trie, holding leaves and child nodes.
+	 */
+	private abstract static class Node {
+		final Object[] children;
+
+		Node(Object[] children) {
+			this.children = children;
+		}
+
+		/**
+		 * Find the leaf of a key below this node.
+		 */
+		abstract Leaf find(Object key, int hash, int shift);
+
+		/**
+		 * Get a node with a leaf added or replaced, or this node if the leaf
+		 * is already there.
+		 */
+		abstract Node plus(Leaf leaf, int shift, boolean[] added);
+
+		/**
+		 * Get a node without a key, this node if the key is not there, a
+		 * leaf if only one is left or null if none is.
+		 */
+		abstract Object minus(Object key, int hash, int shift);
+	}
+
+	/**
+	 * A node with a slot per 5 bits of the hash at its level, holding only
+	 * the slots in use as marked by its bitmap.
+	 */
+	private static final class BitmapNode extends Node {
+		final int bitmap;
+
+		BitmapNode(int bitmap, Object[] children) {
+			super(children);
+			this.bitmap = bitmap;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		@Override
+		Leaf find(Object key, int hash, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			Object child = children[index(bit)];
+			if (child instanceof Leaf) {
+				Leaf leaf = (Leaf) child;
+				return leaf.hash == hash && leaf.key.equals(key) ? leaf : null;
+			}
+			return ((Node) child).find(key, hash, shift + BITS);
+		}
+
+		@Override
+		Node plus(Leaf leaf, int shift, boolean[] added) {
+			int bit = bit(leaf.hash, shift);
+			int index = index(bit);
+			if ((bitmap & bit) == 0) {
+				Object[] newChildren = new Object[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, index);
+				newChildren[index] = leaf;
+				System.arraycopy(children, index, newChildren, index + 1,
+						children.length - index);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, newChildren);
+			}
+
+			Object child = children[index];
+			Object newChild;
+			if (child instanceof Leaf) {
+				Leaf existing = (Leaf) child;
+				if (existing.hash == leaf.hash && existing.key.equals(leaf.key)) {
+					if (existing.value == leaf.value) {
+						return this;
+					}
+					newChild = leaf;
+				} else {
+					added[0] = true;
+					newChild = merge(existing, leaf, shift + BITS);
+				}
+			} else {
+				newChild = ((Node) child).plus(leaf, shift + BITS, added);
+				if (newChild == child) {
+					return this;
+				}
+			}
+			Object[] newChildren = children.clone();
+			newChildren[index] = newChild;
+			return new BitmapNode(bitmap, newChildren);
+		}
+
+		@Override
+		Object minus(Object key, int hash, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int index = index(bit);
+			Object child = children[index];
+			Object newChild;
+			if (child instanceof Leaf) {
+				Leaf leaf = (Leaf) child;
+				if (leaf.hash != hash || !leaf.key.equals(key)) {
+					return this;
+				}
+				newChild = null;
+			} else {
+				newChild = ((Node) child).minus(key, hash, shift + BITS);
+				if (newChild == child) {
+					return this;
+				}
+			}
+
+			if (newChild instanceof Leaf && children.length == 1) {
+				return newChild;
+			}
+			if (newChild != null) {
+				Object[] newChildren = children.clone();
+				newChildren[index] = newChild;
+				return new BitmapNode(bitmap, newChildren);
+			}
+			if (children.length == 1) {
+				return null;
+			}
+			if (children.length == 2 && children[1 - index] instanceof Leaf) {
+				// The last leaf moves up into the parent.
+				return children[1 - index];
+			}
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(children, index + 1, newChildren, index,
+					children.length - index - 1);
+			return new BitmapNode(bitmap & ~bit, newChildren);
+		}
+
+		/**
+		 * Make a node of two leaves with different keys that share a slot.
+		 */
+		private static Node merge(Leaf first, Leaf second, int shift) {
+			if (first.hash == second.hash) {
+				return new CollisionNode(first.hash, new Object[] { first,
+						second });
+			}
+			int firstBit = bit(first.hash, shift);
+			int secondBit = bit(second.hash, shift);
+			if (firstBit == secondBit) {
+				return new BitmapNode(firstBit, new Object[] { merge(first,
+						second, shift + BITS) });
+			}
+			boolean firstSlotLower = ((first.hash >>> shift) & MASK) < ((second.hash >>> shift) & MASK);
+			return new BitmapNode(firstBit | secondBit,
+					firstSlotLower ? new Object[] { first, second }
+							: new Object[] { second, first });
+		}
+	}
+
+	/**
+	 * A node of the leaves whose keys have the same hash.
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(int hash, Object[] children) {
+			super(children);
+			this.hash = hash;
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < children.length; i++) {
+				if (((Leaf) children[i]).key.equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		Leaf find(Object key, int hash, int shift) {
+			if (hash != this.hash) {
+				return null;
+			}
+			int index = indexOf(key);
+			return index < 0 ? null : (Leaf) children[index];
+		}
+
+		@Override
+		Node plus(Leaf leaf, int shift, boolean[] added) {
+			if (leaf.hash != hash) {
+				// Split on the bits where the hashes differ.
+				return new BitmapNode(bit(hash, shift), new Object[] { this })
+						.plus(leaf, shift, added);
+			}
+			int index = indexOf(leaf.key);
+			Object[] newChildren;
+			if (index < 0) {
+				newChildren = new Object[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, children.length);
+				newChildren[children.length] = leaf;
+				added[0] = true;
+			} else {
+				if (((Leaf) children[index]).value == leaf.value) {
+					return this;
+				}
+				newChildren = children.clone();
+				newChildren[index] = leaf;
+			}
+			return new CollisionNode(hash, newChildren);
+		}
+
+		@Override
+		Object minus(Object key, int hash, int shift) {
+			int index = hash == this.hash ? indexOf(key) : -1;
+			if (index < 0) {
+				return this;
+			}
+			if (children.length == 2) {
+				return children[1 - index];
+			}
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(children, index + 1, newChildren, index,
+					children.length - index - 1);
+			return new CollisionNode(hash, newChildren);
+		}
+	}
+
+	/**
+	 * Walks the trie depth first.
+	 */
+	private static final class EntryIterator<K, V> implements
+			Iterator<Map.Entry<K, V>> {
+		private final List<Object[]> arrays = new ArrayList<Object[]>();
+		private int[] indexes = new int[8];
+		private Leaf next;
+
+		EntryIterator(Node root) {
+			push(root.children);
+			advance();
+		}
+
+		private void push(Object[] children) {
+			if (arrays.size() == indexes.length) {
+				int[] newIndexes = new int[indexes.length * 2];
+				System.arraycopy(indexes, 0, newIndexes, 0, indexes.length);
+				indexes = newIndexes;
+			}
+			indexes[arrays.size()] = 0;
+			arrays.add(children);
+		}
+
+		private void advance() {
+			next = null;
+			while (!arrays.isEmpty()) {
+				int depth = arrays.size() - 1;
+				Object[] children = arrays.get(depth);
+				if (indexes[depth] == children.length) {
+					arrays.remove(depth);
+					continue;
+				}
+				Object child = children[indexes[depth]++];
+				if (child instanceof Leaf) {
+					next = (Leaf) child;
+					return;
+				}
+				push(((Node) child).children);
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Map.Entry<K, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = (Map.Entry<K, V>) (Map.Entry<?, ?>) next;
+			advance();
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
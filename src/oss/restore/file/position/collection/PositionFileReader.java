@@ -0,0 +1,112 @@
+package oss.restore.file.position.collection;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a position file written by a {@link PositionFileWriter} one entry at
+ * a time, keeping only the current entry in memory.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionFileReader {
+
+	private final InputStream in;
+	private byte[] keyBytes = new byte[256];
+	private int keyLength;
+	private String key;
+	private ViewportSnapshot viewport;
+	private boolean ended;
+
+	/**
+	 * Constructs a position file reader and reads the header.
+	 *
+	 * @param in
+	 *            The stream to read from, preferably buffered.
+	 * @throws IOException
+	 *             If the stream could not be read or is not a position file.
+	 */
+	public PositionFileReader(InputStream in) throws IOException {
+		this.in = in;
+		for (int i = 0; i < PositionFileWriter.MAGIC.length; i++) {
+			if (in.read() != PositionFileWriter.MAGIC[i]) {
+				throw new IOException("Not a position file");
+			}
+		}
+		int version = in.read();
+		if (version != PositionFileWriter.FORMAT_VERSION) {
+			throw new IOException("Unsupported position file version "
+					+ version);
+		}
+	}
+
+	/**
+	 * Read the next entry.
+	 *
+	 * @return False at the end of the file.
+	 * @throws IOException
+	 *             If the stream could not be read, ends before the end of the
+	 *             file or is out of order.
+	 */
+	public boolean next() throws IOException {
+		if (ended) {
+			return false;
+		}
+		int length = VarInt.read(in) - 1;
+		if (length < 0) {
+			ended = true;
+			key = null;
+			viewport = null;
+			return false;
+		}
+		int shared = VarInt.read(in);
+		if (shared > keyLength) {
+			throw new IOException("Corrupt position file key");
+		}
+		if (keyBytes.length < shared + length) {
+			byte[] bytes = new byte[Math.max(2 * keyBytes.length, shared
+					+ length)];
+			System.arraycopy(keyBytes, 0, bytes, 0, shared);
+			keyBytes = bytes;
+		}
+		BinaryMapSerializer.readFully(in, keyBytes, shared, length);
+		keyLength = shared + length;
+		String previousKey = key;
+		key = new String(keyBytes, 0, keyLength, PositionFileWriter.UTF8);
+		if (previousKey != null && previousKey.compareTo(key) >= 0) {
+			throw new IOException("Position file is not sorted at " + key);
+		}
+		viewport = BinaryMapSerializer.readViewport(in,
+				PositionFileWriter.VIEWPORT_VERSION);
+		return true;
+	}
+
+	/**
+	 * Get the key of the current entry.
+	 *
+	 * @return The key, or null before the first and after the last entry.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Get the viewport snapshot of the current entry.
+	 *
+	 * @return The snapshot, or null before the first and after the last
+	 *         entry.
+	 */
+	public ViewportSnapshot getViewport() {
+		return viewport;
+	}
+
+	/**
+	 * Close the underlying stream.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be closed.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
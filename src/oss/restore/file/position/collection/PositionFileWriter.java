@@ -0,0 +1,105 @@
+package oss.restore.file.position.collection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a position file: viewport snapshots sorted by their keys, so two
+ * position files can be merged by streaming through both, see
+ * {@link PositionFileReader}.
+ *
+ * The layout is:
+ *
+ * <pre>
+ * magic      'R' 'F' 'P' 'X'
+ * version    1 byte
+ * entries    (suffixLength + 1 varint, sharedPrefix varint, suffix bytes, viewport)
+ * end        0 varint
+ * </pre>
+ *
+ * Each key is prefix-compressed against the previous one and the viewport
+ * snapshot, including its modified time, is written as in a
+ * {@link BinaryMapSerializer} map. The keys must be written in ascending
+ * {@link String#compareTo(String)} order.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionFileWriter {
+
+	static final byte[] MAGIC = { 'R', 'F', 'P', 'X' };
+	static final int FORMAT_VERSION = 1;
+	// The BinaryMapSerializer version the viewports are written in.
+	static final int VIEWPORT_VERSION = 4;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream out;
+	private String previousKey;
+	private byte[] previousBytes = new byte[0];
+	private long count;
+
+	/**
+	 * Constructs a position file writer and writes the header.
+	 *
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 * @throws IOException
+	 *             If the header could not be written.
+	 */
+	public PositionFileWriter(OutputStream out) throws IOException {
+		this.out = out;
+		out.write(MAGIC);
+		out.write(FORMAT_VERSION);
+	}
+
+	/**
+	 * Write an entry.
+	 *
+	 * @param key
+	 *            The key, after the key of the previous entry.
+	 * @param viewport
+	 *            The viewport snapshot.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public void write(String key, ViewportSnapshot viewport)
+			throws IOException {
+		if (previousKey != null && previousKey.compareTo(key) >= 0) {
+			throw new IllegalArgumentException("Key " + key
+					+ " is not after " + previousKey);
+		}
+		byte[] bytes = key.getBytes(UTF8);
+		int shared = BinaryMapSerializer.sharedPrefixLength(previousBytes,
+				bytes);
+		VarInt.write(out, bytes.length - shared + 1);
+		VarInt.write(out, shared);
+		out.write(bytes, shared, bytes.length - shared);
+		BinaryMapSerializer.writeViewport(out, viewport);
+		previousKey = key;
+		previousBytes = bytes;
+		count++;
+	}
+
+	/**
+	 * Get the count of entries written.
+	 *
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Write the end of the file and close the underlying stream.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be written or closed.
+	 */
+	public void close() throws IOException {
+		try {
+			VarInt.write(out, 0);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package oss.restore.file.position.collection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last few distinct positions of each file, e.g. the three or four places
+ * of a big file the caret jumps between, so they can be cycled through once
+ * the file is opened again.
+ *
+ * Each file keeps a ring of at most a fixed count of positions, newest first.
+ * A ring is a single int array of offset and line pairs, allocated for one
+ * position and doubled as it fills up, so files visited once cost a few bytes.
+ * Once full, the oldest position is overwritten.
+ *
+ * A position within a number of lines of one already in the ring is the same
+ * place and replaces it where it is, without moving it to the front, so
+ * cycling through the ring, which moves the caret to those positions, does not
+ * reorder it.
+ *
+ * The positions allocated by all rings are kept within a total budget. When it
+ * is exceeded the histories of the files recorded or cycled through least
+ * recently are dropped as a whole.
+ *
+ * Histories are kept by path, so they follow their files when moved with
+ * {@link #rekey(CachedIntMap.IKeyMapper)}. This is done off the UI thread,
+ * where positions are recorded, so the methods are synchronized.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionHistory {
+
+	/**
+	 * The positions of one file, as offset and line pairs in ring order.
+	 */
+	private static final class Ring {
+		int[] entries = new int[2];
+		// The slot of the newest position.
+		int head;
+		int count;
+
+		int capacity() {
+			return entries.length >> 1;
+		}
+
+		/**
+		 * Get the slot of a position, 0 being the newest.
+		 */
+		int slot(int index) {
+			int slot = head - index;
+			return slot < 0 ? slot + capacity() : slot;
+		}
+	}
+
+	private static final byte[] MAGIC = { 'R', 'F', 'H' };
+
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int positionsPerFile;
+	private final int maxPositions;
+	private final int distinctLines;
+
+	// In access order, so the least recently used history goes first.
+	private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<String, Ring>(
+			16, 0.75f, true);
+	private int allocatedPositions;
+	private long evictionCount;
+
+	/**
+	 * Constructs a position history.
+	 *
+	 * @param positionsPerFile
+	 *            How many positions each file keeps.
+	 * @param maxPositions
+	 *            How many positions all files keep together, at least
+	 *            positionsPerFile.
+	 * @param distinctLines
+	 *            How many lines apart two positions have to be to be kept
+	 *            both.
+	 */
+	public PositionHistory(int positionsPerFile, int maxPositions,
+			int distinctLines) {
+		if (positionsPerFile <= 0 || maxPositions < positionsPerFile
+				|| distinctLines <= 0) {
+			throw new IllegalArgumentException("Illegal history size: "
+					+ positionsPerFile + " per file, " + maxPositions
+					+ " in total, " + distinctLines + " lines apart");
+		}
+		this.positionsPerFile = positionsPerFile;
+		this.maxPositions = maxPositions;
+		this.distinctLines = distinctLines;
+	}
+
+	/**
+	 * Get how many positions each file keeps.
+	 *
+	 * @return The count.
+	 */
+	public int getPositionsPerFile() {
+		return positionsPerFile;
+	}
+
+	/**
+	 * Get how many positions all files keep together.
+	 *
+	 * @return The count.
+	 */
+	public int getMaxPositions() {
+		return maxPositions;
+	}
+
+	/**
+	 * Get the count of files with a history.
+	 *
+	 * @return The count.
+	 */
+	public synchronized int getFileCount() {
+		return rings.size();
+	}
+
+	/**
+	 * Get the count of positions allocated by the rings of all files, which is
+	 * kept within {@link #getMaxPositions()}.
+	 *
+	 * @return The count.
+	 */
+	public synchronized int getAllocatedPositions() {
+		return allocatedPositions;
+	}
+
+	/**
+	 * Get the count of file histories dropped to stay within the budget.
+	 *
+	 * @return The eviction count.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Record a position of a file. Replaces a position within the distinct
+	 * line count of it, otherwise it becomes the newest position of the file.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @param offset
+	 *            The offset of the position.
+	 * @param line
+	 *            The line of the offset.
+	 */
+	public synchronized void record(String filePathUri, int offset, int line) {
+		Ring ring = rings.get(filePathUri);
+		if (ring == null) {
+			ring = new Ring();
+			rings.put(filePathUri, ring);
+			allocatedPositions++;
+		} else {
+			int index = indexNear(ring, line);
+			if (index >= 0) {
+				int slot = ring.slot(index) << 1;
+				ring.entries[slot] = offset;
+				ring.entries[slot + 1] = line;
+				return;
+			}
+			if (ring.count == ring.capacity()
+					&& ring.capacity() < positionsPerFile) {
+				grow(ring);
+			}
+		}
+
+		ring.head = ring.count == 0 ? 0 : (ring.head + 1) % ring.capacity();
+		ring.entries[ring.head << 1] = offset;
+		ring.entries[(ring.head << 1) + 1] = line;
+		if (ring.count < ring.capacity()) {
+			ring.count++;
+		}
+		evictIfNeeded(filePathUri);
+	}
+
+	/**
+	 * Get the offsets of the positions of a file.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @return The offsets, newest first, or an empty array if there are none.
+	 */
+	public synchronized int[] getOffsets(String filePathUri) {
+		Ring ring = rings.get(filePathUri);
+		if (ring == null) {
+			return new int[0];
+		}
+		int[] offsets = new int[ring.count];
+		for (int i = 0; i < ring.count; i++) {
+			offsets[i] = ring.entries[ring.slot(i) << 1];
+		}
+		return offsets;
+	}
+
+	/**
+	 * Get the offset of the position to cycle to from the caret of a file.
+	 * From a recorded position this is the next older one, or the next newer
+	 * one, wrapping around at the ends. From elsewhere it is the newest, or
+	 * the oldest, position.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @param line
+	 *            The line of the caret.
+	 * @param older
+	 *            Whether to cycle to older positions rather than newer.
+	 * @return The offset, or -1 if there is no other position to cycle to.
+	 */
+	public synchronized int cycle(String filePathUri, int line, boolean older) {
+		Ring ring = rings.get(filePathUri);
+		if (ring == null) {
+			return -1;
+		}
+		int index = indexNear(ring, line);
+		if (index >= 0 && ring.count == 1) {
+			return -1;
+		}
+		int next;
+		if (index < 0) {
+			next = older ? 0 : ring.count - 1;
+		} else if (older) {
+			next = index + 1 == ring.count ? 0 : index + 1;
+		} else {
+			next = index == 0 ? ring.count - 1 : index - 1;
+		}
+		return ring.entries[ring.slot(next) << 1];
+	}
+
+	/**
+	 * Remove the history of a file.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 */
+	public synchronized void remove(String filePathUri) {
+		Ring ring = rings.remove(filePathUri);
+		if (ring != null) {
+			allocatedPositions -= ring.capacity();
+		}
+	}
+
+	/**
+	 * Move the histories of files to new paths, or remove them, keeping their
+	 * order. A history moved to the path of another replaces it.
+	 *
+	 * @param mapper
+	 *            Maps each path to its new path, the same path to keep it, or
+	 *            null to remove it.
+	 * @return The count of histories moved or removed.
+	 */
+	public synchronized int rekey(CachedIntMap.IKeyMapper mapper) {
+		String[] paths = rings.keySet().toArray(new String[rings.size()]);
+		String[] newPaths = new String[paths.length];
+		int changed = 0;
+		for (int i = 0; i < paths.length; i++) {
+			newPaths[i] = mapper.map(paths[i]);
+			if (!paths[i].equals(newPaths[i])) {
+				changed++;
+			}
+		}
+		if (changed == 0) {
+			return 0;
+		}
+
+		Ring[] values = rings.values().toArray(new Ring[paths.length]);
+		rings.clear();
+		for (int i = 0; i < paths.length; i++) {
+			Ring replaced = null;
+			if (newPaths[i] != null) {
+				replaced = rings.put(newPaths[i], values[i]);
+			} else {
+				replaced = values[i];
+			}
+			if (replaced != null) {
+				allocatedPositions -= replaced.capacity();
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Write the histories, least recently used first, to a stream.
+	 *
+	 * <pre>
+	 * magic     'R' 'F' 'H'
+	 * version   1 byte
+	 * fileCount varint
+	 * files     fileCount x (keyLength varint, key bytes, count varint,
+	 *                        count x (offset varint, line varint), oldest first)
+	 * </pre>
+	 *
+	 * @param out
+	 *            The stream, preferably buffered and not closed.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public synchronized void writeTo(OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		VarInt.write(out, rings.size());
+		for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+			byte[] key = entry.getKey().getBytes(UTF8);
+			VarInt.write(out, key.length);
+			out.write(key);
+			Ring ring = entry.getValue();
+			VarInt.write(out, ring.count);
+			for (int i = ring.count - 1; i >= 0; i--) {
+				int slot = ring.slot(i) << 1;
+				VarInt.write(out, ring.entries[slot]);
+				VarInt.write(out, ring.entries[slot + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Read the histories written by {@link #writeTo(OutputStream)} into this
+	 * history, as if recorded in the same order. The limits of this history
+	 * apply, so positions beyond them are dropped.
+	 *
+	 * @param in
+	 *            The stream, preferably buffered and not closed.
+	 * @throws IOException
+	 *             If the stream could not be read or does not hold histories.
+	 */
+	public synchronized void readFrom(InputStream in) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.read() != MAGIC[i]) {
+				throw new IOException("Not a position history");
+			}
+		}
+		int version = in.read();
+		if (version != VERSION) {
+			throw new IOException("Unsupported history version " + version);
+		}
+		int fileCount = VarInt.read(in);
+		for (int i = 0; i < fileCount; i++) {
+			int length = VarInt.read(in);
+			if (length < 0) {
+				throw new IOException("Corrupt history " + i);
+			}
+			byte[] key = new byte[length];
+			BinaryMapSerializer.readFully(in, key, 0, length);
+			String filePathUri = new String(key, UTF8);
+			int count = VarInt.read(in);
+			for (int j = 0; j < count; j++) {
+				int offset = VarInt.read(in);
+				record(filePathUri, offset, VarInt.read(in));
+			}
+		}
+	}
+
+	/**
+	 * Find the position within the distinct line count of a line, the nearest
+	 * if several are.
+	 *
+	 * @return The index of the position, 0 being the newest, or -1 if none is
+	 *         near.
+	 */
+	private int indexNear(Ring ring, int line) {
+		int nearest = -1;
+		int nearestDistance = distinctLines;
+		for (int i = 0; i < ring.count; i++) {
+			int distance = Math.abs(ring.entries[(ring.slot(i) << 1) + 1]
+					- line);
+			if (distance < nearestDistance) {
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Double the capacity of a full ring, up to the positions per file,
+	 * putting its oldest position first.
+	 */
+	private void grow(Ring ring) {
+		int capacity = Math.min(ring.capacity() << 1, positionsPerFile);
+		int[] entries = new int[capacity << 1];
+		for (int i = 0; i < ring.count; i++) {
+			int slot = ring.slot(ring.count - 1 - i) << 1;
+			entries[i << 1] = ring.entries[slot];
+			entries[(i << 1) + 1] = ring.entries[slot + 1];
+		}
+		allocatedPositions += capacity - ring.capacity();
+		ring.entries = entries;
+		ring.head = ring.count - 1;
+	}
+
+	/**
+	 * Drop the least recently used histories, other than the one of a file,
+	 * while more positions than the budget are allocated.
+	 */
+	private void evictIfNeeded(String filePathUri) {
+		Iterator<Map.Entry<String, Ring>> iterator = rings.entrySet()
+				.iterator();
+		while (allocatedPositions > maxPositions && iterator.hasNext()) {
+			Map.Entry<String, Ring> entry = iterator.next();
+			if (!entry.getKey().equals(filePathUri)) {
+				allocatedPositions -= entry.getValue().capacity();
+				iterator.remove();
+				evictionCount++;
+			}
+		}
+	}
+}
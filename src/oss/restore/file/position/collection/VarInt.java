@@ -0,0 +1,132 @@
+package oss.restore.file.position.collection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes unsigned variable length integers, 7 bits per byte with the
+ * high bit set on every byte except the last one. Small values, such as most
+ * offsets and lengths, only take one or two bytes.
+ *
+ * @author Nicklas Gummesson
+ */
+public class VarInt {
+
+	/**
+	 * The maximum number of bytes a single encoded int can take.
+	 */
+	public static final int MAX_BYTES = 5;
+
+	/**
+	 * The maximum number of bytes a single encoded long can take.
+	 */
+	public static final int MAX_LONG_BYTES = 10;
+
+	/**
+	 * Write a value as a variable length integer. Negative values are treated
+	 * as unsigned and therefore always take {@link #MAX_BYTES} bytes.
+	 *
+	 * @param out
+	 *            The stream to write to.
+	 * @param value
+	 *            The value to write.
+	 * @throws IOException
+	 *             If the underlying stream fails.
+	 */
+	public static void write(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Read a variable length integer.
+	 *
+	 * @param in
+	 *            The stream to read from.
+	 * @return The value.
+	 * @throws IOException
+	 *             If the stream ends in the middle of a value or the value is
+	 *             longer than {@link #MAX_BYTES} bytes.
+	 */
+	public static int read(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 7 * MAX_BYTES; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Unexpected end of varint");
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Write a long value as a variable length integer, e.g. a time in
+	 * milliseconds, which takes six bytes. Negative values are treated as
+	 * unsigned and therefore always take {@link #MAX_LONG_BYTES} bytes.
+	 *
+	 * @param out
+	 *            The stream to write to.
+	 * @param value
+	 *            The value to write.
+	 * @throws IOException
+	 *             If the underlying stream fails.
+	 */
+	public static void writeLong(OutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Read a long variable length integer.
+	 *
+	 * @param in
+	 *            The stream to read from.
+	 * @return The value.
+	 * @throws IOException
+	 *             If the stream ends in the middle of a value or the value is
+	 *             longer than {@link #MAX_LONG_BYTES} bytes.
+	 */
+	public static long readLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 7 * MAX_LONG_BYTES; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Unexpected end of varint");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Get the number of bytes a value takes when encoded.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return The encoded size in bytes.
+	 */
+	public static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,307 @@
+package oss.restore.file.position.collection;
+
+/**
+ * What an editor showed when it was closed: the caret offset, the length of
+ * the selection starting at it, the document line at the top of the viewport
+ * and, if known, an anchor describing the text around the caret so the
+ * position can be found again after the file was edited elsewhere, and when
+ * it was stored, so the latest of two snapshots of a file wins when position
+ * histories are merged.
+ *
+ * The anchor is a fingerprint of the lines around the caret line together
+ * with the caret line and column, see
+ * {@link oss.restore.file.position.text.LineAnchor}.
+ *
+ * Maps and storages keep the caret offset as their int value and the rest as
+ * an extra of {@link #EXTRA_WIDTH} ints, see {@link #writeExtra(int[])}, so a
+ * snapshot is only allocated when it is handed out.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class ViewportSnapshot {
+
+	/**
+	 * The top line of a snapshot whose viewport is not known, e.g. one
+	 * migrated from a storage holding caret offsets only.
+	 */
+	public static final int UNKNOWN_TOP_LINE = -1;
+
+	/**
+	 * The anchor line of a snapshot without an anchor.
+	 */
+	public static final int NO_ANCHOR = -1;
+
+	/**
+	 * The modified time of a snapshot stored before the time was kept, or
+	 * one of a plain offset.
+	 */
+	public static final long UNKNOWN_MODIFIED = 0;
+
+	/**
+	 * The number of ints of the extra: the selection length, top line, anchor
+	 * hash, anchor line, anchor column and the high and low ints of the
+	 * modified time.
+	 */
+	public static final int EXTRA_WIDTH = 7;
+
+	private final int offset;
+	private final int selectionLength;
+	private final int topLine;
+	private final int anchorHash;
+	private final int anchorLine;
+	private final int anchorColumn;
+	private final long modifiedMillis;
+
+	/**
+	 * Constructs a snapshot without an anchor.
+	 *
+	 * @param offset
+	 *            The caret offset, where the selection starts.
+	 * @param selectionLength
+	 *            The length of the selection, 0 if nothing is selected.
+	 * @param topLine
+	 *            The document line at the top of the viewport, or
+	 *            {@link #UNKNOWN_TOP_LINE}.
+	 */
+	public ViewportSnapshot(int offset, int selectionLength, int topLine) {
+		this(offset, selectionLength, topLine, 0, NO_ANCHOR, 0);
+	}
+
+	/**
+	 * Constructs a snapshot.
+	 *
+	 * @param offset
+	 *            The caret offset, where the selection starts.
+	 * @param selectionLength
+	 *            The length of the selection, 0 if nothing is selected.
+	 * @param topLine
+	 *            The document line at the top of the viewport, or
+	 *            {@link #UNKNOWN_TOP_LINE}.
+	 * @param anchorHash
+	 *            The fingerprint of the lines around the caret line.
+	 * @param anchorLine
+	 *            The caret line, or {@link #NO_ANCHOR}.
+	 * @param anchorColumn
+	 *            The caret offset from the start of the caret line.
+	 */
+	public ViewportSnapshot(int offset, int selectionLength, int topLine,
+			int anchorHash, int anchorLine, int anchorColumn) {
+		this(offset, selectionLength, topLine, anchorHash, anchorLine,
+				anchorColumn, UNKNOWN_MODIFIED);
+	}
+
+	/**
+	 * Constructs a snapshot with a modified time.
+	 *
+	 * @param offset
+	 *            The caret offset, where the selection starts.
+	 * @param selectionLength
+	 *            The length of the selection, 0 if nothing is selected.
+	 * @param topLine
+	 *            The document line at the top of the viewport, or
+	 *            {@link #UNKNOWN_TOP_LINE}.
+	 * @param anchorHash
+	 *            The fingerprint of the lines around the caret line.
+	 * @param anchorLine
+	 *            The caret line, or {@link #NO_ANCHOR}.
+	 * @param anchorColumn
+	 *            The caret offset from the start of the caret line.
+	 * @param modifiedMillis
+	 *            When the snapshot was stored, in milliseconds since the
+	 *            epoch, or {@link #UNKNOWN_MODIFIED}.
+	 */
+	public ViewportSnapshot(int offset, int selectionLength, int topLine,
+			int anchorHash, int anchorLine, int anchorColumn,
+			long modifiedMillis) {
+		this.offset = offset;
+		this.selectionLength = selectionLength;
+		this.topLine = topLine;
+		this.anchorHash = anchorHash;
+		this.anchorLine = anchorLine;
+		this.anchorColumn = anchorColumn;
+		this.modifiedMillis = modifiedMillis;
+	}
+
+	/**
+	 * Constructs a snapshot from a caret offset and an extra written by
+	 * {@link #writeExtra(int[])}.
+	 *
+	 * @param offset
+	 *            The caret offset.
+	 * @param extra
+	 *            The extra.
+	 */
+	public ViewportSnapshot(int offset, int[] extra) {
+		this(offset, extra, EXTRA_WIDTH);
+	}
+
+	/**
+	 * Constructs a snapshot from a caret offset and the first ints of an
+	 * extra, e.g. one written by an older version with fewer fields. The
+	 * missing fields are empty.
+	 *
+	 * @param offset
+	 *            The caret offset.
+	 * @param extra
+	 *            The extra.
+	 * @param length
+	 *            The number of ints of the extra to use.
+	 */
+	public ViewportSnapshot(int offset, int[] extra, int length) {
+		this(offset, length > 0 ? extra[0] : 0, length > 1 ? extra[1]
+				: UNKNOWN_TOP_LINE, length > 2 ? extra[2] : 0,
+				length > 3 ? extra[3] : NO_ANCHOR, length > 4 ? extra[4] : 0,
+				length > 6 ? (long) extra[5] << 32 | extra[6] & 0xFFFFFFFFL
+						: UNKNOWN_MODIFIED);
+	}
+
+	/**
+	 * Get a snapshot of a caret offset only, with an empty selection, an
+	 * unknown top line and no anchor.
+	 *
+	 * @param offset
+	 *            The caret offset.
+	 * @return The snapshot.
+	 */
+	public static ViewportSnapshot ofOffset(int offset) {
+		return new ViewportSnapshot(offset, 0, UNKNOWN_TOP_LINE);
+	}
+
+	/**
+	 * Write everything but the caret offset to an extra.
+	 *
+	 * @param extra
+	 *            The array to write to, at least {@link #EXTRA_WIDTH} long.
+	 */
+	public void writeExtra(int[] extra) {
+		extra[0] = selectionLength;
+		extra[1] = topLine;
+		extra[2] = anchorHash;
+		extra[3] = anchorLine;
+		extra[4] = anchorColumn;
+		extra[5] = (int) (modifiedMillis >>> 32);
+		extra[6] = (int) modifiedMillis;
+	}
+
+	/**
+	 * Get a copy of this snapshot with another modified time.
+	 *
+	 * @param modifiedMillis
+	 *            When the snapshot was stored, in milliseconds since the
+	 *            epoch, or {@link #UNKNOWN_MODIFIED}.
+	 * @return The snapshot.
+	 */
+	public ViewportSnapshot withModifiedMillis(long modifiedMillis) {
+		return new ViewportSnapshot(offset, selectionLength, topLine,
+				anchorHash, anchorLine, anchorColumn, modifiedMillis);
+	}
+
+	/**
+	 * Get the caret offset.
+	 *
+	 * @return The offset.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the length of the selection.
+	 *
+	 * @return The selection length, 0 if nothing is selected.
+	 */
+	public int getSelectionLength() {
+		return selectionLength;
+	}
+
+	/**
+	 * Get the document line at the top of the viewport.
+	 *
+	 * @return The top line or {@link #UNKNOWN_TOP_LINE}.
+	 */
+	public int getTopLine() {
+		return topLine;
+	}
+
+	/**
+	 * Check if this snapshot has an anchor.
+	 *
+	 * @return True if it has.
+	 */
+	public boolean hasAnchor() {
+		return anchorLine >= 0;
+	}
+
+	/**
+	 * Get the fingerprint of the lines around the caret line.
+	 *
+	 * @return The anchor hash, 0 if there is no anchor.
+	 */
+	public int getAnchorHash() {
+		return anchorHash;
+	}
+
+	/**
+	 * Get the caret line.
+	 *
+	 * @return The anchor line or {@link #NO_ANCHOR}.
+	 */
+	public int getAnchorLine() {
+		return anchorLine;
+	}
+
+	/**
+	 * Get the caret offset from the start of the caret line.
+	 *
+	 * @return The anchor column.
+	 */
+	public int getAnchorColumn() {
+		return anchorColumn;
+	}
+
+	/**
+	 * Get when this snapshot was stored.
+	 *
+	 * @return The modified time in milliseconds since the epoch, or
+	 *         {@link #UNKNOWN_MODIFIED}.
+	 */
+	public long getModifiedMillis() {
+		return modifiedMillis;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof ViewportSnapshot)) {
+			return false;
+		}
+		ViewportSnapshot snapshot = (ViewportSnapshot) other;
+		return offset == snapshot.offset
+				&& selectionLength == snapshot.selectionLength
+				&& topLine == snapshot.topLine
+				&& anchorHash == snapshot.anchorHash
+				&& anchorLine == snapshot.anchorLine
+				&& anchorColumn == snapshot.anchorColumn
+				&& modifiedMillis == snapshot.modifiedMillis;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = (offset * 31 + selectionLength) * 31 + topLine;
+		hash = (hash * 31 + anchorHash) * 31 + anchorLine;
+		hash = hash * 31 + anchorColumn;
+		return hash * 31 + (int) (modifiedMillis ^ modifiedMillis >>> 32);
+	}
+
+	@Override
+	public String toString() {
+		String snapshot = offset + "+" + selectionLength + "@" + topLine;
+		if (hasAnchor()) {
+			snapshot += "#" + Integer.toHexString(anchorHash) + ":"
+					+ anchorLine + ":" + anchorColumn;
+		}
+		if (modifiedMillis != UNKNOWN_MODIFIED) {
+			snapshot += "~" + modifiedMillis;
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,49 @@
+package oss.restore.file.position.collection;
+
+/**
+ * A W-TinyLFU style policy. New entries enter a small LRU window, about 1% of
+ * the capacity, and an entry leaving the window only takes the place of the
+ * least recently used entry of the main list if it has been used more often,
+ * as estimated by a {@link FrequencySketch}.
+ *
+ * A burst of files opened once, e.g. during a big search-and-replace, then
+ * passes through the window without pushing out files that are reopened over
+ * and over.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class WTinyLfuEvictionPolicy implements IEvictionPolicy {
+
+	private final FrequencySketch sketch;
+
+	/**
+	 * Constructs a W-TinyLFU policy.
+	 *
+	 * @param capacity
+	 *            The capacity of the map the policy is used for, used to size
+	 *            the frequency sketch.
+	 */
+	public WTinyLfuEvictionPolicy(int capacity) {
+		sketch = new FrequencySketch(capacity);
+	}
+
+	@Override
+	public boolean isAccessOrder() {
+		return true;
+	}
+
+	@Override
+	public int getWindowSize(int capacity) {
+		return Math.max(1, capacity / 100);
+	}
+
+	@Override
+	public void recordAccess(int keyHash) {
+		sketch.increment(keyHash);
+	}
+
+	@Override
+	public boolean admit(int candidateHash, int victimHash) {
+		return sketch.frequency(candidateHash) > sketch.frequency(victimHash);
+	}
+}
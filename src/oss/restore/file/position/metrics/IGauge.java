@@ -0,0 +1,17 @@
+package oss.restore.file.position.metrics;
+
+/**
+ * A value that is read when the metrics are reported rather than recorded as
+ * it changes, e.g. the size of a storage.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface IGauge {
+
+	/**
+	 * Get the current value.
+	 *
+	 * @return The value.
+	 */
+	public abstract long getValue();
+}
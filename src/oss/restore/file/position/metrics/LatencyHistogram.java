@@ -0,0 +1,105 @@
+package oss.restore.file.position.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with one bucket per power of two nanoseconds.
+ * Percentiles are therefore reported as the upper bound of their bucket, i.e.
+ * at most twice the real value.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())
+				&& !maxNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	/**
+	 * Get the number of recorded latencies.
+	 *
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the mean latency.
+	 *
+	 * @return The mean in nanoseconds, 0 if nothing is recorded.
+	 */
+	public long getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / n;
+	}
+
+	/**
+	 * Get the highest recorded latency.
+	 *
+	 * @return The max in nanoseconds.
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Get an upper bound of a percentile of the recorded latencies.
+	 *
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The percentile in nanoseconds, 0 if nothing is recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long n = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return i == 0 ? 0 : Math.min(1L << i, maxNanos.get());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Forget every recorded latency.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
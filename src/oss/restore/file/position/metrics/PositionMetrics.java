@@ -0,0 +1,538 @@
+package oss.restore.file.position.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms for the hot paths of the plug-in:
+ * offset lookups, editors being opened and closed, caret changes being
+ * tracked, and the offsets being serialized and deserialized.
+ *
+ * Recording is a no-op while the metrics are disabled, and callers are
+ * expected to check {@link #isEnabled()} before even reading the clock, so the
+ * metrics cost a volatile read when not in use. They can be enabled and read
+ * at runtime through JMX once {@link #registerMBean()} has been called.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionMetrics implements PositionMetricsMBean {
+
+	/**
+	 * The name the metrics are registered under in the platform MBean server.
+	 */
+	public static final String OBJECT_NAME = "oss.restore.file.position:type=PositionMetrics";
+
+	private static final IGauge NO_GAUGE = new IGauge() {
+		public long getValue() {
+			return 0;
+		}
+	};
+
+	private volatile boolean enabled;
+
+	private volatile Runnable enabledListener;
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong stores = new AtomicLong();
+	private final AtomicLong caretWrites = new AtomicLong();
+	private final AtomicLong lastSerializedBytes = new AtomicLong();
+	private final AtomicLong lastDeserializedBytes = new AtomicLong();
+
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final LatencyHistogram partOpenedLatency = new LatencyHistogram();
+	private final LatencyHistogram partClosedLatency = new LatencyHistogram();
+	private final LatencyHistogram serializationLatency = new LatencyHistogram();
+	private final LatencyHistogram deserializationLatency = new LatencyHistogram();
+	private final LatencyHistogram caretChangeLatency = new LatencyHistogram();
+
+	private volatile IGauge storageSize = NO_GAUGE;
+	private volatile IGauge evictions = NO_GAUGE;
+	private volatile IGauge filterNegatives = NO_GAUGE;
+	private volatile IGauge filterFalsePositives = NO_GAUGE;
+	private volatile IGauge filterMemoryBytes = NO_GAUGE;
+	private volatile IGauge writeFailures = NO_GAUGE;
+
+	private ObjectName registeredName;
+
+	/**
+	 * Constructs disabled metrics.
+	 */
+	public PositionMetrics() {
+		this(false);
+	}
+
+	/**
+	 * Constructs metrics.
+	 *
+	 * @param enabled
+	 *            Whether to start recording right away.
+	 */
+	public PositionMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		boolean wasEnabled = this.enabled;
+		this.enabled = enabled;
+		Runnable listener = enabledListener;
+		if (enabled && !wasEnabled && listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Set the listener run when disabled metrics are enabled, e.g. through
+	 * JMX, to start logging them.
+	 *
+	 * @param listener
+	 *            The listener, or null for none.
+	 */
+	public void setEnabledListener(Runnable listener) {
+		enabledListener = listener;
+	}
+
+	/**
+	 * Set the gauges read for the storage size and eviction count.
+	 *
+	 * @param size
+	 *            The count of stored offsets.
+	 * @param evictionCount
+	 *            The count of offsets evicted because the capacity was reached.
+	 */
+	public void setStorageGauges(IGauge size, IGauge evictionCount) {
+		storageSize = size == null ? NO_GAUGE : size;
+		evictions = evictionCount == null ? NO_GAUGE : evictionCount;
+	}
+
+	/**
+	 * Set the gauges read for the negative lookup filter.
+	 *
+	 * @param negativeCount
+	 *            The count of lookups answered by the filter alone.
+	 * @param falsePositiveCount
+	 *            The count of lookups passed on for paths not stored.
+	 * @param memoryBytes
+	 *            The memory used by the filter.
+	 */
+	public void setFilterGauges(IGauge negativeCount,
+			IGauge falsePositiveCount, IGauge memoryBytes) {
+		filterNegatives = negativeCount == null ? NO_GAUGE : negativeCount;
+		filterFalsePositives = falsePositiveCount == null ? NO_GAUGE
+				: falsePositiveCount;
+		filterMemoryBytes = memoryBytes == null ? NO_GAUGE : memoryBytes;
+	}
+
+	/**
+	 * Set the gauge read for the count of offsets that failed to be written.
+	 *
+	 * @param failureCount
+	 *            The count of offsets the storage failed to write.
+	 */
+	public void setWriteFailureGauge(IGauge failureCount) {
+		writeFailures = failureCount == null ? NO_GAUGE : failureCount;
+	}
+
+	/**
+	 * Record an offset lookup.
+	 *
+	 * @param hit
+	 *            True if an offset was stored for the file.
+	 * @param nanos
+	 *            The time the lookup took.
+	 */
+	public void recordLookup(boolean hit, long nanos) {
+		if (enabled) {
+			lookups.incrementAndGet();
+			if (hit) {
+				hits.incrementAndGet();
+			}
+			lookupLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Record an offset being stored.
+	 */
+	public void recordStore() {
+		if (enabled) {
+			stores.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the handling of an opened editor.
+	 *
+	 * @param nanos
+	 *            The time it took.
+	 */
+	public void recordPartOpened(long nanos) {
+		if (enabled) {
+			partOpenedLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Record the handling of a closed editor.
+	 *
+	 * @param nanos
+	 *            The time it took.
+	 */
+	public void recordPartClosed(long nanos) {
+		if (enabled) {
+			partClosedLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Record the handling of a caret change in a tracked editor.
+	 *
+	 * @param nanos
+	 *            The time it took.
+	 */
+	public void recordCaretChange(long nanos) {
+		if (enabled) {
+			caretChangeLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Record the position of a tracked editor being written, after its caret
+	 * changes were coalesced.
+	 */
+	public void recordCaretWrite() {
+		if (enabled) {
+			caretWrites.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the offsets being serialized.
+	 *
+	 * @param bytes
+	 *            The size of the serialized offsets.
+	 * @param nanos
+	 *            The time it took.
+	 */
+	public void recordSerialization(long bytes, long nanos) {
+		if (enabled) {
+			lastSerializedBytes.set(bytes);
+			serializationLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Record the offsets being deserialized.
+	 *
+	 * @param bytes
+	 *            The size of the serialized offsets.
+	 * @param nanos
+	 *            The time it took.
+	 */
+	public void recordDeserialization(long bytes, long nanos) {
+		if (enabled) {
+			lastDeserializedBytes.set(bytes);
+			deserializationLatency.record(nanos);
+		}
+	}
+
+	@Override
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return lookups.get() - hits.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long count = lookups.get();
+		return count == 0 ? 0 : (double) hits.get() / count;
+	}
+
+	@Override
+	public long getLookupP99Micros() {
+		return micros(lookupLatency.getPercentileNanos(99));
+	}
+
+	@Override
+	public long getStoreCount() {
+		return stores.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.getValue();
+	}
+
+	@Override
+	public long getStorageSize() {
+		return storageSize.getValue();
+	}
+
+	@Override
+	public long getWriteFailureCount() {
+		return writeFailures.getValue();
+	}
+
+	@Override
+	public long getFilterNegativeCount() {
+		return filterNegatives.getValue();
+	}
+
+	@Override
+	public long getFilterFalsePositiveCount() {
+		return filterFalsePositives.getValue();
+	}
+
+	@Override
+	public double getFilterFalsePositiveRate() {
+		long falsePositives = getFilterFalsePositiveCount();
+		long absent = getFilterNegativeCount() + falsePositives;
+		return absent == 0 ? 0 : (double) falsePositives / absent;
+	}
+
+	@Override
+	public long getFilterMemoryBytes() {
+		return filterMemoryBytes.getValue();
+	}
+
+	@Override
+	public long getPartOpenedCount() {
+		return partOpenedLatency.getCount();
+	}
+
+	@Override
+	public long getPartOpenedMeanMicros() {
+		return micros(partOpenedLatency.getMeanNanos());
+	}
+
+	@Override
+	public long getPartOpenedP99Micros() {
+		return micros(partOpenedLatency.getPercentileNanos(99));
+	}
+
+	@Override
+	public long getPartOpenedMaxMicros() {
+		return micros(partOpenedLatency.getMaxNanos());
+	}
+
+	@Override
+	public long getPartClosedCount() {
+		return partClosedLatency.getCount();
+	}
+
+	@Override
+	public long getPartClosedMeanMicros() {
+		return micros(partClosedLatency.getMeanNanos());
+	}
+
+	@Override
+	public long getPartClosedP99Micros() {
+		return micros(partClosedLatency.getPercentileNanos(99));
+	}
+
+	@Override
+	public long getPartClosedMaxMicros() {
+		return micros(partClosedLatency.getMaxNanos());
+	}
+
+	@Override
+	public long getSerializationCount() {
+		return serializationLatency.getCount();
+	}
+
+	@Override
+	public long getLastSerializedBytes() {
+		return lastSerializedBytes.get();
+	}
+
+	@Override
+	public long getSerializationMaxMicros() {
+		return micros(serializationLatency.getMaxNanos());
+	}
+
+	@Override
+	public long getDeserializationCount() {
+		return deserializationLatency.getCount();
+	}
+
+	@Override
+	public long getLastDeserializedBytes() {
+		return lastDeserializedBytes.get();
+	}
+
+	@Override
+	public long getDeserializationMaxMicros() {
+		return micros(deserializationLatency.getMaxNanos());
+	}
+
+	@Override
+	public long getCaretChangeCount() {
+		return caretChangeLatency.getCount();
+	}
+
+	@Override
+	public long getCaretChangeMeanNanos() {
+		return caretChangeLatency.getMeanNanos();
+	}
+
+	@Override
+	public long getCaretChangeP99Nanos() {
+		return caretChangeLatency.getPercentileNanos(99);
+	}
+
+	@Override
+	public long getCaretWriteCount() {
+		return caretWrites.get();
+	}
+
+	/**
+	 * Get the latencies of offset lookups.
+	 *
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getLookupLatency() {
+		return lookupLatency;
+	}
+
+	/**
+	 * Get the latencies of handling opened editors.
+	 *
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getPartOpenedLatency() {
+		return partOpenedLatency;
+	}
+
+	/**
+	 * Get the latencies of handling closed editors.
+	 *
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getPartClosedLatency() {
+		return partClosedLatency;
+	}
+
+	/**
+	 * Get the latencies of handling caret changes.
+	 *
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getCaretChangeLatency() {
+		return caretChangeLatency;
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder("File position metrics: ");
+		summary.append("lookups=").append(getLookupCount());
+		summary.append(" hits=").append(getHitCount());
+		summary.append(" misses=").append(getMissCount());
+		summary.append(" stores=").append(getStoreCount());
+		summary.append(" evictions=").append(getEvictionCount());
+		summary.append(" size=").append(getStorageSize());
+		summary.append(" writeFailures=").append(getWriteFailureCount());
+		summary.append(" lookupP99=").append(getLookupP99Micros()).append("us");
+		summary.append(" filterNegatives=").append(getFilterNegativeCount());
+		summary.append(" filterFalsePositives=").append(
+				getFilterFalsePositiveCount());
+		summary.append(" filterBytes=").append(getFilterMemoryBytes());
+		summary.append(" opened=").append(getPartOpenedCount());
+		summary.append(" openedMean=").append(getPartOpenedMeanMicros())
+				.append("us");
+		summary.append(" openedP99=").append(getPartOpenedP99Micros())
+				.append("us");
+		summary.append(" closed=").append(getPartClosedCount());
+		summary.append(" closedMean=").append(getPartClosedMeanMicros())
+				.append("us");
+		summary.append(" closedP99=").append(getPartClosedP99Micros())
+				.append("us");
+		summary.append(" caretChanges=").append(getCaretChangeCount());
+		summary.append(" caretWrites=").append(getCaretWriteCount());
+		summary.append(" caretChangeMean=")
+				.append(getCaretChangeMeanNanos()).append("ns");
+		summary.append(" serialized=").append(getLastSerializedBytes())
+				.append("B/").append(getSerializationMaxMicros()).append("us");
+		summary.append(" deserialized=").append(getLastDeserializedBytes())
+				.append("B/").append(getDeserializationMaxMicros())
+				.append("us");
+		return summary.toString();
+	}
+
+	@Override
+	public void reset() {
+		lookups.set(0);
+		hits.set(0);
+		stores.set(0);
+		caretWrites.set(0);
+		lastSerializedBytes.set(0);
+		lastDeserializedBytes.set(0);
+		lookupLatency.reset();
+		partOpenedLatency.reset();
+		partClosedLatency.reset();
+		serializationLatency.reset();
+		deserializationLatency.reset();
+		caretChangeLatency.reset();
+	}
+
+	/**
+	 * Register these metrics in the platform MBean server under
+	 * {@link #OBJECT_NAME}.
+	 *
+	 * @throws JMException
+	 *             If the registration failed, e.g. because another instance
+	 *             is already registered.
+	 */
+	public synchronized void registerMBean() throws JMException {
+		if (registeredName == null) {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					name);
+			registeredName = name;
+		}
+	}
+
+	/**
+	 * Unregister these metrics from the platform MBean server, if registered.
+	 *
+	 * @throws JMException
+	 *             If the unregistration failed.
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (registeredName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(registeredName)) {
+				server.unregisterMBean(registeredName);
+			}
+			registeredName = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
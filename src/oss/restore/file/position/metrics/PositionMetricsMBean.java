@@ -0,0 +1,81 @@
+package oss.restore.file.position.metrics;
+
+/**
+ * The JMX management interface of {@link PositionMetrics}. Latencies are
+ * reported in microseconds, except for the caret changes which are too cheap
+ * for that and reported in nanoseconds.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface PositionMetricsMBean {
+
+	public abstract boolean isEnabled();
+
+	public abstract void setEnabled(boolean enabled);
+
+	public abstract long getLookupCount();
+
+	public abstract long getHitCount();
+
+	public abstract long getMissCount();
+
+	public abstract double getHitRatio();
+
+	public abstract long getLookupP99Micros();
+
+	public abstract long getStoreCount();
+
+	public abstract long getEvictionCount();
+
+	public abstract long getStorageSize();
+
+	public abstract long getWriteFailureCount();
+
+	public abstract long getFilterNegativeCount();
+
+	public abstract long getFilterFalsePositiveCount();
+
+	public abstract double getFilterFalsePositiveRate();
+
+	public abstract long getFilterMemoryBytes();
+
+	public abstract long getPartOpenedCount();
+
+	public abstract long getPartOpenedMeanMicros();
+
+	public abstract long getPartOpenedP99Micros();
+
+	public abstract long getPartOpenedMaxMicros();
+
+	public abstract long getPartClosedCount();
+
+	public abstract long getPartClosedMeanMicros();
+
+	public abstract long getPartClosedP99Micros();
+
+	public abstract long getPartClosedMaxMicros();
+
+	public abstract long getSerializationCount();
+
+	public abstract long getLastSerializedBytes();
+
+	public abstract long getSerializationMaxMicros();
+
+	public abstract long getDeserializationCount();
+
+	public abstract long getLastDeserializedBytes();
+
+	public abstract long getDeserializationMaxMicros();
+
+	public abstract long getCaretChangeCount();
+
+	public abstract long getCaretChangeMeanNanos();
+
+	public abstract long getCaretChangeP99Nanos();
+
+	public abstract long getCaretWriteCount();
+
+	public abstract String getSummary();
+
+	public abstract void reset();
+}
@@ -0,0 +1,456 @@
+package oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage that queues the offsets being set and writes them to
+ * another storage on a single background writer thread, so a slow storage,
+ * e.g. one on disk, never delays the thread setting them, e.g. the UI thread
+ * closing hundreds of editors at once.
+ *
+ * The queue holds at most one offset per file path, so setting an offset
+ * again before it is written replaces it. The writer takes the whole queue at
+ * once and writes it as one batch, in the order the offsets were last set.
+ * When the queue is full, setting an offset of another file path waits for
+ * the writer to take the queue, so a writer that falls behind slows down the
+ * setting thread rather than growing the queue without bound.
+ *
+ * Reads look at the queue and the batch being written first, so they always
+ * see the offsets set before. {@link #size()}, the map representations and
+ * prefix operations wait for the queue to be written first and are passed on
+ * if the storage supports them. The storage is only used by one thread at a
+ * time, so it does not have to be thread safe.
+ *
+ * Offsets the storage fails to write are counted, and the first failure of
+ * each batch is passed to the failure listener, if any, e.g. to log it.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class AsyncOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	/**
+	 * The default count of offsets the queue holds.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 1024;
+
+	/**
+	 * Told about the offsets the storage failed to write.
+	 */
+	public interface IFailureListener {
+
+		/**
+		 * Called on the writer thread after a batch in which offsets failed
+		 * to be written.
+		 *
+		 * @param filePathUri
+		 *            The file path URI of the first offset that failed.
+		 * @param e
+		 *            The failure of that offset.
+		 * @param failures
+		 *            The count of offsets in the batch that failed.
+		 */
+		void writeFailed(String filePathUri, RuntimeException e,
+				long failures);
+	}
+
+	private final IOffsetsStorage storage;
+	private final int maxPending;
+	private final Thread writer;
+
+	// Guarded by this.
+	private Map<String, ViewportSnapshot> pendingViewports = new LinkedHashMap<String, ViewportSnapshot>();
+	private Map<String, ViewportSnapshot> writingViewports = Collections
+			.emptyMap();
+	private boolean closed;
+	private long batchCount;
+	private long waitCount;
+	private long failureCount;
+	private IFailureListener failureListener;
+
+	/**
+	 * Constructs an asynchronous offsets storage with a queue of
+	 * {@link #DEFAULT_MAX_PENDING} offsets and starts its writer.
+	 *
+	 * @param storage
+	 *            The storage to write the offsets to.
+	 */
+	public AsyncOffsetsStorage(IOffsetsStorage storage) {
+		this(storage, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Constructs an asynchronous offsets storage and starts its writer.
+	 *
+	 * @param storage
+	 *            The storage to write the offsets to.
+	 * @param maxPending
+	 *            The count of offsets the queue holds before setting an
+	 *            offset waits for the writer.
+	 */
+	public AsyncOffsetsStorage(IOffsetsStorage storage, int maxPending) {
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("Illegal queue size: "
+					+ maxPending);
+		}
+		this.storage = storage;
+		this.maxPending = maxPending;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeBatches();
+			}
+		}, "Restore file position writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Get the storage the offsets are written to.
+	 *
+	 * @return The storage.
+	 */
+	public IOffsetsStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Wait until every offset set so far has been written to the storage.
+	 */
+	public synchronized void flush() {
+		boolean interrupted = false;
+		while (!pendingViewports.isEmpty() || !writingViewports.isEmpty()) {
+			if (closed && !writer.isAlive()) {
+				break;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write every offset set so far and stop the writer. Offsets set
+	 * afterwards are written by the setting thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flush();
+			closed = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get the count of offsets waiting to be written.
+	 *
+	 * @return The pending count.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingViewports.size() + writingViewports.size();
+	}
+
+	/**
+	 * Get the count of batches written.
+	 *
+	 * @return The batch count.
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Get how many times setting an offset waited for a full queue.
+	 *
+	 * @return The wait count.
+	 */
+	public synchronized long getWaitCount() {
+		return waitCount;
+	}
+
+	/**
+	 * Get the count of offsets the storage failed to write.
+	 *
+	 * @return The failure count.
+	 */
+	public synchronized long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Set the listener told about the offsets the storage failed to write.
+	 *
+	 * @param listener
+	 *            The listener, or null for none.
+	 */
+	public synchronized void setFailureListener(IFailureListener listener) {
+		failureListener = listener;
+	}
+
+	@Override
+	public int getCapacity() {
+		synchronized (storage) {
+			return storage.getCapacity();
+		}
+	}
+
+	@Override
+	public void setCapacity(int newCapacity) {
+		synchronized (storage) {
+			storage.setCapacity(newCapacity);
+		}
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		ViewportSnapshot viewport = getViewport(filePathUri);
+		return viewport == null ? 0 : viewport.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		synchronized (this) {
+			ViewportSnapshot viewport = pendingViewports.get(filePathUri);
+			if (viewport == null) {
+				viewport = writingViewports.get(filePathUri);
+			}
+			if (viewport != null) {
+				return viewport;
+			}
+		}
+		// Not queued, so the writer will not change it meanwhile.
+		synchronized (storage) {
+			return Viewports.get(storage, filePathUri);
+		}
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		synchronized (this) {
+			if (!closed) {
+				if (pendingViewports.size() >= maxPending
+						&& !pendingViewports.containsKey(filePathUri)) {
+					waitCount++;
+					boolean interrupted = false;
+					while (pendingViewports.size() >= maxPending && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (!closed) {
+					if (pendingViewports.isEmpty()) {
+						notifyAll();
+					}
+					pendingViewports.remove(filePathUri);
+					pendingViewports.put(filePathUri, viewport);
+					return;
+				}
+			}
+		}
+		synchronized (storage) {
+			Viewports.set(storage, filePathUri, viewport);
+		}
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, looking up the ones
+	 * not queued in one call to the storage.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		List<String> stored = new ArrayList<String>();
+		synchronized (this) {
+			for (String filePathUri : filePathUris) {
+				ViewportSnapshot viewport = pendingViewports.get(filePathUri);
+				if (viewport == null) {
+					viewport = writingViewports.get(filePathUri);
+				}
+				if (viewport != null) {
+					viewports.put(filePathUri, viewport);
+				} else {
+					stored.add(filePathUri);
+				}
+			}
+		}
+		if (!stored.isEmpty()) {
+			synchronized (storage) {
+				viewports.putAll(Viewports.getAll(storage, stored));
+			}
+		}
+		return viewports;
+	}
+
+	@Override
+	public void setViewports(Map<String, ViewportSnapshot> viewports) {
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			setViewport(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public int size() {
+		flush();
+		synchronized (storage) {
+			return storage.size();
+		}
+	}
+
+	@Override
+	public Map<String, Integer> getMap() {
+		flush();
+		synchronized (storage) {
+			return storage.getMap();
+		}
+	}
+
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		flush();
+		synchronized (storage) {
+			return Viewports.getAll(storage);
+		}
+	}
+
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		flush();
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return Collections.emptyMap();
+		}
+		synchronized (storage) {
+			return ((IPrefixOffsetsStorage) storage).getOffsetsUnder(prefix);
+		}
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Wait for the queue to be written and apply a batch of moved and removed
+	 * paths and prefixes to the storage. Does nothing if the storage does not
+	 * support it.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return 0;
+		}
+		// Offsets set meanwhile are written after the changes.
+		flush();
+		synchronized (storage) {
+			return ((IPrefixOffsetsStorage) storage).rekey(changes);
+		}
+	}
+
+	/**
+	 * Write the queued offsets in batches until closed.
+	 */
+	private void writeBatches() {
+		while (true) {
+			Map<String, ViewportSnapshot> batch;
+			synchronized (this) {
+				while (pendingViewports.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Only stopped by closing.
+					}
+				}
+				if (pendingViewports.isEmpty()) {
+					return;
+				}
+				batch = pendingViewports;
+				writingViewports = batch;
+				pendingViewports = new LinkedHashMap<String, ViewportSnapshot>();
+				// Wake up the threads waiting for room in the queue.
+				notifyAll();
+			}
+
+			long failures = 0;
+			String failedPath = null;
+			RuntimeException failure = null;
+			for (Map.Entry<String, ViewportSnapshot> entry : batch.entrySet()) {
+				// Locked per offset so reads wait for one write at most.
+				synchronized (storage) {
+					try {
+						Viewports.set(storage, entry.getKey(), entry
+								.getValue());
+					} catch (RuntimeException e) {
+						if (failures++ == 0) {
+							failedPath = entry.getKey();
+							failure = e;
+						}
+					}
+				}
+			}
+
+			if (failure != null) {
+				IFailureListener listener;
+				synchronized (this) {
+					listener = failureListener;
+				}
+				// Told before the batch counts as written, so a flush also
+				// waits for the listener.
+				if (listener != null) {
+					listener.writeFailed(failedPath, failure, failures);
+				}
+			}
+
+			synchronized (this) {
+				writingViewports = Collections.emptyMap();
+				batchCount++;
+				failureCount += failures;
+				notifyAll();
+			}
+		}
+	}
+}
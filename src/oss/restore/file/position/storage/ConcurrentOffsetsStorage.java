@@ -0,0 +1,185 @@
+package oss.restore.file.position.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import oss.restore.file.position.collection.CachedIntMap;
+
+/**
+ * A thread-safe offsets storage. The file paths are spread over a number of
+ * stripes, each a {@link CachedIntMap} with its own read-write lock, so
+ * lookups never wait for each other and writes only wait for writes to the
+ * same stripe.
+ *
+ * The capacity is global: the eldest offsets, in insertion order over all
+ * stripes, are evicted first just as in {@link StandardOffsetsStorage}.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ConcurrentOffsetsStorage implements IOffsetsStorage {
+
+	/**
+	 * The default number of stripes.
+	 */
+	public static final int DEFAULT_STRIPES = 16;
+
+	private static final class Stripe {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final CachedIntMap map = new CachedIntMap(Integer.MAX_VALUE);
+	}
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	// Every stored file path once, in insertion order. A path is added when
+	// it is inserted into its stripe, while holding the stripe lock, and
+	// polled by the thread that evicts it.
+	private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile int capacity;
+
+	/**
+	 * Constructs a concurrent offsets storage with the default number of
+	 * stripes.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 */
+	public ConcurrentOffsetsStorage(int capacity) {
+		this(capacity, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructs a concurrent offsets storage.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param stripes
+	 *            The number of stripes, rounded up to a power of two.
+	 */
+	public ConcurrentOffsetsStorage(int capacity, int stripes) {
+		int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.stripeMask = count - 1;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Constructs a concurrent offsets storage with the default number of
+	 * stripes.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param initialMap
+	 *            Get the initial mapping to use. E.g. restored from a permanent
+	 *            storage or similar.
+	 */
+	public ConcurrentOffsetsStorage(int capacity, Map<String, Integer> initialMap) {
+		this(capacity);
+		for (Map.Entry<String, Integer> entry : initialMap.entrySet()) {
+			setOffset(entry.getKey(), entry.getValue().intValue());
+		}
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public void setCapacity(int newCapacity) {
+		capacity = newCapacity;
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		Stripe stripe = stripeOf(filePathUri);
+		stripe.lock.readLock().lock();
+		try {
+			return stripe.map.getInt(filePathUri, 0);
+		} finally {
+			stripe.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		Stripe stripe = stripeOf(filePathUri);
+		stripe.lock.writeLock().lock();
+		try {
+			if (!stripe.map.putInt(filePathUri, offset)) {
+				return;
+			}
+			insertionOrder.add(filePathUri);
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+
+		if (size.incrementAndGet() > capacity) {
+			evict();
+		}
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Get a map representation of this offsets storage. The map is a
+	 * consistent snapshot in insertion order, taken while holding every
+	 * stripe lock.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.readLock().lock();
+		}
+		try {
+			Map<String, Integer> map = new LinkedHashMap<String, Integer>(
+					Math.max(16, (int) (size.get() / 0.75f) + 1));
+			for (String filePathUri : insertionOrder) {
+				Integer offset = stripeOf(filePathUri).map.get(filePathUri);
+				if (offset != null) {
+					map.put(filePathUri, offset);
+				}
+			}
+			return map;
+		} finally {
+			for (Stripe stripe : stripes) {
+				stripe.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Evict the eldest offsets until the capacity is no longer exceeded.
+	 */
+	private void evict() {
+		while (size.get() > capacity) {
+			String eldest = insertionOrder.poll();
+			if (eldest == null) {
+				return;
+			}
+			Stripe stripe = stripeOf(eldest);
+			stripe.lock.writeLock().lock();
+			try {
+				stripe.map.remove(eldest);
+			} finally {
+				stripe.lock.writeLock().unlock();
+			}
+			size.decrementAndGet();
+		}
+	}
+
+	private Stripe stripeOf(String filePathUri) {
+		int h = filePathUri.hashCode() * 0x9E3779B9;
+		return stripes[(h >>> 16) & stripeMask];
+	}
+}
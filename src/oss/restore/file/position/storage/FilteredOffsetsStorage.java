@@ -0,0 +1,272 @@
+package oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oss.restore.file.position.collection.BloomFilter;
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage that answers lookups of file paths that were never
+ * stored from a {@link BloomFilter} in memory, in front of a storage where
+ * each lookup may cost I/O, e.g. opening the shard of a project. Most
+ * editors opened for generated sources, search results and stack trace jumps
+ * then never reach the storage.
+ *
+ * Every file path set, or moved to, is added to the filter. Removed and
+ * evicted paths stay in it and are only looked up in the storage in vain,
+ * until the filter is rebuilt from the stored paths.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class FilteredOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	private final IOffsetsStorage storage;
+	private final BloomFilter filter;
+
+	private long negativeCount;
+	private long falsePositiveCount;
+
+	/**
+	 * Constructs a filtered offsets storage.
+	 *
+	 * @param storage
+	 *            The storage to look up the file paths that might be stored
+	 *            in.
+	 * @param filter
+	 *            The filter, holding every file path stored in the storage.
+	 */
+	public FilteredOffsetsStorage(IOffsetsStorage storage, BloomFilter filter) {
+		this.storage = storage;
+		this.filter = filter;
+	}
+
+	/**
+	 * Get the storage behind the filter.
+	 *
+	 * @return The storage.
+	 */
+	public IOffsetsStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Get the filter. It must only be used while holding the lock of this
+	 * storage.
+	 *
+	 * @return The filter.
+	 */
+	public BloomFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Rebuild the filter from the file paths in the storage, dropping the
+	 * removed and evicted ones.
+	 *
+	 * @param filePathUris
+	 *            Every file path URI in the storage.
+	 */
+	public synchronized void rebuild(Collection<String> filePathUris) {
+		filter.clear();
+		for (String filePathUri : filePathUris) {
+			filter.put(filePathUri);
+		}
+	}
+
+	/**
+	 * Get the count of lookups answered by the filter alone.
+	 *
+	 * @return The negative count.
+	 */
+	public synchronized long getNegativeCount() {
+		return negativeCount;
+	}
+
+	/**
+	 * Get the count of lookups the filter passed on to the storage for a file
+	 * path that was not stored.
+	 *
+	 * @return The false positive count.
+	 */
+	public synchronized long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	@Override
+	public synchronized int getCapacity() {
+		return storage.getCapacity();
+	}
+
+	@Override
+	public synchronized void setCapacity(int newCapacity) {
+		storage.setCapacity(newCapacity);
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		ViewportSnapshot viewport = getViewport(filePathUri);
+		return viewport == null ? 0 : viewport.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public synchronized ViewportSnapshot getViewport(String filePathUri) {
+		if (!filter.mightContain(filePathUri)) {
+			negativeCount++;
+			return null;
+		}
+		ViewportSnapshot viewport = Viewports.get(storage, filePathUri);
+		if (viewport == null) {
+			falsePositiveCount++;
+		}
+		return viewport;
+	}
+
+	@Override
+	public synchronized void setViewport(String filePathUri,
+			ViewportSnapshot viewport) {
+		filter.put(filePathUri);
+		Viewports.set(storage, filePathUri, viewport);
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, looking up only the
+	 * ones the filter might contain, in one call to the storage.
+	 */
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		List<String> candidates = new ArrayList<String>(filePathUris.size());
+		for (String filePathUri : filePathUris) {
+			if (filter.mightContain(filePathUri)) {
+				candidates.add(filePathUri);
+			} else {
+				negativeCount++;
+			}
+		}
+		if (candidates.isEmpty()) {
+			return new LinkedHashMap<String, ViewportSnapshot>();
+		}
+		Map<String, ViewportSnapshot> viewports = Viewports.getAll(storage,
+				candidates);
+		falsePositiveCount += candidates.size() - viewports.size();
+		return viewports;
+	}
+
+	@Override
+	public synchronized void setViewports(
+			Map<String, ViewportSnapshot> viewports) {
+		for (String filePathUri : viewports.keySet()) {
+			filter.put(filePathUri);
+		}
+		Viewports.setAll(storage, viewports);
+	}
+
+	@Override
+	public synchronized int size() {
+		return storage.size();
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getMap() {
+		return storage.getMap();
+	}
+
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports() {
+		return Viewports.getAll(storage);
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getOffsetsUnder(String prefix) {
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return Collections.emptyMap();
+		}
+		return ((IPrefixOffsetsStorage) storage).getOffsetsUnder(prefix);
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes to the storage,
+	 * and add the paths moved to to the filter. Moved and removed paths that
+	 * were never stored are dropped first, so they do not reach the storage.
+	 */
+	@Override
+	public synchronized int rekey(PathChanges changes) {
+		if (!(storage instanceof IPrefixOffsetsStorage)) {
+			return 0;
+		}
+		changes = mightBeStored(changes);
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		IPrefixOffsetsStorage prefixStorage = (IPrefixOffsetsStorage) storage;
+		int count = prefixStorage.rekey(changes);
+		if (count == 0) {
+			return 0;
+		}
+		for (String toPath : changes.getPaths().values()) {
+			if (toPath != null) {
+				filter.put(toPath);
+			}
+		}
+		for (String toPrefix : changes.getPrefixes().values()) {
+			if (toPrefix != null) {
+				for (String filePathUri : prefixStorage.getOffsetsUnder(
+						toPrefix).keySet()) {
+					filter.put(filePathUri);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the changes of the paths that might be stored, and of every prefix,
+	 * which the filter can not tell.
+	 */
+	private PathChanges mightBeStored(PathChanges changes) {
+		PathChanges stored = new PathChanges();
+		for (Map.Entry<String, String> path : changes.getPaths().entrySet()) {
+			if (!filter.mightContain(path.getKey())) {
+				negativeCount++;
+			} else if (path.getValue() == null) {
+				stored.remove(path.getKey());
+			} else {
+				stored.move(path.getKey(), path.getValue());
+			}
+		}
+		for (Map.Entry<String, String> prefix : changes.getPrefixes()
+				.entrySet()) {
+			if (prefix.getValue() == null) {
+				stored.removeUnder(prefix.getKey());
+			} else {
+				stored.moveUnder(prefix.getKey(), prefix.getValue());
+			}
+		}
+		return stored;
+	}
+}
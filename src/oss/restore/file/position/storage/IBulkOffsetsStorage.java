@@ -0,0 +1,38 @@
+package oss.restore.file.position.storage;
+
+import java.util.Collection;
+import java.util.Map;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * A viewport storage that can also get and set the snapshots of many file
+ * paths in one call, e.g. every editor of a restored workbench page, paying
+ * its locking, loading and eviction costs once rather than per file.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface IBulkOffsetsStorage extends IViewportStorage {
+
+	/**
+	 * Get the viewport snapshots of several file paths.
+	 *
+	 * @param filePathUris
+	 *            The file path URIs.
+	 * @return A map where the keys are the file path URIs that have a stored
+	 *         snapshot and the values the corresponding snapshots.
+	 */
+	public abstract Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris);
+
+	/**
+	 * Set the viewport snapshots of several file paths, as if set one by one
+	 * in the order of the map. If the capacity of this storage is reached the
+	 * eldest offsets are evicted, once for the whole batch.
+	 *
+	 * @param viewports
+	 *            A map where the keys are the file path URIs and the values
+	 *            the snapshots.
+	 */
+	public abstract void setViewports(Map<String, ViewportSnapshot> viewports);
+}
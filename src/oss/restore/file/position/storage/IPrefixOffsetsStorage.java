@@ -0,0 +1,54 @@
+package oss.restore.file.position.storage;
+
+import java.util.Map;
+
+/**
+ * An offsets storage that can also work on every file path below a common
+ * prefix at once, e.g. all files in a project or folder, such as when it is
+ * moved or deleted.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface IPrefixOffsetsStorage extends IOffsetsStorage {
+
+	/**
+	 * Get the offsets of every file path starting with a prefix.
+	 *
+	 * @param prefix
+	 *            The prefix, e.g. the path of a project.
+	 * @return A map where the keys are the file path URIs and the values the
+	 *         corresponding offsets.
+	 */
+	public abstract Map<String, Integer> getOffsetsUnder(String prefix);
+
+	/**
+	 * Remove the offsets of every file path starting with a prefix.
+	 *
+	 * @param prefix
+	 *            The prefix, e.g. the path of a deleted folder.
+	 * @return The count of removed offsets.
+	 */
+	public abstract int removeUnder(String prefix);
+
+	/**
+	 * Move the offsets of every file path starting with a prefix to the same
+	 * path below another prefix, e.g. when a folder is renamed.
+	 *
+	 * @param fromPrefix
+	 *            The old prefix.
+	 * @param toPrefix
+	 *            The new prefix.
+	 * @return The count of moved offsets.
+	 */
+	public abstract int moveUnder(String fromPrefix, String toPrefix);
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes, e.g. everything
+	 * moved and deleted by one workspace operation, to the stored file paths.
+	 *
+	 * @param changes
+	 *            The changes.
+	 * @return The count of moved and removed offsets.
+	 */
+	public abstract int rekey(PathChanges changes);
+}
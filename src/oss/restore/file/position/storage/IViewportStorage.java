@@ -0,0 +1,44 @@
+package oss.restore.file.position.storage;
+
+import java.util.Map;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage that also keeps the selection length and the top visible
+ * line of each file, so the whole viewport can be restored. Setting a plain
+ * offset stores a snapshot with an empty selection and an unknown top line.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public interface IViewportStorage extends IOffsetsStorage {
+
+	/**
+	 * Get the viewport snapshot of a file path.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @return The snapshot or null if none is stored.
+	 */
+	public abstract ViewportSnapshot getViewport(String filePathUri);
+
+	/**
+	 * Set the viewport snapshot of a file path.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @param viewport
+	 *            The snapshot.
+	 */
+	public abstract void setViewport(String filePathUri,
+			ViewportSnapshot viewport);
+
+	/**
+	 * Get a map representation of the viewport snapshots, in the same order
+	 * as {@link #getMap()}.
+	 *
+	 * @return A map where the keys are the file path URIs and the values the
+	 *         corresponding snapshots.
+	 */
+	public abstract Map<String, ViewportSnapshot> getViewports();
+}
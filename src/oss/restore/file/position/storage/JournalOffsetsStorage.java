@@ -0,0 +1,777 @@
+package oss.restore.file.position.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage that appends every change to a memory-mapped journal file
+ * so that no position is lost if the IDE is killed or crashes.
+ *
+ * The offsets are kept in memory in a {@link PersistentOffsetsStorage} which
+ * is rebuilt on construction by replaying the journal. Each record is
+ *
+ * <pre>
+ * keyLength + 1    int (written last, 0 marks the end of the journal)
+ * offset           int
+ * selectionLength  int
+ * topLine          int
+ * anchorHash       int
+ * anchorLine       int
+ * anchorColumn     int
+ * modifiedMillis   long
+ * key              keyLength UTF-8 bytes
+ * crc              int, CRC32 of the viewport snapshot and key
+ * </pre>
+ *
+ * so a record torn by a crash is detected and ignored on replay. A journal
+ * written by an older version, whose records lack the modified time (version
+ * 3), also the anchor (version 2) or also the selection length and top line
+ * (version 1), is replayed and compacted into the current version when opened.
+ *
+ * Records that have been overwritten or evicted are dead. When there are more
+ * dead records than the compaction threshold, and more dead than live ones, the
+ * live records are rewritten to the next journal generation on a background
+ * thread while new records keep being appended to the current one. As there
+ * is no record for a removed offset, moving or removing offsets below a prefix,
+ * e.g. when files are moved or deleted, starts compacting the journal on that
+ * thread right away, or once the running compaction is done. A compaction
+ * still due when the journal is closed is done by the closing thread.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class JournalOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	/**
+	 * The default number of dead records allowed before compacting.
+	 */
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+	private static final int MAGIC = 0x5246504A; // "RFPJ"
+	private static final int VERSION = 4;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_OVERHEAD_V1 = 12;
+	private static final int RECORD_OVERHEAD = RECORD_OVERHEAD_V1 + 4
+			* ViewportSnapshot.EXTRA_WIDTH;
+	private static final int INITIAL_MAPPED_SIZE = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File baseFile;
+	private final PersistentOffsetsStorage memory;
+	private final ExecutorService compactor;
+	private final CRC32 crc = new CRC32();
+	private final int[] extra = new int[ViewportSnapshot.EXTRA_WIDTH];
+
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	private long generation;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int version;
+	private int writePosition;
+	private int recordCount;
+
+	private boolean compacting;
+	// Offsets were moved or removed after the snapshot of the running
+	// compaction was taken, so another compaction is due.
+	private boolean compactAgain;
+	private List<String> pendingKeys;
+	private List<ViewportSnapshot> pendingViewports;
+
+	/**
+	 * Opens, or creates, a journal offsets storage.
+	 *
+	 * @param baseFile
+	 *            The journal file. Each generation is stored next to it with
+	 *            the generation number as suffix.
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @throws IOException
+	 *             If the journal could not be read or created.
+	 */
+	public JournalOffsetsStorage(File baseFile, int capacity)
+			throws IOException {
+		this(baseFile, capacity, null);
+	}
+
+	/**
+	 * Opens, or creates, a journal offsets storage.
+	 *
+	 * @param baseFile
+	 *            The journal file. Each generation is stored next to it with
+	 *            the generation number as suffix.
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param initialMap
+	 *            The initial mapping to use if no journal exists yet, e.g.
+	 *            migrated from an older storage, with either Integer offsets
+	 *            or viewport snapshots as values. May be null.
+	 * @throws IOException
+	 *             If the journal could not be read or created.
+	 */
+	public JournalOffsetsStorage(File baseFile, int capacity,
+			Map<String, ?> initialMap) throws IOException {
+		this.baseFile = baseFile;
+		this.memory = new PersistentOffsetsStorage(capacity);
+		this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable,
+						"Restore file position journal compactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		generation = findLatestGeneration(baseFile);
+		if (generation < 0) {
+			generation = 1;
+			List<String> keys = new ArrayList<String>();
+			List<ViewportSnapshot> viewports = new ArrayList<ViewportSnapshot>();
+			if (initialMap != null) {
+				for (Map.Entry<String, ?> entry : initialMap.entrySet()) {
+					Object value = entry.getValue();
+					if (entry.getKey() == null || value == null) {
+						continue;
+					}
+					keys.add(entry.getKey());
+					if (value instanceof ViewportSnapshot) {
+						viewports.add((ViewportSnapshot) value);
+					} else {
+						viewports.add(ViewportSnapshot.ofOffset(((Integer) value)
+								.intValue()));
+					}
+				}
+			}
+			writeGeneration(generationFile(baseFile, generation), keys,
+					viewports);
+		}
+		deleteOtherGenerations();
+		open(generationFile(baseFile, generation), true);
+		if (version < VERSION) {
+			startCompaction(false);
+		}
+	}
+
+	/**
+	 * Check if a journal has been written for a base file.
+	 *
+	 * @param baseFile
+	 *            The journal file.
+	 * @return True if there is a journal to replay.
+	 */
+	public static boolean exists(File baseFile) {
+		return findLatestGeneration(baseFile) >= 0;
+	}
+
+	/**
+	 * Delete every generation of a journal that is not open.
+	 *
+	 * @param baseFile
+	 *            The journal file.
+	 * @return True if no generation is left.
+	 */
+	public static boolean delete(File baseFile) {
+		String[] names = baseFile.getAbsoluteFile().getParentFile().list();
+		boolean deleted = true;
+		if (names != null) {
+			for (String name : names) {
+				if (parseGeneration(baseFile, name) >= 0) {
+					deleted &= new File(baseFile.getAbsoluteFile()
+							.getParentFile(), name).delete();
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Move a journal that is not open to another base file in the same
+	 * directory, replacing any journal there. Only the latest generation is
+	 * moved, the others are deleted.
+	 *
+	 * @param baseFile
+	 *            The journal file.
+	 * @param newBaseFile
+	 *            The new journal file.
+	 * @throws IOException
+	 *             If the journal could not be moved.
+	 */
+	public static void rename(File baseFile, File newBaseFile)
+			throws IOException {
+		long latest = findLatestGeneration(baseFile);
+		if (latest < 0) {
+			return;
+		}
+		if (!delete(newBaseFile)) {
+			throw new IOException("Could not delete " + newBaseFile);
+		}
+		File source = generationFile(baseFile, latest);
+		if (!source.renameTo(generationFile(newBaseFile, latest))) {
+			throw new IOException("Could not rename " + source);
+		}
+		delete(baseFile);
+	}
+
+	@Override
+	public synchronized int getCapacity() {
+		return memory.getCapacity();
+	}
+
+	@Override
+	public synchronized void setCapacity(int newCapacity) {
+		memory.setCapacity(newCapacity);
+	}
+
+	@Override
+	public synchronized int getOffset(String filePathUri) {
+		return memory.getOffset(filePathUri);
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public synchronized ViewportSnapshot getViewport(String filePathUri) {
+		return memory.getViewport(filePathUri);
+	}
+
+	@Override
+	public synchronized void setViewport(String filePathUri,
+			ViewportSnapshot viewport) {
+		checkOpen();
+		memory.setViewport(filePathUri, viewport);
+		journal(filePathUri, viewport);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		return memory.getViewports(filePathUris);
+	}
+
+	/**
+	 * Set several viewport snapshots, appending a record for each and
+	 * deciding whether to compact once for the whole batch.
+	 */
+	@Override
+	public synchronized void setViewports(
+			Map<String, ViewportSnapshot> viewports) {
+		checkOpen();
+		memory.setViewports(viewports);
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			journal(entry.getKey(), entry.getValue());
+		}
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized int size() {
+		return memory.size();
+	}
+
+	/**
+	 * Get a map representation of this offsets storage. The map is a copy,
+	 * which is not changed by later offsets.
+	 */
+	@Override
+	public synchronized Map<String, Integer> getMap() {
+		return memory.getMap();
+	}
+
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports() {
+		return memory.getViewports();
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getOffsetsUnder(String prefix) {
+		return memory.getOffsetsUnder(prefix);
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes in memory and, if
+	 * any offset was moved or removed, compact the journal in the background
+	 * so the next generation holds only the new paths.
+	 */
+	@Override
+	public synchronized int rekey(PathChanges changes) {
+		checkOpen();
+		int count = memory.rekey(changes);
+		if (count > 0) {
+			if (compacting || compactor.isShutdown()) {
+				compactAgain = true;
+			} else {
+				try {
+					startCompaction(true);
+				} catch (IOException e) {
+					// Not thrown when compacting in the background.
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Change how many dead records are allowed before compacting.
+	 *
+	 * @param threshold
+	 *            The new threshold.
+	 */
+	public synchronized void setCompactionThreshold(int threshold) {
+		compactionThreshold = threshold;
+	}
+
+	/**
+	 * Get the number of records in the current journal generation that are no
+	 * longer live, i.e. overwritten or evicted.
+	 *
+	 * @return The dead record count.
+	 */
+	public synchronized int getDeadRecordCount() {
+		return recordCount - memory.size();
+	}
+
+	/**
+	 * Get the count of offsets evicted because the capacity was reached,
+	 * including while replaying the journal.
+	 *
+	 * @return The eviction count.
+	 */
+	public synchronized long getEvictionCount() {
+		return memory.getEvictionCount();
+	}
+
+	/**
+	 * Get the number of the current journal generation. It is incremented by
+	 * each compaction.
+	 *
+	 * @return The generation.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Compact the journal on the calling thread.
+	 *
+	 * @throws IOException
+	 *             If the compacted journal could not be written.
+	 */
+	public void compact() throws IOException {
+		synchronized (this) {
+			checkOpen();
+			while (compacting) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		startCompaction(false);
+	}
+
+	/**
+	 * Wait for a running compaction, force all records to disk and close the
+	 * journal. The storage can not be used after this.
+	 *
+	 * @throws IOException
+	 *             If the journal could not be closed.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			compactor.shutdown();
+		}
+		try {
+			compactor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (file != null && compactAgain) {
+				compactAgain = false;
+				startCompaction(false);
+			}
+			if (file != null) {
+				buffer.force();
+				file.close();
+				file = null;
+				buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Snapshot the live records and write them to the next generation, either
+	 * on the compactor thread or on the calling one.
+	 */
+	private void startCompaction(boolean background) throws IOException {
+		final PersistentOffsetsStorage.Snapshot snapshot;
+		final long nextGeneration;
+		synchronized (this) {
+			if (compacting || (background && compactor.isShutdown())) {
+				return;
+			}
+			// Constant time, the snapshot is read outside the lock.
+			snapshot = memory.snapshot();
+			nextGeneration = generation + 1;
+			pendingKeys = new ArrayList<String>();
+			pendingViewports = new ArrayList<ViewportSnapshot>();
+			compacting = true;
+		}
+
+		if (!background) {
+			try {
+				finishCompaction(snapshot, nextGeneration);
+			} finally {
+				compactAgainIfDue();
+			}
+			return;
+		}
+		compactor.execute(new Runnable() {
+			public void run() {
+				try {
+					finishCompaction(snapshot, nextGeneration);
+				} catch (IOException e) {
+					// The current generation is still intact, a later
+					// compaction will retry.
+				}
+				compactAgainIfDue();
+			}
+		});
+	}
+
+	/**
+	 * Start another compaction in the background if offsets were moved or
+	 * removed while compacting. Left to {@link #close()} once shut down.
+	 */
+	private synchronized void compactAgainIfDue() {
+		if (compactAgain && file != null && !compactor.isShutdown()) {
+			compactAgain = false;
+			try {
+				startCompaction(true);
+			} catch (IOException e) {
+				// Not thrown when compacting in the background.
+			}
+		}
+	}
+
+	private void finishCompaction(PersistentOffsetsStorage.Snapshot snapshot,
+			long nextGeneration) throws IOException {
+		File temp = new File(baseFile.getPath() + ".tmp");
+		try {
+			// The bulk of the work happens outside the lock.
+			Map<String, ViewportSnapshot> map = snapshot.getViewports();
+			writeGeneration(temp, new ArrayList<String>(map.keySet()),
+					new ArrayList<ViewportSnapshot>(map.values()));
+
+			synchronized (this) {
+				if (file == null) {
+					return;
+				}
+				// Add what was appended while writing the snapshot.
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(temp,
+								true)));
+				try {
+					writeRecords(out, pendingKeys, pendingViewports);
+				} finally {
+					out.close();
+				}
+
+				File next = generationFile(baseFile, nextGeneration);
+				if (!temp.renameTo(next)) {
+					throw new IOException("Could not rename " + temp);
+				}
+				File previous = generationFile(baseFile, generation);
+				file.close();
+				generation = nextGeneration;
+				open(next, false);
+				recordCount = snapshot.size() + pendingKeys.size();
+				// Might fail if the old generation is still mapped, it is
+				// then deleted the next time the journal is opened.
+				previous.delete();
+			}
+		} finally {
+			synchronized (this) {
+				temp.delete();
+				compacting = false;
+				pendingKeys = null;
+				pendingViewports = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Map a journal generation and, if wanted, replay it into memory.
+	 */
+	private void open(File journal, boolean replay) throws IOException {
+		file = new RandomAccessFile(journal, "rw");
+		int size = (int) Math.max(file.length(), INITIAL_MAPPED_SIZE);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				size);
+		version = buffer.getInt(4);
+		if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+			file.close();
+			file = null;
+			throw new IOException("Not a supported journal: " + journal);
+		}
+
+		int extraLength = extraLength(version);
+		int overhead = RECORD_OVERHEAD_V1 + 4 * extraLength;
+		int position = HEADER_SIZE;
+		int count = 0;
+		byte[] bytes = new byte[256];
+		while (position + 4 <= buffer.limit()) {
+			int length = buffer.getInt(position) - 1;
+			if (length < 0 || position + overhead + length > buffer.limit()) {
+				break;
+			}
+			int offset = buffer.getInt(position + 4);
+			for (int i = 0; i < extraLength; i++) {
+				extra[i] = buffer.getInt(position + 8 + 4 * i);
+			}
+			int keyPosition = position + overhead - 4;
+			if (bytes.length < length) {
+				bytes = new byte[length];
+			}
+			buffer.position(keyPosition);
+			buffer.get(bytes, 0, length);
+			if (buffer.getInt(keyPosition + length) != checksum(crc, offset,
+					extra, extraLength, bytes, length)) {
+				break;
+			}
+			if (replay) {
+				memory.setViewport(new String(bytes, 0, length, UTF8),
+						new ViewportSnapshot(offset, extra, extraLength));
+			}
+			position += overhead + length;
+			count++;
+		}
+
+		// Clear whatever a crash left behind after the last complete record.
+		for (int i = position; i < buffer.limit() && i < position + 4; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		writePosition = position;
+		recordCount = count;
+	}
+
+	/**
+	 * Append the record of a viewport set in memory, and keep it for the next
+	 * generation if compacting.
+	 */
+	private void journal(String filePathUri, ViewportSnapshot viewport) {
+		try {
+			append(filePathUri, viewport);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not append to journal", e);
+		}
+		if (compacting) {
+			pendingKeys.add(filePathUri);
+			pendingViewports.add(viewport);
+		}
+	}
+
+	/**
+	 * Start compacting in the background if there are enough dead records.
+	 */
+	private void compactIfNeeded() {
+		if (!compacting && getDeadRecordCount() >= compactionThreshold
+				&& getDeadRecordCount() > memory.size()) {
+			try {
+				startCompaction(true);
+			} catch (IOException e) {
+				// Not thrown when compacting in the background.
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the mapped journal, growing the mapping if needed.
+	 */
+	private void append(String key, ViewportSnapshot viewport)
+			throws IOException {
+		byte[] bytes = key.getBytes(UTF8);
+		int size = RECORD_OVERHEAD + bytes.length;
+		if (writePosition + size + 4 > buffer.limit()) {
+			long newSize = Math.max(2L * buffer.limit(), writePosition + size
+					+ 4L);
+			if (newSize > Integer.MAX_VALUE) {
+				throw new IOException("Journal is too large");
+			}
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					newSize);
+		}
+		viewport.writeExtra(extra);
+		buffer.putInt(writePosition + 4, viewport.getOffset());
+		for (int i = 0; i < extra.length; i++) {
+			buffer.putInt(writePosition + 8 + 4 * i, extra[i]);
+		}
+		int keyPosition = writePosition + RECORD_OVERHEAD - 4;
+		buffer.position(keyPosition);
+		buffer.put(bytes);
+		buffer.putInt(keyPosition + bytes.length, checksum(crc, viewport
+				.getOffset(), extra, extra.length, bytes, bytes.length));
+		// The length is written last and commits the record.
+		buffer.putInt(writePosition, bytes.length + 1);
+		writePosition += size;
+		recordCount++;
+	}
+
+	/**
+	 * Get the number of ints of the viewport snapshot extra in the records of
+	 * a journal version.
+	 */
+	private static int extraLength(int recordVersion) {
+		switch (recordVersion) {
+		case 1:
+			return 0;
+		case 2:
+			return 2;
+		case 3:
+			return 5;
+		default:
+			return ViewportSnapshot.EXTRA_WIDTH;
+		}
+	}
+
+	private static int checksum(CRC32 crc, int offset, int[] extra,
+			int extraLength, byte[] bytes, int length) {
+		crc.reset();
+		update(crc, offset);
+		for (int i = 0; i < extraLength; i++) {
+			update(crc, extra[i]);
+		}
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private static void update(CRC32 crc, int value) {
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	private static void writeGeneration(File target, List<String> keys,
+			List<ViewportSnapshot> viewports) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(target)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeRecords(out, keys, viewports);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write records to a stream. Safe to call without holding the lock.
+	 */
+	private static void writeRecords(DataOutputStream out, List<String> keys,
+			List<ViewportSnapshot> viewports) throws IOException {
+		CRC32 crc = new CRC32();
+		int[] extra = new int[ViewportSnapshot.EXTRA_WIDTH];
+		for (int i = 0; i < keys.size(); i++) {
+			ViewportSnapshot viewport = viewports.get(i);
+			byte[] bytes = keys.get(i).getBytes(UTF8);
+			viewport.writeExtra(extra);
+			out.writeInt(bytes.length + 1);
+			out.writeInt(viewport.getOffset());
+			for (int j = 0; j < extra.length; j++) {
+				out.writeInt(extra[j]);
+			}
+			out.write(bytes);
+			out.writeInt(checksum(crc, viewport.getOffset(), extra,
+					extra.length, bytes, bytes.length));
+		}
+	}
+
+	private void deleteOtherGenerations() {
+		File dir = baseFile.getAbsoluteFile().getParentFile();
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		String current = generationFile(baseFile, generation).getName();
+		for (String name : names) {
+			if (!name.equals(current)
+					&& (parseGeneration(baseFile, name) >= 0 || name
+							.equals(baseFile.getName() + ".tmp"))) {
+				new File(dir, name).delete();
+			}
+		}
+	}
+
+	private void checkOpen() {
+		if (file == null) {
+			throw new IllegalStateException("Journal is closed");
+		}
+	}
+
+	private static File generationFile(File baseFile, long generation) {
+		return new File(baseFile.getPath() + "." + generation);
+	}
+
+	private static long findLatestGeneration(File baseFile) {
+		String[] names = baseFile.getAbsoluteFile().getParentFile().list();
+		long latest = -1;
+		if (names != null) {
+			for (String name : names) {
+				latest = Math.max(latest, parseGeneration(baseFile, name));
+			}
+		}
+		return latest;
+	}
+
+	private static long parseGeneration(File baseFile, String name) {
+		String prefix = baseFile.getName() + ".";
+		if (name.startsWith(prefix)) {
+			try {
+				return Long.parseLong(name.substring(prefix.length()));
+			} catch (NumberFormatException e) {
+			}
+		}
+		return -1;
+	}
+}
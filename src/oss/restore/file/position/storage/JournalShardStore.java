@@ -0,0 +1,109 @@
+package oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores each shard of a {@link ShardedOffsetsStorage} as a journal in a
+ * directory, so a shard is only written to when an offset in it changes and
+ * nothing is lost if the IDE crashes. The shard names are URL encoded into the
+ * file names.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class JournalShardStore implements ShardedOffsetsStorage.IShardStore {
+
+	private static final String DEFAULT_SHARD_FILE_NAME = "default.journal";
+	private static final String SHARD_FILE_PREFIX = "shard-";
+	private static final String SHARD_FILE_SUFFIX = ".journal";
+
+	private final File dir;
+
+	/**
+	 * Constructs a journal shard store, creating the directory if needed.
+	 *
+	 * @param dir
+	 *            The directory of the journals.
+	 * @throws IOException
+	 *             If the directory could not be created.
+	 */
+	public JournalShardStore(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the journal file of a shard.
+	 *
+	 * @param shard
+	 *            The shard name.
+	 * @return The journal base file.
+	 */
+	public File getJournalFile(String shard) {
+		if (shard.equals(ShardedOffsetsStorage.DEFAULT_SHARD)) {
+			return new File(dir, DEFAULT_SHARD_FILE_NAME);
+		}
+		try {
+			return new File(dir, SHARD_FILE_PREFIX
+					+ URLEncoder.encode(shard, "UTF-8") + SHARD_FILE_SUFFIX);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public IOffsetsStorage open(String shard, int capacity)
+			throws IOException {
+		return new JournalOffsetsStorage(getJournalFile(shard), capacity);
+	}
+
+	public void close(String shard, IOffsetsStorage storage)
+			throws IOException {
+		((JournalOffsetsStorage) storage).close();
+	}
+
+	public void rename(String shard, String newShard) throws IOException {
+		JournalOffsetsStorage.rename(getJournalFile(shard),
+				getJournalFile(newShard));
+	}
+
+	public Set<String> list() {
+		Set<String> shards = new HashSet<String>();
+		String[] names = dir.list();
+		if (names == null) {
+			return shards;
+		}
+		for (String name : names) {
+			// The journal generations have their number as suffix.
+			int dot = name.lastIndexOf('.');
+			String baseName = dot < 0 ? name : name.substring(0, dot);
+			if (baseName.equals(DEFAULT_SHARD_FILE_NAME)) {
+				shards.add(ShardedOffsetsStorage.DEFAULT_SHARD);
+			} else if (baseName.startsWith(SHARD_FILE_PREFIX)
+					&& baseName.endsWith(SHARD_FILE_SUFFIX)) {
+				try {
+					shards.add(URLDecoder.decode(baseName.substring(
+							SHARD_FILE_PREFIX.length(), baseName.length()
+									- SHARD_FILE_SUFFIX.length()), "UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return shards;
+	}
+
+	public boolean exists(String shard) {
+		return JournalOffsetsStorage.exists(getJournalFile(shard));
+	}
+
+	public void delete(String shard) {
+		JournalOffsetsStorage.delete(getJournalFile(shard));
+	}
+}
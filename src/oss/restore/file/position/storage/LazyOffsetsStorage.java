@@ -0,0 +1,410 @@
+package oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage that stands in for another storage while that one is
+ * being loaded in the background.
+ *
+ * Until the loaded storage is set, offsets that are set are kept aside and
+ * applied on top of it once it is available, and lookups wait for it at most a
+ * short timeout before giving up and returning 0. Callers that want the offset
+ * as soon as it is available can register a callback with
+ * {@link #whenLoaded(Runnable)}.
+ *
+ * Viewport snapshots are passed on if the loaded storage keeps them, otherwise
+ * only their offsets are. Moved and removed paths and prefixes are applied to
+ * the offsets kept aside right away, and to the loaded storage once it is
+ * set, if it supports them.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class LazyOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	/**
+	 * The default time to wait for the loaded storage in a lookup.
+	 */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 50;
+
+	private final CountDownLatch loaded = new CountDownLatch(1);
+	private final long timeoutMillis;
+	private final int initialCapacity;
+
+	private volatile IOffsetsStorage storage;
+
+	private final Map<String, ViewportSnapshot> pendingViewports = new LinkedHashMap<String, ViewportSnapshot>();
+	private final List<PathChanges> pendingChanges = new ArrayList<PathChanges>();
+	private final List<Runnable> loadListeners = new ArrayList<Runnable>();
+	private int pendingCapacity = -1;
+	private final long loadStartTime = System.nanoTime();
+	private long loadTimeNanos = -1;
+
+	/**
+	 * Constructs a lazy offsets storage with the default lookup timeout.
+	 *
+	 * @param capacity
+	 *            The capacity reported until the storage is loaded.
+	 */
+	public LazyOffsetsStorage(int capacity) {
+		this(capacity, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Constructs a lazy offsets storage.
+	 *
+	 * @param capacity
+	 *            The capacity reported until the storage is loaded.
+	 * @param timeoutMillis
+	 *            The longest time a lookup waits for the storage to be loaded.
+	 */
+	public LazyOffsetsStorage(int capacity, long timeoutMillis) {
+		this.initialCapacity = capacity;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Set the loaded storage. Offsets set while loading are applied to it and
+	 * the registered callbacks are run on the calling thread.
+	 *
+	 * @param loadedStorage
+	 *            The loaded storage.
+	 */
+	public void setStorage(IOffsetsStorage loadedStorage) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (storage != null) {
+				throw new IllegalStateException("Storage is already loaded");
+			}
+			if (pendingCapacity >= 0) {
+				loadedStorage.setCapacity(pendingCapacity);
+			}
+			// The offsets kept aside are already changed.
+			for (PathChanges changes : pendingChanges) {
+				rekey(loadedStorage, changes);
+			}
+			pendingChanges.clear();
+			for (Map.Entry<String, ViewportSnapshot> entry : pendingViewports
+					.entrySet()) {
+				Viewports.set(loadedStorage, entry.getKey(), entry.getValue());
+			}
+			pendingViewports.clear();
+			loadTimeNanos = System.nanoTime() - loadStartTime;
+			storage = loadedStorage;
+			listeners = new ArrayList<Runnable>(loadListeners);
+			loadListeners.clear();
+		}
+		loaded.countDown();
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Get the loaded storage.
+	 *
+	 * @return The storage or null if it is not loaded yet.
+	 */
+	public IOffsetsStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Check if the storage has been loaded.
+	 *
+	 * @return True if loaded.
+	 */
+	public boolean isLoaded() {
+		return storage != null;
+	}
+
+	/**
+	 * Wait for the storage to be loaded.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return True if loaded, false if the timeout passed first.
+	 */
+	public boolean awaitLoaded(long timeout, TimeUnit unit) {
+		try {
+			return loaded.await(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return isLoaded();
+		}
+	}
+
+	/**
+	 * Run a callback once the storage is loaded. If it already is, the
+	 * callback is run directly on the calling thread, otherwise on the thread
+	 * that sets the loaded storage.
+	 *
+	 * @param callback
+	 *            The callback.
+	 */
+	public void whenLoaded(Runnable callback) {
+		synchronized (this) {
+			if (storage == null) {
+				loadListeners.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	/**
+	 * Get the time it took from constructing this storage until the loaded
+	 * storage was set.
+	 *
+	 * @return The load time in milliseconds, or -1 if not loaded yet.
+	 */
+	public synchronized long getLoadTimeMillis() {
+		return loadTimeNanos < 0 ? -1 : TimeUnit.NANOSECONDS
+				.toMillis(loadTimeNanos);
+	}
+
+	@Override
+	public synchronized void setCapacity(int newCapacity) {
+		if (storage == null) {
+			pendingCapacity = newCapacity;
+		} else {
+			storage.setCapacity(newCapacity);
+		}
+	}
+
+	@Override
+	public synchronized int getCapacity() {
+		if (storage != null) {
+			return storage.getCapacity();
+		}
+		return pendingCapacity >= 0 ? pendingCapacity : initialCapacity;
+	}
+
+	/**
+	 * Get offset from a file path, waiting at most the lookup timeout for the
+	 * storage to be loaded. Returns 0 if it was not loaded in time and no
+	 * offset has been set for the file path since.
+	 */
+	@Override
+	public int getOffset(String filePathUri) {
+		ViewportSnapshot viewport = getViewport(filePathUri);
+		return viewport == null ? 0 : viewport.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	/**
+	 * Get the viewport snapshot of a file path, waiting at most the lookup
+	 * timeout for the storage to be loaded. Returns null if it was not loaded
+	 * in time and no snapshot has been set for the file path since.
+	 */
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		IOffsetsStorage loadedStorage = storage;
+		if (loadedStorage == null
+				&& awaitLoaded(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			loadedStorage = storage;
+		}
+		if (loadedStorage != null) {
+			return Viewports.get(loadedStorage, filePathUri);
+		}
+
+		synchronized (this) {
+			if (storage != null) {
+				return Viewports.get(storage, filePathUri);
+			}
+			return pendingViewports.get(filePathUri);
+		}
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		IOffsetsStorage loadedStorage = storage;
+		if (loadedStorage == null) {
+			synchronized (this) {
+				if (storage == null) {
+					pendingViewports.remove(filePathUri);
+					pendingViewports.put(filePathUri, viewport);
+					return;
+				}
+				loadedStorage = storage;
+			}
+		}
+		Viewports.set(loadedStorage, filePathUri, viewport);
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, waiting for the
+	 * storage at most the timeout once for all of them. Until the storage is
+	 * loaded only the snapshots set while loading are found.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		IOffsetsStorage loadedStorage = storage;
+		if (loadedStorage == null
+				&& awaitLoaded(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			loadedStorage = storage;
+		}
+		if (loadedStorage != null) {
+			return Viewports.getAll(loadedStorage, filePathUris);
+		}
+
+		synchronized (this) {
+			if (storage != null) {
+				return Viewports.getAll(storage, filePathUris);
+			}
+			Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+			for (String filePathUri : filePathUris) {
+				ViewportSnapshot viewport = pendingViewports.get(filePathUri);
+				if (viewport != null) {
+					viewports.put(filePathUri, viewport);
+				}
+			}
+			return viewports;
+		}
+	}
+
+	@Override
+	public void setViewports(Map<String, ViewportSnapshot> viewports) {
+		IOffsetsStorage loadedStorage = storage;
+		if (loadedStorage == null) {
+			synchronized (this) {
+				if (storage == null) {
+					for (Map.Entry<String, ViewportSnapshot> entry : viewports
+							.entrySet()) {
+						pendingViewports.remove(entry.getKey());
+						pendingViewports.put(entry.getKey(), entry.getValue());
+					}
+					return;
+				}
+				loadedStorage = storage;
+			}
+		}
+		Viewports.setAll(loadedStorage, viewports);
+	}
+
+	/**
+	 * Get the count of offsets. Until the storage is loaded this is only the
+	 * count of offsets set while loading.
+	 */
+	@Override
+	public synchronized int size() {
+		return storage == null ? pendingViewports.size() : storage.size();
+	}
+
+	/**
+	 * Get a map representation of this offsets storage. Waits for the storage
+	 * to be loaded.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		return getLoadedStorage().getMap();
+	}
+
+	/**
+	 * Get a map representation of the viewport snapshots. Waits for the
+	 * storage to be loaded.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		return Viewports.getAll(getLoadedStorage());
+	}
+
+	/**
+	 * Get the offsets of every file path starting with a prefix. Waits for
+	 * the storage to be loaded, and returns none if it does not support
+	 * prefixes.
+	 */
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		IOffsetsStorage loadedStorage = getLoadedStorage();
+		if (!(loadedStorage instanceof IPrefixOffsetsStorage)) {
+			return Collections.emptyMap();
+		}
+		return ((IPrefixOffsetsStorage) loadedStorage).getOffsetsUnder(prefix);
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes. Until the storage
+	 * is loaded this does not wait for it, and only the offsets set while
+	 * loading are counted.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		IOffsetsStorage loadedStorage = storage;
+		if (loadedStorage == null) {
+			synchronized (this) {
+				if (storage == null) {
+					pendingChanges.add(changes);
+					return rekeyPending(changes);
+				}
+				loadedStorage = storage;
+			}
+		}
+		return rekey(loadedStorage, changes);
+	}
+
+	private int rekeyPending(PathChanges changes) {
+		int count = 0;
+		Map<String, ViewportSnapshot> rekeyed = new LinkedHashMap<String, ViewportSnapshot>();
+		for (Map.Entry<String, ViewportSnapshot> entry : pendingViewports
+				.entrySet()) {
+			String filePathUri = changes.map(entry.getKey());
+			if (filePathUri != entry.getKey()) {
+				count++;
+			}
+			if (filePathUri != null) {
+				rekeyed.put(filePathUri, entry.getValue());
+			}
+		}
+		pendingViewports.clear();
+		pendingViewports.putAll(rekeyed);
+		return count;
+	}
+
+	private static int rekey(IOffsetsStorage loadedStorage, PathChanges changes) {
+		if (!(loadedStorage instanceof IPrefixOffsetsStorage)) {
+			return 0;
+		}
+		return ((IPrefixOffsetsStorage) loadedStorage).rekey(changes);
+	}
+
+	private IOffsetsStorage getLoadedStorage() {
+		try {
+			loaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading", e);
+		}
+		return storage;
+	}
+}
@@ -0,0 +1,661 @@
+package oss.restore.file.position.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * This stores a set of offsets for file paths outside of the Java heap, so a
+ * capacity of millions of offsets costs the heap, and the garbage collector,
+ * next to nothing. Meant for long position histories, where a
+ * {@link StandardOffsetsStorage} would keep millions of small objects alive.
+ *
+ * The viewport snapshots are fixed size records in a ring of direct buffer
+ * slots, in insertion order, and the file paths are encoded, one to three
+ * bytes per char like modified UTF-8, into a ring of key bytes in the same
+ * order. So the eldest inserted offset is evicted first, freeing the head of
+ * both rings. The records are found through an open addressing hash index of
+ * slot numbers, in a direct buffer as well. The slots and the key bytes start
+ * small and grow by copying the live records into new buffers, which also
+ * drops the records of removed offsets.
+ *
+ * Moved offsets are set again as the newest ones. The map representations
+ * are copies. Like the other storages this is not thread safe.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class OffHeapOffsetsStorage implements IViewportStorage,
+		IPrefixOffsetsStorage {
+
+	private static final int HASH = 0;
+	private static final int KEY_LENGTH = 4;
+	private static final int KEY_POSITION = 8;
+	private static final int OFFSET = 16;
+	private static final int EXTRA = 20;
+	private static final int RECORD_BYTES = EXTRA + 4
+			* ViewportSnapshot.EXTRA_WIDTH;
+
+	private static final int REMOVED = -1;
+	private static final int[] OFFSET_EXTRA = new int[ViewportSnapshot.EXTRA_WIDTH];
+
+	static {
+		ViewportSnapshot.ofOffset(0).writeExtra(OFFSET_EXTRA);
+	}
+	private static final int INITIAL_SLOTS = 1024;
+	private static final int INITIAL_KEY_BYTES_PER_SLOT = 64;
+	private static final int MAX_BUFFER_BYTES = Integer.MAX_VALUE - 8;
+	private static final int MAX_KEY_BYTES = 1 << 30;
+
+	/**
+	 * The largest capacity, so the records fit one buffer with room for the
+	 * records of removed offsets.
+	 */
+	public static final int MAX_CAPACITY = MAX_BUFFER_BYTES / RECORD_BYTES
+			/ 5 * 4;
+
+	private int capacity;
+
+	private ByteBuffer records;
+	private int slotCount;
+	private int headSlot;
+	private int usedSlots;
+	private int size;
+
+	private ByteBuffer keys;
+	private int keyCapacity;
+	private int keyMask;
+	private long keyHead;
+	private long keyTail;
+
+	private LongBuffer index;
+	private int indexMask;
+
+	private long evictionCount;
+
+	private String encodedKey;
+	private byte[] encoded = new byte[256];
+	private ByteBuffer encodedBuffer = ByteBuffer.wrap(encoded);
+	private int encodedLength;
+	private int encodedHash;
+	private char[] decoded = new char[256];
+	private final int[] extra = new int[ViewportSnapshot.EXTRA_WIDTH];
+
+	/**
+	 * Constructs an off-heap offsets storage. Only the buffers for the first
+	 * offsets are allocated.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store,
+	 *            at most {@link #MAX_CAPACITY}.
+	 */
+	public OffHeapOffsetsStorage(int capacity) {
+		if (capacity < 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Illegal capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		int slots = Math.min(getMaxSlotCount(), INITIAL_SLOTS);
+		allocate(slots, Integer.highestOneBit(slots
+				* INITIAL_KEY_BYTES_PER_SLOT - 1) << 1);
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Change the capacity, evicting the eldest offsets above it right away.
+	 */
+	@Override
+	public void setCapacity(int newCapacity) {
+		if (newCapacity < 0 || newCapacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Illegal capacity: "
+					+ newCapacity);
+		}
+		capacity = newCapacity;
+		while (size > capacity) {
+			evictHead();
+		}
+		if (slotCount > getMaxSlotCount()) {
+			compact(getMaxSlotCount(), 0);
+		}
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		int slot = find(filePathUri);
+		return slot < 0 ? 0 : records.getInt(slot * RECORD_BYTES + OFFSET);
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		put(filePathUri, offset, OFFSET_EXTRA);
+	}
+
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		int slot = find(filePathUri);
+		return slot < 0 ? null : readViewport(slot);
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		viewport.writeExtra(extra);
+		put(filePathUri, viewport.getOffset(), extra);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get a map representation of this offsets storage, eldest first. The map
+	 * is a copy.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>(
+				Math.max(16, (int) (size / 0.75f) + 1));
+		for (int i = 0; i < usedSlots; i++) {
+			int slot = slotAt(i);
+			if (isLive(slot)) {
+				map.put(readKey(slot), Integer.valueOf(records.getInt(slot
+						* RECORD_BYTES + OFFSET)));
+			}
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>(
+				Math.max(16, (int) (size / 0.75f) + 1));
+		for (int i = 0; i < usedSlots; i++) {
+			int slot = slotAt(i);
+			if (isLive(slot)) {
+				viewports.put(readKey(slot), readViewport(slot));
+			}
+		}
+		return viewports;
+	}
+
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		// The encoding is per char, so the prefix bytes are a prefix of the
+		// key bytes.
+		encode(prefix);
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < usedSlots; i++) {
+			int slot = slotAt(i);
+			if (isLive(slot) && startsWithEncoded(slot)) {
+				offsets.put(readKey(slot), Integer.valueOf(records.getInt(slot
+						* RECORD_BYTES + OFFSET)));
+			}
+		}
+		return offsets;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes in one pass. The
+	 * moved offsets are set again as the newest ones.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		int count = 0;
+		List<String> movedPaths = new ArrayList<String>();
+		List<ViewportSnapshot> movedViewports = new ArrayList<ViewportSnapshot>();
+		for (int i = 0; i < usedSlots; i++) {
+			int slot = slotAt(i);
+			if (!isLive(slot)) {
+				continue;
+			}
+			String path = readKey(slot);
+			String newPath = changes.map(path);
+			if (newPath == path) {
+				continue;
+			}
+			if (newPath != null) {
+				movedPaths.add(newPath);
+				movedViewports.add(readViewport(slot));
+			}
+			remove(slot);
+			count++;
+		}
+		for (int i = 0; i < movedPaths.size(); i++) {
+			setViewport(movedPaths.get(i), movedViewports.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * Get the count of offsets evicted because the capacity was reached.
+	 *
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Get the size of the direct buffers, outside of the Java heap.
+	 *
+	 * @return The off-heap memory used.
+	 */
+	public long getMemoryBytes() {
+		return (long) records.capacity() + keys.capacity() + 8L
+				* index.capacity();
+	}
+
+	/**
+	 * Set the offset and the rest of the viewport snapshot of a key.
+	 */
+	private void put(String key, int offset, int[] snapshotExtra) {
+		int slot = find(key);
+		if (slot < 0) {
+			if (capacity == 0) {
+				return;
+			}
+			slot = append(key);
+		}
+		int record = slot * RECORD_BYTES;
+		records.putInt(record + OFFSET, offset);
+		for (int i = 0; i < snapshotExtra.length; i++) {
+			records.putInt(record + EXTRA + 4 * i, snapshotExtra[i]);
+		}
+	}
+
+	/**
+	 * Take a slot for a key, evicting the eldest offset if the
+	 * capacity is reached and growing the buffers if they are full.
+	 */
+	private int append(String key) {
+		if (encodedKey != key) {
+			encode(key);
+		}
+		while (size >= capacity) {
+			evictHead();
+		}
+		dropRemovedHead();
+		long position = reserveKey(encodedLength);
+		if (usedSlots == slotCount || position < 0) {
+			int slots = slotCount;
+			if (size >= slotCount / 2) {
+				slots = (int) Math.min(getMaxSlotCount(), 2L * slotCount);
+			}
+			compact(slots, encodedLength);
+			position = reserveKey(encodedLength);
+		}
+
+		int slot = slotAt(usedSlots);
+		usedSlots++;
+		size++;
+		int record = slot * RECORD_BYTES;
+		records.putInt(record + HASH, encodedHash);
+		records.putInt(record + KEY_LENGTH, encodedLength);
+		records.putLong(record + KEY_POSITION, position);
+		int keyOffset = (int) (position & keyMask);
+		for (int i = 0; i < encodedLength; i++) {
+			keys.put(keyOffset + i, encoded[i]);
+		}
+		keyTail = position + encodedLength;
+		if (usedSlots == 1) {
+			keyHead = position;
+		}
+		insertIndex(slot);
+		return slot;
+	}
+
+	/**
+	 * Get the position in the key ring to write a key at, wrapping to the
+	 * start if it does not fit before the end.
+	 *
+	 * @return The position or -1 if the ring is full.
+	 */
+	private long reserveKey(int length) {
+		long position = keyTail;
+		int keyOffset = (int) (position & keyMask);
+		if (keyOffset + length > keyCapacity) {
+			position += keyCapacity - keyOffset;
+		}
+		return position + length - keyHead <= keyCapacity ? position : -1;
+	}
+
+	/**
+	 * Move the live records into new slots from the start, and their keys
+	 * into a new key ring, leaving room for at least a key of the given
+	 * length, and rebuild the index.
+	 */
+	private void compact(int newSlotCount, int minFreeKeyBytes) {
+		long liveKeyBytes = 0;
+		for (int i = 0; i < usedSlots; i++) {
+			int slot = slotAt(i);
+			if (isLive(slot)) {
+				liveKeyBytes += records.getInt(slot * RECORD_BYTES
+						+ KEY_LENGTH);
+			}
+		}
+		long newKeyCapacity = keyCapacity;
+		while (newKeyCapacity - liveKeyBytes < Math.max(minFreeKeyBytes,
+				newKeyCapacity / 4)) {
+			newKeyCapacity *= 2;
+		}
+		if (newKeyCapacity > MAX_KEY_BYTES) {
+			newKeyCapacity = MAX_KEY_BYTES;
+			if (newKeyCapacity - liveKeyBytes < minFreeKeyBytes) {
+				throw new IllegalStateException("Off-heap key buffer is full");
+			}
+		}
+
+		ByteBuffer oldRecords = records;
+		ByteBuffer oldKeys = keys;
+		int oldKeyCapacity = keyCapacity;
+		int oldSlotCount = slotCount;
+		int oldHeadSlot = headSlot;
+		int oldUsedSlots = usedSlots;
+		allocate(newSlotCount, (int) newKeyCapacity);
+
+		int keyOffset = 0;
+		for (int i = 0; i < oldUsedSlots; i++) {
+			int oldRecord = (oldHeadSlot + i) % oldSlotCount * RECORD_BYTES;
+			int length = oldRecords.getInt(oldRecord + KEY_LENGTH);
+			if (length == REMOVED) {
+				continue;
+			}
+			int record = usedSlots * RECORD_BYTES;
+			for (int j = 0; j < RECORD_BYTES; j += 4) {
+				records.putInt(record + j, oldRecords.getInt(oldRecord + j));
+			}
+			records.putLong(record + KEY_POSITION, keyOffset);
+			int oldKeyOffset = (int) (oldRecords.getLong(oldRecord
+					+ KEY_POSITION) % oldKeyCapacity);
+			ByteBuffer key = oldKeys.duplicate();
+			key.limit(oldKeyOffset + length);
+			key.position(oldKeyOffset);
+			keys.position(keyOffset);
+			keys.put(key);
+			keyOffset += length;
+			insertIndex(usedSlots);
+			usedSlots++;
+		}
+		keyTail = keyOffset;
+	}
+
+	/**
+	 * Allocate empty buffers.
+	 */
+	private void allocate(int newSlotCount, int newKeyCapacity) {
+		records = ByteBuffer.allocateDirect(newSlotCount * RECORD_BYTES).order(
+				ByteOrder.nativeOrder());
+		slotCount = newSlotCount;
+		headSlot = 0;
+		usedSlots = 0;
+		keys = ByteBuffer.allocateDirect(newKeyCapacity);
+		keyCapacity = newKeyCapacity;
+		keyMask = newKeyCapacity - 1;
+		keyHead = 0;
+		keyTail = 0;
+		// At most half full, so probe sequences stay short.
+		int indexSize = Integer.highestOneBit(2 * newSlotCount - 1) << 1;
+		index = ByteBuffer.allocateDirect(8 * indexSize).order(
+				ByteOrder.nativeOrder()).asLongBuffer();
+		indexMask = indexSize - 1;
+	}
+
+	/**
+	 * Get the most slots to grow to, a quarter more than the capacity so the
+	 * records of removed offsets are only compacted away now and then.
+	 */
+	private int getMaxSlotCount() {
+		return Math.max(1, capacity + capacity / 4);
+	}
+
+	private int slotAt(int i) {
+		return (headSlot + i) % slotCount;
+	}
+
+	private boolean isLive(int slot) {
+		return records.getInt(slot * RECORD_BYTES + KEY_LENGTH) != REMOVED;
+	}
+
+	/**
+	 * Evict the eldest offset.
+	 */
+	private void evictHead() {
+		dropRemovedHead();
+		removeIndex(headSlot);
+		size--;
+		evictionCount++;
+		dropHead();
+	}
+
+	/**
+	 * Drop the records of removed offsets at the head of the ring.
+	 */
+	private void dropRemovedHead() {
+		while (usedSlots > 0 && !isLive(headSlot)) {
+			dropHead();
+		}
+	}
+
+	private void dropHead() {
+		headSlot = (headSlot + 1) % slotCount;
+		usedSlots--;
+		keyHead = usedSlots == 0 ? keyTail : records.getLong(headSlot
+				* RECORD_BYTES + KEY_POSITION);
+	}
+
+	/**
+	 * Remove an offset, leaving its record in the ring until it reaches the
+	 * head or the ring is compacted.
+	 */
+	private void remove(int slot) {
+		removeIndex(slot);
+		records.putInt(slot * RECORD_BYTES + KEY_LENGTH, REMOVED);
+		size--;
+	}
+
+	/**
+	 * Encode a key into the encoded buffer.
+	 */
+	private void encode(String key) {
+		encodedKey = key;
+		int length = key.length();
+		if (encoded.length < 3 * length) {
+			encoded = new byte[3 * length];
+			encodedBuffer = ByteBuffer.wrap(encoded);
+		}
+		if (decoded.length < length) {
+			decoded = new char[length];
+		}
+		key.getChars(0, length, decoded, 0);
+		// File paths are mostly ASCII, one byte per char, copied in a loop
+		// the JIT can vectorize.
+		int chars = 0;
+		for (int i = 0; i < length; i++) {
+			chars |= decoded[i];
+			encoded[i] = (byte) decoded[i];
+		}
+		if (chars < 0x80) {
+			encodedLength = length;
+			return;
+		}
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			char c = decoded[i];
+			if (c < 0x80) {
+				encoded[n++] = (byte) c;
+			} else if (c < 0x800) {
+				encoded[n++] = (byte) (0xC0 | c >> 6);
+				encoded[n++] = (byte) (0x80 | c & 0x3F);
+			} else {
+				encoded[n++] = (byte) (0xE0 | c >> 12);
+				encoded[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+				encoded[n++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		encodedLength = n;
+	}
+
+	/**
+	 * Mix the high bits of a hash code, cached by the key, into the low ones
+	 * used by the index.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	/**
+	 * Find the slot of a key. The key is only encoded once a record with the
+	 * same hash is found, so looking up a key that is not stored rarely
+	 * encodes it.
+	 *
+	 * @return The slot or -1 if not stored.
+	 */
+	private int find(String key) {
+		encodedHash = mix(key.hashCode());
+		int i = encodedHash & indexMask;
+		while (true) {
+			long entry = index.get(i);
+			if (entry == 0) {
+				return -1;
+			}
+			if ((int) (entry >>> 32) == encodedHash) {
+				int slot = (int) entry - 1;
+				int record = slot * RECORD_BYTES;
+				if (encodedKey != key) {
+					encode(key);
+				}
+				if (records.getInt(record + KEY_LENGTH) == encodedLength
+						&& startsWithEncoded(slot)) {
+					return slot;
+				}
+			}
+			i = (i + 1) & indexMask;
+		}
+	}
+
+	/**
+	 * Check if the key of a slot starts with the encoded key.
+	 */
+	private boolean startsWithEncoded(int slot) {
+		int record = slot * RECORD_BYTES;
+		if (records.getInt(record + KEY_LENGTH) < encodedLength) {
+			return false;
+		}
+		int keyOffset = (int) (records.getLong(record + KEY_POSITION)
+				& keyMask);
+		int i = 0;
+		for (; i + 8 <= encodedLength; i += 8) {
+			if (keys.getLong(keyOffset + i) != encodedBuffer.getLong(i)) {
+				return false;
+			}
+		}
+		for (; i < encodedLength; i++) {
+			if (keys.get(keyOffset + i) != encoded[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a slot to the index. Each entry holds the hash along with the slot
+	 * number plus one, so probing past other keys does not read their
+	 * records.
+	 */
+	private void insertIndex(int slot) {
+		int hash = records.getInt(slot * RECORD_BYTES + HASH);
+		int i = hash & indexMask;
+		while (index.get(i) != 0) {
+			i = (i + 1) & indexMask;
+		}
+		index.put(i, (long) hash << 32 | slot + 1);
+	}
+
+	/**
+	 * Remove a slot from the index, shifting the entries probed past it back
+	 * so no probe sequence is broken.
+	 */
+	private void removeIndex(int slot) {
+		int i = records.getInt(slot * RECORD_BYTES + HASH) & indexMask;
+		while ((int) index.get(i) != slot + 1) {
+			i = (i + 1) & indexMask;
+		}
+		int j = i;
+		while (true) {
+			j = (j + 1) & indexMask;
+			long entry = index.get(j);
+			if (entry == 0) {
+				break;
+			}
+			int home = (int) (entry >>> 32) & indexMask;
+			boolean reachable = i <= j ? i < home && home <= j : i < home
+					|| home <= j;
+			if (!reachable) {
+				index.put(i, entry);
+				i = j;
+			}
+		}
+		index.put(i, 0);
+	}
+
+	private String readKey(int slot) {
+		int record = slot * RECORD_BYTES;
+		int length = records.getInt(record + KEY_LENGTH);
+		int keyOffset = (int) (records.getLong(record + KEY_POSITION)
+				& keyMask);
+		if (decoded.length < length) {
+			decoded = new char[length];
+		}
+		int n = 0;
+		int end = keyOffset + length;
+		for (int i = keyOffset; i < end; i++) {
+			int b = keys.get(i) & 0xFF;
+			if (b < 0x80) {
+				decoded[n++] = (char) b;
+			} else if (b < 0xE0) {
+				decoded[n++] = (char) ((b & 0x1F) << 6 | keys.get(++i) & 0x3F);
+			} else {
+				int b2 = keys.get(++i) & 0x3F;
+				decoded[n++] = (char) ((b & 0x0F) << 12 | b2 << 6
+						| keys.get(++i) & 0x3F);
+			}
+		}
+		return new String(decoded, 0, n);
+	}
+
+	private ViewportSnapshot readViewport(int slot) {
+		int record = slot * RECORD_BYTES;
+		for (int i = 0; i < extra.length; i++) {
+			extra[i] = records.getInt(record + EXTRA + 4 * i);
+		}
+		return new ViewportSnapshot(records.getInt(record + OFFSET), extra);
+	}
+}
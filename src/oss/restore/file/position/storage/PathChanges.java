@@ -0,0 +1,152 @@
+package oss.restore.file.position.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import oss.restore.file.position.collection.CachedIntMap;
+
+/**
+ * A batch of moved and removed file paths, and of moved and removed prefixes
+ * such as folders and projects, to apply to the keys of an offsets storage in
+ * one pass with {@link IPrefixOffsetsStorage#rekey(PathChanges)}.
+ *
+ * Mapping a key is one hash lookup for the paths and one sorted lookup for the
+ * prefixes, however many changes there are. To keep it so a prefix is not
+ * added below another prefix: a change below a moved or removed prefix is
+ * ignored, and a change of a prefix replaces the changes below it. A prefix
+ * change takes precedence over a path change. Prefixes are matched as is, so a
+ * folder prefix should end with the path separator.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PathChanges implements CachedIntMap.IKeyMapper {
+
+	// The new path or prefix, or null if removed.
+	private final Map<String, String> paths = new HashMap<String, String>();
+	private final TreeMap<String, String> prefixes = new TreeMap<String, String>();
+
+	/**
+	 * Move a file path.
+	 *
+	 * @param fromPath
+	 *            The old path.
+	 * @param toPath
+	 *            The new path.
+	 */
+	public void move(String fromPath, String toPath) {
+		paths.put(fromPath, toPath);
+	}
+
+	/**
+	 * Remove a file path.
+	 *
+	 * @param path
+	 *            The path.
+	 */
+	public void remove(String path) {
+		paths.put(path, null);
+	}
+
+	/**
+	 * Move every file path starting with a prefix.
+	 *
+	 * @param fromPrefix
+	 *            The old prefix, e.g. the path of a folder.
+	 * @param toPrefix
+	 *            The new prefix.
+	 */
+	public void moveUnder(String fromPrefix, String toPrefix) {
+		putPrefix(fromPrefix, toPrefix);
+	}
+
+	/**
+	 * Remove every file path starting with a prefix.
+	 *
+	 * @param prefix
+	 *            The prefix, e.g. the path of a deleted folder.
+	 */
+	public void removeUnder(String prefix) {
+		putPrefix(prefix, null);
+	}
+
+	/**
+	 * Check if there are no changes.
+	 *
+	 * @return True if empty.
+	 */
+	public boolean isEmpty() {
+		return paths.isEmpty() && prefixes.isEmpty();
+	}
+
+	/**
+	 * Get the count of path and prefix changes.
+	 *
+	 * @return The change count.
+	 */
+	public int size() {
+		return paths.size() + prefixes.size();
+	}
+
+	/**
+	 * Get the changed file paths.
+	 *
+	 * @return A map where the keys are the old paths and the values the new
+	 *         ones, or null for removed paths.
+	 */
+	public Map<String, String> getPaths() {
+		return Collections.unmodifiableMap(paths);
+	}
+
+	/**
+	 * Get the changed prefixes, none of them starting with another one.
+	 *
+	 * @return A sorted map where the keys are the old prefixes and the values
+	 *         the new ones, or null for removed prefixes.
+	 */
+	public Map<String, String> getPrefixes() {
+		return Collections.unmodifiableMap(prefixes);
+	}
+
+	/**
+	 * Get the path a file path is changed to.
+	 *
+	 * @param path
+	 *            The file path.
+	 * @return The new path, the same path if it is not changed, or null if
+	 *         it is removed.
+	 */
+	public String map(String path) {
+		if (!prefixes.isEmpty()) {
+			// The paths starting with a prefix sort right after it, and no
+			// other prefix sorts between them, so the only candidate is the
+			// greatest prefix not after the path.
+			Map.Entry<String, String> entry = prefixes.floorEntry(path);
+			if (entry != null && path.startsWith(entry.getKey())) {
+				String toPrefix = entry.getValue();
+				return toPrefix == null ? null : toPrefix
+						+ path.substring(entry.getKey().length());
+			}
+		}
+		if (paths.isEmpty() || !paths.containsKey(path)) {
+			return path;
+		}
+		return paths.get(path);
+	}
+
+	private void putPrefix(String fromPrefix, String toPrefix) {
+		Map.Entry<String, String> entry = prefixes.floorEntry(fromPrefix);
+		if (entry != null && fromPrefix.startsWith(entry.getKey())
+				&& !fromPrefix.equals(entry.getKey())) {
+			return;
+		}
+		Iterator<String> below = prefixes.tailMap(fromPrefix, true).keySet()
+				.iterator();
+		while (below.hasNext() && below.next().startsWith(fromPrefix)) {
+			below.remove();
+		}
+		prefixes.put(fromPrefix, toPrefix);
+	}
+}
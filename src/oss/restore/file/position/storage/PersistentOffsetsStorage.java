@@ -0,0 +1,314 @@
+package oss.restore.file.position.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oss.restore.file.position.collection.PersistentHashMap;
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * This stores a set of viewport snapshots for file paths in a
+ * {@link PersistentHashMap}, so {@link #snapshot()} hands out an immutable
+ * snapshot of every offset without copying anything. The snapshot can be read
+ * or serialized by another thread, e.g. to compact a journal, while offsets
+ * keep being set here, and no lock is held meanwhile.
+ *
+ * The eldest inserted offset is evicted first. Each offset keeps the sequence
+ * number it was inserted with, and the offsets are put in that order when
+ * they are iterated, i.e. by the map representations and snapshots. The
+ * eviction order itself is only needed by the writer and is kept in a plain
+ * queue, outside of the snapshots. Like {@link StandardOffsetsStorage} this is
+ * not thread safe, only the snapshots are.
+ *
+ * Every change copies the path to its key, so setting a viewport in a storage
+ * of 100000 offsets takes about 1.6 microseconds, some 16 times the 0.1
+ * microseconds of a {@link StandardOffsetsStorage}, see
+ * {@code SnapshotBenchmark}.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PersistentOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	/**
+	 * An immutable snapshot of the offsets of a storage.
+	 */
+	public static final class Snapshot {
+
+		private final PersistentHashMap<String, Entry> entries;
+
+		Snapshot(PersistentHashMap<String, Entry> entries) {
+			this.entries = entries;
+		}
+
+		/**
+		 * Get the count of offsets.
+		 *
+		 * @return The count.
+		 */
+		public int size() {
+			return entries.size();
+		}
+
+		/**
+		 * Get the viewport snapshot of a file path.
+		 *
+		 * @param filePathUri
+		 *            The file path URI.
+		 * @return The snapshot or null if none is stored.
+		 */
+		public ViewportSnapshot getViewport(String filePathUri) {
+			Entry entry = entries.get(filePathUri);
+			return entry == null ? null : entry.viewport;
+		}
+
+		/**
+		 * Get the viewport snapshots, eldest first. Builds a new map, so
+		 * better called by the thread that reads the snapshot.
+		 *
+		 * @return A map where the keys are the file path URIs and the values
+		 *         the corresponding snapshots.
+		 */
+		public Map<String, ViewportSnapshot> getViewports() {
+			List<Map.Entry<String, Entry>> ordered = new ArrayList<Map.Entry<String, Entry>>(
+					entries.size());
+			for (Map.Entry<String, Entry> entry : entries) {
+				ordered.add(entry);
+			}
+			Collections.sort(ordered, INSERTION_ORDER);
+			Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>(
+					Math.max(16, (int) (ordered.size() / 0.75f) + 1));
+			for (Map.Entry<String, Entry> entry : ordered) {
+				viewports.put(entry.getKey(), entry.getValue().viewport);
+			}
+			return viewports;
+		}
+	}
+
+	/**
+	 * A viewport snapshot and its insertion sequence number.
+	 */
+	private static final class Entry {
+		final ViewportSnapshot viewport;
+		final long sequence;
+
+		Entry(ViewportSnapshot viewport, long sequence) {
+			this.viewport = viewport;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Map.Entry<String, Entry>> INSERTION_ORDER = new Comparator<Map.Entry<String, Entry>>() {
+		public int compare(Map.Entry<String, Entry> first,
+				Map.Entry<String, Entry> second) {
+			long a = first.getValue().sequence;
+			long b = second.getValue().sequence;
+			return a < b ? -1 : (a == b ? 0 : 1);
+		}
+	};
+
+	private PersistentHashMap<String, Entry> entries = PersistentHashMap
+			.empty();
+	private final ArrayDeque<String> insertionOrder = new ArrayDeque<String>();
+	private int capacity;
+	private long nextSequence;
+	private long evictionCount;
+
+	/**
+	 * Constructs a persistent offsets storage.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 */
+	public PersistentOffsetsStorage(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get an immutable snapshot of the offsets, in constant time.
+	 *
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(entries);
+	}
+
+	/**
+	 * Get the count of offsets evicted because the capacity was reached.
+	 *
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Change the capacity. A smaller capacity evicts the eldest offsets when
+	 * the next ones are added.
+	 */
+	@Override
+	public void setCapacity(int newCapacity) {
+		capacity = newCapacity;
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		Entry entry = entries.get(filePathUri);
+		return entry == null ? 0 : entry.viewport.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		Entry entry = entries.get(filePathUri);
+		return entry == null ? null : entry.viewport;
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		Entry entry = entries.get(filePathUri);
+		if (entry != null) {
+			// Keeps its place in the eviction order.
+			entries = entries.plus(filePathUri, new Entry(viewport,
+					entry.sequence));
+			return;
+		}
+		if (capacity <= 0) {
+			return;
+		}
+		while (entries.size() >= capacity) {
+			entries = entries.minus(insertionOrder.removeFirst());
+			evictionCount++;
+		}
+		entries = entries.plus(filePathUri, new Entry(viewport,
+				nextSequence++));
+		insertionOrder.addLast(filePathUri);
+	}
+
+	@Override
+	public Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		for (String filePathUri : filePathUris) {
+			ViewportSnapshot viewport = getViewport(filePathUri);
+			if (viewport != null) {
+				viewports.put(filePathUri, viewport);
+			}
+		}
+		return viewports;
+	}
+
+	@Override
+	public void setViewports(Map<String, ViewportSnapshot> viewports) {
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			setViewport(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Get the viewport snapshots, eldest first. Builds a new map.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		return snapshot().getViewports();
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get a map representation of this offsets storage, eldest first. Builds
+	 * a new map, which is not changed by later offsets.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		Map<String, ViewportSnapshot> viewports = getViewports();
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>(Math
+				.max(16, (int) (viewports.size() / 0.75f) + 1));
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			map.put(entry.getKey(), Integer.valueOf(entry.getValue()
+					.getOffset()));
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, ViewportSnapshot> entry : getViewports()
+				.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				offsets.put(entry.getKey(), Integer.valueOf(entry.getValue()
+						.getOffset()));
+			}
+		}
+		return offsets;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes in one pass. The
+	 * moved offsets keep their place in the eviction order and replace the
+	 * offsets stored at their new paths.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		List<Map.Entry<String, Entry>> changed = new ArrayList<Map.Entry<String, Entry>>();
+		List<String> newKeys = new ArrayList<String>();
+		for (Map.Entry<String, Entry> entry : entries) {
+			String newKey = changes.map(entry.getKey());
+			if (newKey == null || !newKey.equals(entry.getKey())) {
+				changed.add(entry);
+				newKeys.add(newKey);
+			}
+		}
+		for (Map.Entry<String, Entry> entry : changed) {
+			entries = entries.minus(entry.getKey());
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			if (newKeys.get(i) != null) {
+				entries = entries.plus(newKeys.get(i), changed.get(i)
+						.getValue());
+			}
+		}
+		if (!changed.isEmpty()) {
+			// The moved offsets keep their sequence numbers.
+			insertionOrder.clear();
+			insertionOrder.addAll(snapshot().getViewports().keySet());
+		}
+		return changed.size();
+	}
+}
@@ -0,0 +1,295 @@
+package oss.restore.file.position.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import oss.restore.file.position.collection.PositionFileReader;
+import oss.restore.file.position.collection.PositionFileWriter;
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * Moves stored positions between workstations through position files, see
+ * {@link PositionFileWriter}. The file paths are written as portable keys,
+ * e.g. relative to the workspace, so a position follows its file into
+ * another workspace.
+ *
+ * Two position files are merged by streaming through both in key order, so
+ * merging histories of millions of positions only keeps one entry of each in
+ * memory. Of two snapshots of the same file the last modified one wins.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class PositionExchange {
+
+	/**
+	 * Maps the file paths of a workstation to portable keys and back.
+	 */
+	public interface IKeyMapper {
+
+		/**
+		 * Get the portable key of a file path.
+		 *
+		 * @param filePathUri
+		 *            The file path URI.
+		 * @return The key, or null if the file path is not portable, e.g.
+		 *         outside the workspace.
+		 */
+		public String toPortable(String filePathUri);
+
+		/**
+		 * Get the file path of a portable key.
+		 *
+		 * @param key
+		 *            The portable key.
+		 * @return The file path URI, or null if the key has no file path
+		 *         here, e.g. when its project is missing.
+		 */
+		public String toLocal(String key);
+	}
+
+	/**
+	 * Orders imported positions by modified time, the eldest first.
+	 */
+	private static final Comparator<Map.Entry<String, ViewportSnapshot>> BY_MODIFIED = new Comparator<Map.Entry<String, ViewportSnapshot>>() {
+		public int compare(Map.Entry<String, ViewportSnapshot> a,
+				Map.Entry<String, ViewportSnapshot> b) {
+			long aModified = a.getValue().getModifiedMillis();
+			long bModified = b.getValue().getModifiedMillis();
+			if (aModified != bModified) {
+				return aModified < bModified ? -1 : 1;
+			}
+			return a.getKey().compareTo(b.getKey());
+		}
+	};
+
+	private PositionExchange() {
+	}
+
+	/**
+	 * Export positions to a position file. If the file exists the positions
+	 * are merged into it, so one file can collect the positions of several
+	 * workstations. The file is replaced once completely written.
+	 *
+	 * @param viewports
+	 *            The positions to export, by file path URI.
+	 * @param mapper
+	 *            The mapper of the file paths to portable keys. Positions
+	 *            without a portable key are not exported.
+	 * @param file
+	 *            The position file.
+	 * @return The count of positions in the file.
+	 * @throws IOException
+	 *             If the file could not be read or written.
+	 */
+	public static long export(Map<String, ViewportSnapshot> viewports,
+			IKeyMapper mapper, File file) throws IOException {
+		TreeMap<String, ViewportSnapshot> sorted = new TreeMap<String, ViewportSnapshot>();
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			String key = mapper.toPortable(entry.getKey());
+			if (key != null) {
+				ViewportSnapshot previous = sorted.get(key);
+				if (previous == null
+						|| newer(entry.getValue(), previous) == entry
+								.getValue()) {
+					sorted.put(key, entry.getValue());
+				}
+			}
+		}
+
+		File exported = new File(file.getPath() + ".export");
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			PositionFileWriter writer = new PositionFileWriter(
+					new BufferedOutputStream(new FileOutputStream(exported)));
+			try {
+				for (Map.Entry<String, ViewportSnapshot> entry : sorted
+						.entrySet()) {
+					writer.write(entry.getKey(), entry.getValue());
+				}
+			} finally {
+				writer.close();
+			}
+			long count = sorted.size();
+			if (file.isFile()) {
+				count = merge(exported, file, tempFile);
+			} else if (!exported.renameTo(tempFile)) {
+				throw new IOException("Could not rename " + exported);
+			}
+			if (!tempFile.renameTo(file)
+					&& !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Could not replace " + file);
+			}
+			return count;
+		} finally {
+			exported.delete();
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Merge two position files into a third one.
+	 *
+	 * @param first
+	 *            The first position file, whose snapshots win ties.
+	 * @param second
+	 *            The second position file.
+	 * @param target
+	 *            The merged position file, replaced if it exists.
+	 * @return The count of positions in the merged file.
+	 * @throws IOException
+	 *             If a file could not be read or written.
+	 */
+	public static long merge(File first, File second, File target)
+			throws IOException {
+		PositionFileReader firstReader = open(first);
+		try {
+			PositionFileReader secondReader = open(second);
+			try {
+				PositionFileWriter writer = new PositionFileWriter(
+						new BufferedOutputStream(new FileOutputStream(target)));
+				try {
+					return merge(firstReader, secondReader, writer);
+				} finally {
+					writer.close();
+				}
+			} finally {
+				secondReader.close();
+			}
+		} finally {
+			firstReader.close();
+		}
+	}
+
+	/**
+	 * Merge two position files into a third one, streaming through both. Of
+	 * two snapshots of the same key the last modified one is written.
+	 *
+	 * @param first
+	 *            The reader of the first position file, whose snapshots win
+	 *            ties.
+	 * @param second
+	 *            The reader of the second position file.
+	 * @param writer
+	 *            The writer of the merged position file, not closed.
+	 * @return The count of positions written.
+	 * @throws IOException
+	 *             If a file could not be read or written.
+	 */
+	public static long merge(PositionFileReader first,
+			PositionFileReader second, PositionFileWriter writer)
+			throws IOException {
+		long count = 0;
+		boolean hasFirst = first.next();
+		boolean hasSecond = second.next();
+		while (hasFirst || hasSecond) {
+			int order = !hasSecond ? -1 : !hasFirst ? 1 : first.getKey()
+					.compareTo(second.getKey());
+			if (order < 0) {
+				writer.write(first.getKey(), first.getViewport());
+				hasFirst = first.next();
+			} else if (order > 0) {
+				writer.write(second.getKey(), second.getViewport());
+				hasSecond = second.next();
+			} else {
+				writer.write(first.getKey(), newer(first.getViewport(),
+						second.getViewport()));
+				hasFirst = first.next();
+				hasSecond = second.next();
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Import the positions of a position file into a storage. A position is
+	 * imported if its key has a file path here and it was modified after the
+	 * position stored for it, if any. The imported positions are set from
+	 * the eldest to the last modified one, so the storage evicts the eldest
+	 * first, and at most the last modified maxCount ones are kept in memory.
+	 *
+	 * @param file
+	 *            The position file.
+	 * @param mapper
+	 *            The mapper of the portable keys to file paths.
+	 * @param storage
+	 *            The storage to import into.
+	 * @param maxCount
+	 *            The most positions to import, e.g. what the storage holds.
+	 * @return The count of positions imported.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public static int importInto(File file, IKeyMapper mapper,
+			IOffsetsStorage storage, int maxCount) throws IOException {
+		PriorityQueue<Map.Entry<String, ViewportSnapshot>> newest = new PriorityQueue<Map.Entry<String, ViewportSnapshot>>(
+				Math.max(1, Math.min(maxCount, 1024)), BY_MODIFIED);
+		PositionFileReader reader = open(file);
+		try {
+			while (reader.next() && maxCount > 0) {
+				String filePathUri = mapper.toLocal(reader.getKey());
+				if (filePathUri == null) {
+					continue;
+				}
+				ViewportSnapshot viewport = reader.getViewport();
+				ViewportSnapshot stored = Viewports.get(storage, filePathUri);
+				if (stored != null && newer(stored, viewport) == stored) {
+					continue;
+				}
+				Map.Entry<String, ViewportSnapshot> entry = new AbstractMap.SimpleImmutableEntry<String, ViewportSnapshot>(
+						filePathUri, viewport);
+				if (newest.size() < maxCount) {
+					newest.add(entry);
+				} else if (BY_MODIFIED.compare(entry, newest.peek()) > 0) {
+					newest.poll();
+					newest.add(entry);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		List<Map.Entry<String, ViewportSnapshot>> imported = new ArrayList<Map.Entry<String, ViewportSnapshot>>(
+				newest);
+		Collections.sort(imported, BY_MODIFIED);
+		for (Map.Entry<String, ViewportSnapshot> entry : imported) {
+			Viewports.set(storage, entry.getKey(), entry.getValue());
+		}
+		return imported.size();
+	}
+
+	/**
+	 * Get the last modified of two snapshots of the same file.
+	 *
+	 * @return The last modified one, the first one if modified at the same
+	 *         time.
+	 */
+	private static ViewportSnapshot newer(ViewportSnapshot first,
+			ViewportSnapshot second) {
+		return second.getModifiedMillis() > first.getModifiedMillis() ? second
+				: first;
+	}
+
+	private static PositionFileReader open(File file) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(
+				file));
+		try {
+			return new PositionFileReader(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package oss.restore.file.position.storage;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An offsets storage that keeps the file paths in a radix trie, so the long
+ * workspace and project prefixes shared by almost every path are stored only
+ * once, and the offsets are kept as primitive ints in the trie nodes.
+ *
+ * The least recently used offset is evicted when the capacity is reached.
+ * Looking up or setting an offset counts as a use.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class RadixTrieOffsetsStorage implements IPrefixOffsetsStorage {
+
+	private static final char[] EMPTY_LABEL = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	/**
+	 * A trie node. The path of a node is the concatenation of the labels from
+	 * the root down to it, and the children are sorted by the first character
+	 * of their label.
+	 */
+	private static final class Node {
+		char[] label;
+		Node parent;
+		Node[] children = NO_CHILDREN;
+		boolean hasValue;
+		int value;
+
+		// Neighbours in the recency list, only used for nodes with a value.
+		Node older;
+		Node newer;
+
+		Node(char[] label, Node parent) {
+			this.label = label;
+			this.parent = parent;
+		}
+	}
+
+	private final Node root = new Node(EMPTY_LABEL, null);
+	private Node eldest;
+	private Node newest;
+	private int size;
+	private int capacity;
+
+	/**
+	 * Constructs an empty radix trie offsets storage.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 */
+	public RadixTrieOffsetsStorage(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Constructs a radix trie offsets storage.
+	 *
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param initialMap
+	 *            The initial mapping to use, from the eldest to the most
+	 *            recently used entry. E.g. restored from a permanent storage
+	 *            or similar.
+	 */
+	public RadixTrieOffsetsStorage(int capacity, Map<String, Integer> initialMap) {
+		this(capacity);
+		for (Map.Entry<String, Integer> entry : initialMap.entrySet()) {
+			setOffset(entry.getKey(), entry.getValue().intValue());
+		}
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public void setCapacity(int newCapacity) {
+		capacity = newCapacity;
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		Node node = find(filePathUri);
+		if (node == null) {
+			return 0;
+		}
+		markNewest(node);
+		return node.value;
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		Node node = root;
+		int position = 0;
+		int length = filePathUri.length();
+		while (position < length) {
+			int index = childIndex(node, filePathUri.charAt(position));
+			if (index < 0) {
+				Node leaf = new Node(filePathUri.substring(position)
+						.toCharArray(), node);
+				addChild(node, leaf, -index - 1);
+				node = leaf;
+				break;
+			}
+			Node child = node.children[index];
+			int common = commonLength(child.label, filePathUri, position);
+			if (common < child.label.length) {
+				child = split(child, common);
+			}
+			position += common;
+			node = child;
+		}
+
+		node.value = offset;
+		if (node.hasValue) {
+			markNewest(node);
+		} else {
+			node.hasValue = true;
+			size++;
+			linkNewest(node);
+			while (size > capacity && eldest != null) {
+				remove(eldest);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get a map representation of this offsets storage. The map is a copy
+	 * ordered from the least to the most recently used offset.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>(
+				Math.max(16, (int) (size / 0.75f) + 1));
+		for (Node node = eldest; node != null; node = node.newer) {
+			map.put(keyOf(node), Integer.valueOf(node.value));
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		Node node = findPrefix(prefix);
+		if (node != null) {
+			StringBuilder path = new StringBuilder(keyOf(node));
+			collect(node, path, map);
+		}
+		return map;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		Node node = findPrefix(prefix);
+		if (node == null) {
+			return 0;
+		}
+
+		int removed = unlinkAll(node);
+		size -= removed;
+		if (node == root) {
+			root.children = NO_CHILDREN;
+			root.hasValue = false;
+		} else {
+			Node parent = node.parent;
+			removeChild(parent, node);
+			prune(parent);
+		}
+		return removed;
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes. Each prefix is
+	 * moved or removed as a whole subtrie. The moved offsets count as used.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		// Collect the moved offsets before removing anything, so the changes
+		// apply as if at once.
+		Map<String, Integer> moved = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, String> prefix : changes.getPrefixes()
+				.entrySet()) {
+			if (prefix.getValue() == null) {
+				continue;
+			}
+			int length = prefix.getKey().length();
+			for (Map.Entry<String, Integer> entry : getOffsetsUnder(
+					prefix.getKey()).entrySet()) {
+				moved.put(prefix.getValue()
+						+ entry.getKey().substring(length), entry.getValue());
+			}
+		}
+		for (String path : changes.getPaths().keySet()) {
+			Node node = find(path);
+			String newPath = changes.map(path);
+			if (node != null && newPath != null) {
+				moved.put(newPath, Integer.valueOf(node.value));
+			}
+		}
+
+		int count = 0;
+		for (String prefix : changes.getPrefixes().keySet()) {
+			count += removeUnder(prefix);
+		}
+		for (String path : changes.getPaths().keySet()) {
+			// Already gone if below a changed prefix.
+			Node node = find(path);
+			if (node != null) {
+				remove(node);
+				count++;
+			}
+		}
+		for (Map.Entry<String, Integer> entry : moved.entrySet()) {
+			setOffset(entry.getKey(), entry.getValue().intValue());
+		}
+		return count;
+	}
+
+	/**
+	 * Find the node holding the offset of a path.
+	 */
+	private Node find(String key) {
+		Node node = root;
+		int position = 0;
+		int length = key.length();
+		while (position < length) {
+			int index = childIndex(node, key.charAt(position));
+			if (index < 0) {
+				return null;
+			}
+			node = node.children[index];
+			if (length - position < node.label.length
+					|| commonLength(node.label, key, position) < node.label.length) {
+				return null;
+			}
+			position += node.label.length;
+		}
+		return node.hasValue ? node : null;
+	}
+
+	/**
+	 * Find the topmost node whose path starts with a prefix.
+	 */
+	private Node findPrefix(String prefix) {
+		Node node = root;
+		int position = 0;
+		int length = prefix.length();
+		while (position < length) {
+			int index = childIndex(node, prefix.charAt(position));
+			if (index < 0) {
+				return null;
+			}
+			node = node.children[index];
+			int common = commonLength(node.label, prefix, position);
+			if (position + common == length) {
+				return node;
+			}
+			if (common < node.label.length) {
+				return null;
+			}
+			position += common;
+		}
+		return node;
+	}
+
+	/**
+	 * Split the label of a node in two, returning the new parent node that
+	 * holds the first part.
+	 */
+	private Node split(Node node, int at) {
+		Node parent = node.parent;
+		Node middle = new Node(Arrays.copyOfRange(node.label, 0, at), parent);
+		parent.children[childIndex(parent, node.label[0])] = middle;
+		node.label = Arrays.copyOfRange(node.label, at, node.label.length);
+		node.parent = middle;
+		middle.children = new Node[] { node };
+		return middle;
+	}
+
+	/**
+	 * Remove the offset of a node and drop the nodes no longer needed.
+	 */
+	private void remove(Node node) {
+		unlink(node);
+		node.hasValue = false;
+		size--;
+		prune(node);
+	}
+
+	/**
+	 * Remove nodes without value and children upwards from a node, and merge
+	 * the last one with its only child if it has just one left.
+	 */
+	private void prune(Node node) {
+		while (node != root && !node.hasValue && node.children.length == 0) {
+			Node parent = node.parent;
+			removeChild(parent, node);
+			node = parent;
+		}
+		if (node != root && !node.hasValue && node.children.length == 1) {
+			Node child = node.children[0];
+			char[] label = new char[node.label.length + child.label.length];
+			System.arraycopy(node.label, 0, label, 0, node.label.length);
+			System.arraycopy(child.label, 0, label, node.label.length,
+					child.label.length);
+			child.label = label;
+			child.parent = node.parent;
+			node.parent.children[childIndex(node.parent, label[0])] = child;
+		}
+	}
+
+	private int unlinkAll(Node node) {
+		int count = 0;
+		if (node.hasValue) {
+			unlink(node);
+			node.hasValue = false;
+			count++;
+		}
+		for (Node child : node.children) {
+			count += unlinkAll(child);
+		}
+		return count;
+	}
+
+	private void collect(Node node, StringBuilder path,
+			Map<String, Integer> map) {
+		if (node.hasValue) {
+			map.put(path.toString(), Integer.valueOf(node.value));
+		}
+		for (Node child : node.children) {
+			int length = path.length();
+			path.append(child.label);
+			collect(child, path, map);
+			path.setLength(length);
+		}
+	}
+
+	private String keyOf(Node node) {
+		int length = 0;
+		for (Node n = node; n != null; n = n.parent) {
+			length += n.label.length;
+		}
+		char[] key = new char[length];
+		for (Node n = node; n != null; n = n.parent) {
+			length -= n.label.length;
+			System.arraycopy(n.label, 0, key, length, n.label.length);
+		}
+		return new String(key);
+	}
+
+	private void linkNewest(Node node) {
+		node.older = newest;
+		node.newer = null;
+		if (newest == null) {
+			eldest = node;
+		} else {
+			newest.newer = node;
+		}
+		newest = node;
+	}
+
+	private void unlink(Node node) {
+		if (node.older == null) {
+			eldest = node.newer;
+		} else {
+			node.older.newer = node.newer;
+		}
+		if (node.newer == null) {
+			newest = node.older;
+		} else {
+			node.newer.older = node.older;
+		}
+		node.older = null;
+		node.newer = null;
+	}
+
+	private void markNewest(Node node) {
+		if (node != newest) {
+			unlink(node);
+			linkNewest(node);
+		}
+	}
+
+	/**
+	 * Binary search the children of a node by first character.
+	 *
+	 * @return The index of the child, or (-(insertion point) - 1).
+	 */
+	private static int childIndex(Node node, char c) {
+		Node[] children = node.children;
+		int low = 0;
+		int high = children.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			char first = children[middle].label[0];
+			if (first < c) {
+				low = middle + 1;
+			} else if (first > c) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static void addChild(Node node, Node child, int index) {
+		Node[] children = new Node[node.children.length + 1];
+		System.arraycopy(node.children, 0, children, 0, index);
+		children[index] = child;
+		System.arraycopy(node.children, index, children, index + 1,
+				node.children.length - index);
+		node.children = children;
+	}
+
+	private static void removeChild(Node node, Node child) {
+		int index = childIndex(node, child.label[0]);
+		if (node.children.length == 1) {
+			node.children = NO_CHILDREN;
+			return;
+		}
+		Node[] children = new Node[node.children.length - 1];
+		System.arraycopy(node.children, 0, children, 0, index);
+		System.arraycopy(node.children, index + 1, children, index,
+				children.length - index);
+		node.children = children;
+	}
+
+	private static int commonLength(char[] label, String key, int position) {
+		int max = Math.min(label.length, key.length() - position);
+		int i = 0;
+		while (i < max && label[i] == key.charAt(position + i)) {
+			i++;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,557 @@
+package oss.restore.file.position.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * An offsets storage split into shards, e.g. one per project, that are opened
+ * from a shard store only when a file path in them is first looked up or set,
+ * and closed again when no longer needed, e.g. when the project is closed.
+ * Starting up then costs nothing, and only the shards in use take memory.
+ *
+ * Each file path belongs to the shard named by a resolver, or to the
+ * {@link #DEFAULT_SHARD} if it names none. Every shard has the capacity of
+ * this storage. The size and map representations cover the open shards only.
+ *
+ * Moved paths and prefixes are applied to the open shards, and to the stored
+ * shards their old paths belong to, and offsets moved into another shard are
+ * moved over to it. A shard that is not stored is not created just to remove
+ * from it.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ShardedOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	/**
+	 * The shard of the file paths that belong to no other shard.
+	 */
+	public static final String DEFAULT_SHARD = "";
+
+	/**
+	 * Names the shard a file path belongs to.
+	 */
+	public interface IShardResolver {
+
+		/**
+		 * Get the shard a file path belongs to.
+		 *
+		 * @param filePathUri
+		 *            The file path URI.
+		 * @return The shard name, e.g. the project name, or null for the
+		 *         default shard.
+		 */
+		String getShard(String filePathUri);
+	}
+
+	/**
+	 * Opens and closes the storages of the shards, e.g. files in a
+	 * directory.
+	 */
+	public interface IShardStore {
+
+		/**
+		 * Open the storage of a shard, creating it if it does not exist.
+		 *
+		 * @param shard
+		 *            The shard name.
+		 * @param capacity
+		 *            The capacity of the storage.
+		 * @return The storage.
+		 * @throws IOException
+		 *             If the shard could not be read or created.
+		 */
+		IOffsetsStorage open(String shard, int capacity) throws IOException;
+
+		/**
+		 * Close the storage of a shard, writing what is not written yet.
+		 *
+		 * @param shard
+		 *            The shard name.
+		 * @param storage
+		 *            The storage opened for the shard.
+		 * @throws IOException
+		 *             If the shard could not be written.
+		 */
+		void close(String shard, IOffsetsStorage storage) throws IOException;
+
+		/**
+		 * Rename a closed shard. A shard already stored with the new name is
+		 * replaced.
+		 *
+		 * @param shard
+		 *            The shard name.
+		 * @param newShard
+		 *            The new shard name.
+		 * @throws IOException
+		 *             If the shard could not be renamed.
+		 */
+		void rename(String shard, String newShard) throws IOException;
+
+		/**
+		 * List the stored shards.
+		 *
+		 * @return The shard names.
+		 */
+		Set<String> list();
+
+		/**
+		 * Check if a shard is stored.
+		 *
+		 * @param shard
+		 *            The shard name.
+		 * @return True if the shard has been written.
+		 */
+		boolean exists(String shard);
+
+		/**
+		 * Delete a closed shard.
+		 *
+		 * @param shard
+		 *            The shard name.
+		 */
+		void delete(String shard);
+	}
+
+	private final IShardResolver resolver;
+	private final IShardStore store;
+	private final Map<String, IOffsetsStorage> shards = new LinkedHashMap<String, IOffsetsStorage>();
+	private int capacity;
+	private long openCount;
+
+	/**
+	 * Constructs a sharded offsets storage. No shard is opened until it is
+	 * used.
+	 *
+	 * @param resolver
+	 *            The resolver of the shard of each file path.
+	 * @param store
+	 *            The store of the shards.
+	 * @param capacity
+	 *            The capacity of each shard, i.e. how many offsets to store.
+	 */
+	public ShardedOffsetsStorage(IShardResolver resolver, IShardStore store,
+			int capacity) {
+		this.resolver = resolver;
+		this.store = store;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the shard a file path belongs to.
+	 *
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @return The shard name.
+	 */
+	public String getShard(String filePathUri) {
+		String shard = resolver.getShard(filePathUri);
+		return shard == null ? DEFAULT_SHARD : shard;
+	}
+
+	/**
+	 * Get the names of the open shards.
+	 *
+	 * @return The shard names, sorted.
+	 */
+	public synchronized Set<String> getOpenShards() {
+		return Collections.unmodifiableSet(new TreeSet<String>(shards
+				.keySet()));
+	}
+
+	/**
+	 * Get the count of shards opened since this storage was constructed.
+	 *
+	 * @return The open count.
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Read the file paths of every stored shard, e.g. to rebuild a filter of
+	 * them. The shards that were not open are closed again.
+	 *
+	 * @return The file path URIs.
+	 * @throws IOException
+	 *             If a shard could not be closed again.
+	 */
+	public synchronized List<String> readFilePaths() throws IOException {
+		List<String> filePathUris = new ArrayList<String>();
+		Set<String> stored = new TreeSet<String>(store.list());
+		stored.addAll(shards.keySet());
+		for (String shard : stored) {
+			boolean wasOpen = shards.containsKey(shard);
+			filePathUris.addAll(open(shard).getMap().keySet());
+			if (!wasOpen) {
+				closeShard(shard);
+			}
+		}
+		return filePathUris;
+	}
+
+	/**
+	 * Read the viewport snapshots of every stored shard, e.g. to export them.
+	 * The shards that were not open are closed again.
+	 *
+	 * @return The snapshots by file path URI.
+	 * @throws IOException
+	 *             If a shard could not be closed again.
+	 */
+	public synchronized Map<String, ViewportSnapshot> readViewports()
+			throws IOException {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		Set<String> stored = new TreeSet<String>(store.list());
+		stored.addAll(shards.keySet());
+		for (String shard : stored) {
+			boolean wasOpen = shards.containsKey(shard);
+			viewports.putAll(Viewports.getAll(open(shard)));
+			if (!wasOpen) {
+				closeShard(shard);
+			}
+		}
+		return viewports;
+	}
+
+	/**
+	 * Close a shard and drop it from memory, e.g. when its project is closed.
+	 * It is opened again when next used.
+	 *
+	 * @param shard
+	 *            The shard name.
+	 * @throws IOException
+	 *             If the shard could not be written.
+	 */
+	public synchronized void closeShard(String shard) throws IOException {
+		IOffsetsStorage storage = shards.remove(shard);
+		if (storage != null) {
+			store.close(shard, storage);
+		}
+	}
+
+	/**
+	 * Rename a shard, e.g. when its project is renamed, and open it. The
+	 * offsets in it keep their file paths until moved with
+	 * {@link #rekey(PathChanges)}.
+	 *
+	 * @param shard
+	 *            The shard name.
+	 * @param newShard
+	 *            The new shard name.
+	 * @throws IOException
+	 *             If the shard could not be renamed.
+	 */
+	public synchronized void renameShard(String shard, String newShard)
+			throws IOException {
+		closeShard(shard);
+		closeShard(newShard);
+		store.rename(shard, newShard);
+		open(newShard);
+	}
+
+	/**
+	 * Delete a shard and its offsets, e.g. when its project is deleted.
+	 *
+	 * @param shard
+	 *            The shard name.
+	 * @throws IOException
+	 *             If the open shard could not be closed first.
+	 */
+	public synchronized void deleteShard(String shard) throws IOException {
+		closeShard(shard);
+		store.delete(shard);
+	}
+
+	/**
+	 * Close every open shard. The storage can be used again after this,
+	 * opening the shards again.
+	 *
+	 * @throws IOException
+	 *             If a shard could not be written, after closing the others.
+	 */
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (String shard : new ArrayList<String>(shards.keySet())) {
+			try {
+				closeShard(shard);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized void setCapacity(int newCapacity) {
+		capacity = newCapacity;
+		for (IOffsetsStorage storage : shards.values()) {
+			storage.setCapacity(newCapacity);
+		}
+	}
+
+	@Override
+	public synchronized int getOffset(String filePathUri) {
+		return open(getShard(filePathUri)).getOffset(filePathUri);
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public synchronized ViewportSnapshot getViewport(String filePathUri) {
+		return Viewports.get(open(getShard(filePathUri)), filePathUri);
+	}
+
+	@Override
+	public synchronized void setViewport(String filePathUri,
+			ViewportSnapshot viewport) {
+		Viewports.set(open(getShard(filePathUri)), filePathUri, viewport);
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, opening each shard
+	 * they belong to once and looking them up in one call per shard.
+	 */
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		Map<String, List<String>> byShard = new LinkedHashMap<String, List<String>>();
+		for (String filePathUri : filePathUris) {
+			String shard = getShard(filePathUri);
+			List<String> shardPaths = byShard.get(shard);
+			if (shardPaths == null) {
+				shardPaths = new ArrayList<String>();
+				byShard.put(shard, shardPaths);
+			}
+			shardPaths.add(filePathUri);
+		}
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		for (Map.Entry<String, List<String>> entry : byShard.entrySet()) {
+			viewports.putAll(Viewports.getAll(open(entry.getKey()), entry
+					.getValue()));
+		}
+		return viewports;
+	}
+
+	/**
+	 * Set several viewport snapshots, in one call per shard.
+	 */
+	@Override
+	public synchronized void setViewports(
+			Map<String, ViewportSnapshot> viewports) {
+		Map<String, Map<String, ViewportSnapshot>> byShard = new LinkedHashMap<String, Map<String, ViewportSnapshot>>();
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			String shard = getShard(entry.getKey());
+			Map<String, ViewportSnapshot> shardViewports = byShard.get(shard);
+			if (shardViewports == null) {
+				shardViewports = new LinkedHashMap<String, ViewportSnapshot>();
+				byShard.put(shard, shardViewports);
+			}
+			shardViewports.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Map<String, ViewportSnapshot>> entry : byShard
+				.entrySet()) {
+			Viewports.setAll(open(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Get the count of offsets in the open shards.
+	 */
+	@Override
+	public synchronized int size() {
+		int size = 0;
+		for (IOffsetsStorage storage : shards.values()) {
+			size += storage.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Get a map representation of the offsets in the open shards. The map is
+	 * a copy.
+	 */
+	@Override
+	public synchronized Map<String, Integer> getMap() {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (IOffsetsStorage storage : shards.values()) {
+			map.putAll(storage.getMap());
+		}
+		return map;
+	}
+
+	/**
+	 * Get a map representation of the viewport snapshots in the open shards.
+	 */
+	@Override
+	public synchronized Map<String, ViewportSnapshot> getViewports() {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		for (IOffsetsStorage storage : shards.values()) {
+			viewports.putAll(Viewports.getAll(storage));
+		}
+		return viewports;
+	}
+
+	/**
+	 * Get the offsets of every file path starting with a prefix, in the open
+	 * shards and the shard of the prefix itself.
+	 */
+	@Override
+	public synchronized Map<String, Integer> getOffsetsUnder(String prefix) {
+		open(getShard(prefix));
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (IOffsetsStorage storage : shards.values()) {
+			if (storage instanceof IPrefixOffsetsStorage) {
+				offsets.putAll(((IPrefixOffsetsStorage) storage)
+						.getOffsetsUnder(prefix));
+			}
+		}
+		return offsets;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes to the open shards
+	 * and the stored shards of the old paths, moving the offsets whose new
+	 * path is in another shard over to it.
+	 */
+	@Override
+	public synchronized int rekey(PathChanges changes) {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		for (String path : changes.getPaths().keySet()) {
+			openIfStored(getShard(path));
+		}
+		for (String prefix : changes.getPrefixes().keySet()) {
+			openIfStored(getShard(prefix));
+		}
+
+		int count = 0;
+		List<String> movedPaths = new ArrayList<String>();
+		List<ViewportSnapshot> movedViewports = new ArrayList<ViewportSnapshot>();
+		for (Map.Entry<String, IOffsetsStorage> shard : new ArrayList<Map.Entry<String, IOffsetsStorage>>(
+				shards.entrySet())) {
+			if (!(shard.getValue() instanceof IPrefixOffsetsStorage)) {
+				continue;
+			}
+			IPrefixOffsetsStorage storage = (IPrefixOffsetsStorage) shard
+					.getValue();
+			// Find the offsets leaving the shard before moving them within
+			// it.
+			PathChanges leaving = new PathChanges();
+			for (Map.Entry<String, ViewportSnapshot> entry : getMoved(storage,
+					changes).entrySet()) {
+				String path = changes.map(entry.getKey());
+				if (!getShard(path).equals(shard.getKey())) {
+					leaving.remove(path);
+					movedPaths.add(path);
+					movedViewports.add(entry.getValue());
+				}
+			}
+			count += storage.rekey(changes);
+			if (!leaving.isEmpty()) {
+				storage.rekey(leaving);
+			}
+		}
+		// Moved over only once every shard has been rekeyed, so no change is
+		// applied twice.
+		for (int i = 0; i < movedPaths.size(); i++) {
+			setViewport(movedPaths.get(i), movedViewports.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * Get the viewport snapshots of a shard that are moved to another path,
+	 * looking up the moved paths and the offsets under the moved prefixes
+	 * only.
+	 */
+	private static Map<String, ViewportSnapshot> getMoved(
+			IPrefixOffsetsStorage storage, PathChanges changes) {
+		Set<String> candidates = new LinkedHashSet<String>();
+		for (Map.Entry<String, String> path : changes.getPaths().entrySet()) {
+			if (path.getValue() != null) {
+				candidates.add(path.getKey());
+			}
+		}
+		for (Map.Entry<String, String> prefix : changes.getPrefixes()
+				.entrySet()) {
+			if (prefix.getValue() != null) {
+				candidates.addAll(storage.getOffsetsUnder(prefix.getKey())
+						.keySet());
+			}
+		}
+		if (candidates.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, ViewportSnapshot> moved = new LinkedHashMap<String, ViewportSnapshot>();
+		for (Map.Entry<String, ViewportSnapshot> entry : Viewports.getAll(
+				storage, candidates).entrySet()) {
+			String newPath = changes.map(entry.getKey());
+			if (newPath != null && !newPath.equals(entry.getKey())) {
+				moved.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Open a shard unless it is open already or not stored.
+	 */
+	private void openIfStored(String shard) {
+		if (!shards.containsKey(shard) && store.exists(shard)) {
+			open(shard);
+		}
+	}
+
+	/**
+	 * Get the storage of a shard, opening it if needed.
+	 */
+	private IOffsetsStorage open(String shard) {
+		IOffsetsStorage storage = shards.get(shard);
+		if (storage == null) {
+			try {
+				storage = store.open(shard, capacity);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open shard "
+						+ shard, e);
+			}
+			shards.put(shard, storage);
+			openCount++;
+		}
+		return storage;
+	}
+}
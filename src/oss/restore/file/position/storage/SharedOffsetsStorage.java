@@ -0,0 +1,814 @@
+package oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * This stores a set of viewport snapshots for file paths in a memory mapped
+ * file that several processes, e.g. Eclipse instances running side by side,
+ * use at the same time. Every read and write goes to the mapped file, so each
+ * process sees the offsets set by the others right away, without reading the
+ * file again.
+ *
+ * The file is a header followed by an open addressing hash table of fixed size
+ * records, found by linear probing. Each record holds the hash and UTF-8 bytes
+ * of its file path, its viewport snapshot and its version: the change count of
+ * the file when the record was last written. The change count, in the header,
+ * is increased by every write, so the record written least recently by any
+ * process is the one with the lowest version.
+ *
+ * The processes take turns through a lock on the whole file, shared to read
+ * and exclusive to write. File locks are held per process, so within a process
+ * the storages take turns on a common monitor too. When the capacity is
+ * reached, the offset written least recently by any process is evicted. The
+ * versions of the oldest records are collected a batch at a time, so storing a
+ * new file into a full table scans all slots only once per batch of
+ * evictions. The table is sized by the process creating the file, so the
+ * capacity can be lowered but not raised beyond three quarters of its slots.
+ * File paths longer than {@link #MAX_KEY_BYTES} are not stored.
+ *
+ * A change can take several steps, e.g. shifting records back after a
+ * removal, so the table is flagged as dirty while it is changed. If a process
+ * dies meanwhile, the flag stays set and the next process to open or change
+ * the file rebuilds the table from the records that are intact.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class SharedOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
+
+	private static final int MAGIC = 0x52465053; // "RFPS"
+	private static final int FORMAT_VERSION = 1;
+
+	// Header fields.
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_SLOTS = 8;
+	private static final int HEADER_CAPACITY = 12;
+	private static final int HEADER_SIZE = 16;
+	private static final int HEADER_DIRTY = 20;
+	private static final int HEADER_CHANGE_COUNT = 24;
+	private static final int HEADER_BYTES = 64;
+
+	// Record fields, relative to the record.
+	private static final int HASH = 0;
+	private static final int KEY_LENGTH = 4;
+	private static final int VERSION = 8;
+	private static final int OFFSET = 16;
+	private static final int EXTRA = 20;
+	private static final int KEY = EXTRA + 4 * ViewportSnapshot.EXTRA_WIDTH;
+	private static final int RECORD_BYTES = 512;
+
+	/**
+	 * The longest file path stored, in UTF-8 bytes.
+	 */
+	public static final int MAX_KEY_BYTES = RECORD_BYTES - KEY;
+
+	private static final int EMPTY = 0;
+
+	// How many of the oldest records are collected for eviction at a time.
+	private static final int EVICTION_BATCH = 256;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * File locks are held per process, so the storages of one process take
+	 * turns here first.
+	 */
+	private static final Object PROCESS_LOCK = new Object();
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+	private final int mask;
+	private final int[] extra = new int[ViewportSnapshot.EXTRA_WIDTH];
+	// The versions and hashes of the oldest records, oldest first, as of the
+	// last scan. Records written since have higher versions, so the first one
+	// still in the table is the oldest record.
+	private final long[] evictionVersions = new long[EVICTION_BATCH];
+	private final int[] evictionHashes = new int[EVICTION_BATCH];
+	private int evictionNext;
+	private int evictionEnd;
+	private boolean closed;
+	private long evictionCount;
+
+	/**
+	 * Opens a shared offsets storage, creating its file if it does not exist.
+	 *
+	 * @param path
+	 *            The shared file.
+	 * @param capacity
+	 *            The capacity of the storage if the file is created, i.e. how
+	 *            many offsets to store. An existing file keeps its capacity.
+	 * @throws IOException
+	 *             If the file could not be opened or created, or is not a
+	 *             shared offsets file.
+	 */
+	public SharedOffsetsStorage(File path, int capacity) throws IOException {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Illegal capacity: " + capacity);
+		}
+		file = new RandomAccessFile(path, "rw");
+		try {
+			channel = file.getChannel();
+			int slots;
+			synchronized (PROCESS_LOCK) {
+				FileLock lock = channel.lock();
+				try {
+					if (file.length() == 0) {
+						slots = Integer
+								.highestOneBit(capacity + capacity / 3 + 1) << 1;
+						file.setLength(HEADER_BYTES + (long) slots
+								* RECORD_BYTES);
+						buffer = map();
+						buffer.putInt(HEADER_MAGIC, MAGIC);
+						buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+						buffer.putInt(HEADER_SLOTS, slots);
+						buffer.putInt(HEADER_CAPACITY, Math.min(capacity,
+								maxCapacity(slots)));
+					} else {
+						if (file.length() < HEADER_BYTES) {
+							throw new IOException(
+									"Not a supported shared offsets file: "
+											+ path);
+						}
+						buffer = map();
+						slots = buffer.getInt(HEADER_SLOTS);
+						if (buffer.getInt(HEADER_MAGIC) != MAGIC
+								|| buffer.getInt(HEADER_VERSION) != FORMAT_VERSION
+								|| Integer.bitCount(slots) != 1
+								|| file.length() != HEADER_BYTES + (long) slots
+										* RECORD_BYTES) {
+							throw new IOException(
+									"Not a supported shared offsets file: "
+											+ path);
+						}
+						if (buffer.getInt(HEADER_DIRTY) != 0) {
+							rebuild(slots);
+							buffer.putInt(HEADER_DIRTY, 0);
+						}
+					}
+				} finally {
+					lock.release();
+				}
+			}
+			slotCount = slots;
+			mask = slots - 1;
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer map() throws IOException {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+				0, file.length());
+		mapped.order(ByteOrder.BIG_ENDIAN);
+		return mapped;
+	}
+
+	private static int maxCapacity(int slots) {
+		return slots / 4 * 3;
+	}
+
+	/**
+	 * Get the count of offsets this storage evicted because the capacity was
+	 * reached.
+	 *
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		synchronized (PROCESS_LOCK) {
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * Close the file. The mapping is released once garbage collected.
+	 *
+	 * @throws IOException
+	 *             If the file could not be closed.
+	 */
+	public void close() throws IOException {
+		synchronized (PROCESS_LOCK) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			buffer.force();
+			file.close();
+		}
+	}
+
+	@Override
+	public int getCapacity() {
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lock(true);
+			try {
+				return buffer.getInt(HEADER_CAPACITY);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Change the capacity of the file for every process, at most three
+	 * quarters of its slots. A smaller capacity evicts the offsets written
+	 * least recently right away.
+	 */
+	@Override
+	public void setCapacity(int newCapacity) {
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lockToChange();
+			try {
+				int capacity = Math.max(0, Math.min(newCapacity,
+						maxCapacity(slotCount)));
+				buffer.putInt(HEADER_CAPACITY, capacity);
+				while (buffer.getInt(HEADER_SIZE) > capacity) {
+					evictOldest();
+				}
+				buffer.putInt(HEADER_DIRTY, 0);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	@Override
+	public int getOffset(String filePathUri) {
+		ViewportSnapshot viewport = getViewport(filePathUri);
+		return viewport == null ? 0 : viewport.getOffset();
+	}
+
+	@Override
+	public void setOffset(String filePathUri, int offset) {
+		setViewport(filePathUri, ViewportSnapshot.ofOffset(offset));
+	}
+
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		byte[] key = filePathUri.getBytes(UTF8);
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lock(true);
+			try {
+				int slot = find(key, hash(key));
+				return slot < 0 ? null : readViewport(slot);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		byte[] key = filePathUri.getBytes(UTF8);
+		if (key.length > MAX_KEY_BYTES) {
+			return;
+		}
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lockToChange();
+			try {
+				put(key, viewport);
+				buffer.putInt(HEADER_DIRTY, 0);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, holding the file lock
+	 * once.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lock(true);
+			try {
+				for (String filePathUri : filePathUris) {
+					byte[] key = filePathUri.getBytes(UTF8);
+					int slot = find(key, hash(key));
+					if (slot >= 0) {
+						viewports.put(filePathUri, readViewport(slot));
+					}
+				}
+			} finally {
+				release(lock);
+			}
+		}
+		return viewports;
+	}
+
+	/**
+	 * Set the viewport snapshots of several file paths, holding the file lock
+	 * once.
+	 */
+	@Override
+	public void setViewports(Map<String, ViewportSnapshot> viewports) {
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lockToChange();
+			try {
+				for (Map.Entry<String, ViewportSnapshot> entry : viewports
+						.entrySet()) {
+					byte[] key = entry.getKey().getBytes(UTF8);
+					if (key.length <= MAX_KEY_BYTES) {
+						put(key, entry.getValue());
+					}
+				}
+				buffer.putInt(HEADER_DIRTY, 0);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Get the viewport snapshots, written least recently first. Builds a new
+	 * map.
+	 */
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lock(true);
+			try {
+				return readViewports(-1);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lock(true);
+			try {
+				return buffer.getInt(HEADER_SIZE);
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Get a map representation of this offsets storage, written least
+	 * recently first. Builds a new map.
+	 */
+	@Override
+	public Map<String, Integer> getMap() {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, ViewportSnapshot> entry : getViewports()
+				.entrySet()) {
+			map.put(entry.getKey(), Integer.valueOf(entry.getValue()
+					.getOffset()));
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, ViewportSnapshot> entry : getViewports()
+				.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				offsets.put(entry.getKey(), Integer.valueOf(entry.getValue()
+						.getOffset()));
+			}
+		}
+		return offsets;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes in one pass over
+	 * the records, holding the file lock once. The moved offsets are written
+	 * again, so they count as changes.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		synchronized (PROCESS_LOCK) {
+			FileLock lock = lockToChange();
+			try {
+				Map<String, ViewportSnapshot> moved = new LinkedHashMap<String, ViewportSnapshot>();
+				List<byte[]> changed = new ArrayList<byte[]>();
+				for (Map.Entry<String, ViewportSnapshot> entry : readViewports(
+						-1).entrySet()) {
+					String newKey = changes.map(entry.getKey());
+					if (newKey == null || !newKey.equals(entry.getKey())) {
+						changed.add(entry.getKey().getBytes(UTF8));
+						if (newKey != null) {
+							moved.put(newKey, entry.getValue());
+						}
+					}
+				}
+				for (byte[] key : changed) {
+					int slot = find(key, hash(key));
+					if (slot >= 0) {
+						delete(slot);
+					}
+				}
+				for (Map.Entry<String, ViewportSnapshot> entry : moved
+						.entrySet()) {
+					byte[] key = entry.getKey().getBytes(UTF8);
+					if (key.length <= MAX_KEY_BYTES) {
+						put(key, entry.getValue());
+					}
+				}
+				if (!changed.isEmpty()) {
+					nextVersion();
+				}
+				buffer.putInt(HEADER_DIRTY, 0);
+				return changed.size();
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Lock the whole file. Must hold the process lock.
+	 */
+	private FileLock lock(boolean shared) {
+		if (closed) {
+			throw new IllegalStateException("Shared offsets file is closed");
+		}
+		try {
+			return channel.lock(0, Long.MAX_VALUE, shared);
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Could not lock shared offsets file", e);
+		}
+	}
+
+	/**
+	 * Lock the whole file exclusively to change it, rebuilding the table first
+	 * if a process died while changing it, and flag the table as dirty. The
+	 * flag is to be cleared once the change is complete, before the lock is
+	 * released. Must hold the process lock.
+	 */
+	private FileLock lockToChange() {
+		FileLock lock = lock(false);
+		if (buffer.getInt(HEADER_DIRTY) != 0) {
+			rebuild(slotCount);
+		}
+		buffer.putInt(HEADER_DIRTY, 1);
+		return lock;
+	}
+
+	private void release(FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Could not unlock shared offsets file", e);
+		}
+	}
+
+	/**
+	 * Increase the change count of the file. Must hold the exclusive lock.
+	 *
+	 * @return The new change count.
+	 */
+	private long nextVersion() {
+		long version = buffer.getLong(HEADER_CHANGE_COUNT) + 1;
+		buffer.putLong(HEADER_CHANGE_COUNT, version);
+		return version;
+	}
+
+	/**
+	 * Write the record of a key, evicting the record written least recently
+	 * if the key is new and the capacity is reached. Must hold the exclusive
+	 * lock.
+	 */
+	private void put(byte[] key, ViewportSnapshot viewport) {
+		int hash = hash(key);
+		int slot = find(key, hash);
+		if (slot < 0) {
+			int capacity = buffer.getInt(HEADER_CAPACITY);
+			if (capacity <= 0) {
+				return;
+			}
+			while (buffer.getInt(HEADER_SIZE) >= capacity) {
+				evictOldest();
+			}
+			slot = hash & mask;
+			while (buffer.getInt(record(slot) + HASH) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			int record = record(slot);
+			buffer.putInt(record + KEY_LENGTH, key.length);
+			for (int i = 0; i < key.length; i++) {
+				buffer.put(record + KEY + i, key[i]);
+			}
+			buffer.putInt(record + HASH, hash);
+			buffer.putInt(HEADER_SIZE, buffer.getInt(HEADER_SIZE) + 1);
+		}
+		int record = record(slot);
+		buffer.putInt(record + OFFSET, viewport.getOffset());
+		viewport.writeExtra(extra);
+		for (int i = 0; i < extra.length; i++) {
+			buffer.putInt(record + EXTRA + 4 * i, extra[i]);
+		}
+		buffer.putLong(record + VERSION, nextVersion());
+	}
+
+	/**
+	 * Evict the record with the lowest version. Must hold the exclusive lock.
+	 */
+	private void evictOldest() {
+		while (true) {
+			if (evictionNext == evictionEnd && !collectOldest()) {
+				// The table is empty, so the size was counted wrong.
+				buffer.putInt(HEADER_SIZE, 0);
+				return;
+			}
+			int slot = findVersion(evictionHashes[evictionNext],
+					evictionVersions[evictionNext]);
+			evictionNext++;
+			// Otherwise written again or removed since.
+			if (slot >= 0) {
+				delete(slot);
+				evictionCount++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Collect the versions and hashes of the oldest records in one scan of the
+	 * table. Must hold a lock.
+	 *
+	 * @return Whether there are any records.
+	 */
+	private boolean collectOldest() {
+		// The newest of the collected records on top, to be replaced first.
+		PriorityQueue<long[]> oldest = new PriorityQueue<long[]>(
+				EVICTION_BATCH, Collections.reverseOrder(VERSION_ORDER));
+		for (int slot = 0; slot < slotCount; slot++) {
+			int record = record(slot);
+			int hash = buffer.getInt(record + HASH);
+			if (hash == EMPTY) {
+				continue;
+			}
+			long version = buffer.getLong(record + VERSION);
+			if (oldest.size() < EVICTION_BATCH) {
+				oldest.add(new long[] { version, hash });
+			} else if (version < oldest.peek()[0]) {
+				oldest.poll();
+				oldest.add(new long[] { version, hash });
+			}
+		}
+		evictionNext = 0;
+		evictionEnd = oldest.size();
+		for (int i = evictionEnd - 1; i >= 0; i--) {
+			long[] entry = oldest.poll();
+			evictionVersions[i] = entry[0];
+			evictionHashes[i] = (int) entry[1];
+		}
+		return evictionEnd > 0;
+	}
+
+	/**
+	 * Find the slot of the record with a hash and version. Must hold a lock.
+	 *
+	 * @return The slot or -1 if no record has them.
+	 */
+	private int findVersion(int hash, long version) {
+		int slot = hash & mask;
+		while (true) {
+			int record = record(slot);
+			int slotHash = buffer.getInt(record + HASH);
+			if (slotHash == EMPTY) {
+				return -1;
+			}
+			if (slotHash == hash && buffer.getLong(record + VERSION) == version) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Rebuild the table after a process died while changing it. Each intact
+	 * record is put back where it is found by probing, the copies left by an
+	 * interrupted shift are dropped, and the size is counted again. Must hold
+	 * the exclusive lock.
+	 */
+	private void rebuild(int slots) {
+		Map<String, byte[]> records = new HashMap<String, byte[]>();
+		for (int slot = 0; slot < slots; slot++) {
+			int record = record(slot);
+			int hash = buffer.getInt(record + HASH);
+			if (hash == EMPTY) {
+				continue;
+			}
+			int length = buffer.getInt(record + KEY_LENGTH);
+			if (length >= 0 && length <= MAX_KEY_BYTES) {
+				byte[] bytes = new byte[KEY + length];
+				for (int i = 0; i < bytes.length; i++) {
+					bytes[i] = buffer.get(record + i);
+				}
+				byte[] key = new byte[length];
+				System.arraycopy(bytes, KEY, key, 0, length);
+				if (hash(key) == hash) {
+					String filePathUri = new String(key, UTF8);
+					byte[] other = records.get(filePathUri);
+					if (other == null || version(other) < version(bytes)) {
+						records.put(filePathUri, bytes);
+					}
+				}
+			}
+			buffer.putInt(record + HASH, EMPTY);
+		}
+
+		int slotMask = slots - 1;
+		for (byte[] bytes : records.values()) {
+			int slot = ByteBuffer.wrap(bytes).getInt(HASH) & slotMask;
+			while (buffer.getInt(record(slot) + HASH) != EMPTY) {
+				slot = (slot + 1) & slotMask;
+			}
+			int record = record(slot);
+			for (int i = 0; i < bytes.length; i++) {
+				buffer.put(record + i, bytes[i]);
+			}
+		}
+		buffer.putInt(HEADER_SIZE, records.size());
+		buffer.putInt(HEADER_CAPACITY, Math.max(0, Math.min(buffer
+				.getInt(HEADER_CAPACITY), maxCapacity(slots))));
+		evictionNext = 0;
+		evictionEnd = 0;
+	}
+
+	/**
+	 * Remove the record of a slot, shifting back the records probed past it
+	 * so no tombstone is needed. Must hold the exclusive lock.
+	 */
+	private void delete(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (true) {
+			int hash = buffer.getInt(record(next) + HASH);
+			if (hash == EMPTY) {
+				break;
+			}
+			int ideal = hash & mask;
+			// Move the record unless its ideal slot lies after the hole.
+			if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+				copyRecord(next, hole);
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		buffer.putInt(record(hole) + HASH, EMPTY);
+		buffer.putInt(HEADER_SIZE, Math.max(0, buffer.getInt(HEADER_SIZE) - 1));
+	}
+
+	private void copyRecord(int fromSlot, int toSlot) {
+		int from = record(fromSlot);
+		int to = record(toSlot);
+		int length = KEY + buffer.getInt(from + KEY_LENGTH);
+		for (int i = 0; i < length; i++) {
+			buffer.put(to + i, buffer.get(from + i));
+		}
+	}
+
+	/**
+	 * Find the slot of a key. Must hold a lock.
+	 *
+	 * @return The slot or -1 if the key is not stored.
+	 */
+	private int find(byte[] key, int hash) {
+		int slot = hash & mask;
+		while (true) {
+			int record = record(slot);
+			int slotHash = buffer.getInt(record + HASH);
+			if (slotHash == EMPTY) {
+				return -1;
+			}
+			if (slotHash == hash && matches(record, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int record, byte[] key) {
+		if (buffer.getInt(record + KEY_LENGTH) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(record + KEY + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private ViewportSnapshot readViewport(int slot) {
+		int record = record(slot);
+		for (int i = 0; i < extra.length; i++) {
+			extra[i] = buffer.getInt(record + EXTRA + 4 * i);
+		}
+		return new ViewportSnapshot(buffer.getInt(record + OFFSET), extra);
+	}
+
+	private String readKey(int slot) {
+		int record = record(slot);
+		byte[] key = new byte[buffer.getInt(record + KEY_LENGTH)];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = buffer.get(record + KEY + i);
+		}
+		return new String(key, UTF8);
+	}
+
+	/**
+	 * Read the records with a version above a change count, lowest version
+	 * first. Must hold a lock.
+	 */
+	private Map<String, ViewportSnapshot> readViewports(long changeCount) {
+		List<long[]> versions = new ArrayList<long[]>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			int record = record(slot);
+			if (buffer.getInt(record + HASH) != EMPTY) {
+				long version = buffer.getLong(record + VERSION);
+				if (version > changeCount) {
+					versions.add(new long[] { version, slot });
+				}
+			}
+		}
+		Collections.sort(versions, VERSION_ORDER);
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>(
+				Math.max(16, (int) (versions.size() / 0.75f) + 1));
+		for (long[] version : versions) {
+			int slot = (int) version[1];
+			viewports.put(readKey(slot), readViewport(slot));
+		}
+		return viewports;
+	}
+
+	private static long version(byte[] record) {
+		return ByteBuffer.wrap(record).getLong(VERSION);
+	}
+
+	private static final Comparator<long[]> VERSION_ORDER = new Comparator<long[]>() {
+		public int compare(long[] first, long[] second) {
+			return first[0] < second[0] ? -1 : (first[0] == second[0] ? 0 : 1);
+		}
+	};
+
+	private static int record(int slot) {
+		return HEADER_BYTES + slot * RECORD_BYTES;
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of a key, never {@link #EMPTY}.
+	 */
+	private static int hash(byte[] key) {
+		int hash = 1;
+		for (int i = 0; i < key.length; i++) {
+			hash = 31 * hash + key[i];
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash == EMPTY ? 1 : hash;
+	}
+}
@@ -1,17 +1,37 @@
 package oss.restore.file.position.storage;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import oss.restore.file.position.collection.CachedMap;
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.FifoEvictionPolicy;
+import oss.restore.file.position.collection.IEvictionPolicy;
+import oss.restore.file.position.collection.ViewportSnapshot;
 
 /**
- * This stores a set of offsets for file paths.
+ * This stores a set of offsets for file paths. The offsets are kept unboxed in
+ * a {@link CachedIntMap} so setting and getting them does not allocate, and
+ * the rest of each viewport snapshot is kept in the extra of its entry. Unless
+ * another eviction policy is given, the eldest inserted offset is evicted
+ * first. Moving and removing the offsets below prefixes is one pass over all
+ * the offsets, however many prefixes change, and setting many offsets at once
+ * sizes the map once for all of them.
  * 
  * @author Nicklas Gummesson <nicklas@tuenti.com>
  */
-public class StandardOffsetsStorage implements IOffsetsStorage {
+public class StandardOffsetsStorage implements IBulkOffsetsStorage,
+		IPrefixOffsetsStorage {
 
-	CachedMap<String, Integer> map;
+	CachedIntMap map;
+
+	private static final int[] OFFSET_EXTRA = new int[ViewportSnapshot.EXTRA_WIDTH];
+
+	static {
+		ViewportSnapshot.ofOffset(0).writeExtra(OFFSET_EXTRA);
+	}
+
+	private final int[] extra = new int[ViewportSnapshot.EXTRA_WIDTH];
 
 	/**
 	 * Constructs a temporary offsets storage.
@@ -20,7 +40,7 @@ public class StandardOffsetsStorage implements IOffsetsStorage {
 	 *            The capacity of this storage, i.e. how many offsets to store.
 	 */
 	public StandardOffsetsStorage(int capacity) {
-		map = new CachedMap<String, Integer>(capacity);
+		this(capacity, new FifoEvictionPolicy());
 	}
 
 	/**
@@ -33,7 +53,40 @@ public class StandardOffsetsStorage implements IOffsetsStorage {
 	 *            storage or similar.
 	 */
 	public StandardOffsetsStorage(int capacity, Map<String, Integer> initialmap) {
-		map = new CachedMap<String, Integer>(initialmap);
+		this(capacity, initialmap, new FifoEvictionPolicy());
+	}
+
+	/**
+	 * Constructs a temporary offsets storage.
+	 * 
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param policy
+	 *            The eviction policy deciding which offsets to keep when the
+	 *            capacity is reached, not to be shared with other storages.
+	 */
+	public StandardOffsetsStorage(int capacity, IEvictionPolicy policy) {
+		map = new CachedIntMap(capacity, 0.75f, policy,
+				ViewportSnapshot.EXTRA_WIDTH);
+	}
+
+	/**
+	 * Constructs a temporary offsets storage.
+	 * 
+	 * @param capacity
+	 *            The capacity of this storage, i.e. how many offsets to store.
+	 * @param initialMap
+	 *            Get the initial mapping to use. E.g. restored from a permanent
+	 *            storage or similar.
+	 * @param policy
+	 *            The eviction policy deciding which offsets to keep when the
+	 *            capacity is reached, not to be shared with other storages.
+	 */
+	public StandardOffsetsStorage(int capacity,
+			Map<String, Integer> initialMap, IEvictionPolicy policy) {
+		map = new CachedIntMap(Math.max(capacity, initialMap.size()), 0.75f,
+				policy, ViewportSnapshot.EXTRA_WIDTH);
+		putAll(initialMap);
 		setCapacity(capacity);
 	}
 
@@ -49,13 +102,62 @@ public class StandardOffsetsStorage implements IOffsetsStorage {
 
 	@Override
 	public int getOffset(String filePathUri) {
-		Integer item = (Integer) map.get(filePathUri);
-		return item == null ? 0 : item.intValue();
+		return map.getInt(filePathUri, 0);
 	}
 
 	@Override
 	public void setOffset(String filePathUri, int offset) {
-		map.put(filePathUri, Integer.valueOf(offset));
+		map.putInt(filePathUri, offset, OFFSET_EXTRA);
+	}
+
+	@Override
+	public ViewportSnapshot getViewport(String filePathUri) {
+		int offset = map.getInt(filePathUri, -1);
+		if (offset < 0) {
+			return null;
+		}
+		map.getExtra(filePathUri, extra);
+		return new ViewportSnapshot(offset, extra);
+	}
+
+	@Override
+	public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+		viewport.writeExtra(extra);
+		map.putInt(filePathUri, viewport.getOffset(), extra);
+	}
+
+	@Override
+	public Map<String, ViewportSnapshot> getViewports() {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>(
+				Math.max(16, (int) (map.size() / 0.75f) + 1));
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			String filePathUri = entry.getKey();
+			map.getExtra(filePathUri, extra);
+			viewports.put(filePathUri, new ViewportSnapshot(entry.getValue()
+					.intValue(), extra));
+		}
+		return viewports;
+	}
+
+	@Override
+	public Map<String, ViewportSnapshot> getViewports(
+			Collection<String> filePathUris) {
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		for (String filePathUri : filePathUris) {
+			ViewportSnapshot viewport = getViewport(filePathUri);
+			if (viewport != null) {
+				viewports.put(filePathUri, viewport);
+			}
+		}
+		return viewports;
+	}
+
+	@Override
+	public void setViewports(Map<String, ViewportSnapshot> viewports) {
+		map.reserve(map.size() + viewports.size());
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			setViewport(entry.getKey(), entry.getValue());
+		}
 	}
 
 	@Override
@@ -63,8 +165,61 @@ public class StandardOffsetsStorage implements IOffsetsStorage {
 		return map.size();
 	}
 
+	@Override
+	public Map<String, Integer> getOffsetsUnder(String prefix) {
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				offsets.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return offsets;
+	}
+
+	@Override
+	public int removeUnder(String prefix) {
+		PathChanges changes = new PathChanges();
+		changes.removeUnder(prefix);
+		return rekey(changes);
+	}
+
+	@Override
+	public int moveUnder(String fromPrefix, String toPrefix) {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder(fromPrefix, toPrefix);
+		return rekey(changes);
+	}
+
+	/**
+	 * Apply a batch of moved and removed paths and prefixes in one pass. The
+	 * moved offsets keep their place in the eviction order.
+	 */
+	@Override
+	public int rekey(PathChanges changes) {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		return map.rekey(changes);
+	}
+
+	/**
+	 * Get the count of offsets evicted because the capacity was reached.
+	 * 
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		return map.getEvictionCount();
+	}
+
 	@Override
 	public Map<String, Integer> getMap() {
 		return map;
 	}
-}
\ No newline at end of file
+
+	private void putAll(Map<String, Integer> offsets) {
+		map.reserve(offsets.size());
+		for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+			setOffset(entry.getKey(), entry.getValue().intValue());
+		}
+	}
+}
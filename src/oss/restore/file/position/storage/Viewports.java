@@ -0,0 +1,126 @@
+package oss.restore.file.position.storage;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * Viewport snapshot access to any offsets storage, e.g. for storages that wrap
+ * another one. Storages that do not keep snapshots get and set the offsets
+ * only.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class Viewports {
+
+	private Viewports() {
+	}
+
+	/**
+	 * Get the viewport snapshot of a file path.
+	 *
+	 * @param storage
+	 *            The storage.
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @return The snapshot or null if none is stored.
+	 */
+	public static ViewportSnapshot get(IOffsetsStorage storage,
+			String filePathUri) {
+		if (storage instanceof IViewportStorage) {
+			return ((IViewportStorage) storage).getViewport(filePathUri);
+		}
+		int offset = storage.getOffset(filePathUri);
+		return offset == 0 ? null : ViewportSnapshot.ofOffset(offset);
+	}
+
+	/**
+	 * Set the viewport snapshot of a file path.
+	 *
+	 * @param storage
+	 *            The storage.
+	 * @param filePathUri
+	 *            The file path URI.
+	 * @param viewport
+	 *            The snapshot.
+	 */
+	public static void set(IOffsetsStorage storage, String filePathUri,
+			ViewportSnapshot viewport) {
+		if (storage instanceof IViewportStorage) {
+			((IViewportStorage) storage).setViewport(filePathUri, viewport);
+		} else {
+			storage.setOffset(filePathUri, viewport.getOffset());
+		}
+	}
+
+	/**
+	 * Get a map representation of the viewport snapshots of a storage.
+	 *
+	 * @param storage
+	 *            The storage.
+	 * @return A map where the keys are the file path URIs and the values the
+	 *         corresponding snapshots.
+	 */
+	public static Map<String, ViewportSnapshot> getAll(IOffsetsStorage storage) {
+		if (storage instanceof IViewportStorage) {
+			return ((IViewportStorage) storage).getViewports();
+		}
+		Map<String, Integer> map = storage.getMap();
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>(
+				Math.max(16, (int) (map.size() / 0.75f) + 1));
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			viewports.put(entry.getKey(), ViewportSnapshot.ofOffset(entry
+					.getValue().intValue()));
+		}
+		return viewports;
+	}
+
+	/**
+	 * Get the viewport snapshots of several file paths, in one call if the
+	 * storage supports it.
+	 *
+	 * @param storage
+	 *            The storage.
+	 * @param filePathUris
+	 *            The file path URIs.
+	 * @return A map where the keys are the file path URIs that have a stored
+	 *         snapshot and the values the corresponding snapshots.
+	 */
+	public static Map<String, ViewportSnapshot> getAll(
+			IOffsetsStorage storage, Collection<String> filePathUris) {
+		if (storage instanceof IBulkOffsetsStorage) {
+			return ((IBulkOffsetsStorage) storage).getViewports(filePathUris);
+		}
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		for (String filePathUri : filePathUris) {
+			ViewportSnapshot viewport = get(storage, filePathUri);
+			if (viewport != null) {
+				viewports.put(filePathUri, viewport);
+			}
+		}
+		return viewports;
+	}
+
+	/**
+	 * Set the viewport snapshots of several file paths, in one call if the
+	 * storage supports it.
+	 *
+	 * @param storage
+	 *            The storage.
+	 * @param viewports
+	 *            A map where the keys are the file path URIs and the values
+	 *            the snapshots.
+	 */
+	public static void setAll(IOffsetsStorage storage,
+			Map<String, ViewportSnapshot> viewports) {
+		if (storage instanceof IBulkOffsetsStorage) {
+			((IBulkOffsetsStorage) storage).setViewports(viewports);
+			return;
+		}
+		for (Map.Entry<String, ViewportSnapshot> entry : viewports.entrySet()) {
+			set(storage, entry.getKey(), entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package oss.restore.file.position.text;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * Anchors a caret position to the text around it, so it can be found again
+ * after the file was edited outside of the editor, e.g. by a version control
+ * update.
+ *
+ * The anchor is a fingerprint of {@link #WINDOW_LINES} lines centered on the
+ * caret line: each line is hashed with its leading and trailing whitespace
+ * ignored, and the line hashes are combined by a polynomial rolling hash.
+ * Relocating computes the fingerprint of every window of the new text in one
+ * pass, rolling it forward a line at a time, and moves the caret to the
+ * matching window closest to the caret line it was stored with. If no window
+ * matches the stored offset is used, clamped to the text length.
+ *
+ * Lines are separated by "\n", "\r\n" or "\r" and do not include the
+ * separator. Lines before the first and after the last one count as missing.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class LineAnchor {
+
+	/**
+	 * The number of lines in a fingerprint, the caret line in the middle.
+	 */
+	public static final int WINDOW_LINES = 3;
+
+	/**
+	 * The line hash of a line before the first or after the last one.
+	 */
+	public static final int MISSING_LINE = 0;
+
+	private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	// The multiplier of the rolling hash and its power for the line leaving
+	// the window.
+	private static final int BASE = 0x9E3779B1;
+	private static final int BASE_POWER = power(BASE, WINDOW_LINES - 1);
+
+	private LineAnchor() {
+	}
+
+	/**
+	 * Hash a line, ignoring leading and trailing whitespace.
+	 *
+	 * @param text
+	 *            The text holding the line.
+	 * @param start
+	 *            The offset of the line.
+	 * @param end
+	 *            The offset after the last character of the line, excluding
+	 *            the line separator.
+	 * @return The line hash, never {@link #MISSING_LINE}.
+	 */
+	public static int hashLine(CharSequence text, int start, int end) {
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		int hash = FNV_OFFSET_BASIS;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+		}
+		return hash == MISSING_LINE ? 1 : hash;
+	}
+
+	/**
+	 * Anchor a viewport snapshot to the lines around its caret.
+	 *
+	 * @param viewport
+	 *            The snapshot.
+	 * @param caretLine
+	 *            The line of the caret offset.
+	 * @param caretColumn
+	 *            The caret offset from the start of the caret line.
+	 * @param previousLineHash
+	 *            The hash of the line before the caret line, or
+	 *            {@link #MISSING_LINE}.
+	 * @param caretLineHash
+	 *            The hash of the caret line.
+	 * @param nextLineHash
+	 *            The hash of the line after the caret line, or
+	 *            {@link #MISSING_LINE}.
+	 * @return The anchored snapshot.
+	 */
+	public static ViewportSnapshot anchor(ViewportSnapshot viewport,
+			int caretLine, int caretColumn, int previousLineHash,
+			int caretLineHash, int nextLineHash) {
+		int hash = roll(roll(roll(0, MISSING_LINE, previousLineHash),
+				MISSING_LINE, caretLineHash), MISSING_LINE, nextLineHash);
+		return new ViewportSnapshot(viewport.getOffset(), viewport
+				.getSelectionLength(), viewport.getTopLine(), hash, caretLine,
+				caretColumn, viewport.getModifiedMillis());
+	}
+
+	/**
+	 * Anchor a viewport snapshot to the lines around its caret, reading them
+	 * from the whole text.
+	 *
+	 * @param text
+	 *            The text.
+	 * @param viewport
+	 *            The snapshot, its offset within the text.
+	 * @return The anchored snapshot.
+	 */
+	public static ViewportSnapshot capture(CharSequence text,
+			ViewportSnapshot viewport) {
+		int length = text.length();
+		int offset = Math.max(0, Math.min(viewport.getOffset(), length));
+		int previousLineHash = MISSING_LINE;
+		int caretLineHash = MISSING_LINE;
+		int nextLineHash = MISSING_LINE;
+		int caretLine = -1;
+		int caretColumn = 0;
+		for (int line = 0, start = 0;; line++) {
+			int end = lineEnd(text, start);
+			int hash = hashLine(text, start, end);
+			if (caretLine >= 0) {
+				nextLineHash = hash;
+				break;
+			}
+			if (offset <= end) {
+				caretLine = line;
+				caretColumn = offset - start;
+				caretLineHash = hash;
+			} else {
+				previousLineHash = hash;
+			}
+			if (end == length) {
+				break;
+			}
+			start = nextLineStart(text, end);
+		}
+		return anchor(viewport, caretLine, caretColumn, previousLineHash,
+				caretLineHash, nextLineHash);
+	}
+
+	/**
+	 * Relocate an anchored viewport snapshot in a text that may have changed
+	 * since it was anchored. The text is read once.
+	 *
+	 * @param text
+	 *            The text.
+	 * @param viewport
+	 *            The snapshot.
+	 * @return The snapshot with the caret offset, top line and anchor line
+	 *         moved to the matching window closest to the anchor line, or,
+	 *         if there is no anchor or no window matches, with the offset
+	 *         clamped to the text length.
+	 */
+	public static ViewportSnapshot relocate(CharSequence text,
+			ViewportSnapshot viewport) {
+		int length = text.length();
+		if (!viewport.hasAnchor()) {
+			return clamp(viewport, length);
+		}
+		int anchorHash = viewport.getAnchorHash();
+		int anchorLine = viewport.getAnchorLine();
+
+		// The hashes, starts and ends of the lines in the window, oldest
+		// first at head.
+		int[] hashes = new int[WINDOW_LINES];
+		int[] starts = new int[WINDOW_LINES];
+		int[] ends = new int[WINDOW_LINES];
+		int head = 0;
+		int window = 0;
+
+		int bestLine = -1;
+		int bestStart = 0;
+		int bestEnd = 0;
+		int bestDistance = Integer.MAX_VALUE;
+
+		// Each line is rolled into the window in turn, followed by missing
+		// lines until the last line is in the middle of it.
+		int lineCount = -1;
+		for (int line = 0, start = 0;; line++) {
+			int hash = MISSING_LINE;
+			int end = start;
+			boolean missing = lineCount >= 0;
+			if (!missing) {
+				end = lineEnd(text, start);
+				hash = hashLine(text, start, end);
+			}
+			window = roll(window, hashes[head], hash);
+			hashes[head] = hash;
+			starts[head] = start;
+			ends[head] = end;
+			head = (head + 1) % WINDOW_LINES;
+
+			int center = line - WINDOW_LINES / 2;
+			if (center >= 0) {
+				int distance = Math.abs(center - anchorLine);
+				if (window == anchorHash && distance < bestDistance) {
+					int slot = (head + WINDOW_LINES / 2) % WINDOW_LINES;
+					bestLine = center;
+					bestStart = starts[slot];
+					bestEnd = ends[slot];
+					bestDistance = distance;
+				} else if (center - anchorLine >= bestDistance) {
+					// No later window can be closer.
+					break;
+				}
+			}
+			if (!missing) {
+				if (end == length) {
+					lineCount = line + 1;
+				} else {
+					start = nextLineStart(text, end);
+				}
+			}
+			if (lineCount >= 0 && center >= lineCount - 1) {
+				break;
+			}
+		}
+
+		if (bestLine < 0) {
+			return clamp(viewport, length);
+		}
+		int shift = bestLine - anchorLine;
+		int topLine = viewport.getTopLine();
+		if (topLine != ViewportSnapshot.UNKNOWN_TOP_LINE) {
+			topLine = Math.max(0, topLine + shift);
+		}
+		int offset = bestStart
+				+ Math.min(viewport.getAnchorColumn(), bestEnd - bestStart);
+		return new ViewportSnapshot(offset, viewport.getSelectionLength(),
+				topLine, anchorHash, bestLine, viewport.getAnchorColumn(),
+				viewport.getModifiedMillis());
+	}
+
+	private static ViewportSnapshot clamp(ViewportSnapshot viewport, int length) {
+		int offset = Math.max(0, Math.min(viewport.getOffset(), length));
+		if (offset == viewport.getOffset()) {
+			return viewport;
+		}
+		return new ViewportSnapshot(offset, viewport.getSelectionLength(),
+				viewport.getTopLine(), viewport.getAnchorHash(), viewport
+						.getAnchorLine(), viewport.getAnchorColumn(), viewport
+						.getModifiedMillis());
+	}
+
+	/**
+	 * Roll a line into a window hash, the oldest line leaving it.
+	 */
+	private static int roll(int window, int oldestHash, int newHash) {
+		return (window - oldestHash * BASE_POWER) * BASE + newHash;
+	}
+
+	/**
+	 * Get the end of the line starting at an offset, excluding the separator.
+	 */
+	private static int lineEnd(CharSequence text, int start) {
+		int length = text.length();
+		int end = start;
+		while (end < length) {
+			char c = text.charAt(end);
+			if (c == '\n' || c == '\r') {
+				break;
+			}
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Get the start of the line after the one ending at an offset.
+	 */
+	private static int nextLineStart(CharSequence text, int end) {
+		if (end < text.length() && text.charAt(end) == '\r') {
+			end++;
+			if (end < text.length() && text.charAt(end) == '\n') {
+				end++;
+			}
+			return end;
+		}
+		return end + 1;
+	}
+
+	private static int power(int base, int exponent) {
+		int result = 1;
+		for (int i = 0; i < exponent; i++) {
+			result *= base;
+		}
+		return result;
+	}
+}
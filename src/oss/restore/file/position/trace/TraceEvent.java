@@ -0,0 +1,113 @@
+package oss.restore.file.position.trace;
+
+/**
+ * An editor event of a recorded or generated trace: an editor opened, closed
+ * or activated for a file path, with the offset restored, stored or current at
+ * that moment.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public final class TraceEvent {
+
+	/**
+	 * An editor was opened, with the offset restored, 0 if none.
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * An editor was closed, with the offset stored.
+	 */
+	public static final int CLOSE = 2;
+
+	/**
+	 * An editor was activated, with its caret offset.
+	 */
+	public static final int ACTIVATE = 3;
+
+	private final int type;
+	private final long timeMillis;
+	private final String filePathUri;
+	private final int offset;
+
+	/**
+	 * Constructs a trace event.
+	 *
+	 * @param type
+	 *            {@link #OPEN}, {@link #CLOSE} or {@link #ACTIVATE}.
+	 * @param timeMillis
+	 *            When the event happened, in milliseconds since the epoch.
+	 * @param filePathUri
+	 *            The file path URI of the editor.
+	 * @param offset
+	 *            The offset, not negative.
+	 */
+	public TraceEvent(int type, long timeMillis, String filePathUri, int offset) {
+		if (type < OPEN || type > ACTIVATE || offset < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.type = type;
+		this.timeMillis = timeMillis;
+		this.filePathUri = filePathUri;
+		this.offset = offset;
+	}
+
+	/**
+	 * Get the type of the event.
+	 *
+	 * @return {@link #OPEN}, {@link #CLOSE} or {@link #ACTIVATE}.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Get when the event happened.
+	 *
+	 * @return The time in milliseconds since the epoch.
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	/**
+	 * Get the file path URI of the editor.
+	 *
+	 * @return The file path URI.
+	 */
+	public String getFilePathUri() {
+		return filePathUri;
+	}
+
+	/**
+	 * Get the offset restored, stored or current at the event.
+	 *
+	 * @return The offset.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof TraceEvent)) {
+			return false;
+		}
+		TraceEvent event = (TraceEvent) other;
+		return type == event.type && timeMillis == event.timeMillis
+				&& offset == event.offset
+				&& filePathUri.equals(event.filePathUri);
+	}
+
+	@Override
+	public int hashCode() {
+		return (31 * (31 * type + (int) (timeMillis ^ timeMillis >>> 32)) + offset)
+				* 31 + filePathUri.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		String name = type == OPEN ? "open" : type == CLOSE ? "close"
+				: "activate";
+		return name + "@" + timeMillis + " " + filePathUri + ":" + offset;
+	}
+}
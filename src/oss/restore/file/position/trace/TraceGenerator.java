@@ -0,0 +1,246 @@
+package oss.restore.file.position.trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic traces of realistic editing sessions, for replaying
+ * when no recorded trace is at hand.
+ *
+ * Each session is a working day: editors are opened, switched between and
+ * closed, keeping a handful of tabs, and all of them are closed when the IDE
+ * is shut down for the night. The workspace files are opened with a Zipf
+ * distribution, so a small set of files is opened over and over. A share of
+ * the opened editors are one-off files that are never opened again, such as
+ * generated sources, search results and stack trace jumps into libraries. The
+ * caret mostly moves a little between events and now and then jumps.
+ *
+ * The same seed and settings always generate the same trace.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceGenerator {
+
+	private static final long START_MILLIS = 1262304000000L; // 2010-01-01
+	private static final int SESSION_EVENTS = 400;
+	private static final int MAX_TABS = 12;
+	private static final double ZIPF_EXPONENT = 1.1;
+
+	private final Random random;
+	private final int projectCount;
+	private final String[] files;
+	private final double[] cumulativeWeights;
+	private final double oneOffRate;
+
+	private final List<String> tabs = new ArrayList<String>();
+	private final Map<String, Integer> carets = new HashMap<String, Integer>();
+	private final Map<String, Integer> storedOffsets = new HashMap<String, Integer>();
+	private long timeMillis = START_MILLIS;
+	private int oneOffCount;
+
+	/**
+	 * Constructs a generator for a workspace of 8 projects with 500 files
+	 * each, where 30% of the opened editors are one-off files.
+	 *
+	 * @param seed
+	 *            The seed of the random events.
+	 */
+	public TraceGenerator(long seed) {
+		this(seed, 8, 500, 0.3);
+	}
+
+	/**
+	 * Constructs a generator.
+	 *
+	 * @param seed
+	 *            The seed of the random events.
+	 * @param projectCount
+	 *            The count of projects in the workspace.
+	 * @param filesPerProject
+	 *            The count of files in each project.
+	 * @param oneOffRate
+	 *            The share of opened editors that are one-off files.
+	 */
+	public TraceGenerator(long seed, int projectCount, int filesPerProject,
+			double oneOffRate) {
+		this.random = new Random(seed);
+		this.projectCount = projectCount;
+		this.oneOffRate = oneOffRate;
+		files = new String[projectCount * filesPerProject];
+		for (int i = 0; i < files.length; i++) {
+			int project = i % projectCount;
+			files[i] = "/home/dev/workspace/project" + project
+					+ "/src/main/java/com/example/pkg" + random.nextInt(40)
+					+ "/Type" + i + ".java";
+		}
+		// The popularity ranks are shuffled, so the popular files are spread
+		// over the projects.
+		for (int i = files.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			String file = files[i];
+			files[i] = files[j];
+			files[j] = file;
+		}
+		cumulativeWeights = new double[files.length];
+		double total = 0;
+		for (int i = 0; i < files.length; i++) {
+			total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Generate events.
+	 *
+	 * @param eventCount
+	 *            The count of events to generate.
+	 * @return The events.
+	 */
+	public List<TraceEvent> generate(int eventCount) {
+		List<TraceEvent> events = new ArrayList<TraceEvent>(eventCount);
+		try {
+			generate(eventCount, events, null);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return events;
+	}
+
+	/**
+	 * Generate events into a trace, without keeping them in memory.
+	 *
+	 * @param eventCount
+	 *            The count of events to generate.
+	 * @param writer
+	 *            The writer of the trace.
+	 * @throws IOException
+	 *             If the trace could not be written.
+	 */
+	public void generate(int eventCount, TraceWriter writer)
+			throws IOException {
+		generate(eventCount, null, writer);
+	}
+
+	private void generate(int eventCount, List<TraceEvent> events,
+			TraceWriter writer) throws IOException {
+		int count = 0;
+		int sessionEvents = 0;
+		while (count < eventCount) {
+			TraceEvent event;
+			if (sessionEvents >= SESSION_EVENTS && !tabs.isEmpty()) {
+				// Shutting down closes every editor.
+				event = close(tabs.get(tabs.size() - 1));
+			} else if (sessionEvents >= SESSION_EVENTS) {
+				timeMillis += (8 + random.nextInt(8)) * 3600000L;
+				sessionEvents = 0;
+				continue;
+			} else {
+				event = nextEvent();
+			}
+			if (events != null) {
+				events.add(event);
+			} else {
+				writer.write(event);
+			}
+			count++;
+			sessionEvents++;
+		}
+	}
+
+	private TraceEvent nextEvent() {
+		double action = random.nextDouble();
+		if (tabs.isEmpty() || action < 0.45) {
+			timeMillis += thinkMillis(30000);
+			String file = pickFile();
+			if (tabs.contains(file)) {
+				return activate(file);
+			}
+			if (tabs.size() >= MAX_TABS) {
+				// The least recently active tab is closed first.
+				return close(tabs.get(0));
+			}
+			tabs.add(file);
+			Integer offset = storedOffsets.get(file);
+			carets.put(file, offset == null ? 0 : offset);
+			return new TraceEvent(TraceEvent.OPEN, timeMillis, file,
+					offset == null ? 0 : offset.intValue());
+		}
+		if (action < 0.85 || tabs.size() == 1) {
+			timeMillis += thinkMillis(20000);
+			// Recent tabs are switched back to more often.
+			int index = tabs.size() - 1
+					- Math.min(tabs.size() - 1, (int) (-Math.log(1 - random
+							.nextDouble()) * 2));
+			return activate(tabs.get(index));
+		}
+		timeMillis += thinkMillis(10000);
+		return close(tabs.get(tabs.size() - 1));
+	}
+
+	private TraceEvent activate(String file) {
+		tabs.remove(file);
+		tabs.add(file);
+		return new TraceEvent(TraceEvent.ACTIVATE, timeMillis, file,
+				moveCaret(file));
+	}
+
+	private TraceEvent close(String file) {
+		tabs.remove(file);
+		int offset = moveCaret(file);
+		carets.remove(file);
+		storedOffsets.put(file, Integer.valueOf(offset));
+		return new TraceEvent(TraceEvent.CLOSE, timeMillis, file, offset);
+	}
+
+	/**
+	 * Move the caret of an open editor, mostly a few lines, sometimes
+	 * anywhere in the file.
+	 */
+	private int moveCaret(String file) {
+		Integer caret = carets.get(file);
+		int offset = caret == null ? 0 : caret.intValue();
+		int length = 2000 + (file.hashCode() & 0xFFFF);
+		if (random.nextDouble() < 0.2) {
+			offset = random.nextInt(length);
+		} else {
+			offset += (int) (random.nextGaussian() * 400);
+		}
+		offset = Math.max(0, Math.min(length, offset));
+		carets.put(file, Integer.valueOf(offset));
+		return offset;
+	}
+
+	private String pickFile() {
+		if (random.nextDouble() < oneOffRate) {
+			oneOffCount++;
+			switch (random.nextInt(3)) {
+			case 0:
+				return "/home/dev/workspace/project"
+						+ random.nextInt(projectCount)
+						+ "/target/generated-sources/Generated" + oneOffCount
+						+ ".java";
+			case 1:
+				return "/home/dev/.m2/repository/org/library/library-1."
+						+ random.nextInt(10) + "-sources/org/library/Library"
+						+ oneOffCount + ".java";
+			default:
+				return "/home/dev/workspace/project"
+						+ random.nextInt(projectCount) + "/src/test/resources/"
+						+ "fixture" + oneOffCount + ".xml";
+			}
+		}
+		double weight = random.nextDouble()
+				* cumulativeWeights[cumulativeWeights.length - 1];
+		int index = Arrays.binarySearch(cumulativeWeights, weight);
+		return files[index < 0 ? -index - 1 : index];
+	}
+
+	private long thinkMillis(int meanMillis) {
+		return 1 + (long) (-Math.log(1 - random.nextDouble()) * meanMillis);
+	}
+}
@@ -0,0 +1,140 @@
+package oss.restore.file.position.trace;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import oss.restore.file.position.collection.VarInt;
+
+/**
+ * Reads the trace events written by a {@link TraceWriter}.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceReader {
+
+	private final InputStream in;
+	private final List<String> paths = new ArrayList<String>();
+	private byte[] previousPath = new byte[0];
+	private long timeMillis = -1;
+
+	/**
+	 * Constructs a trace reader.
+	 *
+	 * @param in
+	 *            The stream to read from, preferably buffered.
+	 */
+	public TraceReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read the next event. A trace cut short, e.g. when the IDE crashed while
+	 * recording, ends at its last whole event.
+	 *
+	 * @return The event or null at the end of the trace.
+	 * @throws IOException
+	 *             If the stream could not be read or is not a trace.
+	 */
+	public TraceEvent read() throws IOException {
+		if (timeMillis < 0 && !readHeader()) {
+			return null;
+		}
+		int type = in.read();
+		if (type < 0) {
+			return null;
+		}
+		if (type < TraceEvent.OPEN || type > TraceEvent.ACTIVATE) {
+			throw new IOException("Unknown trace event type " + type);
+		}
+		try {
+			return readEvent(type);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private TraceEvent readEvent(int type) throws IOException {
+		timeMillis += VarInt.read(in);
+
+		String filePathUri;
+		int number = VarInt.read(in);
+		if (number == 0) {
+			int shared = VarInt.read(in);
+			int length = VarInt.read(in);
+			if (shared > previousPath.length || length < 0) {
+				throw new IOException("Corrupt trace path");
+			}
+			byte[] path = new byte[shared + length];
+			System.arraycopy(previousPath, 0, path, 0, shared);
+			new DataInputStream(in).readFully(path, shared, length);
+			previousPath = path;
+			filePathUri = new String(path, TraceWriter.UTF8);
+			paths.add(filePathUri);
+		} else if (number <= paths.size()) {
+			filePathUri = paths.get(number - 1);
+		} else {
+			throw new IOException("Unknown trace path " + number);
+		}
+		return new TraceEvent(type, timeMillis, filePathUri, VarInt.read(in));
+	}
+
+	/**
+	 * Read every remaining event.
+	 *
+	 * @return The events.
+	 * @throws IOException
+	 *             If the stream could not be read or is not a trace.
+	 */
+	public List<TraceEvent> readAll() throws IOException {
+		List<TraceEvent> events = new ArrayList<TraceEvent>();
+		TraceEvent event;
+		while ((event = read()) != null) {
+			events.add(event);
+		}
+		return events;
+	}
+
+	/**
+	 * Close the underlying stream.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be closed.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Read the magic, version and start time.
+	 *
+	 * @return False if the trace is empty.
+	 */
+	private boolean readHeader() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			return false;
+		}
+		for (int i = 0; i < TraceWriter.MAGIC.length; i++) {
+			if (i > 0) {
+				b = in.read();
+			}
+			if (b != TraceWriter.MAGIC[i]) {
+				throw new IOException("Not a file position trace");
+			}
+		}
+		int version = in.read();
+		if (version != TraceWriter.FORMAT_VERSION) {
+			throw new IOException("Unsupported trace version " + version);
+		}
+		try {
+			timeMillis = new DataInputStream(in).readLong();
+		} catch (EOFException e) {
+			throw new IOException("Truncated trace header");
+		}
+		return true;
+	}
+}
@@ -0,0 +1,133 @@
+package oss.restore.file.position.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the editor events of a running IDE to a trace file, to be replayed
+ * headless by a {@link TraceReplayer}. Recording stops at the first write
+ * that fails, keeping the failure for the caller to report.
+ *
+ * The trace is flushed every {@link #FLUSH_EVENTS} events and when closed, so
+ * a crash loses at most the events since the last flush.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceRecorder {
+
+	/**
+	 * How many events to record between flushes.
+	 */
+	public static final int FLUSH_EVENTS = 64;
+
+	private TraceWriter writer;
+	private IOException failure;
+	private long eventCount;
+
+	/**
+	 * Constructs a recorder writing to a new trace file.
+	 *
+	 * @param file
+	 *            The trace file, replaced if it exists.
+	 * @throws IOException
+	 *             If the file could not be created.
+	 */
+	public TraceRecorder(File file) throws IOException {
+		this(new TraceWriter(new BufferedOutputStream(new FileOutputStream(
+				file))));
+	}
+
+	/**
+	 * Constructs a recorder.
+	 *
+	 * @param writer
+	 *            The writer of the trace.
+	 */
+	public TraceRecorder(TraceWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Record an event happening now.
+	 *
+	 * @param type
+	 *            {@link TraceEvent#OPEN}, {@link TraceEvent#CLOSE} or
+	 *            {@link TraceEvent#ACTIVATE}.
+	 * @param filePathUri
+	 *            The file path URI of the editor.
+	 * @param offset
+	 *            The offset restored, stored or current.
+	 */
+	public synchronized void record(int type, String filePathUri, int offset) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write(new TraceEvent(type, System.currentTimeMillis(),
+					filePathUri, Math.max(0, offset)));
+			eventCount++;
+			if (eventCount % FLUSH_EVENTS == 0) {
+				writer.flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Check if still recording, i.e. not closed and no write failed.
+	 *
+	 * @return True if recording.
+	 */
+	public synchronized boolean isRecording() {
+		return writer != null;
+	}
+
+	/**
+	 * Get the count of events recorded.
+	 *
+	 * @return The event count.
+	 */
+	public synchronized long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Get the failure that stopped the recording.
+	 *
+	 * @return The failure or null if none.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Stop recording and close the trace.
+	 *
+	 * @throws IOException
+	 *             If the trace could not be written, or an earlier write
+	 *             failed.
+	 */
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			TraceWriter closing = writer;
+			writer = null;
+			closing.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void fail(IOException e) {
+		failure = e;
+		try {
+			writer.close();
+		} catch (IOException ignored) {
+			// The first failure is the one reported.
+		}
+		writer = null;
+	}
+}
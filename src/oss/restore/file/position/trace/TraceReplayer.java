@@ -0,0 +1,239 @@
+package oss.restore.file.position.trace;
+
+import java.io.IOException;
+
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.metrics.LatencyHistogram;
+import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.OffHeapOffsetsStorage;
+import oss.restore.file.position.storage.Viewports;
+
+/**
+ * Replays trace events against an offsets storage, without a workbench, the
+ * way the part listener would drive it: an opened editor looks up its
+ * viewport, a closed editor stores its offset and an activated one stores its
+ * caret, as written by the caret tracking. The events are replayed as fast as
+ * possible, their times are only kept for the summary.
+ *
+ * Reports the latency percentiles of the lookups and stores, the share of
+ * opened editors that found a stored viewport, and the heap the storage grew
+ * by, measured after a full GC.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceReplayer {
+
+	private final IOffsetsStorage storage;
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final LatencyHistogram storeLatency = new LatencyHistogram();
+	private final long baselineHeapBytes;
+	private long openCount;
+	private long closeCount;
+	private long activateCount;
+	private long hitCount;
+	private long firstTimeMillis = -1;
+	private long lastTimeMillis;
+
+	/**
+	 * Constructs a replayer, measuring the heap used before replaying.
+	 *
+	 * @param storage
+	 *            The storage to replay against.
+	 */
+	public TraceReplayer(IOffsetsStorage storage) {
+		this.storage = storage;
+		this.baselineHeapBytes = measureHeapBytes();
+	}
+
+	/**
+	 * Replay every event of a trace.
+	 *
+	 * @param reader
+	 *            The reader of the trace.
+	 * @throws IOException
+	 *             If the trace could not be read.
+	 */
+	public void replay(TraceReader reader) throws IOException {
+		TraceEvent event;
+		while ((event = reader.read()) != null) {
+			replay(event);
+		}
+	}
+
+	/**
+	 * Replay events.
+	 *
+	 * @param events
+	 *            The events.
+	 */
+	public void replay(Iterable<TraceEvent> events) {
+		for (TraceEvent event : events) {
+			replay(event);
+		}
+	}
+
+	/**
+	 * Replay an event.
+	 *
+	 * @param event
+	 *            The event.
+	 */
+	public void replay(TraceEvent event) {
+		if (firstTimeMillis < 0) {
+			firstTimeMillis = event.getTimeMillis();
+		}
+		lastTimeMillis = event.getTimeMillis();
+		long start = System.nanoTime();
+		switch (event.getType()) {
+		case TraceEvent.OPEN:
+			ViewportSnapshot viewport = Viewports.get(storage, event
+					.getFilePathUri());
+			lookupLatency.record(System.nanoTime() - start);
+			openCount++;
+			if (viewport != null) {
+				hitCount++;
+			}
+			break;
+		case TraceEvent.CLOSE:
+			storage.setOffset(event.getFilePathUri(), event.getOffset());
+			storeLatency.record(System.nanoTime() - start);
+			closeCount++;
+			break;
+		default:
+			storage.setOffset(event.getFilePathUri(), event.getOffset());
+			storeLatency.record(System.nanoTime() - start);
+			activateCount++;
+			break;
+		}
+	}
+
+	/**
+	 * Get the count of opened editors replayed.
+	 *
+	 * @return The open count.
+	 */
+	public long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Get the count of closed editors replayed.
+	 *
+	 * @return The close count.
+	 */
+	public long getCloseCount() {
+		return closeCount;
+	}
+
+	/**
+	 * Get the count of activated editors replayed.
+	 *
+	 * @return The activate count.
+	 */
+	public long getActivateCount() {
+		return activateCount;
+	}
+
+	/**
+	 * Get the count of opened editors that found a stored viewport.
+	 *
+	 * @return The hit count.
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Get the share of opened editors that found a stored viewport.
+	 *
+	 * @return The hit rate, 0 if no editor was opened.
+	 */
+	public double getHitRate() {
+		return openCount == 0 ? 0 : (double) hitCount / openCount;
+	}
+
+	/**
+	 * Get the latencies of the lookups of opened editors.
+	 *
+	 * @return The lookup latency histogram.
+	 */
+	public LatencyHistogram getLookupLatency() {
+		return lookupLatency;
+	}
+
+	/**
+	 * Get the latencies of the stores of closed and activated editors.
+	 *
+	 * @return The store latency histogram.
+	 */
+	public LatencyHistogram getStoreLatency() {
+		return storeLatency;
+	}
+
+	/**
+	 * Get the heap the storage grew by while replaying, measured after a full
+	 * GC, so only meaningful when nothing else allocates meanwhile.
+	 *
+	 * @return The heap growth in bytes, 0 if it shrank.
+	 */
+	public long getHeapBytes() {
+		return Math.max(0, measureHeapBytes() - baselineHeapBytes);
+	}
+
+	/**
+	 * Get the memory used outside of the heap by the storage, if it reports
+	 * it.
+	 *
+	 * @return The off-heap memory in bytes.
+	 */
+	public long getOffHeapBytes() {
+		return storage instanceof OffHeapOffsetsStorage ? ((OffHeapOffsetsStorage) storage)
+				.getMemoryBytes()
+				: 0;
+	}
+
+	/**
+	 * Get a one line summary of the replay.
+	 *
+	 * @return The summary.
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append("events=").append(
+				openCount + closeCount + activateCount);
+		summary.append(" traceMinutes=").append(
+				firstTimeMillis < 0 ? 0
+						: (lastTimeMillis - firstTimeMillis) / 60000);
+		summary.append(" opens=").append(openCount);
+		summary.append(" closes=").append(closeCount);
+		summary.append(" activations=").append(activateCount);
+		summary.append(" hitRate=").append(
+				Math.round(getHitRate() * 1000) / 10.0).append('%');
+		appendLatency(summary, "lookup", lookupLatency);
+		appendLatency(summary, "store", storeLatency);
+		summary.append(" storageSize=").append(storage.size());
+		summary.append(" heapBytes=").append(getHeapBytes());
+		summary.append(" offHeapBytes=").append(getOffHeapBytes());
+		return summary.toString();
+	}
+
+	private static void appendLatency(StringBuilder summary, String name,
+			LatencyHistogram latency) {
+		summary.append(' ').append(name).append("P50=").append(
+				latency.getPercentileNanos(50)).append("ns");
+		summary.append(' ').append(name).append("P99=").append(
+				latency.getPercentileNanos(99)).append("ns");
+		summary.append(' ').append(name).append("P999=").append(
+				latency.getPercentileNanos(99.9)).append("ns");
+		summary.append(' ').append(name).append("Max=").append(
+				latency.getMaxNanos()).append("ns");
+	}
+
+	private static long measureHeapBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,119 @@
+package oss.restore.file.position.trace;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import oss.restore.file.position.collection.VarInt;
+
+/**
+ * Writes trace events to a compact binary stream, read by a
+ * {@link TraceReader}.
+ *
+ * The stream starts with the magic "RFPT", a format version byte and the time
+ * of the first event. Each event is then a type byte, the milliseconds since
+ * the previous event, a file path reference and the offset, all as
+ * {@link VarInt}s. A file path is written in full the first time, sharing its
+ * leading bytes with the previous new path, and referred to by its number
+ * from then on, so an event of a file seen before takes four to six bytes.
+ * Gaps between events of more than 24 days are written as 24 days.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceWriter {
+
+	static final byte[] MAGIC = { 'R', 'F', 'P', 'T' };
+	static final int FORMAT_VERSION = 1;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream out;
+	private final Map<String, Integer> pathNumbers = new HashMap<String, Integer>();
+	private byte[] previousPath = new byte[0];
+	private long previousTimeMillis = -1;
+	private long eventCount;
+
+	/**
+	 * Constructs a trace writer. Nothing is written until the first event.
+	 *
+	 * @param out
+	 *            The stream to write to, preferably buffered.
+	 */
+	public TraceWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write an event.
+	 *
+	 * @param event
+	 *            The event. Events are expected in time order, an earlier one
+	 *            is written as happening at the same time as the previous one.
+	 * @throws IOException
+	 *             If the stream could not be written.
+	 */
+	public void write(TraceEvent event) throws IOException {
+		if (previousTimeMillis < 0) {
+			out.write(MAGIC);
+			out.write(FORMAT_VERSION);
+			new DataOutputStream(out).writeLong(event.getTimeMillis());
+			previousTimeMillis = event.getTimeMillis();
+		}
+		out.write(event.getType());
+		long delta = Math.max(0, event.getTimeMillis() - previousTimeMillis);
+		VarInt.write(out, (int) Math.min(Integer.MAX_VALUE, delta));
+		previousTimeMillis += delta;
+
+		Integer number = pathNumbers.get(event.getFilePathUri());
+		if (number != null) {
+			VarInt.write(out, number.intValue());
+		} else {
+			VarInt.write(out, 0);
+			byte[] path = event.getFilePathUri().getBytes(UTF8);
+			int shared = 0;
+			int max = Math.min(path.length, previousPath.length);
+			while (shared < max && path[shared] == previousPath[shared]) {
+				shared++;
+			}
+			VarInt.write(out, shared);
+			VarInt.write(out, path.length - shared);
+			out.write(path, shared, path.length - shared);
+			previousPath = path;
+			pathNumbers.put(event.getFilePathUri(), Integer
+					.valueOf(pathNumbers.size() + 1));
+		}
+		VarInt.write(out, event.getOffset());
+		eventCount++;
+	}
+
+	/**
+	 * Get the count of events written.
+	 *
+	 * @return The event count.
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Flush the underlying stream.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be flushed.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Close the underlying stream.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be closed.
+	 */
+	public void close() throws IOException {
+		out.close();
+	}
+}
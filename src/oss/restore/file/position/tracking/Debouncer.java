@@ -0,0 +1,194 @@
+package oss.restore.file.position.tracking;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces rapid changes per key, e.g. caret moves per editor, and hands each
+ * changed key to a flusher once no change has been seen for a quiet period,
+ * or earlier when asked to.
+ *
+ * A change only marks its key as pending, without even reading the clock, and
+ * the timeout is scheduled once per quiet period rather than for every change.
+ * When the timeout fires and changes were seen since it was scheduled, it is
+ * scheduled again, so the keys are flushed between one and two quiet periods
+ * after the last change.
+ *
+ * Not thread-safe, meant to be used from the UI thread only.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class Debouncer<K> {
+
+	/**
+	 * Writes what changed for a key.
+	 */
+	public interface IFlusher<K> {
+
+		/**
+		 * Write what changed for a key.
+		 *
+		 * @param key
+		 *            The key.
+		 */
+		void flush(K key);
+	}
+
+	/**
+	 * Runs a task once after a delay, e.g. on the UI thread.
+	 */
+	public interface IScheduler {
+
+		/**
+		 * Run a task once after a delay.
+		 *
+		 * @param delayMillis
+		 *            The delay.
+		 * @param task
+		 *            The task.
+		 */
+		void schedule(long delayMillis, Runnable task);
+	}
+
+	private final long quietMillis;
+	private final IScheduler scheduler;
+	private final IFlusher<K> flusher;
+
+	private final Set<K> pending = new LinkedHashSet<K>();
+	// The key changed last while pending, so repeated changes of the same key
+	// skip the set.
+	private K lastKey;
+	private boolean changedSinceScheduled;
+	private boolean scheduled;
+
+	private long changeCount;
+	private long flushCount;
+
+	private final Runnable timeout = new Runnable() {
+		public void run() {
+			scheduled = false;
+			if (pending.isEmpty()) {
+				return;
+			}
+			if (changedSinceScheduled) {
+				schedule();
+			} else {
+				flushAll();
+			}
+		}
+	};
+
+	/**
+	 * Constructs a debouncer.
+	 *
+	 * @param quietMillis
+	 *            How long no change must be seen before the pending keys are
+	 *            flushed.
+	 * @param scheduler
+	 *            The scheduler of the timeout.
+	 * @param flusher
+	 *            The flusher of the pending keys.
+	 */
+	public Debouncer(long quietMillis, IScheduler scheduler,
+			IFlusher<K> flusher) {
+		this.quietMillis = quietMillis;
+		this.scheduler = scheduler;
+		this.flusher = flusher;
+	}
+
+	/**
+	 * Mark a key as changed. It is flushed once no change has been seen for
+	 * the quiet period.
+	 *
+	 * @param key
+	 *            The key.
+	 */
+	public void changed(K key) {
+		if (key != lastKey) {
+			pending.add(key);
+			lastKey = key;
+		}
+		changeCount++;
+		if (scheduled) {
+			changedSinceScheduled = true;
+		} else {
+			schedule();
+		}
+	}
+
+	/**
+	 * Flush a key right away if it is pending, e.g. when its editor is
+	 * deactivated.
+	 *
+	 * @param key
+	 *            The key.
+	 */
+	public void flush(K key) {
+		if (pending.remove(key)) {
+			lastKey = null;
+			flushCount++;
+			flusher.flush(key);
+		}
+	}
+
+	/**
+	 * Flush all pending keys right away, in the order they first changed.
+	 */
+	public void flushAll() {
+		List<K> keys = new ArrayList<K>(pending);
+		pending.clear();
+		lastKey = null;
+		for (K key : keys) {
+			flushCount++;
+			flusher.flush(key);
+		}
+	}
+
+	/**
+	 * Drop a pending key without flushing it, e.g. when its editor is closed
+	 * and written anyway.
+	 *
+	 * @param key
+	 *            The key.
+	 */
+	public void forget(K key) {
+		if (pending.remove(key)) {
+			lastKey = null;
+		}
+	}
+
+	/**
+	 * Get the count of keys waiting to be flushed.
+	 *
+	 * @return The pending count.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Get the count of changes since this debouncer was constructed.
+	 *
+	 * @return The change count.
+	 */
+	public long getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Get the count of keys flushed since this debouncer was constructed.
+	 *
+	 * @return The flush count.
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+
+	private void schedule() {
+		scheduled = true;
+		changedSinceScheduled = false;
+		scheduler.schedule(quietMillis, timeout);
+	}
+}
@@ -0,0 +1,349 @@
+package tests.oss.restore.file.position.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.BinaryMapSerializer;
+import oss.restore.file.position.collection.MapSerializer;
+import oss.restore.file.position.collection.VarInt;
+import oss.restore.file.position.collection.ViewportSnapshot;
+
+/**
+ * Test the binary map serializer.
+ * 
+ * @author Nicklas Gummesson
+ */
+public class BinaryMapSerializerTest extends TestCase {
+
+	/**
+	 * Test that an empty map survives a round trip.
+	 */
+	public void testRoundTripEmptyMap() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		assertEquals(map, roundTrip(map));
+	}
+
+	/**
+	 * Test a round trip of typical file paths, including the order of the
+	 * entries.
+	 */
+	public void testRoundTripTypicalMap() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("/home/nyan/workspace/foo/src/Foo.java", 1337);
+		map.put("/home/nyan/workspace/bar/src/Bar.java", 42);
+		map.put("/home/nyan/workspace/foo/src/Baz.java", 0);
+		map.put("C:\\workspace\\foo\\Foo.java", 123);
+		map.put("no-directory", 7);
+		map.put("/unicode/f\u00f6\u00f6/b\u00e4r.txt", Integer.MAX_VALUE);
+
+		Map<String, Integer> result = roundTrip(map);
+		assertEquals(map, result);
+		assertEquals(new ArrayList<String>(map.keySet()),
+				new ArrayList<String>(result.keySet()));
+	}
+
+	/**
+	 * Test that directories sharing long prefixes makes the output smaller
+	 * than the querystring format.
+	 */
+	public void testPrefixCompression() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < 1000; i++) {
+			map.put("/home/nyan/workspace/project" + (i % 10)
+					+ "/src/main/java/net/example/package" + (i % 50)
+					+ "/File" + i + ".java", i * 31);
+		}
+
+		int binarySize = serialize(map).length;
+		int querystringSize = MapSerializer.serializeMap(map).length();
+		assertTrue(binarySize * 3 < querystringSize);
+		assertEquals(map, roundTrip(map));
+	}
+
+	/**
+	 * Test that null keys and values are skipped.
+	 */
+	public void testSkipsNulls() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("/foo", 1);
+		map.put(null, 2);
+		map.put("/bar", null);
+		Map<String, Integer> result = roundTrip(map);
+		assertEquals(1, result.size());
+		assertEquals(new Integer(1), result.get("/foo"));
+	}
+
+	/**
+	 * Test that migrating from the querystring format keeps all entries.
+	 */
+	public void testMigrateFromQuerystring() throws IOException {
+		Map<String, Integer> legacy = MapSerializer
+				.deserializeMap("%2Ffoo%2FBar.java=1337&%2Ffoo%2FBaz.java=42");
+		Map<String, Integer> result = roundTrip(legacy);
+		assertEquals(new Integer(1337), result.get("/foo/Bar.java"));
+		assertEquals(new Integer(42), result.get("/foo/Baz.java"));
+	}
+
+	/**
+	 * Test that input that is not in the binary format is rejected.
+	 */
+	public void testRejectsForeignInput() {
+		try {
+			BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+					"foobar=1337".getBytes()));
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Test a round trip of viewport snapshots, and that an offsets map reads
+	 * them as caret offsets.
+	 */
+	public void testRoundTripViewports() throws IOException {
+		Map<String, ViewportSnapshot> map = new LinkedHashMap<String, ViewportSnapshot>();
+		map.put("/foo/Foo.java", new ViewportSnapshot(1337, 12, 40));
+		map.put("/foo/Bar.java", new ViewportSnapshot(42, 0,
+				ViewportSnapshot.UNKNOWN_TOP_LINE));
+		map.put("/foo/Baz.java", new ViewportSnapshot(300, 0, 2, 0x80000001,
+				12, 4, 1287305400000L));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeViewports(map, out);
+
+		Map<String, ViewportSnapshot> result = BinaryMapSerializer
+				.deserializeViewports(new ByteArrayInputStream(out
+						.toByteArray()));
+		assertEquals(map, result);
+		assertEquals(new ArrayList<String>(map.keySet()),
+				new ArrayList<String>(result.keySet()));
+
+		Map<String, Integer> offsets = BinaryMapSerializer
+				.deserializeMap(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(Integer.valueOf(1337), offsets.get("/foo/Foo.java"));
+		assertEquals(Integer.valueOf(42), offsets.get("/foo/Bar.java"));
+	}
+
+	/**
+	 * Test that the first format version, without selection and top line, is
+	 * still read.
+	 */
+	public void testReadsVersion1() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 'R', 'F', 'P', 1 });
+		VarInt.write(out, 1);
+		VarInt.write(out, 0);
+		VarInt.write(out, 5);
+		out.write("/foo/".getBytes("UTF-8"));
+		VarInt.write(out, 1);
+		VarInt.write(out, 0);
+		VarInt.write(out, 8);
+		out.write("Bar.java".getBytes("UTF-8"));
+		VarInt.write(out, 1337);
+
+		Map<String, ViewportSnapshot> result = BinaryMapSerializer
+				.deserializeViewports(new ByteArrayInputStream(out
+						.toByteArray()));
+		assertEquals(new ViewportSnapshot(1337, 0,
+				ViewportSnapshot.UNKNOWN_TOP_LINE), result.get("/foo/Bar.java"));
+	}
+
+	/**
+	 * Test that an unknown format version is rejected.
+	 */
+	public void testRejectsUnknownVersion() throws IOException {
+		byte[] bytes = serialize(new LinkedHashMap<String, Integer>());
+		bytes[3] = (byte) (BinaryMapSerializer.FORMAT_VERSION + 1);
+		try {
+			BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(bytes));
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Test that truncated input is rejected rather than partly read.
+	 */
+	public void testRejectsTruncatedInput() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("/foo/Bar.java", 1337);
+		byte[] bytes = serialize(map);
+		for (int length = 0; length < bytes.length; length++) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			try {
+				BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+						truncated));
+				fail("Expected IOException for length " + length);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Test a round trip of viewport snapshots compressed with Deflate,
+	 * including the order of the entries.
+	 */
+	public void testRoundTripDeflate() throws IOException {
+		Map<String, ViewportSnapshot> map = new LinkedHashMap<String, ViewportSnapshot>();
+		for (int i = 0; i < 1000; i++) {
+			map.put("/home/nyan/workspace/project" + (i % 10)
+					+ "/src/main/java/net/example/package" + (i % 50)
+					+ "/File" + i + ".java", new ViewportSnapshot(i * 31, i,
+					i / 2, i * 17, i / 3, i % 7, 1287305400000L + i));
+		}
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeViewports(map, plain);
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeViewports(map, deflated,
+				BinaryMapSerializer.CODEC_DEFLATE);
+		assertTrue(deflated.size() * 2 < plain.size());
+
+		Map<String, ViewportSnapshot> result = BinaryMapSerializer
+				.deserializeViewports(new ByteArrayInputStream(deflated
+						.toByteArray()));
+		assertEquals(map, result);
+		assertEquals(new ArrayList<String>(map.keySet()),
+				new ArrayList<String>(result.keySet()));
+	}
+
+	/**
+	 * Test that an offsets map survives a round trip compressed with Deflate,
+	 * also when empty.
+	 */
+	public void testRoundTripDeflateMap() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		assertEquals(map, roundTripDeflate(map));
+		map.put("/home/nyan/workspace/foo/src/Foo.java", 1337);
+		map.put("C:\\workspace\\foo\\Foo.java", 123);
+		map.put("/unicode/f\u00f6\u00f6/b\u00e4r.txt", Integer.MAX_VALUE);
+		assertEquals(map, roundTripDeflate(map));
+	}
+
+	/**
+	 * Test that the fourth format version, without the codec, is still read.
+	 */
+	public void testReadsVersion4() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 'R', 'F', 'P', 4 });
+		VarInt.write(out, 1);
+		VarInt.write(out, 0);
+		VarInt.write(out, 5);
+		out.write("/foo/".getBytes("UTF-8"));
+		VarInt.write(out, 1);
+		VarInt.write(out, 0);
+		VarInt.write(out, 8);
+		out.write("Bar.java".getBytes("UTF-8"));
+		VarInt.write(out, 1337);
+		VarInt.write(out, 2);
+		VarInt.write(out, 41);
+		VarInt.write(out, 0);
+		VarInt.writeLong(out, 1287305400000L);
+
+		Map<String, ViewportSnapshot> result = BinaryMapSerializer
+				.deserializeViewports(new ByteArrayInputStream(out
+						.toByteArray()));
+		assertEquals(new ViewportSnapshot(1337, 2, 40, 0,
+				ViewportSnapshot.NO_ANCHOR, 0, 1287305400000L), result
+				.get("/foo/Bar.java"));
+	}
+
+	/**
+	 * Test that an unknown codec and a payload compressed with another
+	 * dictionary are rejected.
+	 */
+	public void testRejectsUnknownCodec() throws IOException {
+		byte[] bytes = serialize(new LinkedHashMap<String, Integer>());
+		bytes[4] = 42;
+		try {
+			BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(bytes));
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+
+		bytes = serializeDeflate(new LinkedHashMap<String, Integer>());
+		bytes[5]++;
+		try {
+			BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(bytes));
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Test that truncated compressed input is rejected rather than partly
+	 * read.
+	 */
+	public void testRejectsTruncatedDeflate() throws IOException {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("/foo/Bar.java", 1337);
+		map.put("/foo/Baz.java", 42);
+		byte[] bytes = serializeDeflate(map);
+		for (int length = 0; length < bytes.length; length++) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			try {
+				BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+						truncated));
+				fail("Expected IOException for length " + length);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Test that corrupt counts and lengths are rejected with an IOException
+	 * rather than allocated.
+	 */
+	public void testRejectsCorruptCounts() throws IOException {
+		int[][] headers = { { -1 }, { Integer.MAX_VALUE }, { 1, 0, -1 },
+				{ 1, 0, Integer.MAX_VALUE }, { 0, -1 },
+				{ 1, 0, 1, 0, 1, 0, Integer.MAX_VALUE } };
+		for (int[] header : headers) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(new byte[] { 'R', 'F', 'P',
+					(byte) BinaryMapSerializer.FORMAT_VERSION,
+					(byte) BinaryMapSerializer.CODEC_NONE });
+			for (int value : header) {
+				VarInt.write(out, value);
+			}
+			try {
+				BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+						out.toByteArray()));
+				fail("Expected IOException for " + Arrays.toString(header));
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private byte[] serializeDeflate(Map<String, Integer> map)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeMap(map, out,
+				BinaryMapSerializer.CODEC_DEFLATE);
+		return out.toByteArray();
+	}
+
+	private Map<String, Integer> roundTripDeflate(Map<String, Integer> map)
+			throws IOException {
+		return BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+				serializeDeflate(map)));
+	}
+
+	private byte[] serialize(Map<String, Integer> map) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMapSerializer.serializeMap(map, out);
+		return out.toByteArray();
+	}
+
+	private Map<String, Integer> roundTrip(Map<String, Integer> map)
+			throws IOException {
+		return BinaryMapSerializer.deserializeMap(new ByteArrayInputStream(
+				serialize(map)));
+	}
+}
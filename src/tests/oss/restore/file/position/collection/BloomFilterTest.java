@@ -0,0 +1,84 @@
+package tests.oss.restore.file.position.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.BloomFilter;
+
+/**
+ * Test for the BloomFilter used to answer lookups of file paths never stored.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class BloomFilterTest extends TestCase {
+
+	/**
+	 * Test that every added key might be contained, and that the false
+	 * positive rate is close to the wanted one.
+	 */
+	public void testFalsePositiveRate() {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.put("/ws/project/src/File" + i + ".java");
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("/ws/project/src/File" + i
+					+ ".java"));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("/ws/project/gen/Other" + i + ".java")) {
+				falsePositives++;
+			}
+		}
+		assertTrue("False positives: " + falsePositives, falsePositives < 200);
+		assertFalse(filter.isSaturated());
+		assertEquals(7, filter.getHashCount());
+		assertEquals(1200, filter.getMemoryBytes());
+	}
+
+	/**
+	 * Test that the filter is saturated once more keys than expected have
+	 * been added, and empty once cleared.
+	 */
+	public void testSaturatedAndClear() {
+		BloomFilter filter = new BloomFilter(10, 0.01);
+		for (int i = 0; i < 11; i++) {
+			filter.put("key" + i);
+		}
+		assertTrue(filter.isSaturated());
+		filter.clear();
+		assertEquals(0, filter.getKeyCount());
+		assertFalse(filter.mightContain("key1"));
+		assertEquals(0.0, filter.getEstimatedFalsePositiveRate());
+	}
+
+	/**
+	 * Test writing and reading the filter.
+	 */
+	public void testWriteAndRead() throws IOException {
+		BloomFilter filter = new BloomFilter(100, 0.05);
+		filter.put("/a.java");
+		filter.put("/b.java");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filter.writeTo(out);
+
+		BloomFilter read = BloomFilter.readFrom(new ByteArrayInputStream(out
+				.toByteArray()));
+		assertEquals(100, read.getExpectedKeys());
+		assertEquals(0.05, read.getFalsePositiveRate());
+		assertEquals(2, read.getKeyCount());
+		assertEquals(filter.getHashCount(), read.getHashCount());
+		assertTrue(read.mightContain("/a.java"));
+		assertTrue(read.mightContain("/b.java"));
+
+		try {
+			BloomFilter.readFrom(new ByteArrayInputStream(new byte[8]));
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package tests.oss.restore.file.position.collection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.CachedMap;
+import oss.restore.file.position.collection.FifoEvictionPolicy;
+
+/**
+ * Test the primitive cached map.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class CachedIntMapTest extends TestCase {
+
+	/**
+	 * Test putting and getting unboxed values.
+	 */
+	public void testPutAndGetInt() {
+		CachedIntMap map = new CachedIntMap(3);
+		assertTrue(map.putInt("foobar", 1337));
+		assertFalse(map.putInt("foobar", 42));
+		assertEquals(42, map.getInt("foobar", 0));
+		assertEquals(-1, map.getInt("nyancat", -1));
+		assertEquals(new Integer(42), map.get("foobar"));
+		assertEquals(1, map.size());
+	}
+
+	/**
+	 * Test that the eldest entry is removed when the capacity is reached.
+	 */
+	public void testCapacityLimit() {
+		CachedIntMap map = new CachedIntMap(3);
+		for (int i = 1; i <= 4; i++) {
+			map.putInt("/path/" + i, i);
+		}
+		assertEquals(3, map.size());
+		assertFalse(map.containsKey("/path/1"));
+		assertEquals("/path/2", map.eldestKey());
+		assertEquals(1, map.getEvictionCount());
+	}
+
+	/**
+	 * Test that lowering the capacity shrinks the map on the next put.
+	 */
+	public void testLowerCapacity() {
+		CachedIntMap map = new CachedIntMap(10);
+		for (int i = 1; i <= 10; i++) {
+			map.putInt("/path/" + i, i);
+		}
+		map.setCapacity(3);
+		assertEquals(10, map.size());
+		map.putInt("foo", 1337);
+		assertEquals(3, map.size());
+		assertEquals(9, map.getInt("/path/9", 0));
+		assertEquals(10, map.getInt("/path/10", 0));
+	}
+
+	/**
+	 * Test that raising the capacity lets the map grow.
+	 */
+	public void testRaiseCapacity() {
+		CachedIntMap map = new CachedIntMap(2);
+		map.setCapacity(1000);
+		for (int i = 0; i < 1000; i++) {
+			map.putInt("/path/" + i, i);
+		}
+		assertEquals(1000, map.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, map.getInt("/path/" + i, -1));
+		}
+	}
+
+	/**
+	 * Test removing through the entry iterator.
+	 */
+	public void testIteratorRemove() {
+		CachedIntMap map = new CachedIntMap(10);
+		for (int i = 0; i < 10; i++) {
+			map.putInt("/path/" + i, i);
+		}
+		Iterator<Map.Entry<String, Integer>> iterator = map.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().intValue() % 2 == 0) {
+				iterator.remove();
+			}
+		}
+		assertEquals(5, map.size());
+		assertEquals(-1, map.getInt("/path/4", -1));
+		assertEquals(5, map.getInt("/path/5", -1));
+	}
+
+	/**
+	 * Test random operations against a CachedMap, in insertion order.
+	 */
+	public void testAgainstCachedMapInsertionOrder() {
+		assertSameBehavior(false);
+	}
+
+	/**
+	 * Test random operations against a CachedMap, in access order.
+	 */
+	public void testAgainstCachedMapAccessOrder() {
+		assertSameBehavior(true);
+	}
+
+	private void assertSameBehavior(boolean accessOrder) {
+		CachedMap<String, Integer> reference = new CachedMap<String, Integer>(
+				64, 0.75f, accessOrder);
+		CachedIntMap map = new CachedIntMap(64, 0.75f, accessOrder);
+		Random random = new Random(42);
+
+		for (int i = 0; i < 50000; i++) {
+			String key = "/path/" + random.nextInt(200);
+			int operation = random.nextInt(10);
+			if (operation < 5) {
+				map.putInt(key, i);
+				reference.put(key, i);
+			} else if (operation < 9) {
+				Integer expected = reference.get(key);
+				assertEquals(expected == null ? -1 : expected.intValue(),
+						map.getInt(key, -1));
+			} else {
+				assertEquals(reference.remove(key), map.remove(key));
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		assertEquals(new ArrayList<Map.Entry<String, Integer>>(reference
+				.entrySet()), new ArrayList<Map.Entry<String, Integer>>(map
+				.entrySet()));
+		assertEquals(reference, map);
+	}
+
+	/**
+	 * Test changing keys in place, keeping the order and the extras.
+	 */
+	public void testRekey() {
+		CachedIntMap map = new CachedIntMap(10, 0.75f,
+				new FifoEvictionPolicy(), 1);
+		for (int i = 0; i < 6; i++) {
+			map.putInt("/path/" + i, i, new int[] { 10 * i });
+		}
+		int changed = map.rekey(new CachedIntMap.IKeyMapper() {
+			public String map(String key) {
+				if (key.equals("/path/1")) {
+					return null;
+				}
+				if (key.equals("/path/2")) {
+					// Replaces /path/3, which is not changed.
+					return "/path/3";
+				}
+				if (key.equals("/path/4")) {
+					// Takes the key of /path/5, which is changed too.
+					return "/path/5";
+				}
+				if (key.equals("/path/5")) {
+					return "/moved/5";
+				}
+				return key;
+			}
+		});
+		assertEquals(4, changed);
+		assertEquals("[/path/0, /path/3, /path/5, /moved/5]", map.keySet()
+				.toString());
+		assertEquals(2, map.getInt("/path/3", -1));
+		assertEquals(4, map.getInt("/path/5", -1));
+		int[] extra = new int[1];
+		assertTrue(map.getExtra("/moved/5", extra));
+		assertEquals(50, extra[0]);
+		assertEquals(-1, map.getInt("/path/1", -1));
+
+		// The freed entries are reused.
+		for (int i = 0; i < 6; i++) {
+			map.putInt("/new/" + i, i);
+		}
+		assertEquals(10, map.size());
+		assertEquals(0, map.getEvictionCount());
+	}
+}
@@ -0,0 +1,117 @@
+package tests.oss.restore.file.position.collection;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.FifoEvictionPolicy;
+import oss.restore.file.position.collection.IEvictionPolicy;
+import oss.restore.file.position.collection.LruEvictionPolicy;
+import oss.restore.file.position.collection.WTinyLfuEvictionPolicy;
+
+/**
+ * Reports the hit rate of each eviction policy on access traces. Each access
+ * is a file being opened, a hit if its offset is still stored, and then
+ * closed. Run it as a Java application, optionally with the capacity and
+ * recorded trace files, one file path per line, as arguments.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class EvictionHitRateMeasurement {
+
+	public static void main(String[] args) throws IOException {
+		int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+		System.out.println("trace\tFIFO\tLRU\tW-TinyLFU");
+		report("skewed", skewedTrace(50000, 2000), capacity);
+		report("hot set with search-and-replace bursts",
+				burstTrace(50000, capacity), capacity);
+		for (int i = 1; i < args.length; i++) {
+			report(args[i], readTrace(args[i]), capacity);
+		}
+	}
+
+	private static void report(String name, List<String> trace, int capacity) {
+		System.out.println(name + "\t"
+				+ format(hitRate(trace, new FifoEvictionPolicy(), capacity))
+				+ "\t"
+				+ format(hitRate(trace, new LruEvictionPolicy(), capacity))
+				+ "\t"
+				+ format(hitRate(trace, new WTinyLfuEvictionPolicy(capacity),
+						capacity)));
+	}
+
+	private static double hitRate(List<String> trace, IEvictionPolicy policy,
+			int capacity) {
+		CachedIntMap map = new CachedIntMap(capacity, policy);
+		int hits = 0;
+		for (int i = 0; i < trace.size(); i++) {
+			String filePathUri = trace.get(i);
+			if (map.getInt(filePathUri, -1) >= 0) {
+				hits++;
+			}
+			map.putInt(filePathUri, i);
+		}
+		return trace.isEmpty() ? 0 : (double) hits / trace.size();
+	}
+
+	private static String format(double hitRate) {
+		return Math.round(hitRate * 1000) / 10.0 + "%";
+	}
+
+	/**
+	 * Files reopened with a heavily skewed popularity.
+	 */
+	private static List<String> skewedTrace(int length, int files) {
+		Random random = new Random(42);
+		List<String> trace = new ArrayList<String>(length);
+		for (int i = 0; i < length; i++) {
+			int file = (int) (files * Math.pow(random.nextDouble(), 3));
+			trace.add("/workspace/project/src/File" + file + ".java");
+		}
+		return trace;
+	}
+
+	/**
+	 * A working set a bit smaller than the capacity, interrupted now and then
+	 * by a burst of files opened once.
+	 */
+	private static List<String> burstTrace(int length, int capacity) {
+		Random random = new Random(42);
+		List<String> trace = new ArrayList<String>(length);
+		int workingSet = Math.max(1, capacity * 4 / 5);
+		int burstFile = 0;
+		while (trace.size() < length) {
+			for (int i = 0; i < 10 * capacity && trace.size() < length; i++) {
+				trace.add("/workspace/hot/File" + random.nextInt(workingSet)
+						+ ".java");
+			}
+			for (int i = 0; i < 2 * capacity && trace.size() < length; i++) {
+				trace.add("/workspace/search/Result" + burstFile++ + ".java");
+			}
+		}
+		return trace;
+	}
+
+	private static List<String> readTrace(String path) throws IOException {
+		List<String> trace = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0) {
+					trace.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+}
@@ -0,0 +1,120 @@
+package tests.oss.restore.file.position.collection;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.FifoEvictionPolicy;
+import oss.restore.file.position.collection.IEvictionPolicy;
+import oss.restore.file.position.collection.LruEvictionPolicy;
+import oss.restore.file.position.collection.WTinyLfuEvictionPolicy;
+
+/**
+ * Test the eviction policies of the primitive cached map.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class EvictionPolicyTest extends TestCase {
+
+	/**
+	 * Test that FIFO evicts the eldest inserted entry even if it was just
+	 * used.
+	 */
+	public void testFifo() {
+		CachedIntMap map = new CachedIntMap(3, new FifoEvictionPolicy());
+		fill(map, 3);
+		map.getInt("/path/0", 0);
+		map.putInt("/path/3", 3);
+		assertFalse(map.containsKey("/path/0"));
+		assertTrue(map.containsKey("/path/1"));
+	}
+
+	/**
+	 * Test that LRU evicts the least recently used entry.
+	 */
+	public void testLru() {
+		CachedIntMap map = new CachedIntMap(3, new LruEvictionPolicy());
+		fill(map, 3);
+		map.getInt("/path/0", 0);
+		map.putInt("/path/3", 3);
+		assertTrue(map.containsKey("/path/0"));
+		assertFalse(map.containsKey("/path/1"));
+	}
+
+	/**
+	 * Test that W-TinyLFU never exceeds the capacity and keeps the latest
+	 * value of every entry it holds.
+	 */
+	public void testWTinyLfuConsistency() {
+		CachedIntMap map = new CachedIntMap(200,
+				new WTinyLfuEvictionPolicy(200));
+		int[] latest = new int[2000];
+		Random random = new Random(1337);
+		for (int i = 1; i < 100000; i++) {
+			int key = (int) Math.abs(random.nextGaussian() * 300) % 2000;
+			if (random.nextBoolean()) {
+				map.putInt("/path/" + key, i);
+				latest[key] = i;
+			} else {
+				int value = map.getInt("/path/" + key, 0);
+				assertTrue(value == 0 || value == latest[key]);
+			}
+			assertTrue(map.size() <= 200);
+		}
+		assertEquals(200, map.size());
+	}
+
+	/**
+	 * Test that a burst of files used once does not push out the files that
+	 * are used over and over with W-TinyLFU, as it does with FIFO and LRU.
+	 */
+	public void testScanResistance() {
+		assertEquals(0, survivorsAfterScan(new FifoEvictionPolicy()));
+		assertEquals(0, survivorsAfterScan(new LruEvictionPolicy()));
+		assertTrue(survivorsAfterScan(new WTinyLfuEvictionPolicy(100)) >= 45);
+	}
+
+	/**
+	 * Test that W-TinyLFU admits new entries that are used again.
+	 */
+	public void testWTinyLfuAdmitsReusedEntries() {
+		CachedIntMap map = new CachedIntMap(100,
+				new WTinyLfuEvictionPolicy(100));
+		fill(map, 100);
+		for (int round = 0; round < 3; round++) {
+			map.getInt("/new", 0);
+			map.putInt("/new", 1337);
+			// Push it through the window.
+			map.putInt("/once/" + round, round);
+		}
+		assertEquals(1337, map.getInt("/new", 0));
+	}
+
+	private int survivorsAfterScan(IEvictionPolicy policy) {
+		CachedIntMap map = new CachedIntMap(100, policy);
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 50; i++) {
+				map.getInt("/hot/" + i, 0);
+				map.putInt("/hot/" + i, i);
+			}
+		}
+		for (int i = 0; i < 300; i++) {
+			map.getInt("/scan/" + i, 0);
+			map.putInt("/scan/" + i, i);
+		}
+
+		int survivors = 0;
+		for (int i = 0; i < 50; i++) {
+			if (map.containsKey("/hot/" + i)) {
+				survivors++;
+			}
+		}
+		return survivors;
+	}
+
+	private void fill(CachedIntMap map, int count) {
+		for (int i = 0; i < count; i++) {
+			map.putInt("/path/" + i, i);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package tests.oss.restore.file.position.collection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.PersistentHashMap;
+
+/**
+ * Test for the PersistentHashMap used to snapshot offsets without copying
+ * them.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PersistentHashMapTest extends TestCase {
+
+	/**
+	 * A key with a chosen hash, to force collisions.
+	 */
+	private static final class Key {
+		final String name;
+		final int hash;
+
+		Key(String name, int hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && ((Key) other).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Test random additions and removals against a HashMap, and that every
+	 * earlier map is left as it was.
+	 */
+	public void testAgainstHashMap() {
+		Random random = new Random(42);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+		PersistentHashMap<String, Integer> snapshot = null;
+		Map<String, Integer> expectedSnapshot = null;
+		for (int i = 0; i < 20000; i++) {
+			String key = "/ws/project/File" + random.nextInt(2000) + ".java";
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.minus(key);
+			} else {
+				Integer value = Integer.valueOf(i);
+				expected.put(key, value);
+				map = map.plus(key, value);
+			}
+			if (i == 10000) {
+				snapshot = map;
+				expectedSnapshot = new HashMap<String, Integer>(expected);
+			}
+		}
+		assertContains(expected, map);
+		assertContains(expectedSnapshot, snapshot);
+	}
+
+	/**
+	 * Test keys with equal hashes, and with hashes that only differ in the
+	 * last bits.
+	 */
+	public void testCollisions() {
+		PersistentHashMap<Key, String> map = PersistentHashMap.empty();
+		Key a = new Key("a", 7);
+		Key b = new Key("b", 7);
+		Key c = new Key("c", 7 | (1 << 31));
+		map = map.plus(a, "A").plus(b, "B").plus(c, "C");
+		assertEquals(3, map.size());
+		assertEquals("A", map.get(new Key("a", 7)));
+		assertEquals("B", map.get(b));
+		assertEquals("C", map.get(c));
+		assertNull(map.get(new Key("d", 7)));
+
+		PersistentHashMap<Key, String> removed = map.minus(a);
+		assertEquals(2, removed.size());
+		assertNull(removed.get(a));
+		assertEquals("B", removed.get(b));
+		assertEquals("A", map.get(a));
+		removed = removed.minus(b).minus(c);
+		assertTrue(removed.isEmpty());
+		assertFalse(removed.iterator().hasNext());
+	}
+
+	/**
+	 * Test that unchanged maps are returned as is.
+	 */
+	public void testUnchanged() {
+		PersistentHashMap<String, Integer> map = PersistentHashMap
+				.<String, Integer> empty().plus("a", Integer.valueOf(1));
+		assertSame(map, map.minus("b"));
+		assertSame(map, map.plus("a", map.get("a")));
+	}
+
+	private static <K> void assertContains(Map<K, Integer> expected,
+			PersistentHashMap<K, Integer> map) {
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<K, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		int count = 0;
+		for (Map.Entry<K, Integer> entry : map) {
+			assertEquals(expected.get(entry.getKey()), entry.getValue());
+			count++;
+		}
+		assertEquals(expected.size(), count);
+	}
+}
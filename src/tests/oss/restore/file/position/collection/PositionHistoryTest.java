@@ -0,0 +1,165 @@
+package tests.oss.restore.file.position.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.CachedIntMap;
+import oss.restore.file.position.collection.PositionHistory;
+
+/**
+ * Test the per file position history.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionHistoryTest extends TestCase {
+
+	/**
+	 * Test that the last distinct positions are kept, newest first.
+	 */
+	public void testKeepsLastDistinctPositions() {
+		PositionHistory history = new PositionHistory(3, 100, 5);
+		assertEquals(0, history.getOffsets("/foo").length);
+		history.record("/foo", 100, 1);
+		history.record("/foo", 2000, 50);
+		history.record("/foo", 4000, 100);
+		history.record("/foo", 6000, 150);
+		assertTrue(Arrays.equals(new int[] { 6000, 4000, 2000 }, history
+				.getOffsets("/foo")));
+		assertEquals(3, history.getAllocatedPositions());
+	}
+
+	/**
+	 * Test that a position near a kept one replaces it where it is.
+	 */
+	public void testReplacesNearbyPosition() {
+		PositionHistory history = new PositionHistory(4, 100, 5);
+		history.record("/foo", 100, 1);
+		history.record("/foo", 2000, 50);
+		history.record("/foo", 4000, 100);
+		history.record("/foo", 2100, 53);
+		assertTrue(Arrays.equals(new int[] { 4000, 2100, 100 }, history
+				.getOffsets("/foo")));
+	}
+
+	/**
+	 * Test cycling through the positions in both directions, wrapping around,
+	 * and from a caret that is not at a kept position.
+	 */
+	public void testCycle() {
+		PositionHistory history = new PositionHistory(4, 100, 5);
+		assertEquals(-1, history.cycle("/foo", 0, true));
+		history.record("/foo", 100, 1);
+		assertEquals(-1, history.cycle("/foo", 1, true));
+		assertEquals(100, history.cycle("/foo", 30, true));
+		history.record("/foo", 2000, 50);
+		history.record("/foo", 4000, 100);
+
+		assertEquals(2000, history.cycle("/foo", 100, true));
+		assertEquals(100, history.cycle("/foo", 50, true));
+		assertEquals(4000, history.cycle("/foo", 1, true));
+		assertEquals(100, history.cycle("/foo", 100, false));
+		assertEquals(4000, history.cycle("/foo", 50, false));
+		assertEquals(4000, history.cycle("/foo", 200, true));
+		assertEquals(100, history.cycle("/foo", 200, false));
+
+		// Arriving at a position does not reorder the ring.
+		history.record("/foo", 2010, 50);
+		assertEquals(100, history.cycle("/foo", 50, true));
+	}
+
+	/**
+	 * Test that the budget is kept across files by dropping the least
+	 * recently used histories.
+	 */
+	public void testBudgetAcrossFiles() {
+		PositionHistory history = new PositionHistory(4, 8, 1);
+		for (int i = 0; i < 4; i++) {
+			history.record("/foo", i, i);
+			history.record("/bar", i, i);
+		}
+		assertEquals(8, history.getAllocatedPositions());
+		history.cycle("/foo", 0, true);
+
+		history.record("/baz", 42, 0);
+		assertEquals(1, history.getEvictionCount());
+		assertEquals(0, history.getOffsets("/bar").length);
+		assertEquals(4, history.getOffsets("/foo").length);
+		assertEquals(2, history.getFileCount());
+		assertEquals(5, history.getAllocatedPositions());
+
+		history.remove("/foo");
+		assertEquals(1, history.getAllocatedPositions());
+	}
+
+	/**
+	 * Test that histories follow their files when moved, are dropped when
+	 * removed, and keep their order.
+	 */
+	public void testRekey() {
+		PositionHistory history = new PositionHistory(4, 8, 1);
+		history.record("/foo/A.java", 1, 1);
+		history.record("/foo/B.java", 2, 2);
+		history.record("/bar/C.java", 3, 3);
+		history.record("/foo/B.java", 4, 4);
+		assertEquals(0, history.rekey(new CachedIntMap.IKeyMapper() {
+			public String map(String key) {
+				return key;
+			}
+		}));
+
+		assertEquals(3, history.rekey(new CachedIntMap.IKeyMapper() {
+			public String map(String key) {
+				if (key.startsWith("/bar/")) {
+					return null;
+				}
+				return key.equals("/foo/A.java") ? "/foo/B.java" : key
+						.replace("/foo/", "/baz/");
+			}
+		}));
+		assertEquals(2, history.getFileCount());
+		assertEquals(0, history.getOffsets("/bar/C.java").length);
+		assertEquals(0, history.getOffsets("/foo/A.java").length);
+		assertTrue(Arrays.equals(new int[] { 1 }, history
+				.getOffsets("/foo/B.java")));
+		assertTrue(Arrays.equals(new int[] { 4, 2 }, history
+				.getOffsets("/baz/B.java")));
+		assertEquals(3, history.getAllocatedPositions());
+
+		// The order is kept, so the least recently used goes first.
+		for (int i = 0; i < 4; i++) {
+			history.record("/qux/D.java", 10 * i, 10 * i);
+		}
+		history.record("/qux/E.java", 5, 5);
+		history.record("/qux/E.java", 6, 6);
+		assertEquals(0, history.getOffsets("/foo/B.java").length);
+		assertEquals(2, history.getOffsets("/baz/B.java").length);
+	}
+
+	/**
+	 * Test that the histories survive a round trip, including their order.
+	 */
+	public void testRoundTrip() throws IOException {
+		PositionHistory history = new PositionHistory(3, 100, 5);
+		history.record("/foo/F\u00f6\u00f6.java", 100, 1);
+		history.record("/bar/Bar.java", 7, 0);
+		history.record("/foo/F\u00f6\u00f6.java", 2000, 50);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		history.writeTo(out);
+
+		PositionHistory result = new PositionHistory(3, 100, 5);
+		result.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(Arrays.equals(new int[] { 2000, 100 }, result
+				.getOffsets("/foo/F\u00f6\u00f6.java")));
+		assertTrue(Arrays.equals(new int[] { 7 }, result
+				.getOffsets("/bar/Bar.java")));
+
+		try {
+			result.readFrom(new ByteArrayInputStream("foo".getBytes()));
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package tests.oss.restore.file.position.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.metrics.IGauge;
+import oss.restore.file.position.metrics.LatencyHistogram;
+import oss.restore.file.position.metrics.PositionMetrics;
+
+/**
+ * Test for the PositionMetrics and its LatencyHistogram.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionMetricsTest extends TestCase {
+
+	/**
+	 * Test that nothing is recorded while disabled.
+	 */
+	public void testDisabledRecordsNothing() {
+		PositionMetrics metrics = new PositionMetrics();
+		metrics.recordLookup(true, 1000);
+		metrics.recordStore();
+		metrics.recordPartOpened(1000);
+		metrics.recordSerialization(42, 1000);
+		assertEquals(0, metrics.getLookupCount());
+		assertEquals(0, metrics.getStoreCount());
+		assertEquals(0, metrics.getPartOpenedCount());
+		assertEquals(0, metrics.getLastSerializedBytes());
+	}
+
+	/**
+	 * Test the hit and miss counters.
+	 */
+	public void testHitRatio() {
+		PositionMetrics metrics = new PositionMetrics(true);
+		metrics.recordLookup(true, 10);
+		metrics.recordLookup(true, 10);
+		metrics.recordLookup(true, 10);
+		metrics.recordLookup(false, 10);
+		assertEquals(4, metrics.getLookupCount());
+		assertEquals(3, metrics.getHitCount());
+		assertEquals(1, metrics.getMissCount());
+		assertEquals(0.75, metrics.getHitRatio(), 0.0001);
+
+		metrics.reset();
+		assertEquals(0, metrics.getLookupCount());
+		assertEquals(0.0, metrics.getHitRatio(), 0.0001);
+	}
+
+	/**
+	 * Test that the gauges are read when reported.
+	 */
+	public void testGauges() {
+		final long[] size = { 3 };
+		PositionMetrics metrics = new PositionMetrics();
+		assertEquals(0, metrics.getStorageSize());
+		metrics.setStorageGauges(new IGauge() {
+			public long getValue() {
+				return size[0];
+			}
+		}, null);
+		assertEquals(3, metrics.getStorageSize());
+		size[0] = 5;
+		assertEquals(5, metrics.getStorageSize());
+		assertEquals(0, metrics.getEvictionCount());
+
+		assertEquals(0, metrics.getWriteFailureCount());
+		metrics.setWriteFailureGauge(new IGauge() {
+			public long getValue() {
+				return 2;
+			}
+		});
+		assertEquals(2, metrics.getWriteFailureCount());
+		assertTrue(metrics.getSummary().contains(" writeFailures=2 "));
+	}
+
+	/**
+	 * Test the histogram mean, max and percentiles, which are rounded up to a
+	 * power of two but never above the max.
+	 */
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileNanos(99));
+		for (int i = 0; i < 99; i++) {
+			histogram.record(100);
+		}
+		histogram.record(100000);
+		assertEquals(100, histogram.getCount());
+		assertEquals(100000, histogram.getMaxNanos());
+		assertEquals((99 * 100 + 100000) / 100, histogram.getMeanNanos());
+		assertEquals(128, histogram.getPercentileNanos(50));
+		assertEquals(128, histogram.getPercentileNanos(99));
+		assertEquals(100000, histogram.getPercentileNanos(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMaxNanos());
+	}
+
+	/**
+	 * Test that the enabled listener is run only when disabled metrics are
+	 * enabled.
+	 */
+	public void testEnabledListener() {
+		PositionMetrics metrics = new PositionMetrics();
+		final int[] runs = new int[1];
+		metrics.setEnabledListener(new Runnable() {
+			public void run() {
+				runs[0]++;
+			}
+		});
+		metrics.setEnabled(true);
+		metrics.setEnabled(true);
+		assertEquals(1, runs[0]);
+		metrics.setEnabled(false);
+		assertEquals(1, runs[0]);
+		metrics.setEnabled(true);
+		assertEquals(2, runs[0]);
+	}
+
+	/**
+	 * Test that the metrics can be enabled and read through JMX.
+	 */
+	public void testMBean() throws Exception {
+		PositionMetrics metrics = new PositionMetrics();
+		metrics.registerMBean();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(PositionMetrics.OBJECT_NAME);
+			assertTrue(server.isRegistered(name));
+			server.setAttribute(name, new javax.management.Attribute(
+					"Enabled", Boolean.TRUE));
+			assertTrue(metrics.isEnabled());
+			metrics.recordLookup(false, 10);
+			assertEquals(Long.valueOf(1),
+					server.getAttribute(name, "MissCount"));
+		} finally {
+			metrics.unregisterMBean();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+				new ObjectName(PositionMetrics.OBJECT_NAME)));
+	}
+}
@@ -0,0 +1,227 @@
+package tests.oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.AsyncOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Test for the AsyncOffsetsStorage which writes offsets on a background
+ * writer thread.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class AsyncOffsetsStorageTest extends TestCase {
+
+	/**
+	 * A storage whose writes wait until released, like a slow disk.
+	 */
+	private static class BlockingStorage extends StandardOffsetsStorage {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		int writeCount;
+
+		BlockingStorage(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public void setViewport(String filePathUri, ViewportSnapshot viewport) {
+			writing.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			writeCount++;
+			super.setViewport(filePathUri, viewport);
+		}
+	}
+
+	private BlockingStorage target;
+	private AsyncOffsetsStorage storage;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (target != null) {
+			target.released.countDown();
+		}
+		if (storage != null) {
+			storage.close();
+		}
+	}
+
+	/**
+	 * Test that offsets are readable while waiting to be written, and that
+	 * setting them does not wait for the storage.
+	 */
+	public void testReadYourWrites() {
+		target = new BlockingStorage(10);
+		storage = new AsyncOffsetsStorage(target, 10);
+
+		storage.setOffset("/foo/b.java", 2);
+		storage.setOffset("/foo/c.java", 3);
+		assertEquals(2, storage.getOffset("/foo/b.java"));
+		assertEquals(3, storage.getViewport("/foo/c.java").getOffset());
+		assertEquals(2, storage.getViewports(
+				Arrays.asList("/foo/b.java", "/foo/c.java")).size());
+		assertEquals(0, target.size());
+
+		// Offsets not queued are read from the storage, which the blocked
+		// writer holds.
+		target.released.countDown();
+		assertEquals(0, storage.getOffset("/foo/none.java"));
+		assertEquals(2, storage.getViewports(
+				Arrays.asList("/foo/b.java", "/foo/c.java", "/foo/none.java"))
+				.size());
+		storage.flush();
+		assertEquals(0, storage.getPendingCount());
+		assertEquals(2, target.getOffset("/foo/b.java"));
+		assertEquals(3, target.getOffset("/foo/c.java"));
+	}
+
+	/**
+	 * Test that an offset set again before it is written is written once, in
+	 * the order it was last set.
+	 */
+	public void testCoalesces() throws InterruptedException {
+		target = new BlockingStorage(2);
+		storage = new AsyncOffsetsStorage(target, 10);
+
+		// The writer takes the first offset and waits on it.
+		storage.setOffset("/foo/first.java", 0);
+		assertTrue(target.writing.await(10, TimeUnit.SECONDS));
+		storage.setOffset("/foo/a.java", 1);
+		storage.setOffset("/foo/b.java", 2);
+		storage.setOffset("/foo/a.java", 3);
+		target.released.countDown();
+		storage.flush();
+
+		assertEquals(3, target.writeCount);
+		assertEquals("[/foo/b.java, /foo/a.java]", target.getMap().keySet()
+				.toString());
+		assertEquals(3, target.getOffset("/foo/a.java"));
+	}
+
+	/**
+	 * Test that setting an offset waits for the writer when the queue is
+	 * full.
+	 */
+	public void testBackpressure() throws InterruptedException {
+		target = new BlockingStorage(100);
+		storage = new AsyncOffsetsStorage(target, 2);
+		final CountDownLatch set = new CountDownLatch(1);
+		Thread setter = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 10; i++) {
+					storage.setOffset("/foo/" + i + ".java", i);
+				}
+				set.countDown();
+			}
+		};
+		setter.start();
+
+		assertFalse(set.await(100, TimeUnit.MILLISECONDS));
+		// A full queue being written and a full queue waiting.
+		assertTrue(storage.getPendingCount() <= 4);
+		assertTrue(storage.getWaitCount() > 0);
+
+		target.released.countDown();
+		assertTrue(set.await(10, TimeUnit.SECONDS));
+		storage.flush();
+		assertEquals(10, target.size());
+		assertEquals(10, target.getOffset("/foo/10.java"));
+	}
+
+	/**
+	 * Test that the size, maps and prefix operations see the queued offsets.
+	 */
+	public void testMapAndRekeyFlush() {
+		target = new BlockingStorage(10);
+		target.released.countDown();
+		storage = new AsyncOffsetsStorage(target, 10);
+
+		storage.setOffset("/foo/a.java", 1);
+		assertEquals(1, storage.size());
+		storage.setOffset("/foo/b.java", 2);
+		assertEquals(Integer.valueOf(2), storage.getMap().get("/foo/b.java"));
+		storage.setOffset("/foo/c.java", 3);
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/foo/", "/bar/");
+		assertEquals(3, storage.rekey(changes));
+		assertEquals(3, storage.getOffset("/bar/c.java"));
+		assertEquals(0, storage.getOffset("/foo/c.java"));
+	}
+
+	/**
+	 * Test that closing writes the queued offsets, and that offsets set
+	 * afterwards are written directly.
+	 */
+	public void testClose() {
+		target = new BlockingStorage(10);
+		target.released.countDown();
+		storage = new AsyncOffsetsStorage(target, 10);
+
+		for (int i = 0; i < 5; i++) {
+			storage.setOffset("/foo/" + i + ".java", i + 1);
+		}
+		storage.close();
+		assertEquals(5, target.size());
+		storage.setOffset("/foo/late.java", 42);
+		assertEquals(42, target.getOffset("/foo/late.java"));
+	}
+
+	/**
+	 * Test that offsets the storage fails to write are counted, and that the
+	 * first failure of the batch is passed to the listener.
+	 */
+	public void testCountsFailures() {
+		final IllegalStateException failure = new IllegalStateException(
+				"Journal full");
+		StandardOffsetsStorage failing = new StandardOffsetsStorage(10) {
+			@Override
+			public void setViewport(String filePathUri,
+					ViewportSnapshot viewport) {
+				if (filePathUri.startsWith("/bad/")) {
+					throw failure;
+				}
+				super.setViewport(filePathUri, viewport);
+			}
+		};
+		final List<Object> reported = new ArrayList<Object>();
+		storage = new AsyncOffsetsStorage(failing, 10);
+		storage.setFailureListener(new AsyncOffsetsStorage.IFailureListener() {
+			public void writeFailed(String filePathUri, RuntimeException e,
+					long failures) {
+				synchronized (reported) {
+					reported.add(filePathUri);
+					reported.add(e);
+					reported.add(Long.valueOf(failures));
+				}
+			}
+		});
+
+		// Queued while the writer is busy with nothing, so they are written
+		// in one batch once the lock is released.
+		synchronized (storage) {
+			storage.setOffset("/bad/a.java", 1);
+			storage.setOffset("/foo/b.java", 2);
+			storage.setOffset("/bad/c.java", 3);
+		}
+		storage.flush();
+		assertEquals(2, storage.getFailureCount());
+		assertEquals(2, failing.getOffset("/foo/b.java"));
+		synchronized (reported) {
+			assertEquals(Arrays.asList("/bad/a.java", failure, Long
+					.valueOf(2)), reported);
+		}
+	}
+}
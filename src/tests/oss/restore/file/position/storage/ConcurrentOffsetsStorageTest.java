@@ -0,0 +1,131 @@
+package tests.oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import oss.restore.file.position.storage.ConcurrentOffsetsStorage;
+import oss.restore.file.position.storage.IOffsetsStorage;
+
+/**
+ * Test for the ConcurrentOffsetsStorage. Runs the StandardOffsetsStorage tests
+ * against it, and stresses it from several threads.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ConcurrentOffsetsStorageTest extends StandardOffsetsStorageTest {
+
+	private static final int THREADS = 8;
+
+	@Override
+	protected IOffsetsStorage createStorage(int capacity) {
+		return new ConcurrentOffsetsStorage(capacity);
+	}
+
+	@Override
+	protected IOffsetsStorage createStorage(int capacity,
+			Map<String, Integer> initialMap) {
+		return new ConcurrentOffsetsStorage(capacity, initialMap);
+	}
+
+	/**
+	 * Test that offsets set from several threads without eviction are all
+	 * kept.
+	 */
+	public void testConcurrentWritesWithoutEviction() throws Throwable {
+		final IOffsetsStorage storage = createStorage(THREADS * 1000);
+		runThreads(new Task() {
+			public void run(int thread, Random random) {
+				for (int round = 0; round < 5; round++) {
+					for (int i = 0; i < 1000; i++) {
+						String filePathUri = "/thread" + thread + "/" + i;
+						storage.setOffset(filePathUri, round * 1000 + i);
+						assertEquals(round * 1000 + i,
+								storage.getOffset(filePathUri));
+					}
+				}
+			}
+		});
+
+		assertEquals(THREADS * 1000, storage.size());
+		for (int thread = 0; thread < THREADS; thread++) {
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(4000 + i, storage.getOffset("/thread" + thread
+						+ "/" + i));
+			}
+		}
+	}
+
+	/**
+	 * Test that the capacity holds, and snapshots stay consistent, while
+	 * several threads write, read and serialize under eviction pressure.
+	 */
+	public void testConcurrentEvictionAndSnapshots() throws Throwable {
+		final int capacity = 500;
+		final IOffsetsStorage storage = createStorage(capacity);
+		runThreads(new Task() {
+			public void run(int thread, Random random) {
+				for (int i = 0; i < 20000; i++) {
+					String filePathUri = "/path/" + random.nextInt(5000);
+					int operation = random.nextInt(100);
+					if (operation < 50) {
+						storage.setOffset(filePathUri, filePathUri.length());
+					} else if (operation < 99) {
+						int offset = storage.getOffset(filePathUri);
+						assertTrue(offset == 0
+								|| offset == filePathUri.length());
+					} else {
+						Map<String, Integer> snapshot = storage.getMap();
+						assertTrue(snapshot.size() <= capacity + THREADS);
+						for (Map.Entry<String, Integer> entry : snapshot
+								.entrySet()) {
+							assertEquals(entry.getKey().length(), entry
+									.getValue().intValue());
+						}
+					}
+				}
+			}
+		});
+
+		assertEquals(capacity, storage.size());
+		assertEquals(capacity, storage.getMap().size());
+	}
+
+	private interface Task {
+		void run(int thread, Random random);
+	}
+
+	private void runThreads(final Task task) throws Throwable {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run(thread, new Random(thread));
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.BloomFilter;
+import oss.restore.file.position.storage.FilteredOffsetsStorage;
+import oss.restore.file.position.storage.JournalShardStore;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.ShardedOffsetsStorage;
+
+/**
+ * Test for the FilteredOffsetsStorage which answers lookups of file paths
+ * never stored without opening their shard.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class FilteredOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Shards the paths below /ws by their first folder, the project.
+	 */
+	private static final ShardedOffsetsStorage.IShardResolver PROJECTS = new ShardedOffsetsStorage.IShardResolver() {
+		public String getShard(String filePathUri) {
+			if (!filePathUri.startsWith("/ws/")) {
+				return null;
+			}
+			int end = filePathUri.indexOf('/', 4);
+			return end < 0 ? null : filePathUri.substring(4, end);
+		}
+	};
+
+	private File dir;
+	private ShardedOffsetsStorage shards;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("shards", "test");
+		dir.delete();
+		shards = new ShardedOffsetsStorage(PROJECTS, new JournalShardStore(dir),
+				10);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		shards.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that a file path never stored is not looked up in its shard.
+	 */
+	public void testNegativeLookupOpensNoShard() throws IOException {
+		FilteredOffsetsStorage storage = new FilteredOffsetsStorage(shards,
+				new BloomFilter(100, 0.01));
+		storage.setOffset("/ws/foo/A.java", 1);
+		shards.close();
+		long openCount = shards.getOpenCount();
+
+		assertEquals(0, storage.getOffset("/ws/bar/B.java"));
+		assertEquals(0, storage.getOffset("/ws/foo/B.java"));
+		assertEquals(openCount, shards.getOpenCount());
+		assertEquals(2, storage.getNegativeCount());
+
+		assertEquals(1, storage.getOffset("/ws/foo/A.java"));
+		assertEquals(openCount + 1, shards.getOpenCount());
+		assertEquals(0, storage.getFalsePositiveCount());
+	}
+
+	/**
+	 * Test that moving or removing file paths never stored opens no shard.
+	 */
+	public void testRekeyOfPathsNotStoredOpensNoShard() throws IOException {
+		FilteredOffsetsStorage storage = new FilteredOffsetsStorage(shards,
+				new BloomFilter(100, 0.01));
+		storage.setOffset("/ws/foo/A.java", 1);
+		shards.close();
+		long openCount = shards.getOpenCount();
+
+		PathChanges changes = new PathChanges();
+		changes.remove("/ws/foo/bin/A.class");
+		changes.move("/ws/foo/B.java", "/ws/foo/C.java");
+		assertEquals(0, storage.rekey(changes));
+		assertEquals(openCount, shards.getOpenCount());
+		assertEquals(2, storage.getNegativeCount());
+
+		changes.move("/ws/foo/A.java", "/ws/foo/D.java");
+		assertEquals(1, storage.rekey(changes));
+		assertEquals(1, storage.getOffset("/ws/foo/D.java"));
+	}
+
+	/**
+	 * Test that a bulk lookup only passes on the file paths that might be
+	 * stored.
+	 */
+	public void testBulkLookup() throws IOException {
+		FilteredOffsetsStorage storage = new FilteredOffsetsStorage(shards,
+				new BloomFilter(100, 0.01));
+		storage.setOffset("/ws/foo/A.java", 1);
+		shards.close();
+
+		assertEquals(1, storage.getViewports(
+				Arrays.asList("/ws/foo/A.java", "/ws/bar/B.java",
+						"/ws/baz/C.java")).size());
+		assertEquals("[foo]", shards.getOpenShards().toString());
+		assertEquals(2, storage.getNegativeCount());
+	}
+
+	/**
+	 * Test that the file paths moved to are added to the filter.
+	 */
+	public void testRekeyAddsMovedPaths() {
+		FilteredOffsetsStorage storage = new FilteredOffsetsStorage(shards,
+				new BloomFilter(100, 0.01));
+		storage.setOffset("/ws/foo/A.java", 1);
+		storage.setOffset("/ws/foo/src/B.java", 2);
+
+		PathChanges changes = new PathChanges();
+		changes.move("/ws/foo/A.java", "/ws/bar/A.java");
+		changes.moveUnder("/ws/foo/src/", "/ws/baz/src/");
+		assertEquals(2, storage.rekey(changes));
+		assertEquals(1, storage.getOffset("/ws/bar/A.java"));
+		assertEquals(2, storage.getOffset("/ws/baz/src/B.java"));
+		assertEquals(0, storage.getNegativeCount());
+	}
+
+	/**
+	 * Test rebuilding the filter from the file paths of every shard.
+	 */
+	public void testRebuild() throws IOException {
+		shards.setOffset("/ws/foo/A.java", 1);
+		shards.setOffset("/ws/bar/B.java", 2);
+		shards.setOffset("/C.java", 3);
+		shards.close();
+
+		FilteredOffsetsStorage storage = new FilteredOffsetsStorage(shards,
+				new BloomFilter(100, 0.01));
+		assertEquals(0, storage.getOffset("/ws/foo/A.java"));
+		storage.rebuild(shards.readFilePaths());
+		assertEquals(0, shards.getOpenShards().size());
+		for (String filePathUri : Arrays.asList("/ws/foo/A.java",
+				"/ws/bar/B.java", "/C.java")) {
+			assertTrue(storage.getFilter().mightContain(filePathUri));
+		}
+		assertEquals(2, storage.getOffset("/ws/bar/B.java"));
+		assertEquals(3, storage.getFilter().getKeyCount());
+	}
+}
@@ -0,0 +1,289 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
+
+/**
+ * Test for the JournalOffsetsStorage which appends every change to a journal.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class JournalOffsetsStorageTest extends TestCase {
+
+	private File dir;
+	private File journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("journal", "test");
+		dir.delete();
+		dir.mkdir();
+		journal = new File(dir, "offsets.journal");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that offsets are replayed after the journal has been closed.
+	 */
+	public void testReplayAfterClose() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setOffset("/foo/bar.java", 1337);
+		storage.setOffset("/foo/baz.java", 42);
+		storage.setOffset("/foo/bar.java", 7);
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(2, storage.size());
+		assertEquals(7, storage.getOffset("/foo/bar.java"));
+		assertEquals(42, storage.getOffset("/foo/baz.java"));
+		assertEquals(1, storage.getDeadRecordCount());
+		storage.close();
+	}
+
+	/**
+	 * Test that offsets are replayed if the storage was never closed, as when
+	 * the IDE is killed.
+	 */
+	public void testReplayWithoutClose() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setOffset("/foo/bar.java", 1337);
+
+		JournalOffsetsStorage replayed = new JournalOffsetsStorage(journal, 10);
+		assertEquals(1337, replayed.getOffset("/foo/bar.java"));
+		replayed.close();
+		storage.close();
+	}
+
+	/**
+	 * Test that a torn record at the end of the journal is ignored and
+	 * overwritten by the next append.
+	 */
+	public void testTornRecordIsIgnored() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setOffset("/foo/bar.java", 1337);
+		storage.close();
+
+		// Fake a record whose length was written but not its content.
+		File generation = new File(journal.getPath() + "."
+				+ storage.getGeneration());
+		RandomAccessFile file = new RandomAccessFile(generation, "rw");
+		file.seek(8 + 40 + "/foo/bar.java".length());
+		file.writeInt(100);
+		file.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(1, storage.size());
+		storage.setOffset("/foo/baz.java", 42);
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(1337, storage.getOffset("/foo/bar.java"));
+		assertEquals(42, storage.getOffset("/foo/baz.java"));
+		storage.close();
+	}
+
+	/**
+	 * Test that replaying keeps the eviction order of the capacity limit.
+	 */
+	public void testReplayKeepsCapacityLimit() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 3);
+		for (int i = 1; i <= 5; i++) {
+			storage.setOffset("/path/" + i, i);
+		}
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 3);
+		assertEquals(3, storage.size());
+		assertEquals(0, storage.getOffset("/path/2"));
+		assertEquals(3, storage.getOffset("/path/3"));
+		assertEquals(5, storage.getOffset("/path/5"));
+		storage.close();
+	}
+
+	/**
+	 * Test that compacting drops the dead records and keeps the live ones.
+	 */
+	public void testCompact() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setCompactionThreshold(Integer.MAX_VALUE);
+		for (int i = 0; i < 100; i++) {
+			storage.setOffset("/path/" + (i % 5), i);
+		}
+		assertEquals(95, storage.getDeadRecordCount());
+
+		storage.compact();
+		assertEquals(0, storage.getDeadRecordCount());
+		assertEquals(2, storage.getGeneration());
+		storage.setOffset("/path/0", 1337);
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(5, storage.size());
+		assertEquals(1337, storage.getOffset("/path/0"));
+		assertEquals(99, storage.getOffset("/path/4"));
+		storage.close();
+		assertEquals(1, dir.list().length);
+	}
+
+	/**
+	 * Test that the journal compacts itself in the background once the
+	 * threshold is passed.
+	 */
+	public void testBackgroundCompaction() throws Exception {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setCompactionThreshold(50);
+		for (int i = 0; i < 1000; i++) {
+			storage.setOffset("/path/" + (i % 5), i);
+		}
+		storage.close();
+		assertTrue(storage.getGeneration() > 1);
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(5, storage.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(995 + i, storage.getOffset("/path/" + i));
+		}
+		storage.close();
+	}
+
+	/**
+	 * Test that the initial map is only used when no journal exists.
+	 */
+	public void testInitialMap() throws IOException {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("foobar", 1337);
+		assertFalse(JournalOffsetsStorage.exists(journal));
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10,
+				map);
+		assertEquals(1337, storage.getOffset("foobar"));
+		storage.setOffset("foobar", 42);
+		storage.close();
+
+		assertTrue(JournalOffsetsStorage.exists(journal));
+		storage = new JournalOffsetsStorage(journal, 10, map);
+		assertEquals(42, storage.getOffset("foobar"));
+		storage.close();
+	}
+
+	/**
+	 * Test that viewport snapshots are replayed, and that setting a plain
+	 * offset forgets the rest of the snapshot.
+	 */
+	public void testReplayViewports() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setViewport("/foo/bar.java", new ViewportSnapshot(1337, 5, 40,
+				0xCAFEBABE, 51, 7, 1287305400000L));
+		storage.setViewport("/foo/baz.java", new ViewportSnapshot(42, 0, 3));
+		storage.setOffset("/foo/baz.java", 43);
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(new ViewportSnapshot(1337, 5, 40, 0xCAFEBABE, 51, 7,
+				1287305400000L), storage.getViewport("/foo/bar.java"));
+		assertEquals(new ViewportSnapshot(43, 0,
+				ViewportSnapshot.UNKNOWN_TOP_LINE),
+				storage.getViewport("/foo/baz.java"));
+		assertNull(storage.getViewport("/foo/none.java"));
+		storage.close();
+	}
+
+	/**
+	 * Test that a journal of the first version, holding offsets only, is
+	 * replayed and compacted into the current version.
+	 */
+	public void testMigrateVersion1() throws IOException {
+		byte[] key = "/foo/bar.java".getBytes("UTF-8");
+		CRC32 crc = new CRC32();
+		crc.update(new byte[] { 0, 0, 5, 57 });
+		crc.update(key);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				new File(journal.getPath() + ".1")));
+		out.writeInt(0x5246504A);
+		out.writeInt(1);
+		out.writeInt(key.length + 1);
+		out.writeInt(1337);
+		out.write(key);
+		out.writeInt((int) crc.getValue());
+		out.close();
+
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(2, storage.getGeneration());
+		assertEquals(1337, storage.getOffset("/foo/bar.java"));
+		storage.setViewport("/foo/baz.java", new ViewportSnapshot(42, 1, 2));
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(1337, storage.getOffset("/foo/bar.java"));
+		assertEquals(new ViewportSnapshot(42, 1, 2),
+				storage.getViewport("/foo/baz.java"));
+		storage.close();
+	}
+
+	/**
+	 * Test that offsets moved just before closing, while their compaction is
+	 * still due, stay so after reopening.
+	 */
+	public void testRekeyBeforeClose() throws IOException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setOffset("/ws/foo/A.java", 1);
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/", "/ws/baz/");
+		assertEquals(1, storage.rekey(changes));
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(1, storage.getOffset("/ws/baz/A.java"));
+		assertEquals(0, storage.getOffset("/ws/foo/A.java"));
+		storage.close();
+	}
+
+	/**
+	 * Test that moved and removed offsets stay so after reopening.
+	 */
+	public void testRekeyIsPersisted() throws IOException,
+			InterruptedException {
+		JournalOffsetsStorage storage = new JournalOffsetsStorage(journal, 10);
+		storage.setOffset("/ws/foo/A.java", 1);
+		storage.setOffset("/ws/foo/B.java", 2);
+		storage.setOffset("/ws/bar/C.java", 3);
+
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/", "/ws/baz/");
+		changes.remove("/ws/bar/C.java");
+		assertEquals(3, storage.rekey(changes));
+		// Compacted in the background.
+		for (int i = 0; i < 100 && storage.getGeneration() == 1; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, storage.getGeneration());
+		assertEquals(0, storage.getDeadRecordCount());
+		storage.setOffset("/ws/baz/A.java", 1337);
+		storage.close();
+
+		storage = new JournalOffsetsStorage(journal, 10);
+		assertEquals(2, storage.size());
+		assertEquals(1337, storage.getOffset("/ws/baz/A.java"));
+		assertEquals(2, storage.getOffset("/ws/baz/B.java"));
+		assertEquals(0, storage.getOffset("/ws/foo/A.java"));
+		assertEquals(0, storage.getOffset("/ws/bar/C.java"));
+		storage.close();
+	}
+}
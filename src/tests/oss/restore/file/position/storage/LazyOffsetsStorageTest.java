@@ -0,0 +1,147 @@
+package tests.oss.restore.file.position.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.LazyOffsetsStorage;
+import oss.restore.file.position.storage.RadixTrieOffsetsStorage;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Test for the LazyOffsetsStorage which stands in for a storage being loaded.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class LazyOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Test that a lookup gives up after the timeout when nothing is loaded.
+	 */
+	public void testLookupTimesOut() {
+		LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 10);
+		assertEquals(0, storage.getOffset("/foo/bar.java"));
+		assertFalse(storage.isLoaded());
+		assertEquals(-1, storage.getLoadTimeMillis());
+	}
+
+	/**
+	 * Test that a lookup is served as soon as the storage is loaded on
+	 * another thread.
+	 */
+	public void testLookupWaitsForLoad() throws InterruptedException {
+		final LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 10000);
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				storage.setStorage(createLoadedStorage());
+			}
+		};
+		loader.start();
+		assertEquals(1337, storage.getOffset("foobar"));
+		loader.join();
+		assertTrue(storage.getLoadTimeMillis() >= 0);
+	}
+
+	/**
+	 * Test that offsets set while loading are kept and win over the loaded
+	 * ones.
+	 */
+	public void testOffsetsSetWhileLoading() {
+		LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 0);
+		storage.setOffset("foobar", 7);
+		storage.setOffset("/foo/bar.java", 1024);
+		assertEquals(7, storage.getOffset("foobar"));
+		assertEquals(2, storage.size());
+
+		storage.setStorage(createLoadedStorage());
+		assertEquals(7, storage.getOffset("foobar"));
+		assertEquals(42, storage.getOffset("nyancat"));
+		assertEquals(1024, storage.getOffset("/foo/bar.java"));
+		assertEquals(3, storage.size());
+	}
+
+	/**
+	 * Test that a capacity set while loading is applied to the loaded storage.
+	 */
+	public void testCapacitySetWhileLoading() {
+		LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 0);
+		assertEquals(3, storage.getCapacity());
+		storage.setCapacity(10);
+		assertEquals(10, storage.getCapacity());
+
+		storage.setStorage(createLoadedStorage());
+		assertEquals(10, storage.getStorage().getCapacity());
+	}
+
+	/**
+	 * Test that callbacks run once loaded, or directly if already loaded.
+	 */
+	public void testWhenLoaded() {
+		LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 0);
+		final int[] calls = new int[1];
+		Runnable callback = new Runnable() {
+			public void run() {
+				calls[0]++;
+			}
+		};
+		storage.whenLoaded(callback);
+		assertEquals(0, calls[0]);
+
+		storage.setStorage(createLoadedStorage());
+		assertEquals(1, calls[0]);
+		storage.whenLoaded(callback);
+		assertEquals(2, calls[0]);
+	}
+
+	/**
+	 * Test that viewport snapshots set while loading are applied to the
+	 * loaded storage, and reduced to offsets if it does not keep snapshots.
+	 */
+	public void testViewports() {
+		ViewportSnapshot viewport = new ViewportSnapshot(1337, 5, 40);
+		LazyOffsetsStorage storage = new LazyOffsetsStorage(3, 10);
+		storage.setViewport("/foo/bar.java", viewport);
+		assertEquals(viewport, storage.getViewport("/foo/bar.java"));
+		storage.setStorage(new StandardOffsetsStorage(3));
+		assertEquals(viewport, storage.getViewport("/foo/bar.java"));
+		assertEquals(viewport, storage.getViewports().get("/foo/bar.java"));
+
+		storage = new LazyOffsetsStorage(3, 10);
+		storage.setViewport("/foo/bar.java", viewport);
+		storage.setStorage(new RadixTrieOffsetsStorage(3));
+		assertEquals(new ViewportSnapshot(1337, 0,
+				ViewportSnapshot.UNKNOWN_TOP_LINE),
+				storage.getViewport("/foo/bar.java"));
+		assertNull(storage.getViewport("/foo/none.java"));
+	}
+
+	private StandardOffsetsStorage createLoadedStorage() {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("foobar", 1337);
+		map.put("nyancat", 42);
+		return new StandardOffsetsStorage(3, map);
+	}
+
+	/**
+	 * Test that paths moved while loading are moved both in the offsets set
+	 * while loading and in the loaded storage.
+	 */
+	public void testRekeyWhileLoading() {
+		LazyOffsetsStorage lazy = new LazyOffsetsStorage(10, 0);
+		lazy.setOffset("/ws/foo/A.java", 1);
+		assertEquals(1, lazy.moveUnder("/ws/foo/", "/ws/bar/"));
+
+		StandardOffsetsStorage loaded = new StandardOffsetsStorage(10);
+		loaded.setOffset("/ws/foo/B.java", 2);
+		loaded.setOffset("/ws/baz/C.java", 3);
+		lazy.setStorage(loaded);
+		assertEquals(1, lazy.getOffset("/ws/bar/A.java"));
+		assertEquals(2, lazy.getOffset("/ws/bar/B.java"));
+		assertEquals(0, lazy.getOffset("/ws/foo/B.java"));
+
+		assertEquals(1, lazy.removeUnder("/ws/baz/"));
+		assertEquals(2, lazy.size());
+	}
+}
@@ -0,0 +1,109 @@
+package tests.oss.restore.file.position.storage;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.OffHeapOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
+
+/**
+ * Test for the OffHeapOffsetsStorage which keeps the offsets in direct
+ * buffers.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class OffHeapOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Test setting, updating and getting offsets and viewports.
+	 */
+	public void testSetAndGet() {
+		OffHeapOffsetsStorage storage = new OffHeapOffsetsStorage(3);
+		assertEquals(0, storage.getOffset("/foo/bar.java"));
+		assertNull(storage.getViewport("/foo/bar.java"));
+
+		storage.setOffset("/foo/bar.java", 1024);
+		storage.setViewport("/foo/b\u00e4r/\u6587\u4ef6.java",
+				new ViewportSnapshot(5, 6, 7, 8, 9, 10));
+		storage.setOffset("/foo/bar.java", 2048);
+		assertEquals(2048, storage.getOffset("/foo/bar.java"));
+		assertEquals(new ViewportSnapshot(5, 6, 7, 8, 9, 10), storage
+				.getViewport("/foo/b\u00e4r/\u6587\u4ef6.java"));
+		assertEquals(2, storage.size());
+		assertEquals("{/foo/bar.java=2048, /foo/b\u00e4r/\u6587\u4ef6.java=5}",
+				storage.getMap().toString());
+	}
+
+	/**
+	 * Test that the eldest inserted offsets are evicted when the capacity is
+	 * reached, and when it is lowered.
+	 */
+	public void testCapacityLimit() {
+		OffHeapOffsetsStorage storage = new OffHeapOffsetsStorage(3);
+		for (int i = 1; i <= 4; i++) {
+			storage.setOffset("/" + i + ".java", i);
+		}
+		storage.setOffset("/3.java", 33);
+		assertEquals(3, storage.size());
+		assertEquals(0, storage.getOffset("/1.java"));
+		assertEquals(1, storage.getEvictionCount());
+
+		storage.setCapacity(2);
+		assertEquals("{/3.java=33, /4.java=4}", storage.getMap().toString());
+		storage.setOffset("/5.java", 5);
+		assertEquals("{/4.java=4, /5.java=5}", storage.getMap().toString());
+	}
+
+	/**
+	 * Test that the buffers grow past their initial size, with every offset
+	 * still found, and that the eviction keeps the newest ones.
+	 */
+	public void testGrowAndEvict() {
+		OffHeapOffsetsStorage storage = new OffHeapOffsetsStorage(5000);
+		for (int i = 0; i < 12000; i++) {
+			storage.setOffset(path(i), i + 1);
+		}
+		assertEquals(5000, storage.size());
+		assertEquals(7000, storage.getEvictionCount());
+		for (int i = 0; i < 12000; i++) {
+			assertEquals(i < 7000 ? 0 : i + 1, storage.getOffset(path(i)));
+		}
+		assertTrue(storage.getMemoryBytes() > 0);
+	}
+
+	/**
+	 * Test moving and removing offsets, and that the records left by removed
+	 * offsets are reused.
+	 */
+	public void testRekey() {
+		OffHeapOffsetsStorage storage = new OffHeapOffsetsStorage(100);
+		for (int i = 0; i < 100; i++) {
+			storage.setOffset(path(i), i + 1);
+		}
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/project0/", "/ws/moved/");
+		changes.removeUnder("/ws/project1/");
+		changes.remove(path(2));
+		assertEquals(21, storage.rekey(changes));
+		assertEquals(89, storage.size());
+		assertEquals(1, storage.getOffset("/ws/moved/src/File0.java"));
+		assertEquals(0, storage.getOffset(path(0)));
+		assertEquals(0, storage.getOffset(path(1)));
+		assertEquals(10, storage.getOffsetsUnder("/ws/moved/").size());
+		assertEquals(0, storage.getOffsetsUnder("/ws/project1/").size());
+
+		for (int i = 100; i <= 110; i++) {
+			storage.setOffset(path(i), i + 1);
+		}
+		assertEquals(100, storage.size());
+		assertEquals(0, storage.getEvictionCount());
+		Map<String, ViewportSnapshot> viewports = storage.getViewports();
+		assertEquals(100, viewports.size());
+		assertEquals(ViewportSnapshot.ofOffset(111), viewports.get(path(110)));
+	}
+
+	private static String path(int i) {
+		return "/ws/project" + (i % 10) + "/src/File" + i + ".java";
+	}
+}
@@ -0,0 +1,64 @@
+package tests.oss.restore.file.position.storage;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.storage.PathChanges;
+
+/**
+ * Test the PathChanges which map file paths to where they were moved.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PathChangesTest extends TestCase {
+
+	/**
+	 * Test moving and removing single paths.
+	 */
+	public void testPaths() {
+		PathChanges changes = new PathChanges();
+		assertTrue(changes.isEmpty());
+		changes.move("/ws/foo/A.java", "/ws/foo/B.java");
+		changes.remove("/ws/foo/C.java");
+		assertEquals(2, changes.size());
+
+		assertEquals("/ws/foo/B.java", changes.map("/ws/foo/A.java"));
+		assertNull(changes.map("/ws/foo/C.java"));
+		String unchanged = "/ws/foo/A.java.orig";
+		assertSame(unchanged, changes.map(unchanged));
+	}
+
+	/**
+	 * Test moving and removing prefixes, with siblings sorting between a
+	 * prefix and the paths below it.
+	 */
+	public void testPrefixes() {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/", "/ws/bar/");
+		changes.removeUnder("/ws/foo-old/");
+		changes.moveUnder("/ws/foo/src-gen/x/", "/ws/baz/");
+
+		assertEquals("/ws/bar/src/A.java", changes.map("/ws/foo/src/A.java"));
+		assertEquals("/ws/bar/src-gen/x/B.java", changes
+				.map("/ws/foo/src-gen/x/B.java"));
+		assertNull(changes.map("/ws/foo-old/C.java"));
+		assertEquals("/ws/foo.txt", changes.map("/ws/foo.txt"));
+		assertEquals("/ws/foo", changes.map("/ws/foo"));
+		assertEquals(2, changes.getPrefixes().size());
+	}
+
+	/**
+	 * Test that a prefix change replaces the changes below it and takes
+	 * precedence over path changes.
+	 */
+	public void testPrefixReplacesChangesBelow() {
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/src/", "/ws/foo/source/");
+		changes.removeUnder("/ws/foo/bin/");
+		changes.move("/ws/foo/src/A.java", "/ws/foo/src/B.java");
+		changes.removeUnder("/ws/foo/");
+
+		assertEquals(1, changes.getPrefixes().size());
+		assertNull(changes.map("/ws/foo/src/A.java"));
+		assertNull(changes.map("/ws/foo/bin/A.class"));
+		assertEquals("/ws/bar/A.java", changes.map("/ws/bar/A.java"));
+	}
+}
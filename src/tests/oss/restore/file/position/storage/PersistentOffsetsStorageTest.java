@@ -0,0 +1,79 @@
+package tests.oss.restore.file.position.storage;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.PersistentOffsetsStorage;
+
+/**
+ * Test for the PersistentOffsetsStorage which hands out snapshots of its
+ * offsets without copying them.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PersistentOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Test that the eldest inserted offset is evicted first, and that
+	 * overwriting an offset keeps its place.
+	 */
+	public void testCapacityLimit() {
+		PersistentOffsetsStorage storage = new PersistentOffsetsStorage(3);
+		storage.setOffset("/foo/a.java", 1);
+		storage.setOffset("/foo/b.java", 2);
+		storage.setOffset("/foo/c.java", 3);
+		storage.setOffset("/foo/a.java", 4);
+		storage.setOffset("/foo/d.java", 5);
+		assertEquals("{/foo/b.java=2, /foo/c.java=3, /foo/d.java=5}", storage
+				.getMap().toString());
+		assertEquals(1, storage.getEvictionCount());
+
+		storage.setCapacity(1);
+		storage.setOffset("/foo/e.java", 6);
+		assertEquals("{/foo/e.java=6}", storage.getMap().toString());
+	}
+
+	/**
+	 * Test that a snapshot is not changed by offsets set afterwards.
+	 */
+	public void testSnapshot() {
+		PersistentOffsetsStorage storage = new PersistentOffsetsStorage(10);
+		storage.setViewport("/foo/a.java", new ViewportSnapshot(1, 2, 3));
+		storage.setOffset("/foo/b.java", 2);
+		PersistentOffsetsStorage.Snapshot snapshot = storage.snapshot();
+
+		storage.setOffset("/foo/a.java", 10);
+		storage.setOffset("/foo/c.java", 3);
+		storage.removeUnder("/foo/b");
+
+		assertEquals(2, snapshot.size());
+		assertEquals(new ViewportSnapshot(1, 2, 3), snapshot
+				.getViewport("/foo/a.java"));
+		assertEquals("[/foo/a.java, /foo/b.java]", snapshot.getViewports()
+				.keySet().toString());
+		assertEquals("{/foo/a.java=10, /foo/c.java=3}", storage.getMap()
+				.toString());
+	}
+
+	/**
+	 * Test that moved offsets keep their place in the eviction order and
+	 * replace the offsets at their new paths.
+	 */
+	public void testRekey() {
+		PersistentOffsetsStorage storage = new PersistentOffsetsStorage(3);
+		storage.setOffset("/ws/foo/A.java", 1);
+		storage.setOffset("/ws/bar/A.java", 2);
+		storage.setOffset("/ws/bar/B.java", 3);
+
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/", "/ws/bar/");
+		assertEquals(1, storage.rekey(changes));
+		assertEquals("{/ws/bar/A.java=1, /ws/bar/B.java=3}", storage.getMap()
+				.toString());
+
+		storage.setOffset("/ws/C.java", 4);
+		storage.setOffset("/ws/D.java", 5);
+		assertEquals("{/ws/bar/B.java=3, /ws/C.java=4, /ws/D.java=5}", storage
+				.getMap().toString());
+	}
+}
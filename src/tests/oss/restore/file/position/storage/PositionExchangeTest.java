@@ -0,0 +1,239 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.PositionFileReader;
+import oss.restore.file.position.collection.PositionFileWriter;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.PositionExchange;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+
+/**
+ * Test for the PositionExchange which exports, merges and imports position
+ * files, and for the position file format itself.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class PositionExchangeTest extends TestCase {
+
+	/**
+	 * Maps the paths below /home/a/ws to keys relative to it, and the keys to
+	 * paths below /home/b/ws, except for the missing project.
+	 */
+	private static final PositionExchange.IKeyMapper WORKSPACES = new PositionExchange.IKeyMapper() {
+		public String toPortable(String filePathUri) {
+			return filePathUri.startsWith("/home/a/ws/") ? filePathUri
+					.substring(10) : null;
+		}
+
+		public String toLocal(String key) {
+			return key.startsWith("/missing/") ? null : "/home/b/ws" + key;
+		}
+	};
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("exchange", "test");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test a round trip of a position file.
+	 */
+	public void testRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PositionFileWriter writer = new PositionFileWriter(out);
+		writer.write("/p/Bar.java", viewport(42, 1000));
+		writer.write("/p/Foo.java", new ViewportSnapshot(1337, 5, 40,
+				0xCAFEBABE, 51, 7, 1287305400000L));
+		writer.write("/p/\u00e5.txt", viewport(1, ViewportSnapshot.UNKNOWN_MODIFIED));
+		writer.close();
+
+		PositionFileReader reader = new PositionFileReader(
+				new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(reader.next());
+		assertEquals("/p/Bar.java", reader.getKey());
+		assertEquals(viewport(42, 1000), reader.getViewport());
+		assertTrue(reader.next());
+		assertEquals(new ViewportSnapshot(1337, 5, 40, 0xCAFEBABE, 51, 7,
+				1287305400000L), reader.getViewport());
+		assertTrue(reader.next());
+		assertEquals("/p/\u00e5.txt", reader.getKey());
+		assertFalse(reader.next());
+		assertNull(reader.getKey());
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * Test that keys must be written in order, and that a truncated file is
+	 * refused rather than read as a shorter one.
+	 */
+	public void testOrderAndTruncation() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PositionFileWriter writer = new PositionFileWriter(out);
+		writer.write("/p/b", viewport(1, 1));
+		try {
+			writer.write("/p/a", viewport(1, 1));
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		writer.close();
+
+		byte[] bytes = out.toByteArray();
+		PositionFileReader reader = new PositionFileReader(
+				new ByteArrayInputStream(Arrays.copyOf(bytes,
+						bytes.length - 1)));
+		assertTrue(reader.next());
+		try {
+			reader.next();
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Test that merging keeps the last modified snapshot of each key, and
+	 * the first one of a tie.
+	 */
+	public void testMergeLastWriterWins() throws IOException {
+		File first = write("first", "/p/a", viewport(1, 100), "/p/b",
+				viewport(2, 100), "/p/d", viewport(4, 300));
+		File second = write("second", "/p/b", viewport(20, 200), "/p/c",
+				viewport(30, 100), "/p/d", viewport(40, 300), "/p/e",
+				viewport(50, 100));
+		File merged = new File(dir, "merged");
+
+		assertEquals(5, PositionExchange.merge(first, second, merged));
+		Map<String, ViewportSnapshot> expected = new LinkedHashMap<String, ViewportSnapshot>();
+		expected.put("/p/a", viewport(1, 100));
+		expected.put("/p/b", viewport(20, 200));
+		expected.put("/p/c", viewport(30, 100));
+		expected.put("/p/d", viewport(4, 300));
+		expected.put("/p/e", viewport(50, 100));
+		assertEquals(expected, read(merged));
+	}
+
+	/**
+	 * Test that a large merge streams through both files.
+	 */
+	public void testLargeMerge() throws IOException {
+		File first = new File(dir, "first");
+		File second = new File(dir, "second");
+		writeRange(first, 0, 200000, 1);
+		writeRange(second, 100000, 300000, 2);
+		File merged = new File(dir, "merged");
+
+		assertEquals(300000, PositionExchange.merge(first, second, merged));
+		PositionFileReader reader = new PositionFileReader(
+				new FileInputStream(merged));
+		for (int i = 0; i < 300000; i++) {
+			assertTrue(reader.next());
+			assertEquals(i < 100000 ? 1 : 2, reader.getViewport()
+					.getModifiedMillis());
+		}
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	/**
+	 * Test that exporting writes portable keys, and merges into an existing
+	 * position file.
+	 */
+	public void testExport() throws IOException {
+		File file = write("file.positions", "/p/Foo.java", viewport(1, 500),
+				"/q/Bar.java", viewport(2, 100));
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		viewports.put("/home/a/ws/p/Foo.java", viewport(10, 400));
+		viewports.put("/home/a/ws/q/Bar.java", viewport(20, 200));
+		viewports.put("/tmp/Baz.java", viewport(30, 600));
+
+		assertEquals(2, PositionExchange.export(viewports, WORKSPACES, file));
+		Map<String, ViewportSnapshot> expected = new LinkedHashMap<String, ViewportSnapshot>();
+		expected.put("/p/Foo.java", viewport(1, 500));
+		expected.put("/q/Bar.java", viewport(20, 200));
+		assertEquals(expected, read(file));
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	/**
+	 * Test that importing skips the positions modified before the stored
+	 * ones and those of missing projects, and sets the last modified ones
+	 * last, so they survive the capacity limit.
+	 */
+	public void testImport() throws IOException {
+		File file = write("file.positions", "/missing/A.java", viewport(1,
+				900), "/p/A.java", viewport(2, 300), "/p/B.java", viewport(3,
+				100), "/p/C.java", viewport(4, 500), "/p/D.java", viewport(5,
+				400));
+		StandardOffsetsStorage storage = new StandardOffsetsStorage(2);
+		storage.setViewport("/home/b/ws/p/C.java", viewport(40, 600));
+
+		assertEquals(2, PositionExchange.importInto(file, WORKSPACES,
+				storage, 2));
+		assertEquals("[/home/b/ws/p/A.java, /home/b/ws/p/D.java]", storage
+				.getMap().keySet().toString());
+		assertEquals(viewport(5, 400), storage
+				.getViewport("/home/b/ws/p/D.java"));
+	}
+
+	private static ViewportSnapshot viewport(int offset, long modifiedMillis) {
+		return ViewportSnapshot.ofOffset(offset).withModifiedMillis(
+				modifiedMillis);
+	}
+
+	private File write(String name, Object... entries) throws IOException {
+		File file = new File(dir, name);
+		PositionFileWriter writer = new PositionFileWriter(
+				new FileOutputStream(file));
+		for (int i = 0; i < entries.length; i += 2) {
+			writer.write((String) entries[i], (ViewportSnapshot) entries[i + 1]);
+		}
+		writer.close();
+		return file;
+	}
+
+	private static void writeRange(File file, int from, int to,
+			long modifiedMillis) throws IOException {
+		PositionFileWriter writer = new PositionFileWriter(
+				new BufferedOutputStream(new FileOutputStream(
+						file)));
+		for (int i = from; i < to; i++) {
+			writer.write(String.format("/project/src/pkg%03d/Type%06d.java",
+					i / 1000, i), viewport(i, modifiedMillis));
+		}
+		writer.close();
+	}
+
+	private static Map<String, ViewportSnapshot> read(File file)
+			throws IOException {
+		Map<String, ViewportSnapshot> map = new LinkedHashMap<String, ViewportSnapshot>();
+		PositionFileReader reader = new PositionFileReader(
+				new FileInputStream(file));
+		while (reader.next()) {
+			map.put(reader.getKey(), reader.getViewport());
+		}
+		reader.close();
+		return map;
+	}
+}
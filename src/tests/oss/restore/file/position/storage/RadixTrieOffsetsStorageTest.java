@@ -0,0 +1,177 @@
+package tests.oss.restore.file.position.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.storage.IPrefixOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.RadixTrieOffsetsStorage;
+
+/**
+ * Test for the RadixTrieOffsetsStorage.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class RadixTrieOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Tests constructing a trie storage with a already existing map.
+	 */
+	public void testConstructorWithMap() {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("foobar", 1337);
+		map.put("nyancat", 42);
+
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(3, map);
+		assertEquals(1337, storage.getOffset("foobar"));
+		assertEquals(42, storage.getOffset("nyancat"));
+		assertEquals(0, storage.getOffset("foo"));
+		assertEquals(0, storage.getOffset("foobarbaz"));
+	}
+
+	/**
+	 * Test that paths that are prefixes of each other are kept apart.
+	 */
+	public void testNestedKeys() {
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(10);
+		storage.setOffset("/foo/bar", 1);
+		storage.setOffset("/foo/bar.java", 2);
+		storage.setOffset("/foo/ba", 3);
+		storage.setOffset("", 4);
+		assertEquals(1, storage.getOffset("/foo/bar"));
+		assertEquals(2, storage.getOffset("/foo/bar.java"));
+		assertEquals(3, storage.getOffset("/foo/ba"));
+		assertEquals(4, storage.getOffset(""));
+		assertEquals(0, storage.getOffset("/foo/b"));
+		assertEquals(4, storage.size());
+	}
+
+	/**
+	 * Test that the least recently used offset is evicted.
+	 */
+	public void testLeastRecentlyUsedIsEvicted() {
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(3);
+		storage.setOffset("/path/1", 1);
+		storage.setOffset("/path/2", 2);
+		storage.setOffset("/path/3", 3);
+		assertEquals(1, storage.getOffset("/path/1"));
+
+		storage.setOffset("/path/4", 4);
+		assertEquals(3, storage.size());
+		assertEquals(0, storage.getOffset("/path/2"));
+		assertEquals(1, storage.getOffset("/path/1"));
+
+		List<String> keys = new ArrayList<String>(storage.getMap().keySet());
+		assertEquals("/path/3", keys.get(0));
+		assertEquals("/path/1", keys.get(2));
+	}
+
+	/**
+	 * Test getting and removing every offset below a prefix.
+	 */
+	public void testPrefixOperations() {
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(10);
+		storage.setOffset("/ws/foo/src/A.java", 1);
+		storage.setOffset("/ws/foo/src/B.java", 2);
+		storage.setOffset("/ws/foobar/src/C.java", 3);
+		storage.setOffset("/ws/bar/D.java", 4);
+
+		Map<String, Integer> underFoo = storage.getOffsetsUnder("/ws/foo/");
+		assertEquals(2, underFoo.size());
+		assertEquals(new Integer(1), underFoo.get("/ws/foo/src/A.java"));
+		assertEquals(new Integer(2), underFoo.get("/ws/foo/src/B.java"));
+		assertEquals(3, storage.getOffsetsUnder("/ws/foo").size());
+		assertEquals(0, storage.getOffsetsUnder("/ws/baz").size());
+
+		assertEquals(2, storage.removeUnder("/ws/foo/"));
+		assertEquals(2, storage.size());
+		assertEquals(0, storage.getOffset("/ws/foo/src/A.java"));
+		assertEquals(3, storage.getOffset("/ws/foobar/src/C.java"));
+		assertEquals(4, storage.getOffset("/ws/bar/D.java"));
+
+		assertEquals(2, storage.removeUnder(""));
+		assertEquals(0, storage.size());
+		assertEquals(0, storage.getMap().size());
+	}
+
+	/**
+	 * Test random operations against a LinkedHashMap in access order.
+	 */
+	public void testAgainstReference() {
+		final int capacity = 50;
+		Map<String, Integer> reference = new LinkedHashMap<String, Integer>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> e) {
+				return size() > capacity;
+			}
+		};
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(capacity);
+		Random random = new Random(1337);
+
+		for (int i = 0; i < 20000; i++) {
+			String key = "/ws/p" + random.nextInt(4) + "/src/"
+					+ random.nextInt(10) + "/F" + random.nextInt(10);
+			int operation = random.nextInt(10);
+			if (operation < 5) {
+				storage.setOffset(key, i);
+				reference.put(key, i);
+			} else if (operation < 9) {
+				Integer expected = reference.get(key);
+				assertEquals(expected == null ? 0 : expected.intValue(),
+						storage.getOffset(key));
+			} else {
+				String prefix = key.substring(0, random.nextInt(key.length()));
+				int removed = 0;
+				for (String k : new ArrayList<String>(reference.keySet())) {
+					if (k.startsWith(prefix)) {
+						reference.remove(k);
+						removed++;
+					}
+				}
+				assertEquals(removed, storage.removeUnder(prefix));
+			}
+			assertEquals(reference.size(), storage.size());
+		}
+		assertEquals(new ArrayList<Map.Entry<String, Integer>>(reference
+				.entrySet()), new ArrayList<Map.Entry<String, Integer>>(
+				storage.getMap().entrySet()));
+	}
+
+	/**
+	 * Test moving every offset below a prefix, and a batch of changes.
+	 */
+	public void testMoveUnder() {
+		IPrefixOffsetsStorage storage = new RadixTrieOffsetsStorage(10);
+		storage.setOffset("/ws/foo/src/A.java", 1);
+		storage.setOffset("/ws/foo/src/B.java", 2);
+		storage.setOffset("/ws/foobar/C.java", 3);
+		storage.setOffset("/ws/bar/D.java", 4);
+
+		assertEquals(2, storage.moveUnder("/ws/foo/", "/ws/baz/"));
+		assertEquals(4, storage.size());
+		assertEquals(0, storage.getOffset("/ws/foo/src/A.java"));
+		assertEquals(1, storage.getOffset("/ws/baz/src/A.java"));
+		assertEquals(2, storage.getOffset("/ws/baz/src/B.java"));
+		assertEquals(3, storage.getOffset("/ws/foobar/C.java"));
+
+		PathChanges changes = new PathChanges();
+		changes.move("/ws/bar/D.java", "/ws/bar/E.java");
+		changes.remove("/ws/foobar/C.java");
+		changes.moveUnder("/ws/baz/src/", "/ws/foo/src/");
+		changes.remove("/ws/baz/src/B.java");
+		assertEquals(4, storage.rekey(changes));
+		assertEquals(3, storage.size());
+		assertEquals(4, storage.getOffset("/ws/bar/E.java"));
+		assertEquals(1, storage.getOffset("/ws/foo/src/A.java"));
+		assertEquals(2, storage.getOffset("/ws/foo/src/B.java"));
+		assertEquals(0, storage.getOffset("/ws/foobar/C.java"));
+	}
+}
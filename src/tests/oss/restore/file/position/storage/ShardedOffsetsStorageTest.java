@@ -0,0 +1,205 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.JournalShardStore;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.ShardedOffsetsStorage;
+
+/**
+ * Test for the ShardedOffsetsStorage which opens a shard per project when
+ * first used.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class ShardedOffsetsStorageTest extends TestCase {
+
+	/**
+	 * Shards the paths below /ws by their first folder, the project.
+	 */
+	private static final ShardedOffsetsStorage.IShardResolver PROJECTS = new ShardedOffsetsStorage.IShardResolver() {
+		public String getShard(String filePathUri) {
+			if (!filePathUri.startsWith("/ws/")) {
+				return null;
+			}
+			int end = filePathUri.indexOf('/', 4);
+			return end < 0 ? null : filePathUri.substring(4, end);
+		}
+	};
+
+	private File dir;
+	private JournalShardStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("shards", "test");
+		dir.delete();
+		store = new JournalShardStore(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that shards are only opened when used, and reopened with their
+	 * offsets after being closed.
+	 */
+	public void testShardsOpenedWhenUsed() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 10);
+		assertEquals(0, storage.getOpenShards().size());
+		storage.setViewport("/ws/foo/A.java", new ViewportSnapshot(1, 2, 3));
+		storage.setOffset("/ws/bar/B.java", 2);
+		storage.setOffset("/elsewhere/C.java", 3);
+		assertEquals("[, bar, foo]", storage.getOpenShards().toString());
+		assertEquals(3, storage.size());
+
+		storage.closeShard("foo");
+		assertEquals(2, storage.size());
+		assertNull(storage.getMap().get("/ws/foo/A.java"));
+		storage.close();
+		assertEquals(0, storage.getOpenShards().size());
+
+		storage = new ShardedOffsetsStorage(PROJECTS, store, 10);
+		assertEquals(new ViewportSnapshot(1, 2, 3), storage
+				.getViewport("/ws/foo/A.java"));
+		assertEquals("[foo]", storage.getOpenShards().toString());
+		assertEquals(3, storage.getOffset("/elsewhere/C.java"));
+		assertEquals(2, storage.getOpenCount());
+		storage.close();
+	}
+
+	/**
+	 * Test that the capacity applies to each shard.
+	 */
+	public void testCapacityPerShard() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 2);
+		for (int i = 1; i <= 3; i++) {
+			storage.setOffset("/ws/foo/" + i + ".java", i);
+			storage.setOffset("/ws/bar/" + i + ".java", i);
+		}
+		assertEquals(4, storage.size());
+		assertEquals(0, storage.getOffset("/ws/foo/1.java"));
+		assertEquals(3, storage.getOffset("/ws/bar/3.java"));
+		storage.close();
+	}
+
+	/**
+	 * Test that getting and setting several offsets opens each shard once.
+	 */
+	public void testBulk() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 10);
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		viewports.put("/ws/foo/A.java", ViewportSnapshot.ofOffset(1));
+		viewports.put("/ws/bar/B.java", ViewportSnapshot.ofOffset(2));
+		viewports.put("/ws/foo/C.java", ViewportSnapshot.ofOffset(3));
+		storage.setViewports(viewports);
+		assertEquals("[bar, foo]", storage.getOpenShards().toString());
+		storage.close();
+
+		storage = new ShardedOffsetsStorage(PROJECTS, store, 10);
+		Map<String, ViewportSnapshot> found = storage.getViewports(Arrays
+				.asList("/ws/foo/A.java", "/ws/bar/B.java", "/ws/foo/C.java",
+						"/ws/foo/D.java"));
+		assertEquals(3, found.size());
+		assertEquals(3, found.get("/ws/foo/C.java").getOffset());
+		assertEquals(2, storage.getOpenCount());
+		storage.close();
+	}
+
+	/**
+	 * Test moving offsets within and between shards, including a shard that
+	 * is not open.
+	 */
+	public void testRekeyBetweenShards() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 10);
+		storage.setOffset("/ws/foo/src/A.java", 1);
+		storage.setOffset("/ws/foo/src/B.java", 2);
+		storage.setOffset("/ws/foo/C.java", 3);
+		storage.setOffset("/ws/bar/D.java", 4);
+		storage.closeShard("foo");
+
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/src/", "/ws/bar/src/");
+		changes.move("/ws/foo/C.java", "/ws/foo/E.java");
+		changes.remove("/ws/bar/D.java");
+		assertEquals(4, storage.rekey(changes));
+
+		storage.close();
+		storage = new ShardedOffsetsStorage(PROJECTS, store, 10);
+		assertEquals(1, storage.getOffset("/ws/bar/src/A.java"));
+		assertEquals(2, storage.getOffset("/ws/bar/src/B.java"));
+		assertEquals(0, storage.getOffset("/ws/bar/D.java"));
+		assertEquals(2, storage.size());
+		assertEquals(3, storage.getOffset("/ws/foo/E.java"));
+		assertEquals(0, storage.getOffset("/ws/foo/src/A.java"));
+		assertEquals(3, storage.size());
+		storage.close();
+	}
+
+	/**
+	 * Test that changes to paths of shards that are not stored neither open
+	 * nor create them.
+	 */
+	public void testRekeySkipsShardsNotStored() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 10);
+		storage.setOffset("/ws/foo/A.java", 1);
+		storage.closeShard("foo");
+		long openCount = storage.getOpenCount();
+
+		PathChanges changes = new PathChanges();
+		changes.remove("/ws/bar/B.java");
+		changes.removeUnder("/ws/baz/bin/");
+		changes.move("/ws/qux/C.java", "/ws/foo/C.java");
+		assertEquals(0, storage.rekey(changes));
+		assertEquals(openCount, storage.getOpenCount());
+		assertTrue(storage.getOpenShards().isEmpty());
+		assertEquals(1, dir.list().length);
+
+		changes.remove("/ws/foo/A.java");
+		assertEquals(1, storage.rekey(changes));
+		assertEquals("[foo]", storage.getOpenShards().toString());
+		storage.close();
+	}
+
+	/**
+	 * Test renaming and deleting the shard of a project.
+	 */
+	public void testRenameAndDeleteShard() throws IOException {
+		ShardedOffsetsStorage storage = new ShardedOffsetsStorage(PROJECTS,
+				store, 10);
+		storage.setOffset("/ws/foo/A.java", 1);
+		storage.setOffset("/ws/bar/B.java", 2);
+
+		storage.renameShard("foo", "baz");
+		assertEquals("[bar, baz]", storage.getOpenShards().toString());
+		assertEquals(1, storage.moveUnder("/ws/foo/", "/ws/baz/"));
+		assertEquals(1, storage.getOffset("/ws/baz/A.java"));
+
+		storage.deleteShard("bar");
+		storage.close();
+		// The renamed shard only, no empty one for the old name.
+		assertEquals(1, dir.list().length);
+
+		storage = new ShardedOffsetsStorage(PROJECTS, store, 10);
+		assertEquals(0, storage.getOffset("/ws/bar/B.java"));
+		assertEquals(0, storage.getOffset("/ws/foo/A.java"));
+		assertEquals(1, storage.getOffset("/ws/baz/A.java"));
+		storage.close();
+	}
+}
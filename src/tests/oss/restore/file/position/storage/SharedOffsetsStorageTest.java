@@ -0,0 +1,250 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.storage.PathChanges;
+import oss.restore.file.position.storage.SharedOffsetsStorage;
+
+/**
+ * Test for the SharedOffsetsStorage which keeps the offsets in a memory mapped
+ * file shared by several processes.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class SharedOffsetsStorageTest extends TestCase {
+
+	// The layout of the file, to break it as a dying process would.
+	private static final int HEADER_SIZE = 16;
+	private static final int HEADER_BYTES = 64;
+	private static final int RECORD_BYTES = 512;
+	// The slots of a file created for 3 offsets.
+	private static final int SLOTS = 8;
+
+	private File file;
+	private SharedOffsetsStorage first;
+	private SharedOffsetsStorage second;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("shared", ".positions");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (first != null) {
+			first.close();
+		}
+		if (second != null) {
+			second.close();
+		}
+		file.delete();
+	}
+
+	/**
+	 * Test that viewports are kept, also after the file has been reopened.
+	 */
+	public void testReopen() throws IOException {
+		first = new SharedOffsetsStorage(file, 10);
+		ViewportSnapshot viewport = new ViewportSnapshot(300, 4, 2,
+				0x80000001, 12, 4, 1287305400000L);
+		first.setViewport("/foo/Bar.java", viewport);
+		first.setOffset("/foo/Baz.java", 42);
+		first.setOffset("/foo/Bar.java", 7);
+		first.setViewport("/foo/Bar.java", viewport);
+		assertEquals(2, first.size());
+		first.close();
+
+		first = new SharedOffsetsStorage(file, 1000);
+		assertEquals(10, first.getCapacity());
+		assertEquals(2, first.size());
+		assertEquals(viewport, first.getViewport("/foo/Bar.java"));
+		assertEquals(42, first.getOffset("/foo/Baz.java"));
+		assertEquals(0, first.getOffset("/foo/Missing.java"));
+		assertNull(first.getViewport("/foo/Missing.java"));
+		assertEquals(Arrays.asList("/foo/Baz.java", "/foo/Bar.java"),
+				new ArrayList<String>(first.getMap().keySet()));
+	}
+
+	/**
+	 * Test that two storages of one file see each others offsets right away.
+	 */
+	public void testSeesOtherWrites() throws IOException {
+		first = new SharedOffsetsStorage(file, 10);
+		second = new SharedOffsetsStorage(file, 10);
+		first.setOffset("/foo/Bar.java", 1337);
+		assertEquals(1337, second.getOffset("/foo/Bar.java"));
+
+		first.setOffset("/foo/Baz.java", 42);
+		first.setOffset("/foo/Bar.java", 7);
+		assertEquals(42, second.getOffset("/foo/Baz.java"));
+		assertEquals(7, second.getOffset("/foo/Bar.java"));
+		assertEquals(1, second.removeUnder("/foo/Baz"));
+		assertEquals(0, first.getOffset("/foo/Baz.java"));
+	}
+
+	/**
+	 * Test that the offset written least recently by any storage is evicted
+	 * first.
+	 */
+	public void testEvictsLeastRecentlyWritten() throws IOException {
+		first = new SharedOffsetsStorage(file, 3);
+		second = new SharedOffsetsStorage(file, 3);
+		first.setOffset("/a", 1);
+		second.setOffset("/b", 2);
+		first.setOffset("/c", 3);
+		second.setOffset("/a", 4);
+		first.setOffset("/d", 5);
+		assertEquals(3, second.size());
+		assertEquals(0, second.getOffset("/b"));
+		assertEquals(4, second.getOffset("/a"));
+		assertEquals(1, first.getEvictionCount());
+
+		first.setCapacity(1);
+		assertEquals(1, second.getCapacity());
+		assertEquals(Arrays.asList("/d"), new ArrayList<String>(second
+				.getMap().keySet()));
+	}
+
+	/**
+	 * Test that a table left dirty by a process that died while changing it
+	 * is rebuilt when the file is opened again.
+	 */
+	public void testRebuildsDirtyTable() throws IOException {
+		first = new SharedOffsetsStorage(file, 3);
+		first.setOffset("/a", 1);
+		first.setOffset("/b", 2);
+		first.setOffset("/c", 3);
+		first.close();
+		first = null;
+
+		// A record copied by an interrupted shift, a wrong size, and the
+		// dirty flag left set.
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		try {
+			byte[] copied = null;
+			int empty = -1;
+			for (int slot = 0; slot < SLOTS; slot++) {
+				byte[] record = new byte[RECORD_BYTES];
+				raw.seek(HEADER_BYTES + slot * RECORD_BYTES);
+				raw.readFully(record);
+				if (record[0] == 0 && record[1] == 0 && record[2] == 0
+						&& record[3] == 0) {
+					empty = slot;
+				} else if (copied == null) {
+					copied = record;
+				}
+			}
+			raw.seek(HEADER_BYTES + empty * RECORD_BYTES);
+			raw.write(copied);
+			raw.seek(HEADER_SIZE);
+			raw.writeInt(42);
+			raw.writeInt(1);
+		} finally {
+			raw.close();
+		}
+
+		first = new SharedOffsetsStorage(file, 3);
+		assertEquals(3, first.size());
+		assertEquals(Arrays.asList("/a", "/b", "/c"), new ArrayList<String>(
+				first.getMap().keySet()));
+		first.setOffset("/d", 4);
+		assertEquals(3, first.size());
+		assertEquals(0, first.getOffset("/a"));
+		assertEquals(1, first.getEvictionCount());
+	}
+
+	/**
+	 * Test that a size counting more records than there are does not keep
+	 * offsets from being set.
+	 */
+	public void testRecoversFromWrongSize() throws IOException {
+		first = new SharedOffsetsStorage(file, 3);
+		first.close();
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		try {
+			raw.seek(HEADER_SIZE);
+			raw.writeInt(5);
+		} finally {
+			raw.close();
+		}
+
+		first = new SharedOffsetsStorage(file, 3);
+		first.setOffset("/a", 1);
+		assertEquals(1, first.size());
+		assertEquals(1, first.getOffset("/a"));
+	}
+
+	/**
+	 * Test that removing offsets keeps every other offset reachable, and that
+	 * prefix moves are applied.
+	 */
+	public void testRekey() throws IOException {
+		first = new SharedOffsetsStorage(file, 1000);
+		for (int i = 0; i < 1000; i++) {
+			first.setOffset("/project" + (i % 3) + "/File" + i + ".java", i);
+		}
+		assertEquals(334, first.removeUnder("/project0/"));
+		assertEquals(333, first.moveUnder("/project1/", "/renamed/"));
+		PathChanges changes = new PathChanges();
+		changes.move("/project2/File2.java", "/project2/Moved.java");
+		assertEquals(1, first.rekey(changes));
+
+		assertEquals(666, first.size());
+		for (int i = 0; i < 1000; i++) {
+			int expected = i % 3 == 0 || i == 2 ? 0 : i;
+			String path = (i % 3 == 1 ? "/renamed" : "/project" + (i % 3))
+					+ "/File" + i + ".java";
+			assertEquals(path, expected, first.getOffset(path));
+		}
+		assertEquals(2, first.getOffset("/project2/Moved.java"));
+		assertEquals(333, first.getOffsetsUnder("/renamed/").size());
+	}
+
+	/**
+	 * Test bulk lookups and writes.
+	 */
+	public void testBulk() throws IOException {
+		first = new SharedOffsetsStorage(file, 10);
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		viewports.put("/foo/Bar.java", new ViewportSnapshot(1, 2, 3));
+		viewports.put("/foo/Baz.java", ViewportSnapshot.ofOffset(42));
+		first.setViewports(viewports);
+		assertEquals(viewports, first.getViewports(Arrays.asList(
+				"/foo/Bar.java", "/foo/Missing.java", "/foo/Baz.java")));
+	}
+
+	/**
+	 * Test that file paths too long for a record are not stored.
+	 */
+	public void testSkipsLongPaths() throws IOException {
+		first = new SharedOffsetsStorage(file, 10);
+		char[] name = new char[SharedOffsetsStorage.MAX_KEY_BYTES + 1];
+		Arrays.fill(name, 'a');
+		first.setOffset(new String(name), 1337);
+		assertEquals(0, first.size());
+	}
+
+	/**
+	 * Test that a file in another format is rejected.
+	 */
+	public void testRejectsForeignFile() throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("foobar=1337".getBytes());
+		out.close();
+		try {
+			first = new SharedOffsetsStorage(file, 10);
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package tests.oss.restore.file.position.storage;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
 import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.PathChanges;
 import oss.restore.file.position.storage.StandardOffsetsStorage;
 
 /**
@@ -23,7 +27,7 @@ public class StandardOffsetsStorageTest extends TestCase {
 		map.put("foobar", 1337);
 		map.put("nyancat", 42);
 		
-		IOffsetsStorage storage = new StandardOffsetsStorage(3, map);
+		IOffsetsStorage storage = createStorage(3, map);
 		assertEquals(1337, storage.getOffset("foobar"));
 		assertEquals(42, storage.getOffset("nyancat"));
 	}
@@ -32,7 +36,7 @@ public class StandardOffsetsStorageTest extends TestCase {
 	 * Test that non-existing file path URI returns 0 by default.
 	 */
 	public void testNonExisting() {
-		IOffsetsStorage storage = new StandardOffsetsStorage(3);
+		IOffsetsStorage storage = createStorage(3);
 		String filePathUri = "/foo/bar.java";
 		assertEquals(0, storage.getOffset(filePathUri));
 	}
@@ -42,7 +46,7 @@ public class StandardOffsetsStorageTest extends TestCase {
 	 */
 	public void testSetOffset() {
 		String filePathUri = "/foo/bar.java";
-		IOffsetsStorage storage = new StandardOffsetsStorage(3);
+		IOffsetsStorage storage = createStorage(3);
 		storage.setOffset(filePathUri, 1024);
 		assertEquals(1024, storage.getOffset(filePathUri));
 	}
@@ -53,7 +57,7 @@ public class StandardOffsetsStorageTest extends TestCase {
 	 */
 	public void testCapacityLimit() {
 		int capacity = 3;
-		IOffsetsStorage storage = new StandardOffsetsStorage(capacity);
+		IOffsetsStorage storage = createStorage(capacity);
 
 		// Create entries.
 		for (int i = 1; i <= capacity; i++) {
@@ -89,7 +93,7 @@ public class StandardOffsetsStorageTest extends TestCase {
 	 */
 	public void testChangeCapacity() {
 		int initialCapacity = 3;
-		IOffsetsStorage storage = new StandardOffsetsStorage(initialCapacity);
+		IOffsetsStorage storage = createStorage(initialCapacity);
 
 		// Try to add more items than the capacity would allow, assert capacity
 		// is not breached.
@@ -107,6 +111,32 @@ public class StandardOffsetsStorageTest extends TestCase {
 		assertEquals(newCapacity, storage.size());
 	}
 
+	/**
+	 * Create the storage under test. Override to run these tests against
+	 * another implementation.
+	 * 
+	 * @param capacity
+	 *            The capacity of the storage.
+	 * @return The storage.
+	 */
+	protected IOffsetsStorage createStorage(int capacity) {
+		return new StandardOffsetsStorage(capacity);
+	}
+
+	/**
+	 * Create the storage under test with an initial map.
+	 * 
+	 * @param capacity
+	 *            The capacity of the storage.
+	 * @param initialMap
+	 *            The initial mapping.
+	 * @return The storage.
+	 */
+	protected IOffsetsStorage createStorage(int capacity,
+			Map<String, Integer> initialMap) {
+		return new StandardOffsetsStorage(capacity, initialMap);
+	}
+
 	/**
 	 * Get a fake file path URI based on an offset.
 	 * 
@@ -114,7 +144,59 @@ public class StandardOffsetsStorageTest extends TestCase {
 	 *            A number.
 	 * @return The URI
 	 */
-	private String getFilePathUri(int offset) {
+	protected String getFilePathUri(int offset) {
 		return "/path/" + offset;
 	}
+
+	/**
+	 * Test moving and removing the offsets of moved and deleted folders and
+	 * files in one batch.
+	 */
+	public void testRekey() {
+		StandardOffsetsStorage storage = new StandardOffsetsStorage(10);
+		storage.setViewport("/ws/foo/src/A.java", new ViewportSnapshot(1, 2,
+				3));
+		storage.setOffset("/ws/foo/src/B.java", 2);
+		storage.setOffset("/ws/foobar/C.java", 3);
+		storage.setOffset("/ws/bar/D.java", 4);
+		storage.setOffset("/ws/bar/E.java", 5);
+
+		PathChanges changes = new PathChanges();
+		changes.moveUnder("/ws/foo/", "/ws/baz/");
+		changes.removeUnder("/ws/bar/");
+		changes.move("/ws/foobar/C.java", "/ws/foobar/F.java");
+		assertEquals(5, storage.rekey(changes));
+
+		assertEquals("[/ws/baz/src/A.java, /ws/baz/src/B.java, "
+				+ "/ws/foobar/F.java]", storage.getMap().keySet().toString());
+		assertEquals(new ViewportSnapshot(1, 2, 3), storage
+				.getViewport("/ws/baz/src/A.java"));
+		assertEquals(2, storage.getOffsetsUnder("/ws/baz/").size());
+		assertEquals(2, storage.removeUnder("/ws/baz/"));
+		assertEquals(1, storage.moveUnder("/ws/", "/workspace/"));
+		assertEquals(3, storage.getOffset("/workspace/foobar/F.java"));
+	}
+
+	/**
+	 * Test getting and setting the viewports of several files at once, in
+	 * order and evicting the eldest as when set one by one.
+	 */
+	public void testBulk() {
+		StandardOffsetsStorage storage = new StandardOffsetsStorage(3);
+		storage.setOffset("/foo/a.java", 1);
+		Map<String, ViewportSnapshot> viewports = new LinkedHashMap<String, ViewportSnapshot>();
+		viewports.put("/foo/b.java", new ViewportSnapshot(2, 1, 0));
+		viewports.put("/foo/c.java", ViewportSnapshot.ofOffset(3));
+		viewports.put("/foo/d.java", ViewportSnapshot.ofOffset(4));
+		storage.setViewports(viewports);
+
+		assertEquals("[/foo/b.java, /foo/c.java, /foo/d.java]", storage
+				.getMap().keySet().toString());
+		assertEquals(1, storage.getEvictionCount());
+		Map<String, ViewportSnapshot> found = storage.getViewports(Arrays
+				.asList("/foo/a.java", "/foo/b.java", "/foo/d.java"));
+		assertEquals(2, found.size());
+		assertEquals(new ViewportSnapshot(2, 1, 0), found.get("/foo/b.java"));
+		assertEquals(4, found.get("/foo/d.java").getOffset());
+	}
 }
@@ -0,0 +1,84 @@
+package tests.oss.restore.file.position.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import oss.restore.file.position.storage.IOffsetsStorage;
+import oss.restore.file.position.storage.JournalOffsetsStorage;
+import oss.restore.file.position.storage.LazyOffsetsStorage;
+
+/**
+ * Measures how long plug-in activation is blocked by loading the stored
+ * offsets, synchronously as before and in the background with a
+ * LazyOffsetsStorage, for 10k, 100k and 1M stored entries. Run it as a Java
+ * application, optionally with the entry counts as arguments.
+ * 
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class StartupTimeMeasurement {
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 10000, 100000, 1000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("entries\tsync ms\tactivation ms\tbackground load ms");
+		for (int size : sizes) {
+			File dir = File.createTempFile("startup", "measurement");
+			dir.delete();
+			dir.mkdir();
+			try {
+				measure(new File(dir, "offsets.journal"), size);
+			} finally {
+				for (File file : dir.listFiles()) {
+					file.delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	private static void measure(final File journal, final int size)
+			throws Exception {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			map.put("/home/nyan/workspace/project" + (i % 20) + "/src/pkg"
+					+ (i % 500) + "/File" + i + ".java", i);
+		}
+		new JournalOffsetsStorage(journal, size, map).close();
+
+		// Before: the activating thread loads everything itself.
+		long start = System.nanoTime();
+		JournalOffsetsStorage sync = new JournalOffsetsStorage(journal, size);
+		long syncNanos = System.nanoTime() - start;
+		sync.close();
+
+		// After: the activating thread only starts the load.
+		start = System.nanoTime();
+		final LazyOffsetsStorage lazy = new LazyOffsetsStorage(size);
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lazy.setStorage(new JournalOffsetsStorage(journal, size));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		loader.start();
+		long activationNanos = System.nanoTime() - start;
+		loader.join();
+		IOffsetsStorage loaded = lazy.getStorage();
+		((JournalOffsetsStorage) loaded).close();
+
+		System.out.println(size + "\t" + syncNanos / 1000000 + "\t"
+				+ activationNanos / 1000000 + "\t" + lazy.getLoadTimeMillis());
+	}
+}
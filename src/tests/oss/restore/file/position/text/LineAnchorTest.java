@@ -0,0 +1,133 @@
+package tests.oss.restore.file.position.text;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.collection.ViewportSnapshot;
+import oss.restore.file.position.text.LineAnchor;
+
+/**
+ * Test anchoring positions to the text around them.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class LineAnchorTest extends TestCase {
+
+	private static final String TEXT = "package foo;\n" + "\n"
+			+ "class Foo {\n" + "\tint bar() {\n" + "\t\treturn 42;\n"
+			+ "\t}\n" + "}\n";
+
+	/**
+	 * Test that the caret line and column are captured.
+	 */
+	public void testCapture() {
+		int offset = TEXT.indexOf("42");
+		ViewportSnapshot viewport = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(offset, 2, 1));
+		assertTrue(viewport.hasAnchor());
+		assertEquals(4, viewport.getAnchorLine());
+		assertEquals(9, viewport.getAnchorColumn());
+		assertEquals(offset, viewport.getOffset());
+		assertEquals(2, viewport.getSelectionLength());
+		assertEquals(1, viewport.getTopLine());
+	}
+
+	/**
+	 * Test that an unchanged text keeps the position.
+	 */
+	public void testUnchanged() {
+		ViewportSnapshot viewport = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(TEXT.indexOf("42"), 2, 1));
+		assertEquals(viewport, LineAnchor.relocate(TEXT, viewport));
+	}
+
+	/**
+	 * Test that the position follows its text when lines are added above it,
+	 * also with other line separators and trailing whitespace.
+	 */
+	public void testLinesAddedAbove() {
+		ViewportSnapshot viewport = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(TEXT.indexOf("42"), 2, 1));
+		String edited = "// Copyright\r\n\r\nimport bar;\r\n"
+				+ TEXT.replace("\n", " \r\n");
+
+		ViewportSnapshot relocated = LineAnchor.relocate(edited, viewport);
+		assertEquals(7, relocated.getAnchorLine());
+		assertEquals(4, relocated.getTopLine());
+		assertEquals(edited.indexOf("42"), relocated.getOffset());
+		assertEquals(2, relocated.getSelectionLength());
+	}
+
+	/**
+	 * Test that the match closest to the stored line is chosen.
+	 */
+	public void testClosestMatch() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			text.append("a\nb\nc\n");
+		}
+		String original = text.toString();
+		// The "b" of the fifth repetition.
+		int offset = 4 * 6 + 2;
+		ViewportSnapshot viewport = LineAnchor.capture(original,
+				new ViewportSnapshot(offset, 0, 10));
+		assertEquals(13, viewport.getAnchorLine());
+
+		// Now at lines 11 and 14, the latter closer to the stored line.
+		ViewportSnapshot relocated = LineAnchor.relocate("x\n" + original,
+				viewport);
+		assertEquals(14, relocated.getAnchorLine());
+		assertEquals(2 + offset, relocated.getOffset());
+		assertEquals(11, relocated.getTopLine());
+	}
+
+	/**
+	 * Test that the offset is clamped to the text when no anchor matches.
+	 */
+	public void testFallback() {
+		ViewportSnapshot viewport = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(TEXT.indexOf("42"), 2, 1));
+		String other = "completely\ndifferent\n";
+		ViewportSnapshot relocated = LineAnchor.relocate(other, viewport);
+		assertEquals(other.length(), relocated.getOffset());
+		assertEquals(1, relocated.getTopLine());
+
+		ViewportSnapshot unanchored = new ViewportSnapshot(5, 0, 0);
+		assertEquals(unanchored, LineAnchor.relocate(TEXT, unanchored));
+		assertEquals(3, LineAnchor.relocate("abc", unanchored).getOffset());
+	}
+
+	/**
+	 * Test anchors at the first and last line.
+	 */
+	public void testFirstAndLastLine() {
+		ViewportSnapshot first = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(3, 0, 0));
+		assertEquals(0, first.getAnchorLine());
+		assertEquals(3, LineAnchor.relocate(TEXT + "}\n", first).getOffset());
+
+		ViewportSnapshot last = LineAnchor.capture(TEXT,
+				new ViewportSnapshot(TEXT.length(), 0, 0));
+		assertEquals(7, last.getAnchorLine());
+		assertEquals(TEXT.length() + 1, LineAnchor.relocate("\n" + TEXT, last)
+				.getOffset());
+	}
+
+	/**
+	 * Test relocating in a large file where lines were added at the top.
+	 */
+	public void testLargeFile() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			text.append("\tline ").append(i).append(";\n");
+		}
+		String original = text.toString();
+		int offset = original.indexOf("line 98765;");
+		ViewportSnapshot viewport = LineAnchor.capture(original,
+				new ViewportSnapshot(offset, 4, 98740));
+		String edited = "one\ntwo\nthree\n" + original;
+
+		ViewportSnapshot relocated = LineAnchor.relocate(edited, viewport);
+		assertEquals(edited.indexOf("line 98765;"), relocated.getOffset());
+		assertEquals(98768, relocated.getAnchorLine());
+		assertEquals(98743, relocated.getTopLine());
+	}
+}
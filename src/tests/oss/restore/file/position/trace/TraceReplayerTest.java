@@ -0,0 +1,62 @@
+package tests.oss.restore.file.position.trace;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.storage.StandardOffsetsStorage;
+import oss.restore.file.position.trace.TraceEvent;
+import oss.restore.file.position.trace.TraceGenerator;
+import oss.restore.file.position.trace.TraceReplayer;
+
+/**
+ * Test for the TraceReplayer which replays editor events against an offsets
+ * storage.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceReplayerTest extends TestCase {
+
+	/**
+	 * Test that the opened editors are looked up and the closed and activated
+	 * ones stored.
+	 */
+	public void testReplay() {
+		StandardOffsetsStorage storage = new StandardOffsetsStorage(10);
+		TraceReplayer replayer = new TraceReplayer(storage);
+
+		replayer.replay(Arrays.asList(new TraceEvent(TraceEvent.OPEN, 0,
+				"/ws/a/Foo.java", 0), new TraceEvent(TraceEvent.ACTIVATE,
+				10, "/ws/a/Foo.java", 42), new TraceEvent(TraceEvent.CLOSE,
+				20, "/ws/a/Foo.java", 1337), new TraceEvent(TraceEvent.OPEN,
+				30, "/ws/a/Foo.java", 1337)));
+
+		assertEquals(2, replayer.getOpenCount());
+		assertEquals(1, replayer.getCloseCount());
+		assertEquals(1, replayer.getActivateCount());
+		assertEquals(1, replayer.getHitCount());
+		assertEquals(0.5, replayer.getHitRate());
+		assertEquals(2, replayer.getLookupLatency().getCount());
+		assertEquals(2, replayer.getStoreLatency().getCount());
+		assertEquals(1337, storage.getOffset("/ws/a/Foo.java"));
+	}
+
+	/**
+	 * Test that a larger storage finds more of the generated editors, and
+	 * never all of them since some are one-off files.
+	 */
+	public void testHitRateGrowsWithCapacity() {
+		List<TraceEvent> events = new TraceGenerator(3).generate(20000);
+		double previousHitRate = 0;
+		for (int capacity : new int[] { 10, 100, 1000 }) {
+			TraceReplayer replayer = new TraceReplayer(
+					new StandardOffsetsStorage(capacity));
+			replayer.replay(events);
+
+			assertTrue(capacity + ": " + replayer.getSummary(), replayer
+					.getHitRate() > previousHitRate);
+			assertTrue(replayer.getHitRate() < 0.9);
+			previousHitRate = replayer.getHitRate();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package tests.oss.restore.file.position.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.trace.TraceEvent;
+import oss.restore.file.position.trace.TraceGenerator;
+import oss.restore.file.position.trace.TraceReader;
+import oss.restore.file.position.trace.TraceRecorder;
+import oss.restore.file.position.trace.TraceWriter;
+
+/**
+ * Test for the TraceWriter and TraceReader which write and read the compact
+ * trace files of recorded editor events.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class TraceWriterTest extends TestCase {
+
+	/**
+	 * Test that events are read back as written.
+	 */
+	public void testRoundTrip() throws IOException {
+		List<TraceEvent> events = Arrays.asList(new TraceEvent(
+				TraceEvent.OPEN, 1000, "/ws/a/Foo.java", 0), new TraceEvent(
+				TraceEvent.ACTIVATE, 1500, "/ws/a/Foo.java", 1337),
+				new TraceEvent(TraceEvent.OPEN, 90000, "/ws/a/Bar.java", 42),
+				new TraceEvent(TraceEvent.CLOSE, 90000, "/ws/a/Foo.java",
+						1400), new TraceEvent(TraceEvent.CLOSE,
+						2000000000L, "/ws/b/\u00e5\u00e4\u00f6.txt",
+						Integer.MAX_VALUE));
+
+		assertEquals(events, read(write(events)));
+	}
+
+	/**
+	 * Test that an empty stream is an empty trace.
+	 */
+	public void testEmpty() throws IOException {
+		assertEquals(new ArrayList<TraceEvent>(), read(new byte[0]));
+	}
+
+	/**
+	 * Test that a stream which is not a trace is refused.
+	 */
+	public void testNotATrace() {
+		try {
+			read("foobar=1337".getBytes());
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Test that a trace cut short ends at its last whole event.
+	 */
+	public void testTruncated() throws IOException {
+		List<TraceEvent> events = new TraceGenerator(1).generate(100);
+		byte[] trace = write(events);
+		byte[] lastCut = write(events.subList(0, 99));
+
+		for (int length = lastCut.length; length < trace.length; length++) {
+			assertEquals(events.subList(0, 99), read(Arrays.copyOf(trace,
+					length)));
+		}
+	}
+
+	/**
+	 * Test that a typical trace takes a fraction of the bytes of its paths.
+	 */
+	public void testCompact() throws IOException {
+		List<TraceEvent> events = new TraceGenerator(1).generate(10000);
+		long pathBytes = 0;
+		for (TraceEvent event : events) {
+			pathBytes += event.getFilePathUri().length();
+		}
+		byte[] trace = write(events);
+
+		assertTrue("bytes per event " + trace.length / events.size(),
+				trace.length < pathBytes / 4);
+		assertEquals(events, read(trace));
+	}
+
+	/**
+	 * Test that the same seed generates the same trace, and a well formed
+	 * one: editors are only activated and closed while open.
+	 */
+	public void testGeneratedTrace() {
+		List<TraceEvent> events = new TraceGenerator(7).generate(5000);
+
+		assertEquals(events, new TraceGenerator(7).generate(5000));
+		assertFalse(events.equals(new TraceGenerator(8).generate(5000)));
+		List<String> open = new ArrayList<String>();
+		long timeMillis = 0;
+		for (TraceEvent event : events) {
+			assertTrue(event.getTimeMillis() >= timeMillis);
+			timeMillis = event.getTimeMillis();
+			if (event.getType() == TraceEvent.OPEN) {
+				assertFalse(open.contains(event.getFilePathUri()));
+				open.add(event.getFilePathUri());
+			} else if (event.getType() == TraceEvent.CLOSE) {
+				assertTrue(open.remove(event.getFilePathUri()));
+			} else {
+				assertTrue(open.contains(event.getFilePathUri()));
+			}
+		}
+	}
+
+	/**
+	 * Test that the recorder stops at the first failed write and reports it.
+	 */
+	public void testRecorderFailure() {
+		TraceRecorder recorder = new TraceRecorder(new TraceWriter(
+				new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						throw new IOException("disk full");
+					}
+				}));
+
+		recorder.record(TraceEvent.OPEN, "/ws/a/Foo.java", 0);
+		recorder.record(TraceEvent.CLOSE, "/ws/a/Foo.java", 10);
+
+		assertFalse(recorder.isRecording());
+		assertEquals(0, recorder.getEventCount());
+		assertEquals("disk full", recorder.getFailure().getMessage());
+		try {
+			recorder.close();
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Test that the recorded events are written when closed.
+	 */
+	public void testRecorder() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceRecorder recorder = new TraceRecorder(new TraceWriter(out));
+
+		recorder.record(TraceEvent.OPEN, "/ws/a/Foo.java", 0);
+		recorder.record(TraceEvent.CLOSE, "/ws/a/Foo.java", -1);
+		recorder.close();
+		recorder.record(TraceEvent.OPEN, "/ws/a/Foo.java", 0);
+
+		List<TraceEvent> events = read(out.toByteArray());
+		assertEquals(2, events.size());
+		assertEquals(TraceEvent.CLOSE, events.get(1).getType());
+		assertEquals(0, events.get(1).getOffset());
+		assertEquals(2, recorder.getEventCount());
+	}
+
+	private static byte[] write(List<TraceEvent> events) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceWriter writer = new TraceWriter(out);
+		for (TraceEvent event : events) {
+			writer.write(event);
+		}
+		writer.close();
+		return out.toByteArray();
+	}
+
+	private static List<TraceEvent> read(byte[] trace) throws IOException {
+		return new TraceReader(new ByteArrayInputStream(trace)).readAll();
+	}
+}
@@ -0,0 +1,127 @@
+package tests.oss.restore.file.position.tracking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import oss.restore.file.position.tracking.Debouncer;
+
+/**
+ * Test the Debouncer which coalesces changes per key.
+ *
+ * @author Nicklas Gummesson <nicklas@tuenti.com>
+ */
+public class DebouncerTest extends TestCase {
+
+	/**
+	 * A debouncer whose scheduler keeps the tasks until told to run them.
+	 */
+	private static class ManualDebouncer extends Debouncer<String> {
+		final List<Runnable> tasks;
+		final List<Long> delays;
+
+		ManualDebouncer(long quietMillis, final List<String> flushed) {
+			this(quietMillis, flushed, new ArrayList<Runnable>(),
+					new ArrayList<Long>());
+		}
+
+		private ManualDebouncer(long quietMillis, final List<String> flushed,
+				final List<Runnable> tasks, final List<Long> delays) {
+			super(quietMillis, new IScheduler() {
+				public void schedule(long delayMillis, Runnable task) {
+					delays.add(Long.valueOf(delayMillis));
+					tasks.add(task);
+				}
+			}, new IFlusher<String>() {
+				public void flush(String key) {
+					flushed.add(key);
+				}
+			});
+			this.tasks = tasks;
+			this.delays = delays;
+		}
+
+		void runTasks() {
+			List<Runnable> run = new ArrayList<Runnable>(tasks);
+			tasks.clear();
+			for (Runnable task : run) {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Test that a burst of changes is flushed once per key after the quiet
+	 * period, and schedules one timeout.
+	 */
+	public void testBurstCoalesced() {
+		List<String> flushed = new ArrayList<String>();
+		ManualDebouncer debouncer = new ManualDebouncer(500, flushed);
+		for (int i = 0; i < 100; i++) {
+			debouncer.changed("/foo/a.java");
+		}
+		debouncer.changed("/foo/b.java");
+		debouncer.changed("/foo/a.java");
+		assertEquals(1, debouncer.tasks.size());
+		assertEquals(Long.valueOf(500), debouncer.delays.get(0));
+		assertEquals(2, debouncer.getPendingCount());
+
+		// Changes were seen since the timeout was scheduled.
+		debouncer.runTasks();
+		assertTrue(flushed.isEmpty());
+		debouncer.runTasks();
+		assertEquals(0, debouncer.getPendingCount());
+		assertEquals(102, debouncer.getChangeCount());
+		assertEquals(2, debouncer.getFlushCount());
+		assertEquals("[/foo/a.java, /foo/b.java]", flushed.toString());
+	}
+
+	/**
+	 * Test that a timeout firing while changes keep coming waits another
+	 * quiet period.
+	 */
+	public void testTimeoutRescheduled() {
+		List<String> flushed = new ArrayList<String>();
+		ManualDebouncer debouncer = new ManualDebouncer(500, flushed);
+		debouncer.changed("/foo/a.java");
+		debouncer.runTasks();
+		assertEquals("[/foo/a.java]", flushed.toString());
+		flushed.clear();
+
+		debouncer.changed("/foo/a.java");
+		debouncer.changed("/foo/a.java");
+		debouncer.runTasks();
+		assertTrue(flushed.isEmpty());
+		debouncer.changed("/foo/a.java");
+		debouncer.runTasks();
+		assertTrue(flushed.isEmpty());
+		assertEquals(1, debouncer.tasks.size());
+		assertEquals(Long.valueOf(500), debouncer.delays.get(2));
+
+		debouncer.runTasks();
+		assertEquals("[/foo/a.java]", flushed.toString());
+		assertTrue(debouncer.tasks.isEmpty());
+
+		// The next change schedules a new timeout.
+		debouncer.changed("/foo/a.java");
+		assertEquals(1, debouncer.tasks.size());
+	}
+
+	/**
+	 * Test flushing and forgetting a single key.
+	 */
+	public void testFlushAndForget() {
+		List<String> flushed = new ArrayList<String>();
+		ManualDebouncer debouncer = new ManualDebouncer(500, flushed);
+		debouncer.changed("/foo/a.java");
+		debouncer.changed("/foo/b.java");
+		debouncer.flush("/foo/b.java");
+		debouncer.flush("/foo/c.java");
+		assertEquals("[/foo/b.java]", flushed.toString());
+
+		debouncer.forget("/foo/a.java");
+		debouncer.runTasks();
+		assertEquals("[/foo/b.java]", flushed.toString());
+		assertEquals(0, debouncer.getPendingCount());
+	}
+}